@@ -28,6 +28,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -35,10 +36,13 @@ import java.util.Map;
 import java.util.Iterator;
 import java.util.Collections;
 
+import org.apache.commons.transaction.locking.DeadlockVictimSelector;
 import org.apache.commons.transaction.locking.GenericLock;
 import org.apache.commons.transaction.locking.GenericLockManager;
 import org.apache.commons.transaction.locking.LockException;
 import org.apache.commons.transaction.locking.LockManager2;
+import org.apache.commons.transaction.locking.ResourceOrder;
+import org.apache.commons.transaction.locking.WaiterScheduler;
 import org.apache.commons.transaction.util.FileHelper;
 import org.apache.commons.transaction.util.LoggerFacade;
 
@@ -191,6 +195,9 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
     protected Map globalTransactions;
     protected List globalOpenResources;
     protected LockManager2 lockManager;
+    protected DeadlockVictimSelector victimSelector = null;
+    protected WaiterScheduler waiterScheduler = null;
+    protected int lockStripes = 0;
 
     protected ResourceIdToPathMapper idMapper = null;
     protected TransactionIdToPathMapper txIdMapper = null;
@@ -346,20 +353,56 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
             // XXX will never return false as it will either throw or return true
             return true;
         } catch (LockException e) {
-            switch (e.getCode()) {
-            case LockException.CODE_INTERRUPTED:
-                throw new ResourceManagerException("Could not get lock for resource at '"
-                        + resourceId + "'", ERR_NO_LOCK, txId);
-            case LockException.CODE_TIMED_OUT:
-                throw new ResourceManagerException("Lock timed out for resource at '" + resourceId
-                        + "'", ERR_NO_LOCK, txId);
-            case LockException.CODE_DEADLOCK_VICTIM:
-                throw new ResourceManagerException("Deadlock victim resource at '" + resourceId
-                        + "'", ERR_DEAD_LOCK, txId);
-            default :
-                throw new ResourceManagerException("Locking exception for resource at '" + resourceId
-                        + "'", ERR_DEAD_LOCK, txId);
-            }
+            throw lockFailed(e, resourceId, txId);
+        }
+    }
+
+    /**
+     * Locks a number of resources in one go. The locks are acquired in canonical order, so
+     * transactions locking the same resources this way can not deadlock each other.
+     * 
+     * @param resourceIds the resources to lock
+     * @param txId the transaction to lock them for
+     * @param shared <code>true</code> for shared locks, <code>false</code> for exclusive ones
+     * @throws ResourceManagerException if any of the locks could not be acquired
+     * @since 1.3
+     */
+    protected void lockResources(Collection resourceIds, Object txId, boolean shared)
+            throws ResourceManagerException {
+
+        TransactionContext context = (shared ? txInitialSaneCheck(txId) : txInitialSaneCheckForWriting(txId));
+        assureNotMarkedForRollback(context);
+        for (Iterator it = resourceIds.iterator(); it.hasNext();) {
+            fileInitialSaneCheck(txId, it.next());
+        }
+
+        int level = (shared ? getSharedLockLevel(context) : LOCK_EXCLUSIVE);
+        try {
+            lockManager.lockAll(txId, resourceIds, level, true, context.timeoutMSecs);
+        } catch (LockException e) {
+            throw lockFailed(e, e.getResourceId(), txId);
+        }
+    }
+
+    /**
+     * Translates a failure to lock a resource into the matching {@link ResourceManagerException}.
+     * 
+     * @since 1.3
+     */
+    protected ResourceManagerException lockFailed(LockException e, Object resourceId, Object txId) {
+        switch (e.getCode()) {
+        case LockException.CODE_INTERRUPTED:
+            return new ResourceManagerException("Could not get lock for resource at '"
+                    + resourceId + "'", ERR_NO_LOCK, txId);
+        case LockException.CODE_TIMED_OUT:
+            return new ResourceManagerException("Lock timed out for resource at '" + resourceId
+                    + "'", ERR_NO_LOCK, txId);
+        case LockException.CODE_DEADLOCK_VICTIM:
+            return new ResourceManagerException("Deadlock victim resource at '" + resourceId
+                    + "'", ERR_DEAD_LOCK, txId);
+        default :
+            return new ResourceManagerException("Locking exception for resource at '" + resourceId
+                    + "'", ERR_DEAD_LOCK, txId);
         }
     }
 
@@ -391,6 +434,54 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
         defaultTimeout = timeout;
     }
 
+    /**
+     * Sets the policy choosing which transaction is rolled back when transactions deadlock.
+     * {@link LeastWrittenVictimSelector} chooses the one that has written the least data.
+     * 
+     * @param victimSelector the policy or <code>null</code> to have the transaction that
+     *            finds the deadlock rolled back
+     * @see GenericLockManager#setDeadlockVictimSelector(DeadlockVictimSelector)
+     * @since 1.3
+     */
+    public synchronized void setDeadlockVictimSelector(DeadlockVictimSelector victimSelector) {
+        this.victimSelector = victimSelector;
+        if (lockManager instanceof GenericLockManager) {
+            ((GenericLockManager) lockManager).setDeadlockVictimSelector(victimSelector);
+        }
+    }
+
+    /**
+     * Sets the policy deciding which of the transactions waiting for a resource gets it
+     * first. A {@link org.apache.commons.transaction.locking.WeightedWaiterScheduler} e.g.
+     * lets transactions serving interactive requests overtake batch jobs contending for the
+     * same resources.
+     * 
+     * @param waiterScheduler the policy or <code>null</code> to serve transactions in the
+     *            order they started waiting
+     * @see GenericLockManager#setWaiterScheduler(WaiterScheduler)
+     * @since 1.3
+     */
+    public synchronized void setWaiterScheduler(WaiterScheduler waiterScheduler) {
+        this.waiterScheduler = waiterScheduler;
+        if (lockManager instanceof GenericLockManager) {
+            ((GenericLockManager) lockManager).setWaiterScheduler(waiterScheduler);
+        }
+    }
+
+    /**
+     * Gets the number of bytes a transaction has written to resources so far.
+     * 
+     * @param txId the transaction
+     * @return the number of bytes or <code>0</code> if there is no such transaction
+     * @since 1.3
+     */
+    public long getBytesWritten(Object txId) {
+        Map transactions = globalTransactions;
+        TransactionContext context = (transactions == null ? null
+                : (TransactionContext) transactions.get(txId));
+        return (context == null ? 0 : context.bytesWritten);
+    }
+
     public long getTransactionTimeout(Object txId) throws ResourceManagerException {
         assureRMReady();
         long msecs = 0;
@@ -437,6 +528,22 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
         }
     }
 
+    /**
+     * Maps resources onto a fixed number of locks instead of locking each resource on its
+     * own. This bounds the memory used for locks when transactions touch lots of distinct
+     * resources, at the price of transactions conflicting on different resources sharing a
+     * lock. Takes effect when this resource manager is started.
+     * 
+     * @param stripeCount
+     *            the number of locks, will be rounded up to the next power of two, or
+     *            <code>0</code> for a lock per resource, which is the default
+     * @see GenericLockManager#setLockStripes(int)
+     * @since 1.3
+     */
+    public synchronized void setLockStripes(int stripeCount) {
+        this.lockStripes = stripeCount;
+    }
+
     public synchronized void start() throws ResourceManagerSystemException {
 
         logger.logInfo("Starting RM at '" + storeDir + "' / '" + workDir + "'");
@@ -444,7 +551,13 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
         operationMode = OPERATION_MODE_STARTING;
 
         globalTransactions = Collections.synchronizedMap(new HashMap());
-        lockManager = new GenericLockManager(LOCK_COMMIT, logger);
+        GenericLockManager genericLockManager = new GenericLockManager(LOCK_COMMIT, logger);
+        genericLockManager.setDeadlockVictimSelector(victimSelector);
+        genericLockManager.setWaiterScheduler(waiterScheduler);
+        if (lockStripes > 0) {
+            genericLockManager.setLockStripes(lockStripes);
+        }
+        lockManager = genericLockManager;
         globalOpenResources = Collections.synchronizedList(new ArrayList());
 
         recover();
@@ -803,8 +916,14 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
     public void copyResource(Object txId, Object fromResourceId, Object toResourceId, boolean overwrite) throws ResourceManagerException {
         if (logger.isFineEnabled()) logger.logFine(txId + " copying " + fromResourceId + " to " + toResourceId);
 
-        lockResource(fromResourceId, txId, true);
-        lockResource(toResourceId, txId, false);
+        // lock in canonical order, so copies in opposite directions can not deadlock
+        if (ResourceOrder.INSTANCE.compare(fromResourceId, toResourceId) <= 0) {
+            lockResource(fromResourceId, txId, true);
+            lockResource(toResourceId, txId, false);
+        } else {
+            lockResource(toResourceId, txId, false);
+            lockResource(fromResourceId, txId, true);
+        }
 
         if (resourceExists(txId, toResourceId) && !overwrite) {
             throw new ResourceManagerException(
@@ -830,8 +949,7 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
     public void moveResource(Object txId, Object fromResourceId, Object toResourceId, boolean overwrite) throws ResourceManagerException {
         if (logger.isFineEnabled()) logger.logFine(txId + " moving " + fromResourceId + " to " + toResourceId);
 
-        lockResource(fromResourceId, txId, false);
-        lockResource(toResourceId, txId, false);
+        lockResources(Arrays.asList(new Object[] { fromResourceId, toResourceId }), txId, false);
 
         copyResource(txId, fromResourceId, toResourceId, overwrite);
 
@@ -906,8 +1024,9 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
         String resourcePath = getPathForWrite(txId, resourceId);
 
         try {
-            FileOutputStream stream = new FileOutputStream(resourcePath, append);
             TransactionContext context = getContext(txId);
+            OutputStream stream = new OutputStreamWrapper(new FileOutputStream(resourcePath,
+                    append), context);
             context.registerResource(stream);
             context.readOnly = false;
             return stream;
@@ -1394,6 +1513,8 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
         protected boolean isLightWeight = false;
         protected boolean readOnly = true;
         protected boolean finished = false;
+        // read by deadlock victim selectors while the transaction is blocked
+        protected volatile long bytesWritten = 0;
 
         // list of streams participating in this tx
         private List openResources = new ArrayList();
@@ -1600,6 +1721,39 @@ public class FileResourceManager implements ResourceManager, ResourceManagerErro
 
     }
 
+    private class OutputStreamWrapper extends OutputStream {
+        private OutputStream os;
+        private TransactionContext context;
+
+        public OutputStreamWrapper(OutputStream os, TransactionContext context) {
+            this.os = os;
+            this.context = context;
+        }
+
+        public void write(int b) throws IOException {
+            os.write(b);
+            context.bytesWritten++;
+        }
+
+        public void write(byte b[]) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        public void write(byte b[], int off, int len) throws IOException {
+            os.write(b, off, len);
+            context.bytesWritten += len;
+        }
+
+        public void flush() throws IOException {
+            os.flush();
+        }
+
+        public void close() throws IOException {
+            os.close();
+        }
+
+    }
+
     private class InputStreamWrapper extends InputStream {
         private InputStream is;
         private Object txId;
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.file;
+
+import org.apache.commons.transaction.locking.LockManager2;
+import org.apache.commons.transaction.locking.MinimumCostVictimSelector;
+
+/**
+ * Chooses the transaction of a {@link FileResourceManager} that has written the fewest
+ * bytes, as rolling it back wastes the least I/O.
+ *
+ * @version $Id$
+ * @see FileResourceManager#setDeadlockVictimSelector(org.apache.commons.transaction.locking.DeadlockVictimSelector)
+ * @since 1.3
+ */
+public class LeastWrittenVictimSelector extends MinimumCostVictimSelector {
+
+    protected FileResourceManager resourceManager;
+
+    public LeastWrittenVictimSelector(FileResourceManager resourceManager) {
+        this.resourceManager = resourceManager;
+    }
+
+    protected long getCost(LockManager2 manager, Object ownerId) {
+        return resourceManager.getBytesWritten(ownerId);
+    }
+}
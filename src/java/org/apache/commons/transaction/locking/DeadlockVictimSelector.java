@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.util.List;
+
+/**
+ * Chooses the owner to be aborted in order to resolve a deadlock found by a
+ * {@link GenericLockManager}.
+ *
+ * <p>
+ * The victim is woken up with a {@link LockException} having code
+ * {@link LockException#CODE_DEADLOCK_VICTIM}, while all other owners of the cycle continue
+ * to wait. Implementations should choose the owner whose abort wastes the least work. As
+ * more than one owner of a cycle may find it at the same time, the choice should not depend
+ * on who found it.
+ * </p>
+ *
+ * @version $Id$
+ * @see GenericLockManager#setDeadlockVictimSelector(DeadlockVictimSelector)
+ * @since 1.3
+ */
+public interface DeadlockVictimSelector {
+
+    /**
+     * Chooses the victim of a deadlock. This is called while the owners of the cycle are
+     * blocked, so implementations should return quickly.
+     *
+     * @param manager
+     *            the lock manager that found the deadlock or, for the shards of a
+     *            {@link ShardedLockManager}, the sharded manager, so the locks of the owners in
+     *            all shards can be looked at
+     * @param cycle
+     *            the owners forming the deadlock as returned by
+     *            {@link WaitForGraph#findCycle(Object)}
+     * @return the victim, which must be one of the owners of the cycle
+     */
+    public Object selectVictim(LockManager2 manager, List cycle);
+}
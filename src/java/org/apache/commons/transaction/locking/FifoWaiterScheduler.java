@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+/**
+ * Serves waiting requests strictly in the order they started waiting. Other than without a
+ * {@link WaiterScheduler}, no request is granted as long as one that started waiting before
+ * it has to wait, and a new request has to wait as well as long as any request is waiting.
+ * So e.g. a waiting writer is starved neither by readers waiting behind it nor by readers
+ * coming in later while the lock is shared. Only owners already holding the lock may go
+ * ahead, as those waiting might wait for them.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class FifoWaiterScheduler implements WaiterScheduler {
+
+    public long getRank(GenericLock lock, Object ownerId, int lockLevel, int heldLevel) {
+        return 0;
+    }
+
+    public boolean isOvertakingAllowed() {
+        return false;
+    }
+}
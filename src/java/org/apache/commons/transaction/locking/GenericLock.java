@@ -16,7 +16,9 @@
  */
 package org.apache.commons.transaction.locking;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -112,25 +114,113 @@ import org.apache.commons.transaction.util.LoggerFacade;
  * <li>priority not only to higher or lower locks, but to a specific level
  * <li>completely random preferences
  * </ul>
+ * Apart from that, waiting requests are served in the order decided by a
+ * {@link WaiterScheduler}, if one is set, or otherwise in the order they started waiting.
+ * </p>
+ * 
+ * <p>
+ * As there may be millions of locks, the state of a lock is kept compact: a single owner is
+ * stored inline, a few shared owners in a small array and only more than
+ * {@link #INFLATE_THRESHOLD} owners in a map. Structures needed for waiting requests only are
+ * created on demand and discarded when no longer needed.
  * </p>
  * 
  * @version $Id$
  */
 public class GenericLock implements MultiLevelLock2 {
 
+    /**
+     * Maximum number of owners kept in an array, more are kept in a map.
+     * 
+     * @since 1.3
+     */
+    public static final int INFLATE_THRESHOLD = 8;
+
+    /**
+     * Spins a request may take at least when spinning for this lock, see
+     * {@link #spinAcquire(Object, int, int, boolean, int)}.
+     * 
+     * @since 1.3
+     */
+    public static final int MIN_SPINS = 16;
+
+    /**
+     * Once spinning has not paid, only one in this many requests spins to find out if it
+     * pays again.
+     * 
+     * @since 1.3
+     */
+    public static final int SPIN_PROBE_INTERVAL = 16;
+
+    // spins between yielding the processor to the owners we are waiting for
+    private static final int YIELD_INTERVAL = 64;
+
+    private static final LockOwner[] NO_OWNERS = new LockOwner[0];
+
+    // Thread.holdsLock(Object), which is only available on Java 1.4 or later
+    private static final Method HOLDS_LOCK;
+
+    static {
+        Method holdsLock = null;
+        try {
+            holdsLock = Thread.class.getMethod("holdsLock", new Class[] { Object.class });
+        } catch (NoSuchMethodException e) {
+        }
+        HOLDS_LOCK = holdsLock;
+    }
+
     protected Object resourceId;
-    // XXX needs to be synchronized to allow for unsynchronized access for deadlock detection
-    // in getConflictingOwners to avoid deadlocks between lock to acquire and lock to check for
-    // deadlocks
-    protected Map owners = Collections.synchronizedMap(new HashMap());
-    // XXX needs to be synchronized to allow for unsynchronized access for deadlock detection
-    // in getConflictingWaiters to avoid deadlocks between lock to acquire and lock to check for
-    // deadlocks
-    // Note: having this as a list allows for fair mechanisms in sub classes
-    protected List waitingOwners = Collections.synchronizedList(new ArrayList());
+    // owners by id, depending on their number either null, a single LockOwner, an array of
+    // LockOwners or a synchronized map; changed by putOwner and removeOwner only, which
+    // replace anything but a map instead of modifying it, so owners can be looked up
+    // without holding the monitor of this lock, e.g. by deadlock detection
+    private volatile Object owners = null;
+    // owners registered as waiting for this lock, replaced instead of modified for the same
+    // reason; guarded by this lock
+    protected volatile LockOwner[] waitingOwners = NO_OWNERS;
     private int maxLockLevel;
+    // number of owners per lock level, real locks first and intentions of preferred waiters
+    // after them; guarded by this lock and only to be changed by putOwner and removeOwner
+    private int[] levelCounts;
     protected LoggerFacade logger;
-    protected int waiters = 0;
+    // number of requests of a lock manager currently working on this lock; guarded by the
+    // manager, which must not discard this lock while it is pinned
+    protected int pins = 0;
+    // set once a lock manager has handed out this lock to be worked on directly, so the
+    // manager must never discard it; guarded by the manager just like pins
+    protected boolean handedOut = false;
+    // owners whose blocking acquire has been canceled, created on demand; guarded by this
+    // lock
+    protected Set canceledWaiters = null;
+    // requests currently waiting for this lock to be handed over in the order they started
+    // waiting, created on demand; guarded by this lock
+    protected List waitQueue = null;
+    // number of requests waiting on the monitor of this lock instead of their own, see
+    // waitForGrant; guarded by this lock
+    private int monitorWaiters = 0;
+    // number of requests that have started waiting, see LockWaiter.arrival; guarded by this
+    // lock
+    private long arrivals = 0;
+    // asynchronous requests granted, but not yet taken by takeAsyncGrants, created on demand;
+    // guarded by this lock
+    protected List asyncGrants = null;
+    // waiting requests to be served first the next time this lock is handed over, see
+    // admitWaiters; created on demand, guarded by this lock
+    protected List admittedWaiters = null;
+    // decides the order waiting requests are served in, null for first come first served;
+    // guarded by this lock
+    protected WaiterScheduler waiterScheduler = null;
+    // number of changes to the owners, so spinning requests see when to try again without
+    // entering the monitor of this lock; changed by putOwner and removeOwner only
+    private volatile int ownerChanges = 0;
+    // lock last removed by removeOwner, handed out again by setLockLevel if the same owner
+    // requests the same lock, so locking and releasing a resource over and over does not
+    // allocate; guarded by this lock
+    private LockOwner releasedOwner = null;
+    // spins a request may currently take if positive, otherwise spinning has not paid and
+    // this counts the requests up to the next one probing it again; a mere hint, so it is
+    // read and written without guard
+    protected int spinLimit = Integer.MAX_VALUE;
     
     /**
      * Creates a new lock.
@@ -145,6 +235,7 @@ public class GenericLock implements MultiLevelLock2 {
                 "The maximum lock level must be at least 1 (" + maxLockLevel + " was specified)");
         this.resourceId = resourceId;
         this.maxLockLevel = maxLockLevel;
+        this.levelCounts = new int[2 * (maxLockLevel + 1)];
         this.logger = logger;
     }
 
@@ -179,7 +270,7 @@ public class GenericLock implements MultiLevelLock2 {
      * @see org.apache.commons.transaction.locking.MultiLevelLock#acquire(java.lang.Object,
      *      int, boolean, boolean, long)
      */
-    public synchronized boolean acquire(Object ownerId, int targetLockLevel, boolean wait,
+    public boolean acquire(Object ownerId, int targetLockLevel, boolean wait,
             boolean reentrant, long timeoutMSecs) throws InterruptedException {
         return acquire(ownerId, targetLockLevel, wait, reentrant ? COMPATIBILITY_REENTRANT
                 : COMPATIBILITY_NONE, timeoutMSecs);
@@ -188,7 +279,7 @@ public class GenericLock implements MultiLevelLock2 {
     /**
      * @see #acquire(Object, int, boolean, int, boolean, long)
      */
-    public synchronized boolean acquire(Object ownerId, int targetLockLevel, boolean wait,
+    public boolean acquire(Object ownerId, int targetLockLevel, boolean wait,
             int compatibility, long timeoutMSecs) throws InterruptedException {
         return acquire(ownerId, targetLockLevel, wait, compatibility, false, timeoutMSecs);
     }
@@ -199,7 +290,7 @@ public class GenericLock implements MultiLevelLock2 {
      * @see #acquire(Object, int, boolean, int, boolean, long) 
      * @since 1.1 
      */
-    public synchronized boolean acquire(Object ownerId, int targetLockLevel, boolean preferred,
+    public boolean acquire(Object ownerId, int targetLockLevel, boolean preferred,
             long timeoutMSecs) throws InterruptedException {
         return acquire(ownerId, targetLockLevel, true, COMPATIBILITY_REENTRANT, preferred,
                 timeoutMSecs);
@@ -210,7 +301,91 @@ public class GenericLock implements MultiLevelLock2 {
      *      int, boolean, int, boolean, long)
      * @since 1.1 
      */
-    public synchronized boolean acquire(
+    public boolean acquire(
+        Object ownerId,
+        int targetLockLevel,
+        boolean wait,
+        int compatibility,
+        boolean preferred,
+        long timeoutMSecs)
+        throws InterruptedException {
+        return doAcquire(ownerId, targetLockLevel, wait, compatibility, preferred, timeoutMSecs);
+    }
+
+    /**
+     * Tries to acquire a lock by spinning instead of blocking. Blocking a thread and waking
+     * it up again costs far more than waiting for a lock that is held for a few
+     * microseconds only, so for such locks it pays to keep trying for a moment. The request
+     * is tried whenever the owners of this lock have changed, which is noticed without
+     * entering the monitor of this lock. Now and then the processor is yielded to let the
+     * owners finish.
+     * <br>
+     * <br>
+     * How long to spin is adapted to how long this lock has recently been held: a request
+     * that got the lock after spinning lets later ones spin up to twice as long as it took,
+     * while a request that did not get it halves the spins. Once this falls below
+     * {@link #MIN_SPINS}, only one in {@link #SPIN_PROBE_INTERVAL} requests spins. This
+     * must not be called while holding the monitor of this lock.
+     * 
+     * @param ownerId a unique id identifying the entity that wants to acquire a certain
+     *            lock level on this lock
+     * @param targetLockLevel the lock level to acquire
+     * @param compatibility as in {@link #acquire(Object, int, boolean, int, boolean, long)}
+     * @param preferred as in {@link #acquire(Object, int, boolean, int, boolean, long)}
+     * @param maxSpins the maximum number of spins, <code>0</code> not to spin at all
+     * @return <code>true</code> if the lock has been acquired
+     * @throws InterruptedException when the spinning thread is interrupted
+     * @since 1.3
+     */
+    public boolean spinAcquire(Object ownerId, int targetLockLevel, int compatibility,
+            boolean preferred, int maxSpins) throws InterruptedException {
+        if (maxSpins <= 0) {
+            return false;
+        }
+        int limit = spinLimit;
+        if (limit < MIN_SPINS) {
+            if (limit > 1 - SPIN_PROBE_INTERVAL) {
+                spinLimit = limit - 1;
+                return false;
+            }
+            limit = MIN_SPINS;
+        }
+        limit = Math.min(limit, maxSpins);
+        int seen = ownerChanges;
+        // the owners may have changed since the caller last tried, so we start trying
+        if (acquire(ownerId, targetLockLevel, false, compatibility, preferred, 0)) {
+            return true;
+        }
+        for (int spins = 1; spins <= limit; spins++) {
+            int changes = ownerChanges;
+            if (changes != seen) {
+                seen = changes;
+                if (acquire(ownerId, targetLockLevel, false, compatibility, preferred, 0)) {
+                    spinLimit = Math.max(MIN_SPINS, Math.min(maxSpins, 2 * spins));
+                    return true;
+                }
+            } else if (spins % YIELD_INTERVAL == 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                Thread.yield();
+            }
+        }
+        spinLimit = (limit / 2 < MIN_SPINS ? 0 : limit / 2);
+        return false;
+    }
+
+    /**
+     * Does the actual work of {@link #acquire(Object, int, boolean, int, boolean, long)}.
+     * This class guards itself by its monitor, which is entered for every change of state,
+     * but not held while blocking. Blocking is done by
+     * {@link #waitForGrant(LockWaiter, long)} only, so subclasses guarding this lock by
+     * other means can reuse this by calling it while holding their guard and overriding
+     * that method and {@link #wakeWaiters()}.
+     * 
+     * @since 1.3
+     */
+    protected boolean doAcquire(
         Object ownerId,
         int targetLockLevel,
         boolean wait,
@@ -246,72 +421,97 @@ public class GenericLock implements MultiLevelLock2 {
             if (!wait) {
                 return false;
             } else {
-                long started = System.currentTimeMillis();
-                for (long remaining = timeoutMSecs;
-                    remaining > 0;
-                    remaining = timeoutMSecs - (System.currentTimeMillis() - started)) {
-
-                    if (logger.isFinerEnabled()) {
-	                    logger.logFiner(
-	                        ownerId.toString()
-	                            + " waiting on "
-	                            + resourceId.toString()
-	                            + " for msecs "
-	                            + timeoutMSecs
-	                            + " at "
-	                            + System.currentTimeMillis());
-                    }
-
-                    LockOwner waitingOwner = new LockOwner(ownerId, targetLockLevel, compatibility,
-                            preferred);
-                    try {
-                        registerWaiter(waitingOwner);
-                        if (preferred) {
-                            // while waiting we already make our claim we are next
-                            LockOwner oldLock = null;
-                            try {
-                                // we need to remember it to restore it after waiting
-                                oldLock = (LockOwner) owners.get(ownerId);
-                                // this creates a new owner, so we do not need to
-                                // copy the old one
-                                setLockLevel(ownerId, null, targetLockLevel, compatibility,
-                                        preferred);
-    
-                                // finally wait
-                                wait(remaining);
-                                
-                            } finally {
-                                // we need to restore the old lock in order not to
-                                // interfere with the intention lock in the
-                                // following check
-                                // and not to have it in case of success either
-                                // as there will be an ordinary lock then
-                                if (oldLock != null) {
-                                    owners.put(ownerId, oldLock);
-                                } else {
-                                    owners.remove(ownerId);
-                                }
-                            }
-    
-                        } else {
-                            wait(remaining);
-                        }
-                    } finally {
-                        unregisterWaiter(waitingOwner);
-                    }
-                    
-                    if (tryLock(ownerId, targetLockLevel, compatibility, preferred)) {
+                // a lock manager may register the owner as a waiter for as long as it is
+                // blocked, which also covers the time between calls to this method; if it
+                // registers the very request, the request keeps its place in line
+                LockOwner registeredOwner = getRegisteredWaiter(ownerId);
+                boolean registered = (registeredOwner != null);
+                LockWaiter waiter;
+                if (isSameRequest(registeredOwner, targetLockLevel, compatibility, preferred)) {
+                    waiter = (LockWaiter) registeredOwner;
+                } else {
+                    waiter = new LockWaiter(ownerId, targetLockLevel, compatibility, preferred);
+                }
+                if (!registered) {
+                    registerWaiter(waiter);
+                }
+                try {
+                    long started = System.currentTimeMillis();
+                    for (long remaining = timeoutMSecs;
+                        remaining > 0;
+                        remaining = timeoutMSecs - (System.currentTimeMillis() - started)) {
 
                         if (logger.isFinerEnabled()) {
 	                        logger.logFiner(
 	                            ownerId.toString()
 	                                + " waiting on "
 	                                + resourceId.toString()
-	                                + " eventually got the lock at "
+	                                + " for msecs "
+	                                + timeoutMSecs
+	                                + " at "
 	                                + System.currentTimeMillis());
                         }
 
-                        return true;
+                        boolean granted = false;
+                        // we might have been canceled before we even started waiting
+                        boolean canceled = consumeCanceledWait(ownerId);
+                        if (!canceled) {
+                            granted = awaitGrant(waiter, remaining);
+                            canceled = !granted && consumeCanceledWait(ownerId);
+                        }
+
+                        if (granted) {
+                            if (logger.isFinerEnabled()) {
+                                logger.logFiner(
+                                    ownerId.toString()
+                                        + " waiting on "
+                                        + resourceId.toString()
+                                        + " has been granted the lock at "
+                                        + System.currentTimeMillis());
+                            }
+                            return true;
+                        }
+
+                        if (canceled) {
+                            if (logger.isFinerEnabled()) {
+                                logger.logFiner(
+                                    ownerId.toString()
+                                        + " waiting on "
+                                        + resourceId.toString()
+                                        + " has been canceled at "
+                                        + System.currentTimeMillis());
+                            }
+                            if (preferred) {
+                                // our claim is gone, which might let others in
+                                synchronized (this) {
+                                    grantWaiters();
+                                }
+                            }
+                            return false;
+                        }
+                    
+                        if (tryLock(ownerId, targetLockLevel, compatibility, preferred)) {
+
+                            if (logger.isFinerEnabled()) {
+	                            logger.logFiner(
+	                                ownerId.toString()
+	                                    + " waiting on "
+	                                    + resourceId.toString()
+	                                    + " eventually got the lock at "
+	                                    + System.currentTimeMillis());
+                            }
+
+                            return true;
+                        }
+                    }
+                } finally {
+                    if (!registered) {
+                        unregisterWaiter(waiter);
+                    }
+                }
+                if (preferred) {
+                    synchronized (this) {
+                        grantWaiters();
                     }
                 }
                 return false;
@@ -319,18 +519,559 @@ public class GenericLock implements MultiLevelLock2 {
         }
     }
 
-    protected void registerWaiter(LockOwner waitingOwner) {
-        synchronized (waitingOwners) {
-            unregisterWaiter(waitingOwner);
-            waiters++;
-            waitingOwners.add(waitingOwner);
+    private static boolean isSameRequest(LockOwner registeredOwner, int targetLockLevel,
+            int compatibility, boolean preferred) {
+        if (!(registeredOwner instanceof LockWaiter)) {
+            return false;
+        }
+        LockWaiter waiter = (LockWaiter) registeredOwner;
+        return !waiter.async && waiter.lockLevel == targetLockLevel
+                && waiter.compatibility == compatibility && waiter.intention == preferred;
+    }
+
+    /**
+     * Waits for this lock to be handed over by {@link #grantWaiters()}. While waiting the
+     * request is part of {@link #waitQueue} and - if preferred - makes its claim on this lock.
+     * When this returns without the lock being granted the claim has been withdrawn again.
+     * The caller must guard this lock by the same means as
+     * {@link #doAcquire(Object, int, boolean, int, boolean, long)}.
+     *
+     * @param waiter the waiting request
+     * @param timeoutMSecs maximum time to wait
+     * @return <code>true</code> if the lock has been granted, <code>false</code> if the wait
+     *         timed out or has been woken up for any other reason
+     * @throws InterruptedException when the waiting thread is interrupted, in which case the
+     *         lock is not granted, even if it had already been handed over
+     * @since 1.3
+     */
+    protected boolean awaitGrant(LockWaiter waiter, long timeoutMSecs)
+            throws InterruptedException {
+        boolean granted;
+        synchronized (this) {
+            // we need to remember it to restore it after waiting
+            waiter.previousLock = getLockOwner(waiter.ownerId);
+            waiter.granted = false;
+            if (waiter.intention) {
+                // while waiting we already make our claim we are next
+                setLockLevel(waiter.ownerId, null, waiter.lockLevel, waiter.compatibility,
+                        true);
+            }
+            enqueue(waiter);
+            // a cancelation that came in before we were queued has not woken us up
+            waiter.resetSignal(isWaitCanceled(waiter.ownerId));
+            // neither has a release since the caller last tried to get the lock
+            grantWaiters();
+            granted = waiter.granted;
+        }
+        try {
+            if (!granted) {
+                waitForGrant(waiter, timeoutMSecs);
+            }
+        } catch (InterruptedException ie) {
+            synchronized (this) {
+                dequeue(waiter);
+                if (waiter.granted || waiter.intention) {
+                    restorePreviousLock(waiter);
+                    waiter.granted = false;
+                    grantWaiters();
+                }
+            }
+            throw ie;
+        }
+        synchronized (this) {
+            dequeue(waiter);
+            if (!waiter.granted && waiter.intention) {
+                // we need to restore the old lock in order not to interfere with
+                // the intention lock in the following check
+                restorePreviousLock(waiter);
+            }
+            return waiter.granted;
+        }
+    }
+
+    /**
+     * Blocks the thread of a waiting request until it is woken up by
+     * {@link #wakeWaiters()} or the timeout has passed. Each request waits on its own
+     * monitor, so releasing this lock only wakes up the threads it has been handed over to.
+     * A caller holding the monitor of this lock around
+     * {@link #acquire(Object, int, boolean, int, boolean, long)}, however, would keep
+     * everybody else from releasing it, so then the request waits on the monitor of this
+     * lock, which is released while waiting.
+     *
+     * @param waiter the waiting request
+     * @param timeoutMSecs maximum time to wait
+     * @throws InterruptedException when the waiting thread is interrupted
+     * @since 1.3
+     */
+    protected void waitForGrant(LockWaiter waiter, long timeoutMSecs)
+            throws InterruptedException {
+        if (!holdsMonitor()) {
+            waiter.await(timeoutMSecs);
+            return;
+        }
+        synchronized (this) {
+            if (waiter.granted || isWaitCanceled(waiter.ownerId)) {
+                return;
+            }
+            monitorWaiters++;
+            try {
+                wait(timeoutMSecs);
+            } finally {
+                monitorWaiters--;
+            }
+        }
+    }
+
+    /**
+     * Wakes up the threads of all requests that have been granted or canceled. Threads of
+     * other requests are only woken up if they wait on the monitor of this lock, as they
+     * simply continue to wait. The caller must guard this lock.
+     *
+     * @since 1.3
+     */
+    protected void wakeWaiters() {
+        if (monitorWaiters > 0) {
+            notifyAll();
+        }
+        if (waitQueue != null) {
+            for (int i = 0; i < waitQueue.size(); i++) {
+                LockWaiter waiter = (LockWaiter) waitQueue.get(i);
+                if (waiter.granted || canceledWaiters != null
+                        && canceledWaiters.contains(waiter.ownerId)) {
+                    waiter.signal();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the current thread holds the monitor of this lock. This can only be told
+     * on Java 1.4 or later, before that the monitor is assumed to be held.
+     */
+    private boolean holdsMonitor() {
+        if (HOLDS_LOCK == null) {
+            return true;
+        }
+        try {
+            return ((Boolean) HOLDS_LOCK.invoke(null, new Object[] { this })).booleanValue();
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    /**
+     * Hands this lock over to waiting requests that have become compatible. Requests
+     * admitted by {@link #admitWaiters(int)} are served first, then preferred requests,
+     * apart from that requests are served in the order of {@link #waitQueue}, which is the
+     * order they started waiting unless a {@link WaiterScheduler} is set. Every request
+     * that can be granted gets its lock right here, so a woken up thread does not have to
+     * compete for it again. Only the threads of requests that have been granted are woken
+     * up. The caller must guard this lock.
+     *
+     * @return <code>true</code> if any request has been granted
+     * @since 1.3
+     */
+    protected boolean grantWaiters() {
+        if (waitQueue == null) {
+            return false;
+        }
+        boolean granted = false;
+        if (admittedWaiters != null) {
+            List admitted = admittedWaiters;
+            admittedWaiters = null;
+            for (Iterator it = admitted.iterator(); it.hasNext();) {
+                LockWaiter waiter = (LockWaiter) it.next();
+                // admitted requests that have given up in the meantime are gone for good
+                if (!waiter.granted && containsIdentical(waitQueue, waiter) && grant(waiter, true)) {
+                    granted = true;
+                }
+            }
+        }
+        WaiterScheduler scheduler = waiterScheduler;
+        boolean strict = (scheduler != null && !scheduler.isOvertakingAllowed());
+        passes: for (int pass = 0; pass < 2; pass++) {
+            boolean preferred = (pass == 0);
+            for (Iterator it = waitQueue.iterator(); it.hasNext();) {
+                LockWaiter waiter = (LockWaiter) it.next();
+                if (waiter.intention != preferred || waiter.granted) {
+                    continue;
+                }
+                if (strict && isWaiterAhead(waiter.ownerId, waiter, preferred)) {
+                    // a request ahead is between two waits, e.g. checking for deadlocks
+                    break passes;
+                }
+                if (!grant(waiter, false)) {
+                    if (strict) {
+                        // nobody may overtake the request that has to wait
+                        break passes;
+                    }
+                } else {
+                    granted = true;
+                    if (waiter.async) {
+                        // there is no thread to leave the queue on its own
+                        it.remove();
+                        unregisterWaiter(waiter);
+                        if (asyncGrants == null) {
+                            asyncGrants = new ArrayList();
+                        }
+                        asyncGrants.add(waiter);
+                    }
+                }
+            }
+        }
+        if (waitQueue.isEmpty()) {
+            waitQueue = null;
+        }
+        if (granted) {
+            wakeWaiters();
+        }
+        return granted;
+    }
+
+    private boolean grant(LockWaiter waiter, boolean ignoreClaims) {
+        LockOwner claim = null;
+        if (waiter.intention) {
+            // the claim must not get into the way of the request itself
+            claim = restorePreviousLock(waiter);
+        }
+        // being queued the request is in line already
+        if (tryLock(waiter.ownerId, waiter.lockLevel, waiter.compatibility, waiter.intention
+                || ignoreClaims, false)) {
+            waiter.granted = true;
+            if (logger.isFinestEnabled()) {
+                logger.logFinest(
+                    waiter.ownerId.toString()
+                        + " has been handed lock for "
+                        + resourceId.toString()
+                        + " at level "
+                        + waiter.lockLevel
+                        + " at "
+                        + System.currentTimeMillis());
+            }
+            return true;
+        }
+        if (claim != null) {
+            putOwner(claim);
+        }
+        return false;
+    }
+
+    private LockOwner restorePreviousLock(LockWaiter waiter) {
+        if (waiter.previousLock != null) {
+            return putOwner(waiter.previousLock);
+        } else {
+            return removeOwner(waiter.ownerId);
+        }
+    }
+
+    /**
+     * Sets the policy deciding which waiting requests are served first when this lock is
+     * handed over. Requests already waiting keep their place.
+     * 
+     * @param waiterScheduler the policy or <code>null</code> to serve requests in the order
+     *            they started waiting, which is the default
+     * @since 1.3
+     */
+    public synchronized void setWaiterScheduler(WaiterScheduler waiterScheduler) {
+        this.waiterScheduler = waiterScheduler;
+    }
+
+    /**
+     * Gets the policy set by {@link #setWaiterScheduler(WaiterScheduler)}.
+     * 
+     * @since 1.3
+     */
+    public synchronized WaiterScheduler getWaiterScheduler() {
+        return waiterScheduler;
+    }
+
+    /**
+     * Lets the blocking requests currently waiting for a level up to the specified one be
+     * served before all other requests the next time this lock is handed over by
+     * {@link #grantWaiters()}, even if preferred requests have claimed this lock in the
+     * meantime. Requests that start waiting later are not affected. This allows subclasses
+     * to alternate between phases of shared and exclusive access, so waiting requests of
+     * neither kind starve.
+     *
+     * @param maxLockLevel highest level of the requests to admit
+     * @since 1.3
+     */
+    protected synchronized void admitWaiters(int maxLockLevel) {
+        if (waitQueue == null) {
+            return;
+        }
+        for (Iterator it = waitQueue.iterator(); it.hasNext();) {
+            LockWaiter waiter = (LockWaiter) it.next();
+            if (!waiter.async && !waiter.intention && waiter.lockLevel <= maxLockLevel) {
+                if (admittedWaiters == null) {
+                    admittedWaiters = new ArrayList(2);
+                }
+                admittedWaiters.add(waiter);
+            }
+        }
+    }
+
+    /**
+     * Grants a lock right away if possible or queues an asynchronous request otherwise. A
+     * queued request will be granted by {@link #grantWaiters()} and can then be fetched
+     * using {@link #takeAsyncGrants()}. Until then it is registered as a waiter.
+     * 
+     * @param waiter the asynchronous request
+     * @return <code>true</code> if the lock has been granted right away
+     * @since 1.3
+     */
+    protected synchronized boolean acquireOrEnqueue(LockWaiter waiter) {
+        if (tryLock(waiter.ownerId, waiter.lockLevel, waiter.compatibility, waiter.intention)) {
+            return true;
+        }
+        waiter.previousLock = getLockOwner(waiter.ownerId);
+        waiter.granted = false;
+        if (waiter.intention) {
+            setLockLevel(waiter.ownerId, null, waiter.lockLevel, waiter.compatibility, true);
+        }
+        registerWaiter(waiter);
+        enqueue(waiter);
+        return false;
+    }
+
+    /**
+     * Withdraws an asynchronous request queued by {@link #acquireOrEnqueue(LockWaiter)}. If
+     * it has already been granted the grant is reverted, i.e. the owner gets back the lock
+     * it held before.
+     * 
+     * @param waiter the asynchronous request
+     * @since 1.3
+     */
+    protected synchronized void withdrawWaiter(LockWaiter waiter) {
+        dequeue(waiter);
+        unregisterWaiter(waiter);
+        if (waiter.granted) {
+            if (asyncGrants != null) {
+                removeIdentical(asyncGrants, waiter);
+            }
+        } else if (!waiter.intention) {
+            // nothing has changed for the others
+            return;
+        }
+        restorePreviousLock(waiter);
+        waiter.granted = false;
+        grantWaiters();
+    }
+
+    /**
+     * Fetches the asynchronous requests granted since the last call.
+     * 
+     * @return list of granted {@link LockWaiter}s, never <code>null</code>
+     * @since 1.3
+     */
+    protected synchronized List takeAsyncGrants() {
+        if (asyncGrants == null || asyncGrants.isEmpty()) {
+            return Collections.EMPTY_LIST;
         }
+        List grants = asyncGrants;
+        asyncGrants = null;
+        return grants;
     }
 
-    protected void unregisterWaiter(LockOwner waitingOwner) {
-        synchronized (waitingOwners) {
-            if (waitingOwners.remove(waitingOwner))
-                waiters--;
+    private void enqueue(LockWaiter waiter) {
+        if (waitQueue == null) {
+            waitQueue = new ArrayList(2);
+        }
+        if (waiter.arrival == 0) {
+            waiter.arrival = ++arrivals;
+        }
+        WaiterScheduler scheduler = waiterScheduler;
+        if (scheduler != null) {
+            LockOwner held = waiter.previousLock;
+            waiter.rank = scheduler.getRank(this, waiter.ownerId, waiter.lockLevel,
+                    held == null ? getLevelMinLock() : held.lockLevel);
+        }
+        // behind all requests of a lower rank and those of the same rank that came first,
+        // which puts a request that waits again back to where it was
+        int index = waitQueue.size();
+        while (index > 0 && isAhead(waiter, (LockWaiter) waitQueue.get(index - 1))) {
+            index--;
+        }
+        waitQueue.add(index, waiter);
+    }
+
+    private static boolean isAhead(LockWaiter waiter, LockWaiter other) {
+        return waiter.rank < other.rank || waiter.rank == other.rank
+                && waiter.arrival < other.arrival;
+    }
+
+    /**
+     * Checks if a request has to wait for requests ahead of it in line, which is only the
+     * case if the waiter scheduler does not allow overtaking. Requests of owners already
+     * holding this lock are never held up, as those ahead might be waiting for them. A
+     * request that has not waited yet is behind all requests that have been registered as
+     * waiting, whether or not they are actually blocked at the moment, except that a
+     * preferred request is only behind preferred ones.
+     * 
+     * @param ownerId the owner of the request
+     * @param preferred whether the request is preferred
+     * @return <code>true</code> if the request has to wait
+     * @since 1.3
+     */
+    protected synchronized boolean mustWaitInLine(Object ownerId, boolean preferred) {
+        WaiterScheduler scheduler = waiterScheduler;
+        if (scheduler == null || scheduler.isOvertakingAllowed()) {
+            return false;
+        }
+        LockOwner myLock = getLockOwner(ownerId);
+        if (myLock != null && !myLock.intention) {
+            return false;
+        }
+        LockOwner registeredOwner = getRegisteredWaiter(ownerId);
+        LockWaiter self = (registeredOwner instanceof LockWaiter
+                ? (LockWaiter) registeredOwner : null);
+        if (waitQueue != null) {
+            for (int i = 0; i < waitQueue.size(); i++) {
+                LockWaiter waiter = (LockWaiter) waitQueue.get(i);
+                if (!waiter.ownerId.equals(ownerId) && !waiter.granted
+                        && (waiter.intention || !preferred)
+                        && (self == null || self.arrival == 0 || isAhead(waiter, self))) {
+                    return true;
+                }
+            }
+        }
+        return isWaiterAhead(ownerId, self, preferred);
+    }
+
+    // checks the registered waiters only, which includes those not queued at the moment
+    private boolean isWaiterAhead(Object ownerId, LockWaiter self, boolean preferred) {
+        boolean fresh = (self == null || self.arrival == 0);
+        LockOwner[] registered = waitingOwners;
+        for (int i = 0; i < registered.length; i++) {
+            LockOwner owner = registered[i];
+            if (owner.ownerId.equals(ownerId) || preferred && !owner.intention) {
+                continue;
+            }
+            if (!(owner instanceof LockWaiter)) {
+                if (fresh) {
+                    return true;
+                }
+                continue;
+            }
+            LockWaiter waiter = (LockWaiter) owner;
+            if (!waiter.granted && (fresh || waiter.arrival != 0 && isAhead(waiter, self))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dequeue(LockWaiter waiter) {
+        if (waitQueue != null) {
+            removeIdentical(waitQueue, waiter);
+            if (waitQueue.isEmpty()) {
+                waitQueue = null;
+            }
+        }
+    }
+
+    private static boolean containsIdentical(List waiters, LockWaiter waiter) {
+        for (Iterator it = waiters.iterator(); it.hasNext();) {
+            if (it.next() == waiter) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void removeIdentical(List waiters, LockWaiter waiter) {
+        // waiters are equal by owner, but we want to remove this very request
+        for (Iterator it = waiters.iterator(); it.hasNext();) {
+            if (it.next() == waiter) {
+                it.remove();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Cancels a blocking {@link #acquire(Object, int, boolean, int, boolean, long)} of an
+     * owner waiting for this lock. The canceled call will return <code>false</code> just as
+     * if it had timed out. If the owner is not registered as a waiter at the moment this has
+     * no effect. As long as it stays registered, but is not actually blocked, the
+     * cancelation applies to the next time it would block.
+     * 
+     * @param ownerId the owner whose request shall be canceled
+     * @return <code>true</code> if the owner has been registered as a waiter
+     * @since 1.3
+     */
+    public synchronized boolean cancelWait(Object ownerId) {
+        if (!isRegisteredWaiter(ownerId)) {
+            return false;
+        }
+        if (canceledWaiters == null) {
+            canceledWaiters = new HashSet();
+        }
+        canceledWaiters.add(ownerId);
+        wakeWaiters();
+        return true;
+    }
+
+    /**
+     * Checks if there is a pending cancelation for a waiting owner.
+     * 
+     * @since 1.3
+     */
+    protected synchronized boolean isWaitCanceled(Object ownerId) {
+        return canceledWaiters != null && canceledWaiters.contains(ownerId);
+    }
+
+    private synchronized boolean consumeCanceledWait(Object ownerId) {
+        if (canceledWaiters == null || !canceledWaiters.remove(ownerId)) {
+            return false;
+        }
+        if (canceledWaiters.isEmpty()) {
+            canceledWaiters = null;
+        }
+        return true;
+    }
+
+    protected boolean isRegisteredWaiter(Object ownerId) {
+        return indexOf(waitingOwners, ownerId) != -1;
+    }
+
+    private LockOwner getRegisteredWaiter(Object ownerId) {
+        LockOwner[] registered = waitingOwners;
+        int index = indexOf(registered, ownerId);
+        return (index == -1 ? null : registered[index]);
+    }
+
+    protected synchronized void registerWaiter(LockOwner waitingOwner) {
+        LockOwner[] registered = waitingOwners;
+        int index = indexOf(registered, waitingOwner.ownerId);
+        if (index != -1) {
+            // replacing a registration keeps a pending cancelation
+            LockOwner[] copy = (LockOwner[]) registered.clone();
+            copy[index] = waitingOwner;
+            waitingOwners = copy;
+        } else {
+            waitingOwners = add(registered, waitingOwner);
+        }
+    }
+
+    protected synchronized void unregisterWaiter(LockOwner waitingOwner) {
+        LockOwner[] registered = waitingOwners;
+        int index = indexOf(registered, waitingOwner.ownerId);
+        if (index != -1) {
+            waitingOwners = remove(registered, index);
+            // a cancelation only applies to a request that is waiting
+            if (canceledWaiters != null) {
+                canceledWaiters.remove(waitingOwner.ownerId);
+                if (canceledWaiters.isEmpty()) {
+                    canceledWaiters = null;
+                }
+            }
+            LockOwner owner = registered[index];
+            if (owner instanceof LockWaiter && !((LockWaiter) owner).granted
+                    && ((LockWaiter) owner).arrival != 0) {
+                // a request that has given up no longer holds up those behind it
+                grantWaiters();
+            }
         }
     }
     
@@ -338,7 +1079,7 @@ public class GenericLock implements MultiLevelLock2 {
      * @see org.apache.commons.transaction.locking.MultiLevelLock#release(Object)
      */
     public synchronized boolean release(Object ownerId) {
-        if (owners.remove(ownerId) != null) {
+        if (removeOwner(ownerId) != null) {
             if (logger.isFinerEnabled()) {
 	            logger.logFiner(
 	                ownerId.toString()
@@ -347,7 +1088,7 @@ public class GenericLock implements MultiLevelLock2 {
 	                    + " at "
 	                    + System.currentTimeMillis());
             }
-            notifyAll();
+            grantWaiters();
             return true;
         }
         return false;
@@ -357,7 +1098,7 @@ public class GenericLock implements MultiLevelLock2 {
      * @see org.apache.commons.transaction.locking.MultiLevelLock#getLockLevel(Object)
      */
     public int getLockLevel(Object ownerId) {
-        LockOwner owner = (LockOwner) owners.get(ownerId);
+        LockOwner owner = getLockOwner(ownerId);
         if (owner == null) {
             return 0;
         } else {
@@ -365,6 +1106,17 @@ public class GenericLock implements MultiLevelLock2 {
         }
     }
 
+    /**
+     * Checks if this lock is neither owned nor waited for by anyone. This does not
+     * synchronize on the lock itself, so it can be called while holding other monitors.
+     * 
+     * @return <code>true</code> if there are no owners and no waiters
+     * @since 1.3
+     */
+    public boolean isIdle() {
+        return owners == null && waitingOwners.length == 0;
+    }
+
     /**
      * Gets the resource assotiated to this lock. 
      * 
@@ -403,16 +1155,16 @@ public class GenericLock implements MultiLevelLock2 {
         StringBuffer buf = new StringBuffer();
         buf.append(resourceId.toString()).append(":\n");
 
-        for (Iterator it = owners.values().iterator(); it.hasNext();) {
+        for (Iterator it = getLockOwners().iterator(); it.hasNext();) {
             LockOwner owner = (LockOwner) it.next();
             buf.append("- ").append(owner.toString()).append("\n");
         }
 
-        if (waiters != 0) {
-            buf.append(waiters).append(" waiting:\n");
-            for (Iterator it = waitingOwners.iterator(); it.hasNext();) {
-                LockOwner owner = (LockOwner) it.next();
-                buf.append("- ").append(owner.toString()).append("\n");
+        LockOwner[] waiting = waitingOwners;
+        if (waiting.length != 0) {
+            buf.append(waiting.length).append(" waiting:\n");
+            for (int i = 0; i < waiting.length; i++) {
+                buf.append("- ").append(waiting[i].toString()).append("\n");
             }
         }
         
@@ -434,7 +1186,7 @@ public class GenericLock implements MultiLevelLock2 {
     protected synchronized LockOwner getMaxLevelOwner(LockOwner reentrantOwner,
             int supportLockLevel, boolean preferred) {
         LockOwner maxOwner = null;
-        for (Iterator it = owners.values().iterator(); it.hasNext();) {
+        for (Iterator it = getLockOwners().iterator(); it.hasNext();) {
             LockOwner owner = (LockOwner) it.next();
             if (owner.lockLevel != supportLockLevel && !owner.equals(reentrantOwner)
                     && (maxOwner == null || maxOwner.lockLevel < owner.lockLevel)
@@ -473,33 +1225,285 @@ public class GenericLock implements MultiLevelLock2 {
 	                    + System.currentTimeMillis());
             }
         }
-        owners.put(ownerId, new LockOwner(ownerId, targetLockLevel, compatibility, intention));
+        LockOwner owner = releasedOwner;
+        if (owner != null && owner.lockLevel == targetLockLevel
+                && owner.compatibility == compatibility && owner.intention == intention
+                && owner.ownerId.equals(ownerId)) {
+            // locks are immutable, so this one is as good as a new one
+            releasedOwner = null;
+        } else {
+            owner = new LockOwner(ownerId, targetLockLevel, compatibility, intention);
+        }
+        putOwner(owner);
+    }
+
+    /**
+     * Gets the lock of an owner. This does not synchronize on the lock itself, so it can be
+     * called while holding other monitors.
+     * 
+     * @param ownerId the owner
+     * @return the lock of the owner or <code>null</code> if it has none
+     * @since 1.3
+     */
+    protected LockOwner getLockOwner(Object ownerId) {
+        Object table = owners;
+        if (table == null) {
+            return null;
+        } else if (table instanceof LockOwner) {
+            LockOwner owner = (LockOwner) table;
+            return owner.ownerId.equals(ownerId) ? owner : null;
+        } else if (table instanceof LockOwner[]) {
+            LockOwner[] array = (LockOwner[]) table;
+            int index = indexOf(array, ownerId);
+            return index == -1 ? null : array[index];
+        } else {
+            return (LockOwner) ((Map) table).get(ownerId);
+        }
+    }
+
+    /**
+     * Gets the locks of all owners. This does not synchronize on the lock itself, so it can
+     * be called while holding other monitors.
+     * 
+     * @return snapshot of all {@link LockOwner}s, which must not be modified
+     * @since 1.3
+     */
+    protected Collection getLockOwners() {
+        Object table = owners;
+        if (table == null) {
+            return Collections.EMPTY_LIST;
+        } else if (table instanceof LockOwner) {
+            return Collections.singletonList(table);
+        } else if (table instanceof LockOwner[]) {
+            // arrays are never modified once published
+            return Arrays.asList((LockOwner[]) table);
+        } else {
+            Map map = (Map) table;
+            synchronized (map) {
+                return new ArrayList(map.values());
+            }
+        }
     }
 
-    protected boolean tryLock(Object ownerId, int targetLockLevel, int compatibility,
+    /**
+     * Adds or replaces the lock of an owner. All changes to the owners must go through
+     * this method or {@link #removeOwner(Object)} to keep the level counts in sync.
+     * 
+     * @param owner the new lock of the owner
+     * @return the previous lock of the owner or <code>null</code>
+     * @since 1.3
+     */
+    protected synchronized LockOwner putOwner(LockOwner owner) {
+        Object table = owners;
+        LockOwner old = null;
+        if (table == null) {
+            owners = owner;
+        } else if (table instanceof LockOwner) {
+            LockOwner single = (LockOwner) table;
+            if (single.ownerId.equals(owner.ownerId)) {
+                old = single;
+                owners = owner;
+            } else {
+                owners = new LockOwner[] { single, owner };
+            }
+        } else if (table instanceof LockOwner[]) {
+            LockOwner[] array = (LockOwner[]) table;
+            int index = indexOf(array, owner.ownerId);
+            if (index != -1) {
+                old = array[index];
+                LockOwner[] copy = (LockOwner[]) array.clone();
+                copy[index] = owner;
+                owners = copy;
+            } else if (array.length < INFLATE_THRESHOLD) {
+                owners = add(array, owner);
+            } else {
+                Map map = Collections.synchronizedMap(new HashMap());
+                for (int i = 0; i < array.length; i++) {
+                    map.put(array[i].ownerId, array[i]);
+                }
+                map.put(owner.ownerId, owner);
+                owners = map;
+            }
+        } else {
+            old = (LockOwner) ((Map) table).put(owner.ownerId, owner);
+        }
+        if (old != null) {
+            countOwner(old, -1);
+        }
+        countOwner(owner, 1);
+        ownerChanges++;
+        return old;
+    }
+
+    /**
+     * Removes the lock of an owner.
+     * 
+     * @param ownerId the owner
+     * @return the removed lock or <code>null</code> if the owner had none
+     * @since 1.3
+     */
+    protected synchronized LockOwner removeOwner(Object ownerId) {
+        Object table = owners;
+        LockOwner old = null;
+        if (table instanceof LockOwner) {
+            LockOwner single = (LockOwner) table;
+            if (single.ownerId.equals(ownerId)) {
+                old = single;
+                owners = null;
+            }
+        } else if (table instanceof LockOwner[]) {
+            LockOwner[] array = (LockOwner[]) table;
+            int index = indexOf(array, ownerId);
+            if (index != -1) {
+                old = array[index];
+                owners = (array.length == 2 ? (Object) array[1 - index] : remove(array, index));
+            }
+        } else if (table != null) {
+            Map map = (Map) table;
+            old = (LockOwner) map.remove(ownerId);
+            if (map.size() <= INFLATE_THRESHOLD / 2) {
+                // deflate again, the map is not modified any more
+                owners = map.values().toArray(new LockOwner[map.size()]);
+            }
+        }
+        if (old != null) {
+            countOwner(old, -1);
+            ownerChanges++;
+            // waiters are no plain locks, they must not be kept from the garbage collector
+            if (old.getClass() == LockOwner.class) {
+                releasedOwner = old;
+            }
+        }
+        return old;
+    }
+
+    private static int indexOf(LockOwner[] array, Object ownerId) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].ownerId.equals(ownerId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static LockOwner[] add(LockOwner[] array, LockOwner owner) {
+        LockOwner[] copy = new LockOwner[array.length + 1];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        copy[array.length] = owner;
+        return copy;
+    }
+
+    private static LockOwner[] remove(LockOwner[] array, int index) {
+        if (array.length == 1) {
+            return NO_OWNERS;
+        }
+        LockOwner[] copy = new LockOwner[array.length - 1];
+        System.arraycopy(array, 0, copy, 0, index);
+        System.arraycopy(array, index + 1, copy, index, copy.length - index);
+        return copy;
+    }
+
+    private void countOwner(LockOwner owner, int delta) {
+        int level = countedLevel(owner.lockLevel);
+        if (owner.intention) {
+            levelCounts[maxLockLevel + 1 + level] += delta;
+        } else {
+            levelCounts[level] += delta;
+        }
+    }
+
+    private int countedLevel(int lockLevel) {
+        // levels beyond the bounds are not compatible with anything besides the bounds
+        // themselves, so they can be counted as such
+        return Math.max(getLevelMinLock(), Math.min(lockLevel, maxLockLevel));
+    }
+
+    /**
+     * Determines the highest lock level held by owners in the same way as
+     * {@link #getMaxLevelOwner(LockOwner, int, boolean)}, but without looking at any of
+     * the owners. Instead, the level counts are checked from the highest level downwards,
+     * so this does not depend on the number of owners.
+     * 
+     * @since 1.3
+     */
+    protected synchronized int getMaxLockLevel(LockOwner reentrantOwner, int supportLockLevel,
             boolean preferred) {
+        for (int level = maxLockLevel; level > getLevelMinLock(); level--) {
+            if (countOwners(level, reentrantOwner, supportLockLevel, preferred) > 0) {
+                return level;
+            }
+        }
+        return getLevelMinLock();
+    }
+
+    /**
+     * Checks if a lock level can coexist with the levels held by owners. Owners are taken
+     * into account in the same way as by {@link #getMaxLockLevel(LockOwner, int, boolean)}.
+     * Each held level is checked by {@link #isCompatible(int, int)} on its own, so subclasses
+     * may define compatibility of levels by a matrix instead of matching pairs.
+     * 
+     * @since 1.3
+     */
+    protected synchronized boolean isCompatibleWithOwners(int targetLockLevel,
+            LockOwner reentrantOwner, int supportLockLevel, boolean preferred) {
+        for (int level = maxLockLevel; level > getLevelMinLock(); level--) {
+            if (countOwners(level, reentrantOwner, supportLockLevel, preferred) > 0
+                    && !isCompatible(targetLockLevel, level)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int countOwners(int level, LockOwner reentrantOwner, int supportLockLevel,
+            boolean preferred) {
+        if (level == supportLockLevel) {
+            return 0;
+        }
+        int count = levelCounts[level];
+        if (!preferred) {
+            // if we are a preferred lock we must not interfere with other intention
+            // locks as we otherwise might mututally lock without resolvation
+            count += levelCounts[maxLockLevel + 1 + level];
+        }
+        if (reentrantOwner != null && countedLevel(reentrantOwner.lockLevel) == level
+                && !(preferred && reentrantOwner.intention)) {
+            count--;
+        }
+        return count;
+    }
+
+    /**
+     * Tries to acquire a lock for a request that is not queued, which has to wait for the
+     * requests ahead of it if the waiter scheduler does not allow overtaking.
+     */
+    protected synchronized boolean tryLock(Object ownerId, int targetLockLevel,
+            int compatibility, boolean preferred) {
+        if (mustWaitInLine(ownerId, preferred)) {
+            return false;
+        }
         return tryLock(ownerId, targetLockLevel, compatibility, preferred, false);
     }
 
     protected synchronized boolean tryLock(Object ownerId, int targetLockLevel, int compatibility,
             boolean preferred, boolean tryOnly) {
 
-        LockOwner myLock = (LockOwner) owners.get(ownerId);
+        LockOwner myLock = getLockOwner(ownerId);
 
-        // determine highest owner        
-        LockOwner highestOwner;
+        // check against the lock levels held by others
+        boolean compatible;
         if (compatibility == COMPATIBILITY_REENTRANT) {
             if (myLock != null && targetLockLevel <= myLock.lockLevel) {
                 // we already have it
                 return true;
             } else {
                 // our own lock will not be compromised by ourself
-                highestOwner = getMaxLevelOwner(myLock, preferred);
+                compatible = isCompatibleWithOwners(targetLockLevel, myLock, -1, preferred);
             }
         } else if (compatibility == COMPATIBILITY_SUPPORT) {
             // we are compatible with any other lock owner holding
             // the same lock level
-            highestOwner = getMaxLevelOwner(targetLockLevel, preferred);
+            compatible = isCompatibleWithOwners(targetLockLevel, null, targetLockLevel, preferred);
 
         } else if (compatibility == COMPATIBILITY_REENTRANT_AND_SUPPORT) {
             if (myLock != null && targetLockLevel <= myLock.lockLevel) {
@@ -507,23 +1511,15 @@ public class GenericLock implements MultiLevelLock2 {
                 return true;
             } else {
                 // our own lock will not be compromised by ourself and same lock level 
-                highestOwner = getMaxLevelOwner(myLock, targetLockLevel, preferred);
+                compatible = isCompatibleWithOwners(targetLockLevel, myLock, targetLockLevel,
+                        preferred);
             }
         } else {
-            highestOwner = getMaxLevelOwner();
-        }
-
-        int i;
-        // what is our current lock level?
-        int currentLockLevel;
-        if (highestOwner != null) {
-            currentLockLevel = highestOwner.lockLevel;
-        } else {
-            currentLockLevel = getLevelMinLock();
+            compatible = isCompatibleWithOwners(targetLockLevel, null, -1, false);
         }
 
         // we are only allowed to acquire our locks if we do not compromise locks of any other lock owner
-        if (isCompatible(targetLockLevel, currentLockLevel)) {
+        if (compatible) {
             if (!tryOnly) {
                 // if we really have the lock, it no longer is an intention
                 setLockLevel(ownerId, myLock, targetLockLevel, compatibility, false);
@@ -540,29 +1536,50 @@ public class GenericLock implements MultiLevelLock2 {
     
     protected Set getConflictingOwners(Object ownerId, int targetLockLevel, int compatibility) {
 
-        LockOwner myLock = (LockOwner) owners.get(ownerId);
+        LockOwner myLock = getLockOwner(ownerId);
         if (myLock != null && targetLockLevel <= myLock.lockLevel) {
             // shortcut as we already have the lock
             return null;
         }
         
         LockOwner testLock = new LockOwner(ownerId, targetLockLevel, compatibility, false);
-        List ownersCopy;
-        synchronized (owners) {
-            ownersCopy = new ArrayList(owners.values());
+        return getConflictingOwners(testLock, getLockOwners());
+        
+    }
+
+    /**
+     * Gets the owners a waiting request is blocked by. Other than
+     * {@link #getConflictingOwners(Object, int, int)} this ignores the claim a preferred
+     * waiter makes on this lock while waiting. For a preferred request claims of other
+     * preferred waiters are ignored as well, just like {@link #tryLock(Object, int, int, boolean)}
+     * does.
+     * 
+     * @since 1.3
+     */
+    protected Set getBlockingOwners(Object ownerId, int targetLockLevel, int compatibility,
+            boolean preferred) {
+        Collection lockOwners = getLockOwners();
+        List ownersCopy = new ArrayList(lockOwners.size());
+        for (Iterator it = lockOwners.iterator(); it.hasNext();) {
+            LockOwner owner = (LockOwner) it.next();
+            if (owner.intention) {
+                if (preferred || owner.ownerId.equals(ownerId)) {
+                    continue;
+                }
+            } else if (owner.ownerId.equals(ownerId) && targetLockLevel <= owner.lockLevel) {
+                // we already have it, so we are not blocked
+                return null;
+            }
+            ownersCopy.add(owner);
         }
+        LockOwner testLock = new LockOwner(ownerId, targetLockLevel, compatibility, false);
         return getConflictingOwners(testLock, ownersCopy);
-        
     }
 
     protected Collection getConflictingWaiters(Object ownerId) {
-        LockOwner owner = (LockOwner) owners.get(ownerId);
+        LockOwner owner = getLockOwner(ownerId);
         if (owner != null) {
-            List waiterCopy;
-            synchronized (waitingOwners) {
-                waiterCopy = new ArrayList(waitingOwners);
-            }
-            Collection conflicts = getConflictingOwners(owner, waiterCopy);
+            Collection conflicts = getConflictingOwners(owner, Arrays.asList(waitingOwners));
             return conflicts;
         }
         return null;
@@ -630,4 +1647,59 @@ public class GenericLock implements MultiLevelLock2 {
         }
     }
 
+    /**
+     * Request waiting in {@link GenericLock#awaitGrant(LockWaiter, long)} or - if
+     * asynchronous - queued by {@link GenericLock#acquireOrEnqueue(LockWaiter)}. The
+     * intention flag marks a preferred request.
+     * 
+     * @since 1.3
+     */
+    protected static class LockWaiter extends LockOwner {
+        // true if there is no thread waiting for the request
+        public final boolean async;
+        // lock the owner held before it started waiting; guarded by the lock
+        public LockOwner previousLock;
+        // set when the lock has been handed over; guarded by the lock
+        public boolean granted = false;
+        // assigned by the waiter scheduler of the lock when the request starts waiting;
+        // guarded by the lock
+        public long rank = 0;
+        // number in the order requests started waiting, assigned when first queued and kept
+        // when the request waits again; guarded by the lock
+        public long arrival = 0;
+        // set when the thread of the request is to be woken up; guarded by the request
+        private boolean signaled = false;
+
+        public LockWaiter(Object ownerId, int lockLevel, int compatibility, boolean preferred) {
+            this(ownerId, lockLevel, compatibility, preferred, false);
+        }
+
+        public LockWaiter(Object ownerId, int lockLevel, int compatibility, boolean preferred,
+                boolean async) {
+            super(ownerId, lockLevel, compatibility, preferred);
+            this.async = async;
+        }
+
+        /**
+         * Blocks the calling thread until {@link #signal()} is called or the timeout has
+         * passed. Returns at once if it has been signaled since the last reset.
+         */
+        public synchronized void await(long timeoutMSecs) throws InterruptedException {
+            if (!signaled) {
+                wait(timeoutMSecs);
+            }
+        }
+
+        /** Wakes up the thread blocked in {@link #await(long)}, if there is one. */
+        public synchronized void signal() {
+            signaled = true;
+            notify();
+        }
+
+        /** Sets whether {@link #await(long)} returns at once. */
+        public synchronized void resetSignal(boolean signaled) {
+            this.signaled = signaled;
+        }
+    }
+
 }
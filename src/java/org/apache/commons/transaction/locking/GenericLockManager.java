@@ -18,22 +18,45 @@ package org.apache.commons.transaction.locking;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.commons.transaction.util.DeadlineQueue;
+import org.apache.commons.transaction.util.IdentitySet;
 import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.StripedMap;
 
 /**
  * Manager for {@link GenericLock}s on resources. This implementation includes 
  * <ul>
- * <li>deadlock detection, which is configurable to come into effect after an initial short waiting
- * lock request; this is useful as it is somewhat expensive
- * <li>global transaction timeouts that actively revoke granted rights from transactions
+ * <li>deadlock detection based on a {@link WaitForGraph}, which is configurable to come into
+ * effect after an initial short waiting lock request; it either is done by each blocked request
+ * itself or periodically by a background thread (see
+ * {@link #startBackgroundDeadlockDetection(long)}); the victim of a deadlock can be chosen by
+ * a {@link DeadlockVictimSelector}
+ * <li>alternatively, deadlock prevention by the time stamps of owners, either wait-die or
+ * wound-wait (see {@link #setDeadlockPrevention(int)})
+ * <li>global transaction timeouts that actively revoke granted rights from transactions; they
+ * are enforced by a daemon thread that only runs while there are pending timeouts
+ * <li>asynchronous lock requests that do not block the calling thread (see
+ * {@link #lockAsync(Object, Object, int, int, boolean, long)})
+ * <li>statistics about grants, waits, failures and contended resources (see
+ * {@link #getStatistics()})
+ * <li>optionally, a fixed number of locks resources are mapped onto by hash instead of a lock
+ * per resource (see {@link #setLockStripes(int, Collection)})
  * </ul>
+ * All tables are {@link StripedMap}s, so requests on different resources or by different
+ * owners do not contend on a single monitor. Locks created for requests to this manager are
+ * discarded automatically once they are neither owned nor waited for, while locks handed out
+ * by {@link #getLock(Object)} or {@link #atomicGetOrCreateLock(Object)} are kept (see
+ * {@link #setReclaimIdleLocks(boolean)}).
  * 
  * @version $Id$
  */
@@ -41,22 +64,147 @@ public class GenericLockManager implements LockManager, LockManager2 {
 
     public static final long DEFAULT_TIMEOUT = 30000;
     public static final long DEFAULT_CHECK_THRESHHOLD = 500;
+
+    // weight of the latest sample for moving averages is one in this
+    private static final int ADAPTION_WEIGHT = 8;
+
+    /**
+     * Maximum number of spins of a blocked request before it waits for its lock on
+     * machines with more than one processor, see {@link #setMaxSpins(int)}.
+     * 
+     * @since 1.3
+     */
+    public static final int DEFAULT_MAX_SPINS = 1000;
+
+    /** Deadlocks are detected using the {@link WaitForGraph}, which is the default. */
+    public static final int PREVENTION_NONE = 0;
+
+    /**
+     * An owner may only wait for younger owners. If it is blocked by an older one, its
+     * request fails at once with {@link LockException#CODE_DEADLOCK_VICTIM}.
+     */
+    public static final int PREVENTION_WAIT_DIE = 1;
+
+    /**
+     * An owner may only wait for older owners. Younger owners blocking it are aborted, i.e.
+     * lose all of their locks and fail with {@link LockException#CODE_DEADLOCK_VICTIM}.
+     */
+    public static final int PREVENTION_WOUND_WAIT = 2;
     
-    /** Maps onwerId to locks it (partially) owns. */
-    protected Map globalOwners = Collections.synchronizedMap(new HashMap());
+    /**
+     * Maps onwerId to locks it (partially) owns as {@link IdentitySet}. Owners whose last
+     * lock has been released one by one keep an empty set until they are swept, see
+     * {@link #ownersWithoutLocks}.
+     */
+    protected StripedMap globalOwners = new StripedMap();
+
+    /**
+     * Maps resourceId to lock. Idle locks are kept until they are swept, see
+     * {@link #reclaimIdleLocks()}.
+     */
+    protected StripedMap globalLocks = new StripedMap();
+
+    /**
+     * Finds locks that are neither owned, waited for, pinned nor handed out. Called while
+     * holding the monitor of their stripe, which guards the pins and the hand out mark.
+     */
+    protected final StripedMap.Sweeper idleLocks = new StripedMap.Sweeper() {
+        public boolean isStale(Object resourceId, Object lock) {
+            GenericLock genericLock = (GenericLock) lock;
+            return !genericLock.handedOut && genericLock.pins == 0 && genericLock.isIdle();
+        }
+    };
 
-    /** Maps resourceId to lock. */
-    protected Map globalLocks = new HashMap();
+    /** Finds owners without locks. */
+    protected final StripedMap.Sweeper ownersWithoutLocks = new StripedMap.Sweeper() {
+        public boolean isStale(Object ownerId, Object locks) {
+            return ((Set) locks).isEmpty();
+        }
+    };
     
     /** Maps onwerId to global effective time outs (i.e. the time the lock will time out). */
-    protected Map effectiveGlobalTimeouts = Collections.synchronizedMap(new HashMap());
+    protected StripedMap effectiveGlobalTimeouts = new StripedMap();
+
+    /** Owners whose global time out has expired, mapped to {@link Boolean#TRUE}. */
+    protected StripedMap timedOutOwners = new StripedMap();
+
+    /**
+     * Global time outs ordered by time, either of an owner or of a {@link LockFuture}.
+     * Entries are not removed when a time out is reset or restarted or a request has been
+     * completed, so they have to be checked against {@link #effectiveGlobalTimeouts} or
+     * {@link #asyncRequests} respectively. Guarded by its own monitor.
+     */
+    protected DeadlineQueue globalTimeoutQueue = new DeadlineQueue();
+
+    /** Maps ownerId to its pending asynchronous request. */
+    protected StripedMap asyncRequests = new StripedMap();
+
+    /** Guarded by the monitor of {@link #globalTimeoutQueue}. */
+    protected TimeoutReaper timeoutReaper = null;
+
+    /** Keeps track of owners blocked after the check threshhold for deadlock detection. */
+    protected WaitForGraph waitForGraph = new WaitForGraph();
+
+    /** Owners chosen by the background deadlock detection that have not yet noticed. */
+    protected Set deadlockVictims = Collections.synchronizedSet(new HashSet());
+
+    protected DeadlockDetector deadlockDetector = null;
+
+    protected DeadlockVictimSelector victimSelector = null;
+
+    /**
+     * Manager passed to the {@link #victimSelector}, which is this one unless it is a shard
+     * of a {@link ShardedLockManager}.
+     */
+    protected LockManager2 victimSelectorView = this;
+
+    protected volatile WaiterScheduler waiterScheduler = null;
+
+    /**
+     * Maps ownerId to the time stamp it has been started at, which decides its age for
+     * deadlock prevention.
+     */
+    protected StripedMap ownerTimestamps = new StripedMap();
+
+    /** Issues the time stamps in {@link #ownerTimestamps}. */
+    protected TimestampSource timestampSource = new TimestampSource();
 
-    protected Set timedOutOwners = Collections.synchronizedSet(new HashSet());
+    /** Owners aborted by wound-wait deadlock prevention, mapped to {@link Boolean#TRUE}. */
+    protected StripedMap woundedOwners = new StripedMap();
+
+    protected int deadlockPrevention = PREVENTION_NONE;
+
+    protected LockStatistics statistics = new LockStatistics();
+
+    /**
+     * Locks resources are mapped onto by hash code or <code>null</code> if there is a lock
+     * per resource, see {@link #setLockStripes(int, Collection)}.
+     */
+    protected volatile GenericLock[] lockStripes = null;
+
+    /** Resources that keep a lock of their own when there are lock stripes. */
+    protected Set unstripedResources = Collections.EMPTY_SET;
+
+    /** Maps ownerId to the {@link StripeHolds} of the resources it holds on lock stripes. */
+    protected StripedMap stripeHolds = new StripedMap();
     
     protected int maxLockLevel = -1;
     protected LoggerFacade logger;
     protected long globalTimeoutMSecs;
-    protected long checkThreshhold;
+    protected volatile long checkThreshhold;
+    protected boolean reclaimIdleLocks = true;
+    // bounds of the check threshhold if it adapts, see setCheckThreshholdBounds
+    protected volatile boolean adaptiveCheckThreshhold = false;
+    protected long minCheckThreshhold;
+    protected long maxCheckThreshhold;
+    // moving average of the time requests waited for their locks and the adapting check
+    // threshhold without rounding; guarded by adaption
+    protected double meanWait;
+    protected double adaptedCheckThreshhold;
+    protected final Object adaption = new Object();
+    // spinning only pays if the owners we wait for can run meanwhile
+    protected int maxSpins = Runtime.getRuntime().availableProcessors() > 1 ? DEFAULT_MAX_SPINS
+            : 0;
     
     /**
      * Creates a new generic lock manager.
@@ -86,6 +234,7 @@ public class GenericLockManager implements LockManager, LockManager2 {
         this.logger = logger.createLogger("Locking");
         this.globalTimeoutMSecs = timeoutMSecs;
         this.checkThreshhold = checkThreshholdMSecs;
+        statistics.checkThreshhold(checkThreshholdMSecs);
     }
 
     public GenericLockManager(int maxLockLevel, LoggerFacade logger, long timeoutMSecs)
@@ -98,6 +247,454 @@ public class GenericLockManager implements LockManager, LockManager2 {
         this(maxLockLevel, logger, DEFAULT_TIMEOUT);
     }
 
+    /**
+     * Determines if locks are discarded once they are neither owned nor waited for. This is
+     * the default, as otherwise there will be a lock object for every resource ever locked.
+     * Idle locks are not discarded right away, but in batches when creating new locks, so
+     * their number stays in proportion to the locks in use.
+     * <br>
+     * <br>
+     * Only locks this manager created for its own requests, e.g.
+     * {@link #lock(Object, Object, int, boolean)}, are discarded. A lock handed out by
+     * {@link #getLock(Object)} or {@link #atomicGetOrCreateLock(Object)} may be acquired
+     * directly, which this manager does not know of, so it is kept for good unless it is
+     * removed by {@link #removeLock(MultiLevelLock)}. This way there never are two locks for
+     * the same resource.
+     * 
+     * @param reclaimIdleLocks
+     *            <code>true</code> if idle locks shall be discarded
+     * @since 1.3
+     */
+    public void setReclaimIdleLocks(boolean reclaimIdleLocks) {
+        this.reclaimIdleLocks = reclaimIdleLocks;
+    }
+
+    /**
+     * Maps resources onto a fixed number of locks by their hash code instead of creating a
+     * lock per resource. This bounds the memory used for locks no matter how many distinct
+     * resources there are, at the price of false conflicts between resources sharing a
+     * stripe.
+     * 
+     * @param stripeCount
+     *            the number of locks, will be rounded up to the next power of two
+     * @throws IllegalArgumentException
+     *             if stripeCount is less than 1
+     * @throws IllegalStateException
+     *             if this manager already holds locks
+     * @see #setLockStripes(int, Collection)
+     * @since 1.3
+     */
+    public void setLockStripes(int stripeCount) throws IllegalArgumentException,
+            IllegalStateException {
+        setLockStripes(stripeCount, Collections.EMPTY_SET);
+    }
+
+    /**
+     * Maps resources onto a fixed number of locks by their hash code instead of creating a
+     * lock per resource. This bounds the memory used for locks no matter how many distinct
+     * resources there are, at the price of false conflicts between resources sharing a
+     * stripe. This must be called before the first lock is requested.
+     * <br>
+     * <br>
+     * All requests on striped resources are reentrant, so an owner holding two resources
+     * sharing a stripe does not block itself. {@link #getLevel(Object, Object)},
+     * {@link #hasLock(Object, Object, int)} and {@link #release(Object, Object)} still work
+     * per resource: the levels granted are remembered for each resource and the stripe is
+     * released as soon as the owner releases the last resource it holds on it. Until then,
+     * the stripe stays at the highest level granted for any of them. {@link #getAll(Object)}
+     * returns the stripes.
+     * 
+     * @param stripeCount
+     *            the number of locks, will be rounded up to the next power of two
+     * @param unstripedResourceIds
+     *            resources that keep a lock of their own, e.g. heavily used ones that shall
+     *            not conflict with others by accident
+     * @throws IllegalArgumentException
+     *             if stripeCount is less than 1
+     * @throws IllegalStateException
+     *             if this manager already holds locks
+     * @since 1.3
+     */
+    public synchronized void setLockStripes(int stripeCount, Collection unstripedResourceIds)
+            throws IllegalArgumentException, IllegalStateException {
+        if (stripeCount < 1)
+            throw new IllegalArgumentException("There must be at least one lock stripe ("
+                    + stripeCount + " was specified)");
+        // idle locks left behind do not count as used
+        reclaimIdleLocks();
+        if (lockStripes != null || !globalLocks.isEmpty())
+            throw new IllegalStateException("Lock stripes must be set before locks are used");
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        GenericLock[] stripes = new GenericLock[size];
+        for (int i = 0; i < size; i++) {
+            Object stripeId = new StripeId(i);
+            // a stripe must not be registered for a resource, nor be reclaimed
+            synchronized (globalLocks.getStripeMonitor(stripeId)) {
+                stripes[i] = createLock(stripeId);
+                stripes[i].setWaiterScheduler(waiterScheduler);
+                globalLocks.remove(stripeId);
+            }
+        }
+        unstripedResources = new HashSet(unstripedResourceIds);
+        lockStripes = stripes;
+    }
+
+    /**
+     * Gets the number of locks resources are mapped onto.
+     * 
+     * @return number of lock stripes or <code>0</code> if there is a lock per resource
+     * @since 1.3
+     */
+    public int getLockStripeCount() {
+        GenericLock[] stripes = lockStripes;
+        return stripes == null ? 0 : stripes.length;
+    }
+
+    /**
+     * Gets the number of locks currently held by this manager. This includes idle locks
+     * that have not been reclaimed yet, as they are reclaimed while creating other locks
+     * only. Call {@link #reclaimIdleLocks()} first to leave them out.
+     * 
+     * @return number of lock objects, i.e. lock stripes and resources that are locked,
+     *         waited for or have been locked before
+     * @since 1.3
+     */
+    public int getLockCount() {
+        return globalLocks.size() + getLockStripeCount();
+    }
+
+    /**
+     * Takes a snapshot of the statistics collected since this manager has been created or
+     * they have been reset.
+     * 
+     * @return the current statistics including the ten most contended resources
+     * @since 1.3
+     */
+    public LockStatistics.Snapshot getStatistics() {
+        return getStatistics(10);
+    }
+
+    /**
+     * Takes a snapshot of the statistics collected since this manager has been created or
+     * they have been reset.
+     * 
+     * @param mostContended
+     *            maximum number of most contended resources to include
+     * @return the current statistics
+     * @since 1.3
+     */
+    public LockStatistics.Snapshot getStatistics(int mostContended) {
+        return statistics.snapshot(getLockCount(), mostContended);
+    }
+
+    /**
+     * Resets all statistics to zero.
+     * 
+     * @since 1.3
+     */
+    public void resetStatistics() {
+        statistics.reset();
+    }
+
+    /**
+     * Sets the policy choosing the victim of a deadlock. Without a selector, a request finding
+     * a deadlock by itself fails, while the background deadlock detection chooses the owner
+     * that has been waiting the shortest time. With a selector, the victim is chosen among all
+     * owners of the cycle in both cases and woken up with a {@link LockException} having code
+     * {@link LockException#CODE_DEADLOCK_VICTIM}.
+     * 
+     * @param victimSelector
+     *            the policy or <code>null</code> for the default
+     * @since 1.3
+     */
+    public void setDeadlockVictimSelector(DeadlockVictimSelector victimSelector) {
+        this.victimSelector = victimSelector;
+    }
+
+    /**
+     * Gets the policy set by {@link #setDeadlockVictimSelector(DeadlockVictimSelector)}.
+     * 
+     * @since 1.3
+     */
+    public DeadlockVictimSelector getDeadlockVictimSelector() {
+        return victimSelector;
+    }
+
+    /**
+     * Sets the policy deciding which waiting requests are served first when a lock is
+     * handed over, e.g. a {@link WeightedWaiterScheduler} to let latency critical owners
+     * overtake others. This applies to all locks of this manager, including those already
+     * in use.
+     * 
+     * @param waiterScheduler
+     *            the policy or <code>null</code> to serve requests in the order they
+     *            started waiting, which is the default
+     * @see GenericLock#setWaiterScheduler(WaiterScheduler)
+     * @since 1.3
+     */
+    public void setWaiterScheduler(WaiterScheduler waiterScheduler) {
+        this.waiterScheduler = waiterScheduler;
+        for (Iterator it = getLocks().iterator(); it.hasNext();) {
+            ((GenericLock) it.next()).setWaiterScheduler(waiterScheduler);
+        }
+    }
+
+    /**
+     * Gets the policy set by {@link #setWaiterScheduler(WaiterScheduler)}.
+     * 
+     * @since 1.3
+     */
+    public WaiterScheduler getWaiterScheduler() {
+        return waiterScheduler;
+    }
+
+    /**
+     * Switches from deadlock detection to deadlock prevention or back. Deadlock prevention
+     * compares the time stamps of a blocked owner and the owners blocking it. An owner is
+     * stamped when {@link #startGlobalTimeout(Object, long)} is first called for it or, if
+     * it never is, when it first gets or has to wait for a lock; it keeps the stamp until
+     * {@link #releaseAll(Object)}. As waiting is only allowed in one direction, there can be
+     * no cycle of waiting owners, so blocked requests do not have to search for one.
+     * <br>
+     * <br>
+     * A request blocked by an owner that got its lock while the request was already waiting
+     * only notices this when it wakes up again, which it does at least every check
+     * threshhold. Asynchronous requests always rely on deadlock detection. Under wound-wait,
+     * a wounded owner releases its locks only at its next call to this manager, see
+     * {@link #wound(Object)}.
+     * 
+     * @param policy
+     *            one of {@link #PREVENTION_NONE}, {@link #PREVENTION_WAIT_DIE} and
+     *            {@link #PREVENTION_WOUND_WAIT}
+     * @throws IllegalArgumentException
+     *             if the policy is unknown
+     * @since 1.3
+     */
+    public void setDeadlockPrevention(int policy) throws IllegalArgumentException {
+        if (policy != PREVENTION_NONE && policy != PREVENTION_WAIT_DIE
+                && policy != PREVENTION_WOUND_WAIT)
+            throw new IllegalArgumentException("Unknown deadlock prevention policy (" + policy
+                    + " was specified)");
+        this.deadlockPrevention = policy;
+    }
+
+    /**
+     * Gets the deadlock prevention policy set by {@link #setDeadlockPrevention(int)}.
+     * 
+     * @since 1.3
+     */
+    public int getDeadlockPrevention() {
+        return deadlockPrevention;
+    }
+
+    /**
+     * Sets a fixed check threshhold, i.e. the time a blocked request waits before deadlock
+     * and timeout detection come into play. This also stops the threshhold from adapting.
+     * 
+     * @param checkThreshholdMSecs
+     *            the threshhold in milliseconds or <code>-1</code> to check directly
+     * @since 1.3
+     */
+    public void setCheckThreshhold(long checkThreshholdMSecs) {
+        synchronized (adaption) {
+            adaptiveCheckThreshhold = false;
+            checkThreshhold = checkThreshholdMSecs;
+            statistics.checkThreshhold(checkThreshholdMSecs);
+        }
+    }
+
+    /**
+     * Lets the check threshhold adapt to the requests served. Every deadlock found halves
+     * it, while every check that finds none moves it a step towards twice the average time
+     * requests waited for their locks, an exponentially moving average. This way deadlocks
+     * are detected within a few milliseconds when they are frequent, while long waits that
+     * are no deadlocks raise the threshhold until most of them get their lock before they
+     * are checked. The threshhold starts from its current value.
+     * 
+     * @param minMSecs
+     *            lowest threshhold in milliseconds
+     * @param maxMSecs
+     *            highest threshhold in milliseconds
+     * @throws IllegalArgumentException
+     *             if minMSecs is negative or greater than maxMSecs
+     * @see #getCheckThreshhold()
+     * @since 1.3
+     */
+    public void setCheckThreshholdBounds(long minMSecs, long maxMSecs)
+            throws IllegalArgumentException {
+        if (minMSecs < 0 || minMSecs > maxMSecs)
+            throw new IllegalArgumentException("Invalid check threshhold bounds (" + minMSecs
+                    + " to " + maxMSecs + " were specified)");
+        synchronized (adaption) {
+            adaptiveCheckThreshhold = true;
+            minCheckThreshhold = minMSecs;
+            maxCheckThreshhold = maxMSecs;
+            long current = checkThreshhold == -1 ? minMSecs : checkThreshhold;
+            adaptedCheckThreshhold = current;
+            meanWait = current / 2.0;
+            updateCheckThreshhold();
+        }
+    }
+
+    /**
+     * Gets the current check threshhold.
+     * 
+     * @return the threshhold in milliseconds or <code>-1</code> if requests are checked
+     *         directly
+     * @since 1.3
+     */
+    public long getCheckThreshhold() {
+        return checkThreshhold;
+    }
+
+    /**
+     * Sets how long a blocked request spins before it waits for its lock. Locks held for a
+     * few microseconds only are handed over faster this way, as the thread does not have
+     * to be blocked and woken up again. How long requests actually spin adapts to how long
+     * each lock has recently been held, as described in
+     * {@link GenericLock#spinAcquire(Object, int, int, boolean, int)}, this only sets the
+     * upper bound. Spinning is switched off by default on machines with a single processor,
+     * otherwise the bound is {@link #DEFAULT_MAX_SPINS}.
+     * 
+     * @param maxSpins
+     *            the maximum number of spins or <code>0</code> not to spin at all
+     * @throws IllegalArgumentException
+     *             if maxSpins is negative
+     * @since 1.3
+     */
+    public void setMaxSpins(int maxSpins) throws IllegalArgumentException {
+        if (maxSpins < 0)
+            throw new IllegalArgumentException("The number of spins must not be negative ("
+                    + maxSpins + " was specified)");
+        this.maxSpins = maxSpins;
+    }
+
+    /**
+     * Gets the maximum number of spins set by {@link #setMaxSpins(int)}.
+     * 
+     * @since 1.3
+     */
+    public int getMaxSpins() {
+        return maxSpins;
+    }
+
+    /**
+     * Switches to background deadlock detection. Instead of having each blocked request
+     * check for a deadlock after the check threshhold, a single daemon thread periodically
+     * searches the {@link WaitForGraph} for cycles. From each cycle found it chooses a victim
+     * using {@link #selectDeadlockVictim(List)} and wakes it up with a {@link LockException}
+     * having code {@link LockException#CODE_DEADLOCK_VICTIM}. This caps the detection effort
+     * when there are many blocked requests at the price of detecting deadlocks up to one
+     * interval later.
+     * 
+     * @param intervalMSecs
+     *            time in milliseconds between two detection runs
+     * @throws IllegalArgumentException
+     *             if the interval is not positive
+     * @since 1.3
+     */
+    public synchronized void startBackgroundDeadlockDetection(long intervalMSecs)
+            throws IllegalArgumentException {
+        if (intervalMSecs <= 0)
+            throw new IllegalArgumentException("The detection interval must be positive ("
+                    + intervalMSecs + " was specified)");
+        stopBackgroundDeadlockDetection();
+        deadlockDetector = new DeadlockDetector(intervalMSecs);
+        deadlockDetector.start();
+    }
+
+    /**
+     * Stops background deadlock detection, if it is running, and returns to having each
+     * blocked request check for itself.
+     * 
+     * @since 1.3
+     */
+    public synchronized void stopBackgroundDeadlockDetection() {
+        if (deadlockDetector != null) {
+            deadlockDetector.shutdown();
+            deadlockDetector = null;
+        }
+    }
+
+    /**
+     * Searches all blocked requests for deadlocks once and wakes up the chosen victims. This
+     * is what the background deadlock detection periodically does. The search is a single
+     * pass over the {@link WaitForGraph}, see {@link WaitForGraph#findCycles()}, choosing a
+     * victim from one cycle of each group of owners waiting for each other. Deadlocks left
+     * in such a group are resolved by the next search.
+     * 
+     * @return the number of victims chosen
+     * @since 1.3
+     */
+    public int detectDeadlocks() {
+        long started = System.currentTimeMillis();
+        List cycles = waitForGraph.findCycles();
+        for (Iterator it = cycles.iterator(); it.hasNext();) {
+            List cycle = (List) it.next();
+            Object victim = selectDeadlockVictim(cycle);
+            if (logger.isFineEnabled()) {
+                logger.logFine("Deadlock detected, cycle of owners: " + cycle + ", victim: "
+                        + victim);
+            }
+            wakeDeadlockVictim(victim);
+            deadlockChecked(true);
+        }
+        statistics.deadlockCheck(System.currentTimeMillis() - started);
+        return cycles.size();
+    }
+
+    /**
+     * Chooses the owner to be aborted in order to resolve a deadlock found by the background
+     * detection. This implementation delegates to the
+     * {@link #setDeadlockVictimSelector(DeadlockVictimSelector) victim selector}, if there is
+     * one, and otherwise chooses the owner that has been waiting the shortest time.
+     * 
+     * @param cycle
+     *            the owners forming the deadlock as returned by
+     *            {@link WaitForGraph#findCycle(Object)}
+     * @return the victim
+     * @since 1.3
+     */
+    protected Object selectDeadlockVictim(List cycle) {
+        DeadlockVictimSelector selector = victimSelector;
+        if (selector != null) {
+            return selector.selectVictim(victimSelectorView, cycle);
+        }
+        Object victim = null;
+        long victimSince = -1;
+        for (Iterator it = cycle.iterator(); it.hasNext();) {
+            Object ownerId = it.next();
+            long since = waitForGraph.getWaitingSince(ownerId);
+            if (victim == null || since > victimSince) {
+                victim = ownerId;
+                victimSince = since;
+            }
+        }
+        return victim;
+    }
+
+    protected void wakeDeadlockVictim(Object ownerId) {
+        LockFuture pending = (LockFuture) asyncRequests.get(ownerId);
+        if (pending != null) {
+            abortAsync(pending, new LockException("Lock would cause deadlock",
+                    LockException.CODE_DEADLOCK_VICTIM, pending.getResourceId()));
+            return;
+        }
+        GenericLock lock = waitForGraph.getWaitingFor(ownerId);
+        if (lock != null) {
+            // doLock checks for the mark whenever it is not blocked, while the cancelation
+            // stays pending until it would block again
+            deadlockVictims.add(ownerId);
+            if (!lock.cancelWait(ownerId)) {
+                // it no longer waits, so it must not find the mark later on
+                deadlockVictims.remove(ownerId);
+            }
+        }
+    }
+
     /**
      * @see LockManager2#startGlobalTimeout(Object, long)
      * @since 1.1
@@ -106,6 +703,46 @@ public class GenericLockManager implements LockManager, LockManager2 {
         long now = System.currentTimeMillis();
         long timeout = now + timeoutMSecs;
         effectiveGlobalTimeouts.put(ownerId, new Long(timeout));
+        scheduleTimeout(timeout, ownerId);
+        // restarting the time out does not make an owner younger
+        getTimestamp(ownerId);
+    }
+
+    /**
+     * Gets the time stamp of an owner used for deadlock prevention, stamping it now if it
+     * does not have one yet. Time stamps are unique, so owners started within the same
+     * millisecond are still ordered.
+     * 
+     * @param ownerId
+     *            the owner
+     * @return the time stamp, the lower the older the owner
+     * @since 1.3
+     */
+    protected long getTimestamp(Object ownerId) {
+        Long timestamp = (Long) ownerTimestamps.get(ownerId);
+        if (timestamp == null) {
+            Long newTimestamp = new Long(timestampSource.next());
+            timestamp = (Long) ownerTimestamps.putIfAbsent(ownerId, newTimestamp);
+            if (timestamp == null) {
+                timestamp = newTimestamp;
+            }
+        }
+        return timestamp.longValue();
+    }
+
+    protected void scheduleTimeout(long timeout, Object item) {
+        synchronized (globalTimeoutQueue) {
+            boolean earliest = globalTimeoutQueue.isEmpty()
+                    || timeout < globalTimeoutQueue.peekDeadline();
+            globalTimeoutQueue.add(timeout, item);
+            if (timeoutReaper == null) {
+                timeoutReaper = new TimeoutReaper();
+                timeoutReaper.start();
+            } else if (earliest) {
+                // reaper has to wake up earlier than planned
+                globalTimeoutQueue.notify();
+            }
+        }
     }
     
     /**
@@ -115,15 +752,21 @@ public class GenericLockManager implements LockManager, LockManager2 {
     public boolean tryLock(Object ownerId, Object resourceId, int targetLockLevel, boolean reentrant) {
         timeoutCheck(ownerId);
 
-        GenericLock lock = (GenericLock) atomicGetOrCreateLock(resourceId);
-        boolean acquired = lock.tryLock(ownerId, targetLockLevel,
-                reentrant ? GenericLock.COMPATIBILITY_REENTRANT : GenericLock.COMPATIBILITY_NONE,
-                false);
-        
-        if (acquired) {
-            addOwner(ownerId, lock);
+        GenericLock lock = pinLock(resourceId);
+        try {
+            boolean acquired = lock.tryLock(ownerId, targetLockLevel,
+                    getCompatibility(lock, reentrant ? GenericLock.COMPATIBILITY_REENTRANT
+                            : GenericLock.COMPATIBILITY_NONE), false);
+
+            if (acquired) {
+                addOwner(ownerId, lock);
+                addStripeHold(ownerId, resourceId, lock, targetLockLevel);
+                statistics.immediateGrant();
+            }
+            return acquired;
+        } finally {
+            unpinLock(lock);
         }
-        return acquired;
     }
 
     /**
@@ -134,11 +777,11 @@ public class GenericLockManager implements LockManager, LockManager2 {
         timeoutCheck(ownerId);
         boolean possible = true;
 
-        GenericLock lock = (GenericLock) getLock(resourceId);
+        GenericLock lock = lookupLock(resourceId);
         if (lock != null) {
             possible = lock.test(ownerId, targetLockLevel,
-                    reentrant ? GenericLock.COMPATIBILITY_REENTRANT
-                            : GenericLock.COMPATIBILITY_NONE);
+                    getCompatibility(lock, reentrant ? GenericLock.COMPATIBILITY_REENTRANT
+                            : GenericLock.COMPATIBILITY_NONE));
         }
         return possible;
     }
@@ -151,8 +794,11 @@ public class GenericLockManager implements LockManager, LockManager2 {
         timeoutCheck(ownerId);
         boolean owned = false;
 
-        GenericLock lock = (GenericLock) getLock(resourceId);
-        if (lock != null) {
+        GenericLock lock = lookupLock(resourceId);
+        if (isStripe(lock)) {
+            int held = getStripeHold(ownerId, resourceId);
+            owned = held != 0 && combineLevels(held, lockLevel) == held;
+        } else if (lock != null) {
             owned = lock.has(ownerId, lockLevel);
         }
         return owned;
@@ -183,54 +829,400 @@ public class GenericLockManager implements LockManager, LockManager2 {
      */
     public void lock(Object ownerId, Object resourceId, int targetLockLevel, int compatibility,
             boolean preferred, long timeoutMSecs) throws LockException {
+        // doLock checks for time outs first thing
+        GenericLock lock = pinLock(resourceId);
+        try {
+            doLock(lock, ownerId, resourceId, targetLockLevel,
+                    getCompatibility(lock, compatibility), preferred, timeoutMSecs);
+            addStripeHold(ownerId, resourceId, lock, targetLockLevel);
+        } finally {
+            unpinLock(lock);
+        }
+    }
+
+    /**
+     * @see LockManager2#lockAll(Object, Collection, int, boolean, long)
+     * @since 1.3
+     */
+    public void lockAll(Object ownerId, Collection resourceIds, int targetLockLevel,
+            boolean reentrant, long timeoutMSecs) throws LockException {
+        timeoutCheck(ownerId);
+        int compatibility = reentrant ? GenericLock.COMPATIBILITY_REENTRANT
+                : GenericLock.COMPATIBILITY_NONE;
+        long waitEnd = System.currentTimeMillis() + timeoutMSecs;
+        Object[] ordered = sortResources(resourceIds);
+        List acquired = new ArrayList(ordered.length);
+        boolean success = false;
+        try {
+            for (int i = 0; i < ordered.length; i++) {
+                Object resourceId = ordered[i];
+                GenericLock lock = pinLock(resourceId);
+                try {
+                    boolean held = lock.getLockLevel(ownerId) != 0;
+                    int lockCompatibility = getCompatibility(lock, compatibility);
+                    // only locks not granted right away need the full treatment of doLock
+                    if (lock.tryLock(ownerId, targetLockLevel, lockCompatibility, false)) {
+                        addOwner(ownerId, lock);
+                        statistics.immediateGrant();
+                    } else {
+                        doLock(lock, ownerId, resourceId, targetLockLevel, lockCompatibility,
+                                false, Math.max(0, waitEnd - System.currentTimeMillis()));
+                    }
+                    if (!held) {
+                        acquired.add(lock);
+                    }
+                } finally {
+                    unpinLock(lock);
+                }
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                releaseLocks(ownerId, acquired);
+            }
+        }
+        addStripeHolds(ownerId, ordered, targetLockLevel);
+    }
+
+    /**
+     * @see LockManager2#tryLockAll(Object, Collection, int, boolean)
+     * @since 1.3
+     */
+    public boolean tryLockAll(Object ownerId, Collection resourceIds, int targetLockLevel,
+            boolean reentrant) {
         timeoutCheck(ownerId);
-        GenericLock lock = (GenericLock) atomicGetOrCreateLock(resourceId);
-        doLock(lock, ownerId, resourceId, targetLockLevel, compatibility, preferred, timeoutMSecs);
+        int compatibility = reentrant ? GenericLock.COMPATIBILITY_REENTRANT
+                : GenericLock.COMPATIBILITY_NONE;
+        Object[] ordered = sortResources(resourceIds);
+        List acquired = new ArrayList(ordered.length);
+        for (int i = 0; i < ordered.length; i++) {
+            GenericLock lock = pinLock(ordered[i]);
+            try {
+                boolean held = lock.getLockLevel(ownerId) != 0;
+                if (!lock.tryLock(ownerId, targetLockLevel, getCompatibility(lock, compatibility),
+                        false)) {
+                    releaseLocks(ownerId, acquired);
+                    return false;
+                }
+                addOwner(ownerId, lock);
+                statistics.immediateGrant();
+                if (!held) {
+                    acquired.add(lock);
+                }
+            } finally {
+                unpinLock(lock);
+            }
+        }
+        addStripeHolds(ownerId, ordered, targetLockLevel);
+        return true;
     }
 
+    /**
+     * Sorts resources in the order their locks are acquired by
+     * {@link #lockAll(Object, Collection, int, boolean, long)} and
+     * {@link #tryLockAll(Object, Collection, int, boolean)}. Without lock stripes this is
+     * the order of {@link ResourceOrder}. With lock stripes it is the stripes that are
+     * locked, so resources are ordered by the index of their stripe first, followed by the
+     * resources having a lock of their own. Resources sharing a stripe thus come one after
+     * the other and only the first of them actually acquires it.
+     * 
+     * @param resourceIds
+     *            the resources to sort
+     * @return a new array holding each of the resources once in the order to lock them
+     * @since 1.3
+     */
+    protected Object[] sortResources(Collection resourceIds) {
+        Object[] sorted = ResourceOrder.sort(resourceIds);
+        if (lockStripes != null) {
+            // the sort is stable, so resources sharing a stripe stay in canonical order
+            Arrays.sort(sorted, new Comparator() {
+                public int compare(Object resourceId1, Object resourceId2) {
+                    int index1 = getLockIndex(resourceId1);
+                    int index2 = getLockIndex(resourceId2);
+                    return index1 < index2 ? -1 : (index1 == index2 ? 0 : 1);
+                }
+            });
+        }
+        return sorted;
+    }
+
+    /**
+     * Gets the index of the lock stripe a resource is mapped onto.
+     * 
+     * @param resourceId
+     *            the resource
+     * @return the index of the stripe or {@link Integer#MAX_VALUE} if the resource has a
+     *         lock of its own
+     * @since 1.3
+     */
+    protected int getLockIndex(Object resourceId) {
+        GenericLock stripe = getStripe(resourceId);
+        return stripe == null ? Integer.MAX_VALUE : ((StripeId) stripe.getResourceId()).index;
+    }
+
+    /**
+     * Releases locks of an owner without checking for its global time out first, e.g. to
+     * roll back a partially successful {@link #lockAll(Object, Collection, int, boolean, long)}.
+     * 
+     * @param ownerId
+     *            the owner
+     * @param locks
+     *            the {@link GenericLock}s to release
+     * @since 1.3
+     */
+    protected void releaseLocks(Object ownerId, Collection locks) {
+        for (Iterator it = locks.iterator(); it.hasNext();) {
+            GenericLock lock = (GenericLock) it.next();
+            lock.release(ownerId);
+            removeOwner(ownerId, lock);
+            completeAsyncGrants(lock);
+        }
+    }
+
+    /**
+     * Requests a lock without blocking the calling thread. The request has the same
+     * semantics as {@link #lock(Object, Object, int, int, boolean, long)}, but returns at
+     * once. When the lock can not be granted right away, the request is queued and granted
+     * by the thread releasing the conflicting lock. If the request times out or is chosen as
+     * the victim of a deadlock, it fails with {@link LockException#CODE_TIMED_OUT} or
+     * {@link LockException#CODE_DEADLOCK_VICTIM} respectively. Releasing all locks of the
+     * owner aborts a pending request with {@link LockException#CODE_INTERRUPTED}.
+     * <br>
+     * <br>
+     * Just like with blocking requests, an owner can only have a single pending request at a
+     * time.
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that wants to acquire a certain lock
+     *            level on a resource
+     * @param resourceId
+     *            the resource to get the level for
+     * @param targetLockLevel
+     *            the lock level to acquire
+     * @param compatibility
+     *            as described in {@link MultiLevelLock2}
+     * @param preferred
+     *            <code>true</code> if this request shall be preferred over others
+     * @param timeoutMSecs
+     *            specifies the maximum wait time in milliseconds
+     * @return the pending request
+     * @throws IllegalStateException
+     *             if there already is a pending request of this owner
+     * @since 1.3
+     */
+    public LockFuture lockAsync(final Object ownerId, final Object resourceId,
+            final int targetLockLevel, int compatibility, boolean preferred, long timeoutMSecs)
+            throws IllegalStateException {
+        LockFuture future = new LockFuture(ownerId, resourceId, targetLockLevel);
+        try {
+            timeoutCheck(ownerId);
+        } catch (LockException le) {
+            future.complete(le);
+            return future;
+        }
+        final GenericLock lock = pinLock(resourceId);
+        try {
+            if (isStripe(lock)) {
+                compatibility = getCompatibility(lock, compatibility);
+                future.addListener(new LockListener() {
+                    public void lockCompleted(LockFuture completed) {
+                        if (completed.isGranted()) {
+                            addStripeHold(ownerId, resourceId, lock, targetLockLevel);
+                        }
+                    }
+                });
+            }
+            future.lock = lock;
+            future.waiter = new GenericLock.LockWaiter(ownerId, targetLockLevel, compatibility,
+                    preferred, true);
+            if (asyncRequests.putIfAbsent(ownerId, future) != null) {
+                throw new IllegalStateException("Owner " + ownerId
+                        + " already has a pending lock request");
+            }
+            // the request might be granted as soon as it is queued
+            waitForGraph.addWaiter(ownerId, lock, targetLockLevel, compatibility, preferred);
+            if (lock.acquireOrEnqueue(future.waiter)) {
+                waitForGraph.removeWaiter(ownerId);
+                asyncRequests.remove(ownerId, future);
+                addOwner(ownerId, lock);
+                statistics.immediateGrant();
+                future.complete(null);
+                return future;
+            }
+            statistics.contended(resourceId);
+            if (deadlockDetector == null && resolveDeadlock(ownerId)) {
+                abortAsync(future, new LockException("Lock would cause deadlock",
+                        LockException.CODE_DEADLOCK_VICTIM, resourceId));
+            } else {
+                scheduleTimeout(System.currentTimeMillis() + timeoutMSecs, future);
+            }
+            return future;
+        } finally {
+            unpinLock(lock);
+        }
+    }
+
+    /**
+     * Completes all asynchronous requests that have been granted by a lock.
+     * 
+     * @param lock
+     *            the lock that might have granted asynchronous requests
+     * @since 1.3
+     */
+    protected void completeAsyncGrants(GenericLock lock) {
+        List grants = lock.takeAsyncGrants();
+        for (Iterator it = grants.iterator(); it.hasNext();) {
+            GenericLock.LockWaiter waiter = (GenericLock.LockWaiter) it.next();
+            Object ownerId = waiter.ownerId;
+            LockFuture future = null;
+            // the pending request is the token deciding if it is granted or aborted, adding the
+            // lock while holding it makes sure it will be released by releaseAll
+            synchronized (asyncRequests.getStripeMonitor(ownerId)) {
+                LockFuture pending = (LockFuture) asyncRequests.get(ownerId);
+                if (pending != null && pending.waiter == waiter) {
+                    asyncRequests.remove(ownerId);
+                    addOwner(ownerId, lock);
+                    future = pending;
+                }
+            }
+            if (future != null) {
+                waitForGraph.removeWaiter(ownerId);
+                waitedGrant(System.currentTimeMillis() - future.requested);
+                future.complete(null);
+            }
+            // otherwise it has been aborted and the grant has been reverted
+        }
+    }
+
+    /**
+     * Makes a pending asynchronous request fail. If it already has been granted, but not yet
+     * completed, the grant is reverted.
+     * 
+     * @param future
+     *            the pending request
+     * @param exception
+     *            reason of failure
+     * @return <code>false</code> if the request already has been completed
+     * @since 1.3
+     */
+    protected boolean abortAsync(LockFuture future, LockException exception) {
+        Object ownerId = future.getOwnerId();
+        if (!asyncRequests.remove(ownerId, future)) {
+            return false;
+        }
+        GenericLock lock = future.lock;
+        lock.withdrawWaiter(future.waiter);
+        waitForGraph.removeWaiter(ownerId);
+        statistics.failed(exception.getCode());
+        future.complete(exception);
+        // the withdrawal may have let in others
+        completeAsyncGrants(lock);
+        return true;
+    }
+
+    /**
+     * Acquires a lock, blocking if necessary. A request that can be granted right away
+     * does not enter any monitor that is not striped by resource or owner. Unless the lock
+     * or the set of locks of the owner have to be created, it allocates nothing if no other
+     * owner holds the lock.
+     */
     protected void doLock(GenericLock lock, Object ownerId, Object resourceId, int targetLockLevel,
                           int compatibility, boolean preferred, long timeoutMSecs)
     {
+        timeoutCheck(ownerId);
+
+        boolean acquired = false;
+        try {
+            
+            acquired = lock
+            .acquire(ownerId, targetLockLevel, false, compatibility,
+                    preferred, checkThreshhold);
+            if (acquired) {
+                addOwner(ownerId, lock);
+                statistics.immediateGrant();
+                return;
+            }
+        } catch (InterruptedException e) {
+            statistics.failed(LockException.CODE_INTERRUPTED);
+            throw new LockException("Interrupted", LockException.CODE_INTERRUPTED, resourceId);
+        }
+
+        // the lock may be held for a moment only, so before blocking we spin for a while
+        if (timeoutMSecs > 0) {
+            try {
+                acquired = lock.spinAcquire(ownerId, targetLockLevel, compatibility, preferred,
+                        maxSpins);
+            } catch (InterruptedException e) {
+                statistics.failed(LockException.CODE_INTERRUPTED);
+                throw new LockException("Interrupted", LockException.CODE_INTERRUPTED,
+                        resourceId);
+            }
+            if (acquired) {
+                addOwner(ownerId, lock);
+                statistics.contended(resourceId);
+                statistics.spunGrant();
+                return;
+            }
+        }
+
+        // from here on we are blocked, so time stamps and the waiter are needed
         long now = System.currentTimeMillis();
+        long started = now;
         long waitEnd = now + timeoutMSecs;
 
-        timeoutCheck(ownerId);
-        
-        GenericLock.LockOwner lockWaiter = new GenericLock.LockOwner(ownerId, targetLockLevel,
+        // registering the very request that waits keeps its place in line while it is not
+        // blocked, e.g. when checking for deadlocks between waits
+        GenericLock.LockWaiter lockWaiter = new GenericLock.LockWaiter(ownerId, targetLockLevel,
                 compatibility, preferred);
-        
-        boolean acquired = false;
+        lock.registerWaiter(lockWaiter);
+
         try {
-            
+            statistics.contended(resourceId);
+
             // detection for deadlocks and time outs is rather expensive, 
             // so we wait for the lock for a  
             // short time (<5 seconds) to see if we get it without checking;
             // if not we still can check what the reason for this is
-            if (checkThreshhold != -1 && timeoutMSecs > checkThreshhold) {
+            long threshhold = checkThreshhold;
+            if (threshhold != -1 && timeoutMSecs > threshhold
+                    && deadlockPrevention == PREVENTION_NONE) {
                 acquired = lock
                         .acquire(ownerId, targetLockLevel, true, compatibility,
-                                preferred, checkThreshhold);
-                timeoutMSecs -= checkThreshhold;
-            } else {
-                acquired = lock
-                .acquire(ownerId, targetLockLevel, false, compatibility,
-                        preferred, checkThreshhold);
-                
+                                preferred, threshhold);
+                timeoutMSecs -= threshhold;
             }
             if (acquired) {
+                lock.unregisterWaiter(lockWaiter);
                 addOwner(ownerId, lock);
+                waitedGrant(System.currentTimeMillis() - started);
                 return;
             }
         } catch (InterruptedException e) {
+            lock.unregisterWaiter(lockWaiter);
+            // giving up our request might have let in others
+            completeAsyncGrants(lock);
+            statistics.failed(LockException.CODE_INTERRUPTED);
             throw new LockException("Interrupted", LockException.CODE_INTERRUPTED, resourceId);
         }
+        if (preferred) {
+            // giving up our claim might have let in others
+            completeAsyncGrants(lock);
+        }
         try {
-            lock.registerWaiter(lockWaiter);
+            waitForGraph.addWaiter(ownerId, lock, targetLockLevel, compatibility, preferred);
             
-            boolean deadlock = wouldDeadlock(ownerId, new HashSet());
-            if (deadlock) {
-                throw new LockException("Lock would cause deadlock",
-                        LockException.CODE_DEADLOCK_VICTIM, resourceId);
+            if (deadlockPrevention != PREVENTION_NONE) {
+                // we might have been wounded before we could be woken up as a waiter
+                timeoutCheck(ownerId);
+                preventDeadlock(lock, ownerId, resourceId, targetLockLevel, compatibility,
+                        preferred);
+            } else {
+                // in background mode the detector will wake us up in case of a deadlock
+                boolean deadlock = deadlockDetector == null && resolveDeadlock(ownerId);
+                if (deadlock) {
+                    throw new LockException("Lock would cause deadlock",
+                            LockException.CODE_DEADLOCK_VICTIM, resourceId);
+                }
             }
 
             now = System.currentTimeMillis();
@@ -250,14 +1242,26 @@ public class GenericLockManager implements LockManager, LockManager2 {
                 } else {
                     timeoutMSecs = waitEnd - now;
                 }
+                if (deadlockPrevention != PREVENTION_NONE) {
+                    // owners that got a lock after we started waiting may block us as well
+                    preventDeadlock(lock, ownerId, resourceId, targetLockLevel, compatibility,
+                            preferred);
+                    long threshhold = checkThreshhold;
+                    timeoutMSecs = Math.min(timeoutMSecs, threshhold > 0 ? threshhold
+                            : DEFAULT_CHECK_THRESHHOLD);
+                }
 
-                // XXX acquire will remove us as a waiter, but it is important to remain us such
-                // to constantly indicate it to other owners, otherwise there might be undetected
-                // deadlocks
-                synchronized (lock) {
+                // as we remain registered as a waiter, acquire will neither remove us as such nor
+                // miss a cancelation that came in before it blocks
+                boolean victim = deadlockVictims.remove(ownerId);
+                if (!victim) {
                     acquired = lock.acquire(ownerId, targetLockLevel, true, compatibility,
                             preferred, timeoutMSecs);
-                    lock.registerWaiter(lockWaiter);
+                    victim = !acquired && deadlockVictims.remove(ownerId);
+                }
+                if (victim) {
+                    throw new LockException("Lock would cause deadlock",
+                            LockException.CODE_DEADLOCK_VICTIM, resourceId);
                 }
                 now = System.currentTimeMillis();
             }
@@ -266,12 +1270,84 @@ public class GenericLockManager implements LockManager, LockManager2 {
                         resourceId);
             } else {
                 addOwner(ownerId, lock);
+                waitedGrant(now - started);
+            }
+        } catch (LockException le) {
+            statistics.failed(le.getCode());
+            if (woundedOwners.containsKey(ownerId)) {
+                // woken up after being wounded, so we have to give up our locks, see wound
+                releaseAllNoTimeOutReset(ownerId);
             }
+            throw le;
         } catch (InterruptedException e) {
+            statistics.failed(LockException.CODE_INTERRUPTED);
             throw new LockException("Interrupted", LockException.CODE_INTERRUPTED, resourceId);
         } finally {
+            waitForGraph.removeWaiter(ownerId);
+            deadlockVictims.remove(ownerId);
             lock.unregisterWaiter(lockWaiter);
+            completeAsyncGrants(lock);
+        }
+    }
+
+    /**
+     * Applies the deadlock prevention policy to a blocked request. Under wait-die the
+     * request fails if any of the owners blocking it is older, under wound-wait all younger
+     * owners blocking it are wounded.
+     * 
+     * @throws LockException
+     *             with code {@link LockException#CODE_DEADLOCK_VICTIM} if the request has to
+     *             give up
+     * @since 1.3
+     */
+    protected void preventDeadlock(GenericLock lock, Object ownerId, Object resourceId,
+            int targetLockLevel, int compatibility, boolean preferred) throws LockException {
+        Set blockers = lock.getBlockingOwners(ownerId, targetLockLevel, compatibility,
+                preferred);
+        if (blockers == null) {
+            return;
+        }
+        long timestamp = getTimestamp(ownerId);
+        for (Iterator it = blockers.iterator(); it.hasNext();) {
+            Object blocker = it.next();
+            // owners are stamped when granted a lock, so a blocker without a stamp has
+            // released all of its locks in the meantime and must not be stamped again
+            Long blockerTimestamp = (Long) ownerTimestamps.get(blocker);
+            if (blockerTimestamp == null) {
+                continue;
+            }
+            boolean older = blockerTimestamp.longValue() < timestamp;
+            if (older && deadlockPrevention == PREVENTION_WAIT_DIE) {
+                if (logger.isFineEnabled()) {
+                    logger.logFine(ownerId + " dies as it is blocked by older owner " + blocker
+                            + " on " + resourceId);
+                }
+                throw new LockException("Lock would cause deadlock",
+                        LockException.CODE_DEADLOCK_VICTIM, resourceId);
+            } else if (!older && deadlockPrevention == PREVENTION_WOUND_WAIT) {
+                wound(blocker);
+            }
+        }
+    }
+
+    /**
+     * Aborts an owner for wound-wait deadlock prevention. The owner is marked and, if it is
+     * blocked, woken up. At its next call to this manager it fails with
+     * {@link LockException#CODE_DEADLOCK_VICTIM}, releasing all of its locks itself, and it
+     * keeps failing until it calls {@link #releaseAll(Object)}. Its locks are never taken
+     * away by another thread while it may still be working on the resources, so an owner
+     * that does not call this manager again until it is done keeps them until it releases
+     * them, and the wounding owner waits until then.
+     * 
+     * @param ownerId
+     *            the owner to abort
+     * @since 1.3
+     */
+    protected void wound(Object ownerId) {
+        if (woundedOwners.put(ownerId, Boolean.TRUE) == null && logger.isFineEnabled()) {
+            logger.logFine("Wounding younger owner " + ownerId);
         }
+        wakeDeadlockVictim(ownerId);
     }
 
     /**
@@ -280,8 +1356,10 @@ public class GenericLockManager implements LockManager, LockManager2 {
      */
     public int getLevel(Object ownerId, Object resourceId) {
         timeoutCheck(ownerId);
-        GenericLock lock = (GenericLock) getLock(resourceId);
-        if (lock != null) {
+        GenericLock lock = lookupLock(resourceId);
+        if (isStripe(lock)) {
+            return getStripeHold(ownerId, resourceId);
+        } else if (lock != null) {
             return lock.getLockLevel(ownerId);
         } else {
             return 0;
@@ -296,10 +1374,22 @@ public class GenericLockManager implements LockManager, LockManager2 {
         timeoutCheck(ownerId);
         boolean released = false;
 
-        GenericLock lock = (GenericLock) getLock(resourceId);
-        if (lock != null) {
+        GenericLock lock = lookupLock(resourceId);
+        if (isStripe(lock)) {
+            StripeHolds holds = (StripeHolds) stripeHolds.get(ownerId);
+            if (holds == null || !holds.remove(resourceId, lock)) {
+                return false;
+            }
+            if (!holds.holds(lock)) {
+                lock.release(ownerId);
+                removeOwner(ownerId, lock);
+                completeAsyncGrants(lock);
+            }
+            released = true;
+        } else if (lock != null) {
             released = lock.release(ownerId);
             removeOwner(ownerId, lock);
+            completeAsyncGrants(lock);
         }
         return released;
     }
@@ -311,11 +1401,20 @@ public class GenericLockManager implements LockManager, LockManager2 {
     public void releaseAll(Object ownerId) {
         releaseAllNoTimeOutReset(ownerId);
         // reset time out status for this owner
-        timedOutOwners.remove(ownerId);
-        effectiveGlobalTimeouts.remove(ownerId);
+        synchronized (effectiveGlobalTimeouts.getStripeMonitor(ownerId)) {
+            timedOutOwners.remove(ownerId);
+            effectiveGlobalTimeouts.remove(ownerId);
+        }
+        woundedOwners.remove(ownerId);
+        ownerTimestamps.remove(ownerId);
     }
 
     protected void releaseAllNoTimeOutReset(Object ownerId) {
+        LockFuture pending = (LockFuture) asyncRequests.get(ownerId);
+        if (pending != null) {
+            abortAsync(pending, new LockException("Lock request aborted by releasing all locks",
+                    LockException.CODE_INTERRUPTED, pending.getResourceId()));
+        }
         Set locks = (Set) globalOwners.get(ownerId);
         if (locks != null) {
             Collection locksCopy;
@@ -329,8 +1428,10 @@ public class GenericLockManager implements LockManager, LockManager2 {
                 GenericLock lock = (GenericLock) it.next();
                 lock.release(ownerId);
                 locks.remove(lock);
+                completeAsyncGrants(lock);
             }
         }
+        stripeHolds.remove(ownerId);
         removeOwnerWithoutLocks(ownerId);
     }
     
@@ -348,10 +1449,16 @@ public class GenericLockManager implements LockManager, LockManager2 {
     }
 
     protected void addOwner(Object ownerId, GenericLock lock) {
-        synchronized (globalOwners) {
+        if (deadlockPrevention != PREVENTION_NONE) {
+            // blocked requests need to know how old we are
+            getTimestamp(ownerId);
+        }
+        synchronized (globalOwners.getStripeMonitor(ownerId)) {
             Set locks = (Set) globalOwners.get(ownerId);
             if (locks == null) {
-                locks = Collections.synchronizedSet(new HashSet());
+                globalOwners.sweep(ownerId, ownersWithoutLocks);
+                // adding and removing locks does not allocate
+                locks = new IdentitySet();
                 globalOwners.put(ownerId, locks);
             }
             locks.add(lock);
@@ -361,9 +1468,110 @@ public class GenericLockManager implements LockManager, LockManager2 {
     protected void removeOwner(Object ownerId, GenericLock lock) {
         Set locks = (Set) globalOwners.get(ownerId);
         if (locks != null) {
+            // the owner is likely to lock again, so its empty set is kept until it releases
+            // all locks or until it is swept
             locks.remove(lock);
         }
-        removeOwnerWithoutLocks(ownerId);
+    }
+
+    /**
+     * Checks if a waiting owner is deadlocked, i.e. if it is part of a cycle in the
+     * {@link WaitForGraph}. The owner must already be registered as a waiter.
+     * 
+     * @param ownerId
+     *            the owner to check for being deadlocked
+     * @return <code>true</code> if the owner is deadlocked,
+     *         <code>false</code> otherwise
+     * @since 1.3
+     */
+    protected boolean isDeadlocked(Object ownerId) {
+        long started = System.currentTimeMillis();
+        List cycle = waitForGraph.findCycle(ownerId);
+        statistics.deadlockCheck(System.currentTimeMillis() - started);
+        if (cycle != null && logger.isFineEnabled()) {
+            logger.logFine("Deadlock detected for " + ownerId + ", cycle of owners: " + cycle);
+        }
+        return cycle != null;
+    }
+
+    /**
+     * Checks if a waiting owner is deadlocked and, if so, resolves the deadlock. Without a
+     * {@link DeadlockVictimSelector} the owner itself is the victim. Otherwise the victim is
+     * chosen by the selector and, unless it is the owner itself, woken up at once. The owner
+     * must already be registered as a waiter.
+     * 
+     * @param ownerId
+     *            the owner to check for being deadlocked
+     * @return <code>true</code> if the owner itself has to give up its request,
+     *         <code>false</code> otherwise
+     * @since 1.3
+     */
+    protected boolean resolveDeadlock(Object ownerId) {
+        long started = System.currentTimeMillis();
+        List cycle = waitForGraph.findCycle(ownerId);
+        statistics.deadlockCheck(System.currentTimeMillis() - started);
+        deadlockChecked(cycle != null);
+        if (cycle == null) {
+            return false;
+        }
+        DeadlockVictimSelector selector = victimSelector;
+        Object victim = (selector == null ? ownerId : selector.selectVictim(
+                victimSelectorView, cycle));
+        if (logger.isFineEnabled()) {
+            logger.logFine("Deadlock detected for " + ownerId + ", cycle of owners: " + cycle
+                    + ", victim: " + victim);
+        }
+        if (victim.equals(ownerId)) {
+            return true;
+        }
+        wakeDeadlockVictim(victim);
+        return false;
+    }
+
+    /**
+     * Records a request granted after waiting, which the check threshhold adapts to.
+     * 
+     * @param waitMSecs
+     *            time the request waited
+     * @since 1.3
+     */
+    protected void waitedGrant(long waitMSecs) {
+        statistics.waitedGrant(waitMSecs);
+        if (adaptiveCheckThreshhold) {
+            synchronized (adaption) {
+                meanWait += (waitMSecs - meanWait) / ADAPTION_WEIGHT;
+            }
+        }
+    }
+
+    /**
+     * Lets the check threshhold adapt to the outcome of a deadlock check.
+     * 
+     * @param deadlock
+     *            <code>true</code> if a deadlock has been found
+     * @since 1.3
+     */
+    protected void deadlockChecked(boolean deadlock) {
+        if (adaptiveCheckThreshhold) {
+            synchronized (adaption) {
+                if (deadlock) {
+                    adaptedCheckThreshhold /= 2;
+                } else {
+                    adaptedCheckThreshhold += (2 * meanWait - adaptedCheckThreshhold)
+                            / ADAPTION_WEIGHT;
+                }
+                updateCheckThreshhold();
+            }
+        }
+    }
+
+    private void updateCheckThreshhold() {
+        if (adaptiveCheckThreshhold) {
+            adaptedCheckThreshhold = Math.max(minCheckThreshhold, Math.min(maxCheckThreshhold,
+                    adaptedCheckThreshhold));
+            checkThreshhold = Math.round(adaptedCheckThreshhold);
+            statistics.checkThreshhold(checkThreshhold);
+        }
     }
 
     /**
@@ -386,6 +1594,7 @@ public class GenericLockManager implements LockManager, LockManager2 {
      *            initially should be called with an empty set
      * @return <code>true</code> if the owner is deadlocked,
      *         <code>false</code> otherwise
+     * @deprecated no longer used for deadlock detection, see {@link #isDeadlocked(Object)}
      */
     protected boolean wouldDeadlock(Object ownerId, Set path) {
         path.add(ownerId);
@@ -418,20 +1627,57 @@ public class GenericLockManager implements LockManager, LockManager2 {
         return false;
     }
 
+    /**
+     * Releases the locks of all owners whose global time out has expired and makes all
+     * asynchronous requests fail that have timed out. This usually is done by the
+     * {@link TimeoutReaper}, but is also called by blocked requests in case the reaper is
+     * late. It only looks at expired time outs, so it is cheap when there are none.
+     * 
+     * @return <code>true</code> if any owner has been timed out
+     */
     protected boolean releaseTimedOutOwners() {
         boolean released = false;
-        synchronized (effectiveGlobalTimeouts) {
-            for (Iterator it = effectiveGlobalTimeouts.entrySet().iterator(); it.hasNext();) {
-                Map.Entry entry = (Map.Entry) it.next();
-                Object ownerId = entry.getKey();
-                long timeout = ((Long) entry.getValue()).longValue();
-                long now = System.currentTimeMillis();
-                if (timeout < now) {
-                    releaseAllNoTimeOutReset(ownerId);
-                    timedOutOwners.add(ownerId);
-                    released = true;
+        long now = System.currentTimeMillis();
+        while (true) {
+            long deadline;
+            Object item;
+            synchronized (globalTimeoutQueue) {
+                if (globalTimeoutQueue.isEmpty() || globalTimeoutQueue.peekDeadline() >= now) {
+                    break;
+                }
+                deadline = globalTimeoutQueue.peekDeadline();
+                item = globalTimeoutQueue.poll();
+            }
+            if (item instanceof LockFuture) {
+                LockFuture future = (LockFuture) item;
+                // has no effect if the request already has been completed
+                abortAsync(future, new LockException("Lock wait timed out",
+                        LockException.CODE_TIMED_OUT, future.getResourceId()));
+                continue;
+            }
+            Object ownerId = item;
+            // skip outdated entries of owners that have been reset or restarted; marking
+            // the owner before releasing its locks makes sure it notices the time out before
+            // anyone else can get them
+            boolean expired = false;
+            synchronized (effectiveGlobalTimeouts.getStripeMonitor(ownerId)) {
+                Long timeout = (Long) effectiveGlobalTimeouts.get(ownerId);
+                if (timeout != null && timeout.longValue() == deadline) {
+                    timedOutOwners.put(ownerId, Boolean.TRUE);
+                    expired = true;
                 }
             }
+            if (expired) {
+                LockFuture pending = (LockFuture) asyncRequests.get(ownerId);
+                if (pending != null) {
+                    abortAsync(pending, new LockException("All locks of owner " + ownerId
+                            + " have globally timed out.", LockException.CODE_TIMED_OUT,
+                            pending.getResourceId()));
+                }
+                releaseAllNoTimeOutReset(ownerId);
+                statistics.ownerTimedOut();
+                released = true;
+            }
         }
         return released;
     }
@@ -441,7 +1687,8 @@ public class GenericLockManager implements LockManager, LockManager2 {
         long now = System.currentTimeMillis();
         if (timeout != null && timeout.longValue() < now) {
             releaseAll(ownerId);
-            timedOutOwners.add(ownerId);
+            timedOutOwners.put(ownerId, Boolean.TRUE);
+            statistics.ownerTimedOut();
             return true;
         } else {
             return false;
@@ -450,77 +1697,292 @@ public class GenericLockManager implements LockManager, LockManager2 {
     
     protected long getNextGlobalConflictTimeout(Set conflicts) {
         long minTimeout = -1;
-        long now = System.currentTimeMillis();
         if (conflicts != null) {
-            synchronized (effectiveGlobalTimeouts) {
-                for (Iterator it = effectiveGlobalTimeouts.entrySet().iterator(); it.hasNext();) {
-                    Map.Entry entry = (Map.Entry) it.next();
-                    Object ownerId = entry.getKey();
-                    if (conflicts.contains(ownerId)) {
-                        long timeout = ((Long) entry.getValue()).longValue();
-                        if (minTimeout == -1 || timeout < minTimeout) {
-                            minTimeout = timeout;
-                        }
-                    }
+            // there usually are much less conflicting owners than owners with a timeout
+            for (Iterator it = conflicts.iterator(); it.hasNext();) {
+                Long timeout = (Long) effectiveGlobalTimeouts.get(it.next());
+                if (timeout != null && (minTimeout == -1 || timeout.longValue() < minTimeout)) {
+                    minTimeout = timeout.longValue();
                 }
             }
         }
         return minTimeout;
     }
     
+    /**
+     * Gets the lock of a resource. The lock will not be discarded as long as this manager
+     * exists, as it may be acquired directly.
+     * 
+     * @see LockManager#getLock(Object)
+     */
     public MultiLevelLock getLock(Object resourceId) {
-        synchronized (globalLocks) {
-            return (MultiLevelLock) globalLocks.get(resourceId);
+        GenericLock stripe = getStripe(resourceId);
+        if (stripe != null) {
+            return stripe;
+        }
+        synchronized (globalLocks.getStripeMonitor(resourceId)) {
+            GenericLock lock = lookupLock(resourceId);
+            if (lock != null) {
+                lock.handedOut = true;
+            }
+            return lock;
         }
     }
 
+    /**
+     * Gets or creates the lock of a resource. The lock will not be discarded as long as
+     * this manager exists, as it may be acquired directly.
+     * 
+     * @see LockManager#atomicGetOrCreateLock(Object)
+     */
     public MultiLevelLock atomicGetOrCreateLock(Object resourceId) {
-        synchronized (globalLocks) {
-            MultiLevelLock lock = getLock(resourceId);
-            if (lock == null) {
-                lock = createLock(resourceId);
-            }
+        GenericLock stripe = getStripe(resourceId);
+        if (stripe != null) {
+            return stripe;
+        }
+        synchronized (globalLocks.getStripeMonitor(resourceId)) {
+            GenericLock lock = getOrCreateLock(resourceId);
+            lock.handedOut = true;
             return lock;
         }
     }
 
+    /**
+     * Gets the lock of a resource for a request to this manager. Other than
+     * {@link #getLock(Object)} this does not keep the lock from being discarded once it is
+     * idle.
+     * 
+     * @param resourceId
+     *            the resource
+     * @return the lock or stripe of the resource or <code>null</code> if there is none
+     * @since 1.3
+     */
+    protected GenericLock lookupLock(Object resourceId) {
+        GenericLock stripe = getStripe(resourceId);
+        if (stripe != null) {
+            return stripe;
+        }
+        return (GenericLock) globalLocks.get(resourceId);
+    }
+
+    /**
+     * Gets or creates the lock of a resource that has no lock stripe. The caller must hold
+     * the monitor of the resource's stripe in {@link #globalLocks}, so only requests for
+     * resources in the same stripe have to wait for it.
+     * 
+     * @param resourceId
+     *            the resource
+     * @return the lock of the resource
+     * @since 1.3
+     */
+    protected GenericLock getOrCreateLock(Object resourceId) {
+        GenericLock lock = (GenericLock) globalLocks.get(resourceId);
+        if (lock == null) {
+            if (reclaimIdleLocks) {
+                globalLocks.sweep(resourceId, idleLocks);
+            }
+            lock = createLock(resourceId);
+            WaiterScheduler scheduler = waiterScheduler;
+            if (scheduler != null) {
+                lock.setWaiterScheduler(scheduler);
+            }
+        }
+        return lock;
+    }
+
     public void removeLock(MultiLevelLock lock) {
-        synchronized (globalLocks) {
-            globalLocks.remove(lock);
+        if (lock instanceof GenericLock) {
+            Object resourceId = ((GenericLock) lock).getResourceId();
+            synchronized (globalLocks.getStripeMonitor(resourceId)) {
+                if (globalLocks.get(resourceId) == lock) {
+                    globalLocks.remove(resourceId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets or creates the lock for a resource and pins it, so it will not be reclaimed
+     * while this manager works on it. Every call must be followed by
+     * {@link #unpinLock(GenericLock)}.
+     * 
+     * @param resourceId the resource to get the lock for
+     * @return the pinned lock
+     */
+    protected GenericLock pinLock(Object resourceId) {
+        GenericLock stripe = getStripe(resourceId);
+        if (stripe != null) {
+            // stripes are never reclaimed
+            return stripe;
+        }
+        synchronized (globalLocks.getStripeMonitor(resourceId)) {
+            GenericLock lock = getOrCreateLock(resourceId);
+            lock.pins++;
+            return lock;
+        }
+    }
+
+    protected void unpinLock(GenericLock lock) {
+        if (isStripe(lock)) {
+            return;
+        }
+        synchronized (globalLocks.getStripeMonitor(lock.getResourceId())) {
+            lock.pins--;
+        }
+    }
+
+    /**
+     * Discards all locks that are neither owned, waited for, pinned nor handed out, unless
+     * idle locks are not to be reclaimed. This is done for a single stripe of {@link #globalLocks}
+     * whenever it has grown enough while creating locks, see
+     * {@link StripedMap#sweep(Object, StripedMap.Sweeper)}, so locks are not discarded and
+     * created again when resources are locked and released over and over. Calling this
+     * takes time proportional to the number of locks.
+     * 
+     * @since 1.3
+     */
+    public void reclaimIdleLocks() {
+        if (reclaimIdleLocks) {
+            globalLocks.sweepAll(idleLocks);
         }
     }
     
     /**
-     * Gets all locks as orignials, <em>no copies</em>.
+     * Gets all locks as orignials, <em>no copies</em>. The collection itself, however, is a
+     * snapshot and will not reflect locks created or removed later.
      * 
      * @return collection holding all locks.
      */
     public Collection getLocks() {
-        synchronized (globalLocks) {
-           return globalLocks.values();
+        Collection locks = globalLocks.values();
+        GenericLock[] stripes = lockStripes;
+        if (stripes != null) {
+            locks.addAll(Arrays.asList(stripes));
         }
+        return locks;
     }
 
-    public synchronized String toString() {
+    public String toString() {
         StringBuffer buf = new StringBuffer(1000);
-        for (Iterator it = globalLocks.values().iterator(); it.hasNext();) {
+        for (Iterator it = getLocks().iterator(); it.hasNext();) {
             GenericLock lock = (GenericLock) it.next();
             buf.append(lock.toString()).append('\n');
         }
         return buf.toString();
     }
 
+    /**
+     * Creates a new lock and registers it for the resource. This is called by
+     * {@link #getOrCreateLock(Object)} while holding the monitor of the resource's stripe in
+     * {@link #globalLocks}.
+     * 
+     * @param resourceId the resource to create the lock for
+     * @return the new lock
+     */
     protected GenericLock createLock(Object resourceId) {
-        synchronized (globalLocks) {
-            GenericLock lock = new GenericLock(resourceId, maxLockLevel, logger);
-            globalLocks.put(resourceId, lock);
-            return lock;
-        }
+        GenericLock lock = new GenericLock(resourceId, maxLockLevel, logger);
+        globalLocks.put(resourceId, lock);
+        return lock;
     }
     
+    /**
+     * Gets the lock stripe a resource is mapped onto.
+     * 
+     * @param resourceId
+     *            the resource
+     * @return the stripe or <code>null</code> if the resource has a lock of its own
+     * @since 1.3
+     */
+    protected GenericLock getStripe(Object resourceId) {
+        GenericLock[] stripes = lockStripes;
+        if (stripes == null || unstripedResources.contains(resourceId)) {
+            return null;
+        }
+        int h = resourceId.hashCode();
+        // spread higher bits as the stripe is selected by the lower ones only
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    protected boolean isStripe(GenericLock lock) {
+        return lock != null && lock.getResourceId() instanceof StripeId;
+    }
+
+    /**
+     * Makes requests on lock stripes reentrant, as an owner must not conflict with itself on
+     * two resources sharing a stripe.
+     * 
+     * @since 1.3
+     */
+    protected int getCompatibility(GenericLock lock, int compatibility) {
+        if (!isStripe(lock)) {
+            return compatibility;
+        }
+        if (compatibility == GenericLock.COMPATIBILITY_NONE) {
+            return GenericLock.COMPATIBILITY_REENTRANT;
+        }
+        if (compatibility == GenericLock.COMPATIBILITY_SUPPORT) {
+            return GenericLock.COMPATIBILITY_REENTRANT_AND_SUPPORT;
+        }
+        return compatibility;
+    }
+
+    /**
+     * Combines the level an owner holds on a resource with another one granted to it on the
+     * same resource. Used to remember the levels of resources on lock stripes, which are
+     * acquired reentrantly.
+     * 
+     * @param heldLevel
+     *            the level held so far
+     * @param grantedLevel
+     *            the level granted in addition
+     * @return the level held now, this implementation returns the higher one
+     * @since 1.3
+     */
+    protected int combineLevels(int heldLevel, int grantedLevel) {
+        return Math.max(heldLevel, grantedLevel);
+    }
+
+    /**
+     * Remembers a level granted to an owner on a resource, if the resource is mapped onto a
+     * lock stripe.
+     * 
+     * @since 1.3
+     */
+    protected void addStripeHold(Object ownerId, Object resourceId, GenericLock lock,
+            int lockLevel) {
+        if (!isStripe(lock)) {
+            return;
+        }
+        StripeHolds holds = (StripeHolds) stripeHolds.get(ownerId);
+        if (holds == null) {
+            holds = new StripeHolds();
+            StripeHolds existing = (StripeHolds) stripeHolds.putIfAbsent(ownerId, holds);
+            if (existing != null) {
+                holds = existing;
+            }
+        }
+        holds.add(resourceId, lock, lockLevel);
+    }
+
+    protected void addStripeHolds(Object ownerId, Object[] resourceIds, int lockLevel) {
+        if (lockStripes == null) {
+            return;
+        }
+        for (int i = 0; i < resourceIds.length; i++) {
+            addStripeHold(ownerId, resourceIds[i], getStripe(resourceIds[i]), lockLevel);
+        }
+    }
+
+    protected int getStripeHold(Object ownerId, Object resourceId) {
+        StripeHolds holds = (StripeHolds) stripeHolds.get(ownerId);
+        return holds == null ? 0 : holds.getLevel(resourceId);
+    }
+
     protected void timeoutCheck(Object ownerId) throws LockException {
         timeOut(ownerId);
-        if (timedOutOwners.contains(ownerId)) {
+        if (timedOutOwners.containsKey(ownerId)) {
             throw new LockException(
                     "All locks of owner "
                             + ownerId
@@ -528,10 +1990,178 @@ public class GenericLockManager implements LockManager, LockManager2 {
                             + " You will not be able to to continue with this owner until you call releaseAll.",
                     LockException.CODE_TIMED_OUT, null);
         }
+        if (woundedOwners.containsKey(ownerId)) {
+            // the owner is the one to give up its locks, see wound
+            releaseAllNoTimeOutReset(ownerId);
+            throw new LockException(
+                    "Owner "
+                            + ownerId
+                            + " has been aborted by an older owner to prevent a deadlock."
+                            + " You will not be able to to continue with this owner until you call releaseAll.",
+                    LockException.CODE_DEADLOCK_VICTIM, null);
+        }
+    }
+
+    /**
+     * Source of unique time stamps. Managers sharing their {@link #ownerTimestamps} have to
+     * share their source as well, otherwise owners stamped by different managers within the
+     * same millisecond could get the same stamp and neither of them would be older.
+     */
+    protected static class TimestampSource {
+
+        protected long last = 0;
+
+        /**
+         * @return the current time in milliseconds, or the last time stamp plus one if that
+         *         is not less
+         */
+        public synchronized long next() {
+            last = Math.max(System.currentTimeMillis(), last + 1);
+            return last;
+        }
+    }
+
+    /**
+     * Resource id of a lock stripe, which never equals the id of a resource.
+     */
+    protected static class StripeId {
+
+        protected final int index;
+
+        public StripeId(int index) {
+            this.index = index;
+        }
+
+        public String toString() {
+            return "stripe " + index;
+        }
+    }
+
+    /**
+     * Resources an owner holds on lock stripes. Guarded by itself.
+     */
+    protected class StripeHolds {
+
+        /** Maps resourceId to the level held as Integer. */
+        protected final Map levels = new HashMap();
+
+        /** Maps a stripe to the number of resources held on it as int[1]. */
+        protected final Map counts = new HashMap();
+
+        public synchronized void add(Object resourceId, GenericLock stripe, int lockLevel) {
+            Integer held = (Integer) levels.get(resourceId);
+            if (held == null) {
+                int[] count = (int[]) counts.get(stripe);
+                if (count == null) {
+                    counts.put(stripe, new int[] { 1 });
+                } else {
+                    count[0]++;
+                }
+                levels.put(resourceId, new Integer(lockLevel));
+            } else {
+                levels.put(resourceId, new Integer(combineLevels(held.intValue(), lockLevel)));
+            }
+        }
+
+        public synchronized int getLevel(Object resourceId) {
+            Integer held = (Integer) levels.get(resourceId);
+            return held == null ? 0 : held.intValue();
+        }
+
+        public synchronized boolean remove(Object resourceId, GenericLock stripe) {
+            if (levels.remove(resourceId) == null) {
+                return false;
+            }
+            int[] count = (int[]) counts.get(stripe);
+            if (--count[0] == 0) {
+                counts.remove(stripe);
+            }
+            return true;
+        }
+
+        public synchronized boolean holds(GenericLock stripe) {
+            return counts.containsKey(stripe);
+        }
+    }
+
+    /**
+     * Daemon thread periodically running {@link GenericLockManager#detectDeadlocks()}.
+     */
+    protected class DeadlockDetector extends Thread {
+
+        protected final long intervalMSecs;
+        protected volatile boolean stopped = false;
+
+        public DeadlockDetector(long intervalMSecs) {
+            super("Deadlock detector");
+            this.intervalMSecs = intervalMSecs;
+            setDaemon(true);
+        }
+
+        public void shutdown() {
+            stopped = true;
+            interrupt();
+        }
+
+        public void run() {
+            while (!stopped) {
+                try {
+                    Thread.sleep(intervalMSecs);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                try {
+                    detectDeadlocks();
+                } catch (RuntimeException e) {
+                    logger.logWarning("Background deadlock detection failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Daemon thread releasing locks of owners as soon as their global time out expires. It
+     * terminates when there are no more pending time outs and is restarted by
+     * {@link GenericLockManager#startGlobalTimeout(Object, long)}.
+     */
+    protected class TimeoutReaper extends Thread {
+
+        public TimeoutReaper() {
+            super("Global timeout reaper");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (globalTimeoutQueue) {
+                        if (globalTimeoutQueue.isEmpty()) {
+                            timeoutReaper = null;
+                            return;
+                        }
+                        long wait = globalTimeoutQueue.peekDeadline() - System.currentTimeMillis();
+                        if (wait >= 0) {
+                            // a deadline has expired when it is less than the current time
+                            globalTimeoutQueue.wait(wait + 1);
+                            continue;
+                        }
+                    }
+                    try {
+                        releaseTimedOutOwners();
+                    } catch (RuntimeException e) {
+                        logger.logWarning("Releasing timed out owners failed", e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                synchronized (globalTimeoutQueue) {
+                    timeoutReaper = null;
+                }
+            }
+        }
     }
 
     protected void removeOwnerWithoutLocks(Object ownerId) {
-        synchronized (globalOwners) {
+        synchronized (globalOwners.getStripeMonitor(ownerId)) {
             Set locks = (Set) globalOwners.get(ownerId);
             if (locks == null || locks.isEmpty()) {
                 globalOwners.remove(ownerId);
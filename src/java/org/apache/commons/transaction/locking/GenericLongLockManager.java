@@ -0,0 +1,857 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.util.Arrays;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.LongIntMap;
+import org.apache.commons.transaction.util.LongObjectMap;
+
+/**
+ * Manager for locks on resources identified by <code>long</code> ids. Lock levels and
+ * compatibilities are those of {@link GenericLock}: two levels are compatible if they do not
+ * add up to more than the maximum lock level (see {@link #isCompatible(int, int)}), so a
+ * manager with a maximum level of {@link ReadWriteLock#WRITE_LOCK} behaves like a
+ * {@link ReadWriteLockManager} (see {@link ReadWriteLongLockManager}) and one with
+ * {@link ReadWriteUpgradeLock#WRITE_LOCK} like a {@link ReadWriteUpgradeLockManager}.
+ * <br>
+ * <br>
+ * There are no lock objects. Resources are hashed into a fixed number of stripes, each
+ * guarded by its own monitor and keeping the locks on its resources in an open addressing
+ * table of primitive values: the number of owners per level and the owner itself as long as
+ * there is only one. Owners are hashed into stripes of their own that map them to the levels
+ * they hold on their resources. Neither ids nor levels are ever boxed, and a lock request
+ * only allocates if its owner did not hold any lock before, if it is the second owner of a
+ * resource or if a table has to grow. A request that has to wait does so on a monitor shared
+ * only with the other requests for the same resource, so a release does not wake up the
+ * requests waiting for other resources of its stripe.
+ * <br>
+ * <br>
+ * A request still blocked after the check threshhold looks for a cycle of waiting owners it is
+ * part of and fails as the victim if it finds one. It checks again each time the threshhold
+ * has passed once more. There are no global timeouts and no preferred or asynchronous
+ * requests.
+ *
+ * @version $Id$
+ * @see GenericLockManager
+ * @since 1.3
+ */
+public class GenericLongLockManager implements LongLockManager {
+
+    public static final long DEFAULT_TIMEOUT = GenericLockManager.DEFAULT_TIMEOUT;
+    public static final long DEFAULT_CHECK_THRESHHOLD = GenericLockManager.DEFAULT_CHECK_THRESHHOLD;
+    public static final int DEFAULT_STRIPES = 64;
+
+    protected static final long[] NO_OWNERS = new long[0];
+
+    protected final int maxLockLevel;
+    protected final LoggerFacade logger;
+    protected final long globalTimeoutMSecs;
+    protected final long checkThreshhold;
+
+    protected final ResourceStripe[] resourceStripes;
+    protected final OwnerStripe[] ownerStripes;
+    protected final int stripeShift;
+
+    protected LockStatistics statistics = new LockStatistics();
+
+    /**
+     * Creates a new lock manager.
+     *
+     * @param maxLockLevel
+     *            highest allowed lock level as described in {@link GenericLock}
+     *            's class intro
+     * @param logger
+     *            generic logger used for all kind of debug logging
+     * @param timeoutMSecs
+     *            specifies the maximum time to wait for a lock in milliseconds
+     * @param checkThreshholdMSecs
+     *            specifies how long a request waits before it checks for a
+     *            deadlock or <code>-1</code> to check directly
+     * @param stripeCount
+     *            the number of independently guarded stripes for resources and
+     *            for owners, will be rounded up to the next power of two
+     * @throws IllegalArgumentException
+     *             if maxLockLevel or stripeCount is less than 1
+     */
+    public GenericLongLockManager(int maxLockLevel, LoggerFacade logger, long timeoutMSecs,
+            long checkThreshholdMSecs, int stripeCount) throws IllegalArgumentException {
+        if (maxLockLevel < 1)
+            throw new IllegalArgumentException("The maximum lock level must be at least 1 ("
+                    + maxLockLevel + " was specified)");
+        if (stripeCount < 1)
+            throw new IllegalArgumentException("There must be at least one stripe ("
+                    + stripeCount + " was specified)");
+        this.maxLockLevel = maxLockLevel;
+        this.logger = logger.createLogger("Locking");
+        this.globalTimeoutMSecs = timeoutMSecs;
+        this.checkThreshhold = checkThreshholdMSecs;
+        statistics.checkThreshhold(checkThreshholdMSecs);
+
+        int bits = 0;
+        while ((1 << bits) < stripeCount) {
+            bits++;
+        }
+        resourceStripes = new ResourceStripe[1 << bits];
+        ownerStripes = new OwnerStripe[1 << bits];
+        for (int i = 0; i < resourceStripes.length; i++) {
+            resourceStripes[i] = new ResourceStripe(maxLockLevel);
+            ownerStripes[i] = new OwnerStripe();
+        }
+        stripeShift = 32 - bits;
+    }
+
+    public GenericLongLockManager(int maxLockLevel, LoggerFacade logger, long timeoutMSecs,
+            long checkThreshholdMSecs) throws IllegalArgumentException {
+        this(maxLockLevel, logger, timeoutMSecs, checkThreshholdMSecs, DEFAULT_STRIPES);
+    }
+
+    public GenericLongLockManager(int maxLockLevel, LoggerFacade logger, long timeoutMSecs)
+            throws IllegalArgumentException {
+        this(maxLockLevel, logger, timeoutMSecs, DEFAULT_CHECK_THRESHHOLD);
+    }
+
+    public GenericLongLockManager(int maxLockLevel, LoggerFacade logger)
+            throws IllegalArgumentException {
+        this(maxLockLevel, logger, DEFAULT_TIMEOUT);
+    }
+
+    public boolean hasLock(long ownerId, long resourceId, int lockLevel) {
+        return lockLevel <= getLevel(ownerId, resourceId);
+    }
+
+    public boolean checkLock(long ownerId, long resourceId, int targetLockLevel, boolean reentrant) {
+        ResourceStripe stripe = getResourceStripe(resourceId);
+        synchronized (stripe) {
+            return tryLock(stripe, ownerId, resourceId, targetLockLevel,
+                    reentrant ? GenericLock.COMPATIBILITY_REENTRANT
+                            : GenericLock.COMPATIBILITY_NONE, true);
+        }
+    }
+
+    public boolean tryLock(long ownerId, long resourceId, int targetLockLevel, boolean reentrant) {
+        ResourceStripe stripe = getResourceStripe(resourceId);
+        boolean acquired;
+        synchronized (stripe) {
+            acquired = tryLock(stripe, ownerId, resourceId, targetLockLevel,
+                    reentrant ? GenericLock.COMPATIBILITY_REENTRANT
+                            : GenericLock.COMPATIBILITY_NONE, false);
+        }
+        if (acquired) {
+            statistics.immediateGrant();
+        }
+        return acquired;
+    }
+
+    public void lock(long ownerId, long resourceId, int targetLockLevel, boolean reentrant)
+            throws LockException {
+        lock(ownerId, resourceId, targetLockLevel, reentrant, globalTimeoutMSecs);
+    }
+
+    public void lock(long ownerId, long resourceId, int targetLockLevel, boolean reentrant,
+            long timeoutMSecs) throws LockException {
+        lock(ownerId, resourceId, targetLockLevel, reentrant ? GenericLock.COMPATIBILITY_REENTRANT
+                : GenericLock.COMPATIBILITY_NONE, timeoutMSecs);
+    }
+
+    public void lock(long ownerId, long resourceId, int targetLockLevel, int compatibility,
+            long timeoutMSecs) throws LockException {
+        doLock(ownerId, resourceId, targetLockLevel, compatibility, timeoutMSecs);
+    }
+
+    public int getLevel(long ownerId, long resourceId) {
+        OwnerStripe stripe = getOwnerStripe(ownerId);
+        synchronized (stripe) {
+            LongIntMap locks = (LongIntMap) stripe.locks.get(ownerId);
+            return locks == null ? 0 : locks.get(resourceId, 0);
+        }
+    }
+
+    public boolean release(long ownerId, long resourceId) {
+        ResourceStripe stripe = getResourceStripe(resourceId);
+        synchronized (stripe) {
+            if (stripe.remove(resourceId, ownerId) == 0) {
+                return false;
+            }
+            removeOwnerLock(ownerId, resourceId);
+            stripe.signalWaiters(resourceId);
+            return true;
+        }
+    }
+
+    public void releaseAll(long ownerId) {
+        long[] resourceIds = getAll(ownerId);
+        for (int i = 0; i < resourceIds.length; i++) {
+            release(ownerId, resourceIds[i]);
+        }
+    }
+
+    public long[] getAll(long ownerId) {
+        OwnerStripe stripe = getOwnerStripe(ownerId);
+        synchronized (stripe) {
+            LongIntMap locks = (LongIntMap) stripe.locks.get(ownerId);
+            return locks == null ? NO_OWNERS : locks.keys();
+        }
+    }
+
+    /**
+     * Gets the number of resources currently locked.
+     */
+    public int getLockCount() {
+        int count = 0;
+        for (int i = 0; i < resourceStripes.length; i++) {
+            synchronized (resourceStripes[i]) {
+                count += resourceStripes[i].size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Takes a snapshot of the statistics collected since this manager has been created or
+     * they have been reset.
+     *
+     * @return the current statistics including the ten most contended resources
+     */
+    public LockStatistics.Snapshot getStatistics() {
+        return getStatistics(10);
+    }
+
+    /**
+     * Takes a snapshot of the statistics collected since this manager has been created or
+     * they have been reset. Contended resources are reported by their ids as
+     * <code>Long</code>s.
+     *
+     * @param mostContended
+     *            maximum number of most contended resources to include
+     * @return the current statistics
+     */
+    public LockStatistics.Snapshot getStatistics(int mostContended) {
+        return statistics.snapshot(getLockCount(), mostContended);
+    }
+
+    /**
+     * Resets all statistics to zero.
+     */
+    public void resetStatistics() {
+        statistics.reset();
+    }
+
+    /**
+     * Checks if a lock level can coexist with a level held by another owner, just like
+     * {@link GenericLock#isCompatible(int, int)} does.
+     */
+    protected boolean isCompatible(int targetLockLevel, int currentLockLevel) {
+        return (targetLockLevel <= maxLockLevel - currentLockLevel);
+    }
+
+    /**
+     * Grants or checks a request the way {@link GenericLock#tryLock(Object, int, int, boolean)}
+     * does, but without preferred requests. Must be called while holding the monitor of the
+     * resource's stripe.
+     */
+    protected boolean tryLock(ResourceStripe stripe, long ownerId, long resourceId,
+            int targetLockLevel, int compatibility, boolean tryOnly) {
+        if (targetLockLevel < 1) {
+            // there is nothing that could conflict with this
+            return true;
+        }
+        boolean reentrant = (compatibility == GenericLock.COMPATIBILITY_REENTRANT
+                || compatibility == GenericLock.COMPATIBILITY_REENTRANT_AND_SUPPORT);
+        boolean support = (compatibility == GenericLock.COMPATIBILITY_SUPPORT
+                || compatibility == GenericLock.COMPATIBILITY_REENTRANT_AND_SUPPORT);
+
+        int slot = stripe.indexOf(resourceId);
+        int myLevel = stripe.getLevel(slot, ownerId);
+        if (reentrant && myLevel != 0 && targetLockLevel <= myLevel) {
+            // we already have it
+            return true;
+        }
+        if (slot != -1
+                && !isCompatibleWithOwners(stripe, slot, targetLockLevel, reentrant ? myLevel
+                        : 0, support ? targetLockLevel : -1)) {
+            return false;
+        }
+        if (!tryOnly) {
+            int previous = stripe.setLevel(resourceId, ownerId, targetLockLevel);
+            addOwnerLock(ownerId, resourceId, targetLockLevel);
+            if (previous > targetLockLevel) {
+                // a lock given up partially may let in others
+                stripe.signalWaiters(resourceId);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a lock level can coexist with the levels held on a resource from the highest
+     * level downwards, like {@link GenericLock#isCompatibleWithOwners}.
+     *
+     * @param reentrantLevel
+     *            level held by the requesting owner that shall not count or <code>0</code>
+     * @param supportLockLevel
+     *            level that shall not count or <code>-1</code>
+     */
+    protected boolean isCompatibleWithOwners(ResourceStripe stripe, int slot,
+            int targetLockLevel, int reentrantLevel, int supportLockLevel) {
+        for (int level = maxLockLevel; level > 0; level--) {
+            if (level == supportLockLevel) {
+                continue;
+            }
+            int count = stripe.getCount(slot, level);
+            if (reentrantLevel != 0 && stripe.countedLevel(reentrantLevel) == level) {
+                count--;
+            }
+            if (count > 0 && !isCompatible(targetLockLevel, level)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the owners a request is blocked by. Must be called while holding the monitor of
+     * the resource's stripe.
+     */
+    protected long[] getConflictingOwners(ResourceStripe stripe, int slot, long ownerId,
+            int targetLockLevel, int compatibility) {
+        if (slot == -1 || targetLockLevel < 1) {
+            return NO_OWNERS;
+        }
+        boolean reentrant = (compatibility == GenericLock.COMPATIBILITY_REENTRANT
+                || compatibility == GenericLock.COMPATIBILITY_REENTRANT_AND_SUPPORT);
+        boolean support = (compatibility == GenericLock.COMPATIBILITY_SUPPORT
+                || compatibility == GenericLock.COMPATIBILITY_REENTRANT_AND_SUPPORT);
+        if (reentrant) {
+            int myLevel = stripe.getLevel(slot, ownerId);
+            if (myLevel != 0 && targetLockLevel <= myLevel) {
+                // shortcut as we already have the lock
+                return NO_OWNERS;
+            }
+        }
+
+        LongIntMap shared = stripe.sharedOwners[slot];
+        if (shared == null) {
+            if (conflicts(stripe, ownerId, targetLockLevel, reentrant, support,
+                    stripe.owners[slot], stripe.ownerLevels[slot])) {
+                return new long[] { stripe.owners[slot] };
+            }
+            return NO_OWNERS;
+        }
+        long[] conflicting = new long[shared.size()];
+        int count = 0;
+        for (int i = 0; i < shared.capacity(); i++) {
+            if (shared.isUsed(i)
+                    && conflicts(stripe, ownerId, targetLockLevel, reentrant, support, shared
+                            .keyAt(i), shared.valueAt(i))) {
+                conflicting[count++] = shared.keyAt(i);
+            }
+        }
+        if (count < conflicting.length) {
+            long[] trimmed = new long[count];
+            System.arraycopy(conflicting, 0, trimmed, 0, count);
+            conflicting = trimmed;
+        }
+        return conflicting;
+    }
+
+    private boolean conflicts(ResourceStripe stripe, long ownerId, int targetLockLevel,
+            boolean reentrant, boolean support, long otherId, int otherLevel) {
+        if (reentrant && otherId == ownerId) {
+            return false;
+        }
+        int level = stripe.countedLevel(otherLevel);
+        if (support && level == targetLockLevel) {
+            return false;
+        }
+        return !isCompatible(targetLockLevel, level);
+    }
+
+    /**
+     * Acquires a lock, blocking if necessary. A request that can be granted right away only
+     * enters the monitors of the resource's and the owner's stripe.
+     */
+    protected void doLock(long ownerId, long resourceId, int targetLockLevel, int compatibility,
+            long timeoutMSecs) throws LockException {
+        ResourceStripe stripe = getResourceStripe(resourceId);
+        synchronized (stripe) {
+            if (tryLock(stripe, ownerId, resourceId, targetLockLevel, compatibility, false)) {
+                statistics.immediateGrant();
+                return;
+            }
+        }
+
+        // from here on we are contended, so the resource id may be boxed
+        Long resource = new Long(resourceId);
+        long now = System.currentTimeMillis();
+        long started = now;
+        long waitEnd = now + timeoutMSecs;
+        long nextCheck = (checkThreshhold == -1 ? now : now + checkThreshhold);
+
+        statistics.contended(resource);
+        setWaiter(ownerId, new Waiter(resourceId, targetLockLevel, compatibility));
+        ResourceWaiters waiters;
+        synchronized (stripe) {
+            waiters = stripe.addWaiter(resourceId);
+        }
+        try {
+            while (true) {
+                if (now >= nextCheck && now < waitEnd) {
+                    if (isDeadlocked(ownerId)) {
+                        throw new LockException("Lock would cause deadlock",
+                                LockException.CODE_DEADLOCK_VICTIM, resource);
+                    }
+                    nextCheck = now + (checkThreshhold > 0 ? checkThreshhold
+                            : DEFAULT_CHECK_THRESHHOLD);
+                }
+                long generation;
+                synchronized (stripe) {
+                    if (tryLock(stripe, ownerId, resourceId, targetLockLevel, compatibility,
+                            false)) {
+                        statistics.waitedGrant(System.currentTimeMillis() - started);
+                        return;
+                    }
+                    now = System.currentTimeMillis();
+                    if (now >= waitEnd) {
+                        throw new LockException("Lock wait timed out",
+                                LockException.CODE_TIMED_OUT, resource);
+                    }
+                    // any change after the failed attempt will be seen by the wait
+                    generation = waiters.getGeneration();
+                }
+                waiters.await(generation, Math.min(waitEnd, Math.max(nextCheck, now + 1)) - now);
+                now = System.currentTimeMillis();
+            }
+        } catch (LockException le) {
+            statistics.failed(le.getCode());
+            throw le;
+        } catch (InterruptedException e) {
+            statistics.failed(LockException.CODE_INTERRUPTED);
+            throw new LockException("Interrupted", LockException.CODE_INTERRUPTED, resource);
+        } finally {
+            synchronized (stripe) {
+                stripe.removeWaiter(resourceId);
+            }
+            removeWaiter(ownerId);
+        }
+    }
+
+    /**
+     * Checks if a waiting owner is part of a cycle of owners waiting for each other. The
+     * owners a waiter is blocked by are collected under the monitor of its resource's stripe
+     * only, so no two stripes are ever held at the same time.
+     */
+    protected boolean isDeadlocked(long ownerId) {
+        long started = System.currentTimeMillis();
+        try {
+            LongIntMap visited = new LongIntMap();
+            visited.put(ownerId, 1, 0);
+            long[] pending = new long[8];
+            int count = 0;
+            pending[count++] = ownerId;
+            while (count != 0) {
+                long[] blockers = getBlockingOwners(pending[--count]);
+                for (int i = 0; i < blockers.length; i++) {
+                    if (blockers[i] == ownerId) {
+                        return true;
+                    }
+                    if (visited.put(blockers[i], 1, 0) == 0) {
+                        if (count == pending.length) {
+                            long[] grown = new long[count * 2];
+                            System.arraycopy(pending, 0, grown, 0, count);
+                            pending = grown;
+                        }
+                        pending[count++] = blockers[i];
+                    }
+                }
+            }
+            return false;
+        } finally {
+            statistics.deadlockCheck(System.currentTimeMillis() - started);
+        }
+    }
+
+    /**
+     * Gets the owners blocking the request an owner waits for or none if it does not wait.
+     */
+    protected long[] getBlockingOwners(long ownerId) {
+        Waiter waiter;
+        OwnerStripe ownerStripe = getOwnerStripe(ownerId);
+        synchronized (ownerStripe) {
+            waiter = (Waiter) ownerStripe.waiters.get(ownerId);
+        }
+        if (waiter == null) {
+            return NO_OWNERS;
+        }
+        ResourceStripe stripe = getResourceStripe(waiter.resourceId);
+        synchronized (stripe) {
+            return getConflictingOwners(stripe, stripe.indexOf(waiter.resourceId), ownerId,
+                    waiter.lockLevel, waiter.compatibility);
+        }
+    }
+
+    protected void addOwnerLock(long ownerId, long resourceId, int lockLevel) {
+        OwnerStripe stripe = getOwnerStripe(ownerId);
+        synchronized (stripe) {
+            LongIntMap locks = (LongIntMap) stripe.locks.get(ownerId);
+            if (locks == null) {
+                locks = new LongIntMap();
+                stripe.locks.put(ownerId, locks);
+            }
+            locks.put(resourceId, lockLevel, 0);
+        }
+    }
+
+    protected void removeOwnerLock(long ownerId, long resourceId) {
+        OwnerStripe stripe = getOwnerStripe(ownerId);
+        synchronized (stripe) {
+            LongIntMap locks = (LongIntMap) stripe.locks.get(ownerId);
+            if (locks != null) {
+                locks.remove(resourceId, 0);
+                if (locks.isEmpty()) {
+                    stripe.locks.remove(ownerId);
+                }
+            }
+        }
+    }
+
+    protected void setWaiter(long ownerId, Waiter waiter) {
+        OwnerStripe stripe = getOwnerStripe(ownerId);
+        synchronized (stripe) {
+            stripe.waiters.put(ownerId, waiter);
+        }
+    }
+
+    protected void removeWaiter(long ownerId) {
+        OwnerStripe stripe = getOwnerStripe(ownerId);
+        synchronized (stripe) {
+            stripe.waiters.remove(ownerId);
+        }
+    }
+
+    protected ResourceStripe getResourceStripe(long resourceId) {
+        return resourceStripes[stripeIndex(resourceId)];
+    }
+
+    protected OwnerStripe getOwnerStripe(long ownerId) {
+        return ownerStripes[stripeIndex(ownerId)];
+    }
+
+    protected int stripeIndex(long id) {
+        // tables select slots by the lower bits of the hash, so stripes take the upper ones
+        return stripeShift == 32 ? 0 : LongIntMap.hash(id) >>> stripeShift;
+    }
+
+    /**
+     * Locks held by the owners hashed into a stripe and the requests they wait for. Guarded
+     * by the stripe itself.
+     */
+    protected static class OwnerStripe {
+        /** Maps ownerId to a {@link LongIntMap} of the levels it holds per resource. */
+        protected final LongObjectMap locks = new LongObjectMap();
+
+        /** Maps ownerId to the {@link Waiter} it currently is. */
+        protected final LongObjectMap waiters = new LongObjectMap();
+    }
+
+    protected static class Waiter {
+        protected final long resourceId;
+        protected final int lockLevel;
+        protected final int compatibility;
+
+        public Waiter(long resourceId, int lockLevel, int compatibility) {
+            this.resourceId = resourceId;
+            this.lockLevel = lockLevel;
+            this.compatibility = compatibility;
+        }
+    }
+
+    /**
+     * The requests waiting for a resource. They wait on this object rather than on the
+     * stripe, so only they are woken up when the locks on their resource change. The count
+     * is guarded by the resource's stripe, the generation by this object. A waiter reads the
+     * generation under the stripe's monitor when its attempt fails, and changes are signaled
+     * under the stripe's monitor, too, so no wakeup is missed.
+     */
+    protected static class ResourceWaiters {
+        protected int count = 0;
+        protected long generation = 0;
+
+        protected synchronized long getGeneration() {
+            return generation;
+        }
+
+        protected synchronized void signal() {
+            generation++;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the generation has changed or the timeout has passed.
+         */
+        protected synchronized void await(long generation, long timeoutMSecs)
+                throws InterruptedException {
+            long waitEnd = System.currentTimeMillis() + timeoutMSecs;
+            long now = System.currentTimeMillis();
+            while (this.generation == generation && now < waitEnd) {
+                wait(waitEnd - now);
+                now = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Open addressing table of the locked resources hashed into a stripe. A slot holds a
+     * resource id, the number of owners per level and either the single owner and its level
+     * or, as long as there is more than one, a {@link LongIntMap} of all owners and levels.
+     * A slot is freed as soon as its last owner releases it. Guarded by the stripe itself.
+     */
+    protected static class ResourceStripe {
+
+        protected static final int MIN_LENGTH = 8;
+
+        protected final int maxLockLevel;
+        protected final int levels;
+
+        protected long[] resourceIds;
+        protected boolean[] used;
+        protected long[] owners;
+        protected int[] ownerLevels;
+        protected LongIntMap[] sharedOwners;
+        protected int[] levelCounts;
+        protected int size = 0;
+
+        /** Maps resourceId to the {@link ResourceWaiters} waiting for it, if there are any. */
+        protected final LongObjectMap waiters = new LongObjectMap();
+
+        public ResourceStripe(int maxLockLevel) {
+            this.maxLockLevel = maxLockLevel;
+            this.levels = maxLockLevel + 1;
+            allocate(MIN_LENGTH);
+        }
+
+        protected int countedLevel(int lockLevel) {
+            // levels beyond the bounds are not compatible with anything besides the bounds
+            // themselves, so they can be counted as such
+            return Math.max(0, Math.min(lockLevel, maxLockLevel));
+        }
+
+        protected int indexOf(long resourceId) {
+            int index = probe(resourceId);
+            return used[index] ? index : -1;
+        }
+
+        protected int getLevel(int slot, long ownerId) {
+            if (slot == -1) {
+                return 0;
+            }
+            if (sharedOwners[slot] != null) {
+                return sharedOwners[slot].get(ownerId, 0);
+            }
+            return owners[slot] == ownerId ? ownerLevels[slot] : 0;
+        }
+
+        protected int getCount(int slot, int level) {
+            return levelCounts[slot * levels + level];
+        }
+
+        protected ResourceWaiters addWaiter(long resourceId) {
+            ResourceWaiters resourceWaiters = (ResourceWaiters) waiters.get(resourceId);
+            if (resourceWaiters == null) {
+                resourceWaiters = new ResourceWaiters();
+                waiters.put(resourceId, resourceWaiters);
+            }
+            resourceWaiters.count++;
+            return resourceWaiters;
+        }
+
+        protected void removeWaiter(long resourceId) {
+            ResourceWaiters resourceWaiters = (ResourceWaiters) waiters.get(resourceId);
+            if (resourceWaiters != null && --resourceWaiters.count == 0) {
+                waiters.remove(resourceId);
+            }
+        }
+
+        /**
+         * Wakes up the requests waiting for a resource whose locks have changed.
+         */
+        protected void signalWaiters(long resourceId) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            ResourceWaiters resourceWaiters = (ResourceWaiters) waiters.get(resourceId);
+            if (resourceWaiters != null) {
+                resourceWaiters.signal();
+            }
+        }
+
+        /**
+         * Sets the level an owner holds on a resource.
+         *
+         * @return the level the owner held before or <code>0</code>
+         */
+        protected int setLevel(long resourceId, long ownerId, int lockLevel) {
+            int slot = probe(resourceId);
+            if (!used[slot]) {
+                resourceIds[slot] = resourceId;
+                used[slot] = true;
+                owners[slot] = ownerId;
+                ownerLevels[slot] = lockLevel;
+                levelCounts[slot * levels + countedLevel(lockLevel)]++;
+                size++;
+                // keep the load below two thirds, so probing stays short
+                if (size * 3 > resourceIds.length * 2) {
+                    resize(resourceIds.length * 2);
+                }
+                return 0;
+            }
+            int previous;
+            LongIntMap shared = sharedOwners[slot];
+            if (shared != null) {
+                previous = shared.put(ownerId, lockLevel, 0);
+            } else if (owners[slot] == ownerId) {
+                previous = ownerLevels[slot];
+                ownerLevels[slot] = lockLevel;
+            } else {
+                shared = new LongIntMap();
+                shared.put(owners[slot], ownerLevels[slot], 0);
+                shared.put(ownerId, lockLevel, 0);
+                sharedOwners[slot] = shared;
+                previous = 0;
+            }
+            if (previous != 0) {
+                levelCounts[slot * levels + countedLevel(previous)]--;
+            }
+            levelCounts[slot * levels + countedLevel(lockLevel)]++;
+            return previous;
+        }
+
+        /**
+         * Removes the lock of an owner on a resource.
+         *
+         * @return the level the owner held or <code>0</code> if it held none
+         */
+        protected int remove(long resourceId, long ownerId) {
+            int slot = indexOf(resourceId);
+            if (slot == -1) {
+                return 0;
+            }
+            LongIntMap shared = sharedOwners[slot];
+            if (shared == null) {
+                if (owners[slot] != ownerId) {
+                    return 0;
+                }
+                int previous = ownerLevels[slot];
+                delete(slot);
+                return previous;
+            }
+            int previous = shared.remove(ownerId, 0);
+            if (previous == 0) {
+                return 0;
+            }
+            levelCounts[slot * levels + countedLevel(previous)]--;
+            if (shared.size() == 1) {
+                // back to a single owner that can be kept inline
+                for (int i = 0; i < shared.capacity(); i++) {
+                    if (shared.isUsed(i)) {
+                        owners[slot] = shared.keyAt(i);
+                        ownerLevels[slot] = shared.valueAt(i);
+                    }
+                }
+                sharedOwners[slot] = null;
+            }
+            return previous;
+        }
+
+        protected void delete(int index) {
+            clear(index);
+            size--;
+            // move following slots of the same cluster back, so no probe sequence breaks
+            int mask = resourceIds.length - 1;
+            int free = index;
+            for (int i = (index + 1) & mask; used[i]; i = (i + 1) & mask) {
+                int home = LongIntMap.hash(resourceIds[i]) & mask;
+                boolean reachable = (free <= i) ? (free < home && home <= i)
+                        : (free < home || home <= i);
+                if (!reachable) {
+                    copy(this, i, free);
+                    clear(i);
+                    free = i;
+                }
+            }
+            // give back what a burst of locks made the table grow to
+            if (resourceIds.length > MIN_LENGTH && size * 6 < resourceIds.length) {
+                resize(resourceIds.length / 2);
+            }
+        }
+
+        protected int probe(long resourceId) {
+            int mask = resourceIds.length - 1;
+            int i = LongIntMap.hash(resourceId) & mask;
+            while (used[i] && resourceIds[i] != resourceId) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        protected void resize(int length) {
+            ResourceStripe old = new ResourceStripe(this);
+            allocate(length);
+            for (int i = 0; i < old.used.length; i++) {
+                if (old.used[i]) {
+                    old.copy(this, i, probe(old.resourceIds[i]));
+                }
+            }
+        }
+
+        private ResourceStripe(ResourceStripe stripe) {
+            maxLockLevel = stripe.maxLockLevel;
+            levels = stripe.levels;
+            resourceIds = stripe.resourceIds;
+            used = stripe.used;
+            owners = stripe.owners;
+            ownerLevels = stripe.ownerLevels;
+            sharedOwners = stripe.sharedOwners;
+            levelCounts = stripe.levelCounts;
+        }
+
+        private void allocate(int length) {
+            resourceIds = new long[length];
+            used = new boolean[length];
+            owners = new long[length];
+            ownerLevels = new int[length];
+            sharedOwners = new LongIntMap[length];
+            levelCounts = new int[length * levels];
+        }
+
+        private void copy(ResourceStripe target, int from, int to) {
+            target.resourceIds[to] = resourceIds[from];
+            target.used[to] = true;
+            target.owners[to] = owners[from];
+            target.ownerLevels[to] = ownerLevels[from];
+            target.sharedOwners[to] = sharedOwners[from];
+            System.arraycopy(levelCounts, from * levels, target.levelCounts, to * levels, levels);
+        }
+
+        private void clear(int slot) {
+            used[slot] = false;
+            sharedOwners[slot] = null;
+            Arrays.fill(levelCounts, slot * levels, (slot + 1) * levels, 0);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+
+/**
+ * Lock with the modes of multi granularity locking. Resources are organized in a
+ * hierarchy, e.g. a table and its rows. Before an owner locks a resource it announces its
+ * intention on all ancestors, so locks on whole subtrees and locks on single descendants
+ * can be told apart without looking at the descendants.
+ * <ul>
+ * <li><code>IS</code>: intention to read descendants
+ * <li><code>IX</code>: intention to write descendants
+ * <li><code>S</code>: read the resource and all of its descendants
+ * <li><code>SIX</code>: <code>S</code> and <code>IX</code> at the same time
+ * <li><code>X</code>: write the resource and all of its descendants
+ * </ul>
+ * Compatibility of modes (<code>o</code> means they can coexist):
+ * <table><tbody>
+ * <tr><td></td><td>IS</td><td>IX</td><td>S</td><td>SIX</td><td>X</td></tr>
+ * <tr><td>IS</td><td>o</td><td>o</td><td>o</td><td>o</td><td>x</td></tr>
+ * <tr><td>IX</td><td>o</td><td>o</td><td>x</td><td>x</td><td>x</td></tr>
+ * <tr><td>S</td><td>o</td><td>x</td><td>o</td><td>x</td><td>x</td></tr>
+ * <tr><td>SIX</td><td>o</td><td>x</td><td>x</td><td>x</td><td>x</td></tr>
+ * <tr><td>X</td><td>x</td><td>x</td><td>x</td><td>x</td><td>x</td></tr>
+ * </tbody></table>
+ * 
+ * <p>
+ * Modes are lock levels of a {@link GenericLock} ascending in strength. However, they are
+ * not totally ordered: neither <code>S</code> nor <code>IX</code> includes the other. Thus,
+ * an owner holding one of them and requesting the other must request <code>SIX</code>
+ * instead, which is what {@link #combine(int, int)} computes. The compatibility of levels is
+ * defined by the matrix above instead of matching pairs.
+ * </p>
+ * 
+ * @version $Id$
+ * @see IntentionLockManager
+ * @since 1.3
+ */
+public class IntentionLock extends GenericLock {
+
+    public static final int NO_LOCK = 0;
+
+    public static final int INTENTION_SHARED = 1;
+
+    public static final int INTENTION_EXCLUSIVE = 2;
+
+    public static final int SHARED = 3;
+
+    public static final int SHARED_INTENTION_EXCLUSIVE = 4;
+
+    public static final int EXCLUSIVE = 5;
+
+    private static final boolean[][] COMPATIBLE = {
+        { true, true, true, true, true, true },
+        { true, true, true, true, true, false },
+        { true, true, true, false, false, false },
+        { true, true, false, true, false, false },
+        { true, true, false, false, false, false },
+        { true, false, false, false, false, false } };
+
+    /**
+     * Computes the weakest mode including two others.
+     * 
+     * @param mode1 first mode
+     * @param mode2 second mode
+     * @return the mode to request when holding one mode and needing the other
+     */
+    public static int combine(int mode1, int mode2) {
+        if (mode1 == SHARED && mode2 == INTENTION_EXCLUSIVE || mode1 == INTENTION_EXCLUSIVE
+                && mode2 == SHARED) {
+            return SHARED_INTENTION_EXCLUSIVE;
+        }
+        return Math.max(mode1, mode2);
+    }
+
+    /**
+     * Checks if a held mode includes another one on the same resource.
+     * 
+     * @param held the mode held
+     * @param mode the mode requested
+     * @return <code>true</code> if there is no need to request the mode
+     */
+    public static boolean isImplied(int held, int mode) {
+        return combine(held, mode) == held;
+    }
+
+    /**
+     * Checks if a mode held on a resource implicitly locks its descendants in another mode.
+     * 
+     * @param held the mode held on the ancestor
+     * @param mode the mode needed on a descendant
+     * @return <code>true</code> if there is no need to lock the descendant
+     */
+    public static boolean coversDescendants(int held, int mode) {
+        if (held == EXCLUSIVE) {
+            return true;
+        }
+        return (held == SHARED || held == SHARED_INTENTION_EXCLUSIVE)
+                && (mode == SHARED || mode == INTENTION_SHARED);
+    }
+
+    /**
+     * Gets the mode to be held on the ancestors of a resource to be locked.
+     * 
+     * @param mode the mode requested for the resource
+     * @return the intention mode
+     */
+    public static int getIntention(int mode) {
+        if (mode == NO_LOCK) {
+            return NO_LOCK;
+        }
+        return mode == INTENTION_SHARED || mode == SHARED ? INTENTION_SHARED
+                : INTENTION_EXCLUSIVE;
+    }
+
+    /**
+     * Creates a new intention lock.
+     * 
+     * @param resourceId
+     *            identifier for the resource associated to this lock
+     * @param logger
+     *            generic logger used for all kind of debug logging
+     */
+    public IntentionLock(Object resourceId, LoggerFacade logger) {
+        super(resourceId, EXCLUSIVE, logger);
+    }
+
+    /**
+     * Checks if an owner holds a mode including the given one.
+     * 
+     * @see MultiLevelLock2#has(Object, int)
+     */
+    public boolean has(Object ownerId, int lockLevel) {
+        return isImplied(getLockLevel(ownerId), lockLevel);
+    }
+
+    protected synchronized boolean tryLock(Object ownerId, int targetLockLevel,
+            int compatibility, boolean preferred, boolean tryOnly) {
+        LockOwner myLock = getLockOwner(ownerId);
+        if (myLock != null && compatibility != COMPATIBILITY_NONE
+                && compatibility != COMPATIBILITY_SUPPORT) {
+            // a reentrant request must not give up any part of what we already have
+            targetLockLevel = combine(myLock.lockLevel, targetLockLevel);
+        }
+        return super.tryLock(ownerId, targetLockLevel, compatibility, preferred, tryOnly);
+    }
+
+    protected boolean isCompatible(int targetLockLevel, int currentLockLevel) {
+        if (targetLockLevel < NO_LOCK || currentLockLevel < NO_LOCK
+                || targetLockLevel > EXCLUSIVE || currentLockLevel > EXCLUSIVE) {
+            return false;
+        }
+        return COMPATIBLE[targetLockLevel][currentLockLevel];
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.StripedMap;
+
+/**
+ * Manager for {@link IntentionLock}s on hierarchically organized resources. A resource is
+ * addressed by its path from the root of the hierarchy, e.g. a table and a row. Locking a
+ * resource first acquires the matching intention mode on all of its ancestors from the root
+ * downwards. Ancestors already locked in a mode covering the request make locks on their
+ * descendants unnecessary, which are skipped then.
+ * 
+ * <p>
+ * The modes an owner holds on ancestors are remembered per owner, so requests on different
+ * descendants of the same ancestor do not touch the ancestor's lock once the intention has
+ * been acquired.
+ * </p>
+ * 
+ * <p>
+ * Optionally, locks are escalated (see {@link #setEscalationThreshold(int)}): as soon as an
+ * owner holds more locks on the children of a resource than the threshold, it tries to lock
+ * the parent itself in <code>S</code> or <code>X</code> mode instead and releases the locks
+ * on the children. Escalation never blocks. If the parent can not be locked right away, the
+ * owner keeps its fine grained locks and tries again after another threshold of locks.
+ * </p>
+ * 
+ * @version $Id$
+ * @see IntentionLock
+ * @since 1.3
+ */
+public class IntentionLockManager extends GenericLockManager {
+
+    /** Maps ownerId to {@link OwnerState}. */
+    protected StripedMap ownerStates = new StripedMap();
+
+    protected int escalationThreshold = 0;
+
+    /**
+     * Creates a new intention lock manager.
+     * 
+     * @param logger generic logger used for all kind of debug logging
+     * @param timeoutMSecs specifies the maximum time to wait for a lock in milliseconds
+     */
+    public IntentionLockManager(LoggerFacade logger, long timeoutMSecs) {
+        super(IntentionLock.EXCLUSIVE, logger, timeoutMSecs);
+    }
+
+    /**
+     * Sets the number of locks an owner may hold on the children of a single resource before
+     * they are escalated to a lock on the resource itself. This saves a lock object per child
+     * for owners touching lots of them, at the price of less concurrency.
+     * 
+     * @param escalationThreshold
+     *            maximum number of child locks or <code>0</code> to switch escalation off,
+     *            which is the default
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    /**
+     * Locks a resource and announces the intention on all of its ancestors. This blocks
+     * until the lock could be acquired or the global time out of this manager has expired.
+     * All locks are reentrant.
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that wants to acquire the lock
+     * @param path
+     *            the resource preceded by all of its ancestors, root first
+     * @param mode
+     *            the mode to lock the resource in as defined in {@link IntentionLock}
+     * @throws LockException
+     *             if the lock could not be acquired
+     */
+    public void lock(Object ownerId, Object[] path, int mode) throws LockException {
+        lock(ownerId, path, mode, globalTimeoutMSecs);
+    }
+
+    /**
+     * Locks a resource and announces the intention on all of its ancestors.
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that wants to acquire the lock
+     * @param path
+     *            the resource preceded by all of its ancestors, root first
+     * @param mode
+     *            the mode to lock the resource in as defined in {@link IntentionLock}
+     * @param timeoutMSecs
+     *            specifies the maximum wait time for each lock in milliseconds
+     * @throws LockException
+     *             if one of the locks could not be acquired; those already acquired are kept
+     */
+    public void lock(Object ownerId, Object[] path, int mode, long timeoutMSecs)
+            throws LockException {
+        if (path.length == 0) {
+            return;
+        }
+        timeoutCheck(ownerId);
+        OwnerState state = getOwnerState(ownerId);
+        int intention = IntentionLock.getIntention(mode);
+        int last = path.length - 1;
+        for (int i = 0; i < last; i++) {
+            int held = state.getAncestorMode(path[i]);
+            if (held == -1) {
+                held = getLevel(ownerId, path[i]);
+            }
+            if (IntentionLock.coversDescendants(held, mode)) {
+                state.setAncestorMode(path[i], held);
+                return;
+            }
+            if (!IntentionLock.isImplied(held, intention)) {
+                held = IntentionLock.combine(held, intention);
+                lock(ownerId, path[i], held, GenericLock.COMPATIBILITY_REENTRANT, false,
+                        timeoutMSecs);
+            }
+            state.setAncestorMode(path[i], held);
+        }
+        int held = getLevel(ownerId, path[last]);
+        if (IntentionLock.isImplied(held, mode)) {
+            return;
+        }
+        held = IntentionLock.combine(held, mode);
+        lock(ownerId, path[last], held, GenericLock.COMPATIBILITY_REENTRANT, false,
+                timeoutMSecs);
+        state.updateAncestorMode(path[last], held);
+        if (last > 0 && escalationThreshold > 0) {
+            addChildLock(ownerId, state, path, held);
+        }
+    }
+
+    /**
+     * Locks a number of children of the same parent at once. This announces the intention
+     * on the parent and its ancestors and then locks the children as described in
+     * {@link #lockAll(Object, Collection, int, boolean, long)}.
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that wants to acquire the locks
+     * @param parentPath
+     *            the parent preceded by all of its ancestors, root first
+     * @param resourceIds
+     *            the children to lock
+     * @param mode
+     *            the mode to lock the children in as defined in {@link IntentionLock}
+     * @param timeoutMSecs
+     *            specifies the maximum wait time for all locks on children together in
+     *            milliseconds
+     * @throws LockException
+     *             if one of the locks could not be acquired
+     */
+    public void lockAll(Object ownerId, Object[] parentPath, Collection resourceIds, int mode,
+            long timeoutMSecs) throws LockException {
+        OwnerState state = getOwnerState(ownerId);
+        if (parentPath.length != 0) {
+            Object parent = parentPath[parentPath.length - 1];
+            lock(ownerId, parentPath, IntentionLock.getIntention(mode), timeoutMSecs);
+            int held = getLevel(ownerId, parent);
+            state.setAncestorMode(parent, held);
+            if (IntentionLock.coversDescendants(held, mode)) {
+                return;
+            }
+        }
+        lockAll(ownerId, resourceIds, mode, true, timeoutMSecs);
+        if (parentPath.length != 0 && escalationThreshold > 0) {
+            Object[] path = new Object[parentPath.length + 1];
+            System.arraycopy(parentPath, 0, path, 0, parentPath.length);
+            Object parent = parentPath[parentPath.length - 1];
+            for (Iterator it = resourceIds.iterator(); it.hasNext();) {
+                Object child = it.next();
+                int held = getLevel(ownerId, child);
+                if (IntentionLock.coversDescendants(state.getAncestorMode(parent), held)) {
+                    // escalated, so the remaining children are covered by the parent
+                    release(ownerId, child);
+                } else {
+                    path[parentPath.length] = child;
+                    addChildLock(ownerId, state, path, held);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if an owner holds a resource in a mode, either directly or implicitly by one of
+     * its ancestors.
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that might hold the lock
+     * @param path
+     *            the resource preceded by all of its ancestors, root first
+     * @param mode
+     *            the mode to check for
+     * @return <code>true</code> if the owner holds the mode
+     */
+    public boolean hasLock(Object ownerId, Object[] path, int mode) {
+        for (int i = 0; i < path.length - 1; i++) {
+            if (IntentionLock.coversDescendants(getLevel(ownerId, path[i]), mode)) {
+                return true;
+            }
+        }
+        return path.length != 0 && hasLock(ownerId, path[path.length - 1], mode);
+    }
+
+    public boolean release(Object ownerId, Object resourceId) {
+        OwnerState state = (OwnerState) ownerStates.get(ownerId);
+        if (state != null) {
+            state.forget(resourceId);
+        }
+        return super.release(ownerId, resourceId);
+    }
+
+    protected void releaseAllNoTimeOutReset(Object ownerId) {
+        ownerStates.remove(ownerId);
+        super.releaseAllNoTimeOutReset(ownerId);
+    }
+
+    protected OwnerState getOwnerState(Object ownerId) {
+        OwnerState state = (OwnerState) ownerStates.get(ownerId);
+        if (state == null) {
+            OwnerState newState = new OwnerState();
+            state = (OwnerState) ownerStates.putIfAbsent(ownerId, newState);
+            if (state == null) {
+                state = newState;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Records a lock on a child and escalates the locks on the children of its parent when
+     * there are too many.
+     * 
+     * @param ownerId
+     *            the owner of the lock
+     * @param state
+     *            the state of the owner
+     * @param path
+     *            the path of the child
+     * @param mode
+     *            the mode the child is now held in
+     */
+    protected void addChildLock(Object ownerId, OwnerState state, Object[] path, int mode) {
+        Object parent = path[path.length - 2];
+        Object child = path[path.length - 1];
+        // reads of the children become a read of the parent, anything else a write
+        int coarseMode = mode == IntentionLock.INTENTION_SHARED || mode == IntentionLock.SHARED
+                ? IntentionLock.SHARED : IntentionLock.EXCLUSIVE;
+        List children;
+        int target;
+        synchronized (state) {
+            ChildLocks childLocks = (ChildLocks) state.childLocks.get(parent);
+            if (childLocks == null) {
+                childLocks = new ChildLocks();
+                state.childLocks.put(parent, childLocks);
+            }
+            childLocks.children.add(child);
+            childLocks.mode = IntentionLock.combine(childLocks.mode, coarseMode);
+            int count = childLocks.children.size();
+            if (count <= escalationThreshold || (count - 1) % escalationThreshold != 0) {
+                return;
+            }
+            children = new ArrayList(childLocks.children);
+            target = IntentionLock.combine(Math.max(IntentionLock.NO_LOCK, state
+                    .getAncestorMode(parent)), childLocks.mode);
+        }
+        if (!tryLock(ownerId, parent, target, true)) {
+            if (logger.isFinerEnabled()) {
+                logger.logFiner("Could not escalate " + children.size() + " locks of "
+                        + ownerId + " to " + parent);
+            }
+            return;
+        }
+        if (logger.isFinerEnabled()) {
+            logger.logFiner("Escalated " + children.size() + " locks of " + ownerId + " to "
+                    + parent + " at level " + target);
+        }
+        synchronized (state) {
+            state.setAncestorMode(parent, target);
+            state.childLocks.remove(parent);
+        }
+        for (Iterator it = children.iterator(); it.hasNext();) {
+            release(ownerId, it.next());
+        }
+    }
+
+    protected int combineLevels(int heldLevel, int grantedLevel) {
+        return IntentionLock.combine(heldLevel, grantedLevel);
+    }
+
+    protected GenericLock createLock(Object resourceId) {
+        GenericLock lock = new IntentionLock(resourceId, logger);
+        globalLocks.put(resourceId, lock);
+        return lock;
+    }
+
+    /**
+     * Locks held by an owner as far as this manager has to remember them. Guarded by itself.
+     */
+    protected static class OwnerState {
+
+        /** Maps resourceId of an ancestor to the mode held as Integer. */
+        protected final Map ancestorModes = new HashMap();
+
+        /** Maps resourceId of an ancestor to the {@link ChildLocks} held on its children. */
+        protected final Map childLocks = new HashMap();
+
+        public synchronized int getAncestorMode(Object resourceId) {
+            Integer mode = (Integer) ancestorModes.get(resourceId);
+            return mode == null ? -1 : mode.intValue();
+        }
+
+        public synchronized void setAncestorMode(Object resourceId, int mode) {
+            ancestorModes.put(resourceId, new Integer(mode));
+        }
+
+        public synchronized void updateAncestorMode(Object resourceId, int mode) {
+            if (ancestorModes.containsKey(resourceId)) {
+                ancestorModes.put(resourceId, new Integer(mode));
+            }
+        }
+
+        public synchronized void forget(Object resourceId) {
+            ancestorModes.remove(resourceId);
+            childLocks.remove(resourceId);
+        }
+    }
+
+    /**
+     * Children of a resource locked by an owner.
+     */
+    protected static class ChildLocks {
+        protected final Set children = new HashSet();
+
+        // mode the parent needs to be locked in to cover all children
+        protected int mode = IntentionLock.NO_LOCK;
+    }
+}
@@ -25,7 +25,8 @@ package org.apache.commons.transaction.locking;
 public class LockException extends RuntimeException {
 
     /**
-     * Thread has been interrupted while waiting for lock.
+     * Thread has been interrupted while waiting for lock or an asynchronous request has been
+     * aborted.
      */
     public static final int CODE_INTERRUPTED = 1;
 
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Pending result of an asynchronous lock request as returned by
+ * {@link GenericLockManager#lockAsync(Object, Object, int, int, boolean, long)}.
+ *
+ * <p>
+ * The request either is granted or fails with a {@link LockException} carrying the same
+ * code a blocking request would have thrown. Instead of polling you can register a
+ * {@link LockListener} to be notified upon completion.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class LockFuture {
+
+    protected final Object ownerId;
+    protected final Object resourceId;
+    protected final int targetLockLevel;
+    protected final long requested = System.currentTimeMillis();
+
+    // request queued in the lock, set by the manager before the request can be completed
+    protected GenericLock lock = null;
+    protected GenericLock.LockWaiter waiter = null;
+
+    // guarded by this
+    protected boolean done = false;
+    protected LockException exception = null;
+    protected List listeners = null;
+
+    public LockFuture(Object ownerId, Object resourceId, int targetLockLevel) {
+        this.ownerId = ownerId;
+        this.resourceId = resourceId;
+        this.targetLockLevel = targetLockLevel;
+    }
+
+    public Object getOwnerId() {
+        return ownerId;
+    }
+
+    public Object getResourceId() {
+        return resourceId;
+    }
+
+    public int getTargetLockLevel() {
+        return targetLockLevel;
+    }
+
+    /**
+     * Checks if the request has been completed, no matter if successfully.
+     *
+     * @return <code>true</code> if the request has been completed
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Checks if the lock has been granted.
+     *
+     * @return <code>true</code> if the request has been completed successfully
+     */
+    public synchronized boolean isGranted() {
+        return done && exception == null;
+    }
+
+    /**
+     * Gets the reason the request failed for.
+     *
+     * @return the exception or <code>null</code> if the request has not failed (yet)
+     */
+    public synchronized LockException getException() {
+        return exception;
+    }
+
+    /**
+     * Blocks until the request has been completed. This is meant for callers that mix
+     * asynchronous requests with blocking code.
+     *
+     * @param timeoutMSecs
+     *            maximum time to wait
+     * @return <code>true</code> if the request has been completed
+     * @throws InterruptedException
+     *             when the thread waiting is interrupted
+     */
+    public synchronized boolean await(long timeoutMSecs) throws InterruptedException {
+        long started = System.currentTimeMillis();
+        for (long remaining = timeoutMSecs; !done && remaining > 0; remaining = timeoutMSecs
+                - (System.currentTimeMillis() - started)) {
+            wait(remaining);
+        }
+        return done;
+    }
+
+    /**
+     * Registers a listener to be notified when the request has been completed. If this
+     * already is the case, the listener is notified right away.
+     *
+     * @param listener
+     *            the listener to notify
+     */
+    public void addListener(LockListener listener) {
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new ArrayList();
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.lockCompleted(this);
+    }
+
+    /**
+     * Completes the request and notifies all listeners. Only the first call has an effect.
+     *
+     * @param exception
+     *            reason of failure or <code>null</code> if the lock has been granted
+     * @return <code>true</code> if the request has been completed by this call
+     */
+    protected boolean complete(LockException exception) {
+        List toNotify;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            this.exception = exception;
+            toNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        if (toNotify != null) {
+            for (Iterator it = toNotify.iterator(); it.hasNext();) {
+                ((LockListener) it.next()).lockCompleted(this);
+            }
+        }
+        return true;
+    }
+
+    public String toString() {
+        StringBuffer buf = new StringBuffer();
+        buf.append(ownerId.toString()).append(" requesting ").append(resourceId.toString())
+                .append(" at level ").append(targetLockLevel);
+        synchronized (this) {
+            if (done) {
+                buf.append(exception == null ? ": granted" : ": failed");
+            }
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+/**
+ * Callback notified when an asynchronous lock request has been completed.
+ *
+ * @version $Id$
+ * @see LockFuture#addListener(LockListener)
+ * @since 1.3
+ */
+public interface LockListener {
+
+    /**
+     * Called exactly once when the request has either been granted or has failed. This is
+     * called by the thread that completed the request, which usually is the one releasing
+     * the lock. Thus, implementations should return quickly and must not block.
+     *
+     * @param future
+     *            the completed request, {@link LockFuture#isGranted()} tells if the lock
+     *            has been granted
+     */
+    public void lockCompleted(LockFuture future);
+}
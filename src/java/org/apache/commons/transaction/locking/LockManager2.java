@@ -16,6 +16,7 @@
  */
 package org.apache.commons.transaction.locking;
 
+import java.util.Collection;
 import java.util.Set;
 
 /**
@@ -136,6 +137,57 @@ public interface LockManager2 {
     public void lock(Object ownerId, Object resourceId, int targetLockLevel, boolean reentrant,
             long timeoutMSecs) throws LockException;
 
+    /**
+     * Acquires locks on a number of resources at once. <br>
+     * <br>
+     * The locks are acquired in a canonical order, usually the one defined by
+     * {@link ResourceOrder}, so owners locking all of their resources by this method can not
+     * deadlock each other. Implementations mapping several resources onto a single lock must
+     * order the locks rather than the resources. This
+     * method blocks and waits for locks that are not available. If there is a timeout or a
+     * deadlock or the thread is interrupted a LockException is thrown and the locks on
+     * resources the owner did not hold before are released again.
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that wants to acquire the locks
+     * @param resourceIds
+     *            the resources to lock
+     * @param targetLockLevel
+     *            the lock level to acquire on each resource
+     * @param reentrant
+     *            <code>true</code> if this request shall not be blocked by
+     *            other locks held by the same owner
+     * @param timeoutMSecs
+     *            specifies the maximum wait time for all locks together in milliseconds
+     * @throws LockException
+     *             will be thrown when one of the locks can not be acquired
+     * @since 1.3
+     */
+    public void lockAll(Object ownerId, Collection resourceIds, int targetLockLevel,
+            boolean reentrant, long timeoutMSecs) throws LockException;
+
+    /**
+     * Tries to acquire locks on a number of resources at once. Either all locks are acquired
+     * or none. <br>
+     * <br>
+     * This method does not block, but immediatly returns. If one of the locks is not
+     * available <code>false</code> will be returned.
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that wants to acquire the locks
+     * @param resourceIds
+     *            the resources to lock
+     * @param targetLockLevel
+     *            the lock level to acquire on each resource
+     * @param reentrant
+     *            <code>true</code> if this request shall not be influenced by
+     *            other locks held by the same owner
+     * @return <code>true</code> if all locks have been acquired, <code>false</code> otherwise
+     * @since 1.3
+     */
+    public boolean tryLockAll(Object ownerId, Collection resourceIds, int targetLockLevel,
+            boolean reentrant);
+
     /**
      * Most flexible way to acquire a lock on a resource. <br>
      * <br>
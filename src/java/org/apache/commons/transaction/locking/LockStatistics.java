@@ -0,0 +1,533 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics about the lock requests served by a {@link GenericLockManager}.
+ *
+ * <p>
+ * Counters are kept in a number of cells, each guarded by its own monitor, and a
+ * thread always records into the same cell. Thus, recording hardly ever contends
+ * and costs about as much as entering an uncontended monitor. Cells are only summed
+ * up when a {@link Snapshot} is taken.
+ * </p>
+ *
+ * <p>
+ * The most contended resources are tracked in a table of fixed capacity using the
+ * <em>space saving</em> algorithm: when the table is full, the resource with the lowest
+ * count is replaced and the newcomer inherits its count. Counts thus are upper bounds,
+ * but resources that are contended more often than the capacity's share of all
+ * contentions are guaranteed to be in the table. This table is touched by requests that
+ * have to wait only.
+ * </p>
+ *
+ * <p>
+ * All times are measured in milliseconds.
+ * </p>
+ *
+ * @version $Id$
+ * @see GenericLockManager#getStatistics()
+ * @since 1.3
+ */
+public class LockStatistics {
+
+    public static final int DEFAULT_CONTENTION_CAPACITY = 64;
+
+    /**
+     * Number of buckets of the wait time histogram. Bucket <code>0</code> counts waits
+     * shorter than one millisecond, bucket <code>i</code> those of at least
+     * <code>2<sup>i-1</sup></code> and less than <code>2<sup>i</sup></code> milliseconds
+     * and the last one all longer waits.
+     */
+    public static final int WAIT_TIME_BUCKETS = 16;
+
+    protected static final int CELLS = 16;
+
+    // indexes into Cell.counts
+    protected static final int IMMEDIATE_GRANTS = 0;
+    protected static final int WAITED_GRANTS = 1;
+    protected static final int TIMEOUTS = 2;
+    protected static final int DEADLOCK_VICTIMS = 3;
+    protected static final int INTERRUPTS = 4;
+    protected static final int OWNER_TIMEOUTS = 5;
+    protected static final int DEADLOCK_CHECKS = 6;
+    protected static final int DEADLOCK_CHECK_TIME = 7;
+    protected static final int WAIT_TIME = 8;
+    protected static final int SPUN_GRANTS = 9;
+    protected static final int COUNTERS = 10;
+
+    /**
+     * Gets the exclusive upper bound of a bucket of the wait time histogram.
+     *
+     * @param bucket
+     *            index of the bucket
+     * @return the bound in milliseconds or <code>Long.MAX_VALUE</code> for the last bucket
+     */
+    public static long getWaitTimeBucketBound(int bucket) {
+        return bucket == WAIT_TIME_BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    protected static int getWaitTimeBucket(long msecs) {
+        int bucket = 0;
+        while (msecs > 0 && bucket < WAIT_TIME_BUCKETS - 1) {
+            msecs >>= 1;
+            bucket++;
+        }
+        return bucket;
+    }
+
+    protected final Cell[] cells = new Cell[CELLS];
+
+    protected final int contentionCapacity;
+
+    /** Maps resourceId to its estimated contention count as long[1], guarded by itself. */
+    protected final Map contentions;
+
+    protected long since;
+
+    protected volatile long checkThreshhold = -1;
+
+    public LockStatistics() {
+        this(DEFAULT_CONTENTION_CAPACITY);
+    }
+
+    /**
+     * Creates new statistics.
+     *
+     * @param contentionCapacity
+     *            number of resources tracked for being contended
+     * @throws IllegalArgumentException
+     *             if contentionCapacity is less than 1
+     */
+    public LockStatistics(int contentionCapacity) throws IllegalArgumentException {
+        if (contentionCapacity < 1)
+            throw new IllegalArgumentException("At least one resource must be tracked ("
+                    + contentionCapacity + " was specified)");
+        this.contentionCapacity = contentionCapacity;
+        contentions = new HashMap(contentionCapacity * 2);
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = new Cell();
+        }
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * Records a request granted without waiting.
+     */
+    public void immediateGrant() {
+        increment(IMMEDIATE_GRANTS, 1);
+    }
+
+    /**
+     * Records a request that had to wait for a resource, no matter what its outcome will
+     * be.
+     *
+     * @param resourceId
+     *            the resource waited for
+     */
+    public void contended(Object resourceId) {
+        synchronized (contentions) {
+            long[] count = (long[]) contentions.get(resourceId);
+            if (count != null) {
+                count[0]++;
+                return;
+            }
+            long min = 0;
+            if (contentions.size() >= contentionCapacity) {
+                Map.Entry evict = null;
+                for (Iterator it = contentions.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    if (evict == null
+                            || ((long[]) entry.getValue())[0] < ((long[]) evict.getValue())[0]) {
+                        evict = entry;
+                    }
+                }
+                min = ((long[]) evict.getValue())[0];
+                contentions.remove(evict.getKey());
+            }
+            contentions.put(resourceId, new long[] { min + 1 });
+        }
+    }
+
+    /**
+     * Records a request granted after waiting.
+     *
+     * @param waitMSecs
+     *            time the request waited
+     */
+    public void waitedGrant(long waitMSecs) {
+        Cell cell = getCell();
+        synchronized (cell) {
+            cell.counts[WAITED_GRANTS]++;
+            cell.counts[WAIT_TIME] += waitMSecs;
+            cell.waitTimes[getWaitTimeBucket(waitMSecs)]++;
+        }
+    }
+
+    /**
+     * Records a request granted while spinning, i.e. after waiting for less than a
+     * millisecond without being blocked.
+     */
+    public void spunGrant() {
+        Cell cell = getCell();
+        synchronized (cell) {
+            cell.counts[WAITED_GRANTS]++;
+            cell.counts[SPUN_GRANTS]++;
+            cell.waitTimes[0]++;
+        }
+    }
+
+    /**
+     * Records a request that has failed.
+     *
+     * @param code
+     *            the code of the {@link LockException} the request failed with
+     */
+    public void failed(int code) {
+        switch (code) {
+        case LockException.CODE_TIMED_OUT:
+            increment(TIMEOUTS, 1);
+            break;
+        case LockException.CODE_DEADLOCK_VICTIM:
+            increment(DEADLOCK_VICTIMS, 1);
+            break;
+        case LockException.CODE_INTERRUPTED:
+            increment(INTERRUPTS, 1);
+            break;
+        }
+    }
+
+    /**
+     * Records an owner whose locks have been revoked as its global time out expired.
+     */
+    public void ownerTimedOut() {
+        increment(OWNER_TIMEOUTS, 1);
+    }
+
+    /**
+     * Records a search for deadlocks, either by a single blocked request or by the
+     * background detection.
+     *
+     * @param msecs
+     *            time the search took
+     */
+    public void deadlockCheck(long msecs) {
+        Cell cell = getCell();
+        synchronized (cell) {
+            cell.counts[DEADLOCK_CHECKS]++;
+            cell.counts[DEADLOCK_CHECK_TIME] += msecs;
+        }
+    }
+
+    /**
+     * Records the current check threshhold of the manager, which is no counter and thus not
+     * reset.
+     *
+     * @param msecs
+     *            the threshhold or <code>-1</code> if requests are checked directly
+     * @see GenericLockManager#getCheckThreshhold()
+     */
+    public void checkThreshhold(long msecs) {
+        checkThreshhold = msecs;
+    }
+
+    /**
+     * Resets all statistics to zero.
+     */
+    public void reset() {
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[i];
+            synchronized (cell) {
+                cell.counts = new long[COUNTERS];
+                cell.waitTimes = new long[WAIT_TIME_BUCKETS];
+            }
+        }
+        synchronized (contentions) {
+            contentions.clear();
+            since = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the statistics. As cells are summed up one after the other,
+     * records coming in concurrently may be reflected partially.
+     *
+     * @param lockCount
+     *            number of locks currently held by the manager
+     * @param mostContended
+     *            maximum number of most contended resources to include
+     * @return the snapshot
+     */
+    public Snapshot snapshot(int lockCount, int mostContended) {
+        long[] counts = new long[COUNTERS];
+        long[] waitTimes = new long[WAIT_TIME_BUCKETS];
+        for (int i = 0; i < cells.length; i++) {
+            Cell cell = cells[i];
+            synchronized (cell) {
+                for (int j = 0; j < COUNTERS; j++) {
+                    counts[j] += cell.counts[j];
+                }
+                for (int j = 0; j < WAIT_TIME_BUCKETS; j++) {
+                    waitTimes[j] += cell.waitTimes[j];
+                }
+            }
+        }
+        List contended = new ArrayList();
+        long from;
+        synchronized (contentions) {
+            from = since;
+            for (Iterator it = contentions.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry = (Map.Entry) it.next();
+                contended.add(new Contention(entry.getKey(), ((long[]) entry.getValue())[0]));
+            }
+        }
+        Collections.sort(contended, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long c1 = ((Contention) o1).getCount();
+                long c2 = ((Contention) o2).getCount();
+                return c1 > c2 ? -1 : (c1 < c2 ? 1 : 0);
+            }
+        });
+        if (contended.size() > mostContended) {
+            contended = new ArrayList(contended.subList(0, mostContended));
+        }
+        return new Snapshot(from, lockCount, counts, waitTimes, checkThreshhold, Collections
+                .unmodifiableList(contended));
+    }
+
+    protected void increment(int counter, long delta) {
+        Cell cell = getCell();
+        synchronized (cell) {
+            cell.counts[counter] += delta;
+        }
+    }
+
+    protected Cell getCell() {
+        // threads do not override hashCode, so this is cheap and stable
+        return cells[Thread.currentThread().hashCode() & (CELLS - 1)];
+    }
+
+    protected static class Cell {
+        protected long[] counts = new long[COUNTERS];
+        protected long[] waitTimes = new long[WAIT_TIME_BUCKETS];
+    }
+
+    /**
+     * A resource and the number of requests that had to wait for it.
+     */
+    public static class Contention {
+
+        protected final Object resourceId;
+        protected final long count;
+
+        public Contention(Object resourceId, long count) {
+            this.resourceId = resourceId;
+            this.count = count;
+        }
+
+        public Object getResourceId() {
+            return resourceId;
+        }
+
+        /**
+         * Gets the number of requests that had to wait, which may be overestimated as
+         * described in {@link LockStatistics}.
+         *
+         * @return the number of contended requests
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public String toString() {
+            return resourceId + ": " + count;
+        }
+    }
+
+    /**
+     * Immutable view of {@link LockStatistics} at a certain point in time.
+     */
+    public static class Snapshot {
+
+        protected final long since;
+        protected final long taken;
+        protected final int lockCount;
+        protected final long[] counts;
+        protected final long[] waitTimes;
+        protected final long checkThreshhold;
+        protected final List mostContended;
+
+        protected Snapshot(long since, int lockCount, long[] counts, long[] waitTimes,
+                long checkThreshhold, List mostContended) {
+            this.since = since;
+            this.taken = System.currentTimeMillis();
+            this.lockCount = lockCount;
+            this.counts = counts;
+            this.waitTimes = waitTimes;
+            this.checkThreshhold = checkThreshhold;
+            this.mostContended = mostContended;
+        }
+
+        /**
+         * Gets the time the statistics have been created or reset.
+         *
+         * @return the time in milliseconds as returned by
+         *         <code>System.currentTimeMillis()</code>
+         */
+        public long getSince() {
+            return since;
+        }
+
+        public long getTaken() {
+            return taken;
+        }
+
+        public int getLockCount() {
+            return lockCount;
+        }
+
+        /**
+         * Gets the number of granted requests.
+         *
+         * @return the sum of {@link #getImmediateGrants()} and {@link #getWaitedGrants()}
+         */
+        public long getAcquisitions() {
+            return counts[IMMEDIATE_GRANTS] + counts[WAITED_GRANTS];
+        }
+
+        public long getImmediateGrants() {
+            return counts[IMMEDIATE_GRANTS];
+        }
+
+        public long getWaitedGrants() {
+            return counts[WAITED_GRANTS];
+        }
+
+        /**
+         * Gets the number of requests granted while spinning. These are included in
+         * {@link #getWaitedGrants()}.
+         *
+         * @return the number of requests that did not have to be blocked
+         */
+        public long getSpunGrants() {
+            return counts[SPUN_GRANTS];
+        }
+
+        /**
+         * Gets the total time requests waited before they have been granted.
+         *
+         * @return the time in milliseconds
+         */
+        public long getWaitTime() {
+            return counts[WAIT_TIME];
+        }
+
+        /**
+         * Gets the wait time histogram of requests granted after waiting.
+         *
+         * @return the number of requests per bucket as described in
+         *         {@link LockStatistics#WAIT_TIME_BUCKETS}
+         */
+        public long[] getWaitTimeHistogram() {
+            return (long[]) waitTimes.clone();
+        }
+
+        public long getTimeouts() {
+            return counts[TIMEOUTS];
+        }
+
+        public long getDeadlockVictims() {
+            return counts[DEADLOCK_VICTIMS];
+        }
+
+        public long getInterrupts() {
+            return counts[INTERRUPTS];
+        }
+
+        /**
+         * Gets the number of owners that have lost their locks due to their global time
+         * out.
+         *
+         * @return the number of owners timed out
+         */
+        public long getOwnerTimeouts() {
+            return counts[OWNER_TIMEOUTS];
+        }
+
+        public long getDeadlockChecks() {
+            return counts[DEADLOCK_CHECKS];
+        }
+
+        /**
+         * Gets the total time spent searching for deadlocks. As times are measured in
+         * milliseconds, checks on small wait-for graphs may not add up to anything.
+         *
+         * @return the time in milliseconds
+         */
+        public long getDeadlockCheckTime() {
+            return counts[DEADLOCK_CHECK_TIME];
+        }
+
+        /**
+         * Gets the time blocked requests waited before they were checked for deadlocks at
+         * the time the snapshot was taken. This may adapt to the requests served, see
+         * {@link GenericLockManager#setCheckThreshholdBounds(long, long)}.
+         *
+         * @return the time in milliseconds or <code>-1</code> if requests are checked
+         *         directly
+         */
+        public long getCheckThreshhold() {
+            return checkThreshhold;
+        }
+
+        /**
+         * Gets the resources most requests had to wait for, most contended first.
+         *
+         * @return list of {@link Contention}s
+         */
+        public List getMostContended() {
+            return mostContended;
+        }
+
+        public String toString() {
+            StringBuffer buf = new StringBuffer();
+            buf.append("acquisitions: ").append(getAcquisitions());
+            buf.append(" (immediate: ").append(getImmediateGrants());
+            buf.append(", waited: ").append(getWaitedGrants());
+            buf.append(", spun: ").append(getSpunGrants());
+            buf.append("), wait time: ").append(getWaitTime());
+            buf.append(", timeouts: ").append(getTimeouts());
+            buf.append(", deadlock victims: ").append(getDeadlockVictims());
+            buf.append(", interrupts: ").append(getInterrupts());
+            buf.append(", owner timeouts: ").append(getOwnerTimeouts());
+            buf.append(", deadlock checks: ").append(getDeadlockChecks());
+            buf.append(" (").append(getDeadlockCheckTime()).append(" ms)");
+            buf.append(", check threshhold: ").append(getCheckThreshhold());
+            buf.append(", locks: ").append(getLockCount());
+            buf.append(", most contended: ").append(getMostContended());
+            return buf.toString();
+        }
+    }
+}
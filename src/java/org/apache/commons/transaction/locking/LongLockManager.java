@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+/**
+ * Counterpart of {@link LockManager2} for owners and resources identified by
+ * <code>long</code> ids, e.g. numeric primary keys or transaction numbers. Lock levels and
+ * compatibilities have the same meaning as for {@link GenericLock}, but as ids are passed as
+ * primitives, they never need to be boxed.
+ * 
+ * @version $Id$
+ * @see LockManager2
+ * @see GenericLongLockManager
+ * @since 1.3
+ */
+public interface LongLockManager {
+
+    /**
+     * Determines if a lock is owned by an owner. <br>
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that wants to check this
+     *            lock
+     * @param resourceId
+     *            the resource to get the level for
+     * @param lockLevel
+     *            the lock level to check
+     * @return <code>true</code> if the owner has the lock, <code>false</code> otherwise
+     */
+    public boolean hasLock(long ownerId, long resourceId, int lockLevel);
+
+    /**
+     * Determines if a lock <em>could</em> be acquired <em>without</em> actually acquiring it. <br>
+     * <br>
+     * This method does not block, but immediatly returns.
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that wants to check this
+     *            lock
+     * @param resourceId
+     *            the resource to get the level for
+     * @param targetLockLevel
+     *            the lock level to check
+     * @param reentrant
+     *            <code>true</code> if this request shall not be influenced by
+     *            other locks held by the same owner
+     * @return <code>true</code> if the lock could be acquired, <code>false</code> otherwise
+     */
+    public boolean checkLock(long ownerId, long resourceId, int targetLockLevel, boolean reentrant);
+
+    /**
+     * Tries to acquire a lock on a resource. <br>
+     * <br>
+     * This method does not block, but immediatly returns. If a lock is not
+     * available <code>false</code> will be returned.
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that wants to acquire this
+     *            lock
+     * @param resourceId
+     *            the resource to get the level for
+     * @param targetLockLevel
+     *            the lock level to acquire
+     * @param reentrant
+     *            <code>true</code> if this request shall not be influenced by
+     *            other locks held by the same owner
+     * @return <code>true</code> if the lock has been acquired, <code>false</code> otherwise
+     */
+    public boolean tryLock(long ownerId, long resourceId, int targetLockLevel, boolean reentrant);
+
+    /**
+     * Tries to acquire a lock on a resource. <br>
+     * <br>
+     * This method blocks and waits for the lock in case it is not avaiable. If
+     * there is a timeout or a deadlock or the thread is interrupted a
+     * LockException is thrown.
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that wants to acquire this
+     *            lock
+     * @param resourceId
+     *            the resource to get the level for
+     * @param targetLockLevel
+     *            the lock level to acquire
+     * @param reentrant
+     *            <code>true</code> if this request shall not be blocked by
+     *            other locks held by the same owner
+     * @throws LockException
+     *             will be thrown when the lock can not be acquired
+     */
+    public void lock(long ownerId, long resourceId, int targetLockLevel, boolean reentrant)
+            throws LockException;
+
+    /**
+     * Tries to acquire a lock on a resource. <br>
+     * <br>
+     * This method blocks and waits for the lock in case it is not avaiable. If
+     * there is a timeout or a deadlock or the thread is interrupted a
+     * LockException is thrown.
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that wants to acquire this
+     *            lock
+     * @param resourceId
+     *            the resource to get the level for
+     * @param targetLockLevel
+     *            the lock level to acquire
+     * @param reentrant
+     *            <code>true</code> if this request shall not be blocked by
+     *            other locks held by the same owner
+     * @param timeoutMSecs
+     *            specifies the maximum wait time in milliseconds
+     * @throws LockException
+     *             will be thrown when the lock can not be acquired
+     */
+    public void lock(long ownerId, long resourceId, int targetLockLevel, boolean reentrant,
+            long timeoutMSecs) throws LockException;
+
+    /**
+     * Most flexible way to acquire a lock on a resource. <br>
+     * <br>
+     * This method blocks and waits for the lock in case it is not avaiable. If
+     * there is a timeout or a deadlock or the thread is interrupted a
+     * LockException is thrown.
+     * 
+     * @param ownerId
+     *            a unique id identifying the entity that wants to acquire this
+     *            lock
+     * @param resourceId
+     *            the resource to get the level for
+     * @param targetLockLevel
+     *            the lock level to acquire
+     * @param compatibility
+     *            {@link GenericLock#COMPATIBILITY_NONE}if no additional compatibility is
+     *            desired (same as reentrant set to false) ,
+     *            {@link GenericLock#COMPATIBILITY_REENTRANT}if lock level by the same
+     *            owner shall not affect compatibility (same as reentrant set to
+     *            true), or {@link GenericLock#COMPATIBILITY_SUPPORT}if lock levels that
+     *            are the same as the desired shall not affect compatibility, or finally
+     *            {@link GenericLock#COMPATIBILITY_REENTRANT_AND_SUPPORT}that is a combination
+     *            of reentrant and support
+     * @param timeoutMSecs
+     *            specifies the maximum wait time in milliseconds
+     * @throws LockException
+     *             will be thrown when the lock can not be acquired
+     */
+    public void lock(long ownerId, long resourceId, int targetLockLevel, int compatibility,
+            long timeoutMSecs) throws LockException;
+
+    /**
+     * Gets the lock level held by certain owner on a certain resource.
+     * 
+     * @param ownerId the id of the owner of the lock
+     * @param resourceId the resource to get the level for
+     */
+    public int getLevel(long ownerId, long resourceId);
+
+    /**
+     * Releases all locks for a certain resource held by a certain owner.
+     * 
+     * @param ownerId the id of the owner of the lock
+     * @param resourceId the resource to releases the lock for
+     * @return <code>true</code> if the lock actually was released, <code>false</code> in case
+     * there was no lock held by the owner
+     */
+    public boolean release(long ownerId, long resourceId);
+
+    /**
+     * Releases all locks (partially) held by an owner.
+     * 
+     * @param ownerId the id of the owner
+     */
+    public void releaseAll(long ownerId);
+
+    /**
+     * Gets the ids of all resources an owner (partially) holds a lock on.
+     * 
+     * @param ownerId the id of the owner
+     * @return ids of all resources locked by ownerId in no particular order
+     */
+    public long[] getAll(long ownerId);
+}
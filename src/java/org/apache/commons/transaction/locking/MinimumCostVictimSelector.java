@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Base for {@link DeadlockVictimSelector}s choosing the owner that is cheapest to abort.
+ * Of owners having the same cost the one coming first in the cycle is chosen.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public abstract class MinimumCostVictimSelector implements DeadlockVictimSelector {
+
+    public Object selectVictim(LockManager2 manager, List cycle) {
+        Object victim = null;
+        long victimCost = 0;
+        for (Iterator it = cycle.iterator(); it.hasNext();) {
+            Object ownerId = it.next();
+            long cost = getCost(manager, ownerId);
+            if (victim == null || cost < victimCost) {
+                victim = ownerId;
+                victimCost = cost;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Estimates how much work would be lost by aborting an owner.
+     *
+     * @param manager
+     *            the lock manager passed to {@link #selectVictim(LockManager2, List)}
+     * @param ownerId
+     *            an owner of the cycle
+     * @return the cost of aborting the owner, the lower the more likely it is chosen
+     */
+    protected abstract long getCost(LockManager2 manager, Object ownerId);
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import org.apache.commons.transaction.util.StripedMap;
+
+/**
+ * Chooses the owner with the lowest priority as assigned by the caller. Owners without a
+ * priority have priority <code>0</code>. Priorities have to be removed by
+ * {@link #removePriority(Object)} when an owner is done, typically right after releasing all
+ * of its locks.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class PriorityVictimSelector extends MinimumCostVictimSelector {
+
+    /** Maps ownerId to its priority. */
+    protected StripedMap priorities = new StripedMap();
+
+    /**
+     * Assigns a priority to an owner.
+     *
+     * @param ownerId
+     *            the owner
+     * @param priority
+     *            the priority, the higher the less likely the owner is chosen as a victim
+     */
+    public void setPriority(Object ownerId, int priority) {
+        priorities.put(ownerId, new Integer(priority));
+    }
+
+    public int getPriority(Object ownerId) {
+        Integer priority = (Integer) priorities.get(ownerId);
+        return (priority == null ? 0 : priority.intValue());
+    }
+
+    public void removePriority(Object ownerId) {
+        priorities.remove(ownerId);
+    }
+
+    protected long getCost(LockManager2 manager, Object ownerId) {
+        return getPriority(ownerId);
+    }
+}
@@ -36,6 +36,10 @@ import org.apache.commons.transaction.util.LoggerFacade;
  * same owner. E.g. if you already have a lock for writing and you try to acquire write access 
  * again you will not be blocked by this first lock, while others of course will be. This is the
  * natural way you already know from Java monitors and synchronized blocks.
+ * <br>
+ * <br>
+ * How waiting readers and writers are served can be chosen by
+ * {@link #setPreference(int)}. Preferring writers is the default.
  * 
  * @version $Id$
  * @see GenericLock
@@ -48,6 +52,34 @@ public class ReadWriteLock extends GenericLock {
 
     public static final int WRITE_LOCK = 2;
 
+    /**
+     * A waiting writer keeps out new readers, so it only waits for the readers already
+     * holding the lock. Readers may starve if writers keep coming. This is the default.
+     * 
+     * @since 1.3
+     */
+    public static final int PREFER_WRITERS = 0;
+
+    /**
+     * Readers get the lock whenever no writer holds it, even if writers wait. Writers may
+     * starve if readers keep coming.
+     * 
+     * @since 1.3
+     */
+    public static final int PREFER_READERS = 1;
+
+    /**
+     * Phases of reads and writes alternate. A waiting writer keeps out new readers, but when
+     * a writer releases the lock, all readers waiting at that moment get it before the next
+     * writer. This way neither starve: a reader waits for at most one write, a writer for the
+     * readers holding the lock and those let in after each of the writes before it.
+     * 
+     * @since 1.3
+     */
+    public static final int PHASE_FAIR = 2;
+
+    protected int preference = PREFER_WRITERS;
+
     /**
      * Creates a new read/write lock.
      * 
@@ -93,6 +125,51 @@ public class ReadWriteLock extends GenericLock {
      *             when the thread waiting on this method is interrupted
      */
     public boolean acquireWrite(Object ownerId, long timeoutMSecs) throws InterruptedException {
-        return acquire(ownerId, WRITE_LOCK, true, timeoutMSecs);
+        return acquire(ownerId, WRITE_LOCK, isWritePreferred(), timeoutMSecs);
+    }
+
+    /**
+     * Sets how waiting readers and writers are served. This applies to
+     * {@link #acquireWrite(Object, long)} and to releasing write locks, requests that
+     * explicitly state whether they are preferred keep their choice.
+     * 
+     * @param preference
+     *            one of {@link #PREFER_WRITERS}, {@link #PREFER_READERS} and
+     *            {@link #PHASE_FAIR}
+     * @throws IllegalArgumentException
+     *             if the policy is unknown
+     * @since 1.3
+     */
+    public synchronized void setPreference(int preference) throws IllegalArgumentException {
+        this.preference = checkPreference(preference);
+    }
+
+    /**
+     * Gets the policy set by {@link #setPreference(int)}.
+     * 
+     * @since 1.3
+     */
+    public synchronized int getPreference() {
+        return preference;
+    }
+
+    public synchronized boolean release(Object ownerId) {
+        if (preference == PHASE_FAIR && getLockLevel(ownerId) == WRITE_LOCK) {
+            // the readers that had to wait for this writer are next
+            admitWaiters(READ_LOCK);
+        }
+        return super.release(ownerId);
+    }
+
+    protected synchronized boolean isWritePreferred() {
+        return preference != PREFER_READERS;
+    }
+
+    static int checkPreference(int preference) throws IllegalArgumentException {
+        if (preference != PREFER_WRITERS && preference != PREFER_READERS
+                && preference != PHASE_FAIR)
+            throw new IllegalArgumentException("Unknown preference policy (" + preference
+                    + " was specified)");
+        return preference;
     }
 }
\ No newline at end of file
@@ -182,11 +182,9 @@ public class ReadWriteLockManager extends GenericLockManager {
     }
 
     protected GenericLock createLock(Object resourceId) {
-        synchronized (globalLocks) {
-            GenericLock lock = new ReadWriteLock(resourceId, logger);
-            globalLocks.put(resourceId, lock);
-            return lock;
-        }
+        GenericLock lock = new ReadWriteLock(resourceId, logger);
+        globalLocks.put(resourceId, lock);
+        return lock;
     }
 
 }
\ No newline at end of file
@@ -48,6 +48,11 @@ import org.apache.commons.transaction.util.LoggerFacade;
  * lock for writing and you try to acquire write access again you will not be
  * blocked by this first lock, while others of course will be. This is the
  * natural way you already know from Java monitors and synchronized blocks.
+ * <br>
+ * <br>
+ * How waiting readers and writers are served can be chosen by
+ * {@link #setPreference(int)}. Unless upgraded from an upgrade lock, writes are not
+ * preferred by default, i.e. the policy is {@link ReadWriteLock#PREFER_READERS}.
  * 
  * @version $Id$
  * 
@@ -66,6 +71,8 @@ public class ReadWriteUpgradeLock extends GenericLock {
 
     public static final int WRITE_LOCK = 3;
 
+    protected int preference = ReadWriteLock.PREFER_READERS;
+
     /**
      * Creates a new read/write/upgrade lock.
      * 
@@ -129,15 +136,54 @@ public class ReadWriteUpgradeLock extends GenericLock {
      */
     public boolean acquireWrite(Object ownerId, long timeoutMSecs) throws InterruptedException {
         // in case we already had an upgrade lock, this wait lock will become preferred
-        boolean preferred = getLockLevel(ownerId) == UPGRADE_LOCK;
+        boolean preferred = isWritePreferred() || getLockLevel(ownerId) == UPGRADE_LOCK;
         return acquire(ownerId, WRITE_LOCK, true, COMPATIBILITY_REENTRANT, preferred, timeoutMSecs);
     }
 
+    /**
+     * Sets how waiting readers and writers are served, see
+     * {@link ReadWriteLock#setPreference(int)}. Under {@link ReadWriteLock#PHASE_FAIR}
+     * requests for upgrade locks are served together with the readers. A write lock
+     * requested by the owner of an upgrade lock is preferred in any case.
+     * 
+     * @param preference
+     *            one of {@link ReadWriteLock#PREFER_WRITERS},
+     *            {@link ReadWriteLock#PREFER_READERS} and {@link ReadWriteLock#PHASE_FAIR}
+     * @throws IllegalArgumentException
+     *             if the policy is unknown
+     * @since 1.3
+     */
+    public synchronized void setPreference(int preference) throws IllegalArgumentException {
+        this.preference = ReadWriteLock.checkPreference(preference);
+    }
+
+    /**
+     * Gets the policy set by {@link #setPreference(int)}.
+     * 
+     * @since 1.3
+     */
+    public synchronized int getPreference() {
+        return preference;
+    }
+
+    public synchronized boolean release(Object ownerId) {
+        if (preference == ReadWriteLock.PHASE_FAIR && getLockLevel(ownerId) == WRITE_LOCK) {
+            // the readers that had to wait for this writer are next
+            admitWaiters(UPGRADE_LOCK);
+        }
+        return super.release(ownerId);
+    }
+
+    protected synchronized boolean isWritePreferred() {
+        return preference != ReadWriteLock.PREFER_READERS;
+    }
+
     /**
      * @see GenericLock#acquire(Object, int, boolean, int, boolean, long)
      */
-    public synchronized boolean acquire(Object ownerId, int targetLockLevel, boolean wait,
+    public boolean acquire(Object ownerId, int targetLockLevel, boolean wait,
             int compatibility, boolean preferred, long timeoutMSecs) throws InterruptedException {
+        // only the owner itself changes its level, so it is safe to look at it unguarded
         if (targetLockLevel == WRITE_LOCK && getLockLevel(ownerId) == UPGRADE_LOCK) {
             preferred = true;
         }
@@ -126,11 +126,9 @@ public class ReadWriteUpgradeLockManager extends ReadWriteLockManager {
     }
 
     protected GenericLock createLock(Object resourceId) {
-        synchronized (globalLocks) {
-            GenericLock lock = new ReadWriteUpgradeLock(resourceId, logger);
-            globalLocks.put(resourceId, lock);
-            return lock;
-        }
+        GenericLock lock = new ReadWriteUpgradeLock(resourceId, logger);
+        globalLocks.put(resourceId, lock);
+        return lock;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * Canonical order in which resources are locked by
+ * {@link LockManager2#lockAll(Object, Collection, int, boolean, long)}. If all owners lock
+ * their resources in the same order, they can not deadlock each other.
+ * 
+ * <p>
+ * Resources are ordered by the name of their class first. Resources of the same class are
+ * ordered by their natural order if they are {@link Comparable}, otherwise by their hash code
+ * and finally by their string representation. Resources that are not equal, but tie in all
+ * of these can not be ordered and are ordered arbitrarily.
+ * </p>
+ * 
+ * @version $Id$
+ * @since 1.3
+ */
+public class ResourceOrder implements Comparator {
+
+    public static final ResourceOrder INSTANCE = new ResourceOrder();
+
+    /**
+     * Sorts resources in canonical order.
+     * 
+     * @param resourceIds
+     *            the resources to sort
+     * @return a new array holding each of the resources once in canonical order
+     */
+    public static Object[] sort(Collection resourceIds) {
+        Object[] sorted = new HashSet(resourceIds).toArray();
+        Arrays.sort(sorted, INSTANCE);
+        return sorted;
+    }
+
+    public int compare(Object resourceId1, Object resourceId2) {
+        if (resourceId1.equals(resourceId2)) {
+            return 0;
+        }
+        Class class1 = resourceId1.getClass();
+        Class class2 = resourceId2.getClass();
+        if (class1 != class2) {
+            return class1.getName().compareTo(class2.getName());
+        }
+        if (resourceId1 instanceof Comparable) {
+            return ((Comparable) resourceId1).compareTo(resourceId2);
+        }
+        int hash1 = resourceId1.hashCode();
+        int hash2 = resourceId2.hashCode();
+        if (hash1 != hash2) {
+            return hash1 < hash2 ? -1 : 1;
+        }
+        return resourceId1.toString().compareTo(resourceId2.toString());
+    }
+}
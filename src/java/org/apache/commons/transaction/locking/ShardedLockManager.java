@@ -0,0 +1,608 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.transaction.util.DeadlineQueue;
+import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.StripedMap;
+
+/**
+ * Lock manager that partitions resources by their hash code across a fixed number of
+ * {@link GenericLockManager} shards. Each shard has its own tables, statistics and monitors,
+ * so requests on resources of different shards share no state apart from what is needed for
+ * deadlock detection and global time outs.
+ * 
+ * <p>
+ * Requests on a single resource are handled by its shard alone. This manager only remembers
+ * which shards an owner has requested locks from, so {@link #releaseAll(Object)} and
+ * {@link #getAll(Object)} are passed on to those shards only. Global time outs are kept by
+ * this manager, one per owner, and a single reaper thread releases the locks of expired
+ * owners in the shards they have touched. All shards share a single {@link WaitForGraph}, so
+ * deadlocks spanning resources of different shards are detected just like within a single
+ * {@link GenericLockManager}.
+ * </p>
+ * 
+ * <p>
+ * Deadlock prevention and asynchronous requests are not available, as they would need
+ * coordination between the shards.
+ * </p>
+ * 
+ * @version $Id$
+ * @since 1.3
+ */
+public class ShardedLockManager implements LockManager, LockManager2 {
+
+    protected final GenericLockManager[] shards;
+
+    protected final int mask;
+
+    /**
+     * Maps ownerId to a bit mask of the shards it has requested locks from, one bit per
+     * shard. Guarded by the stripe monitors of the map.
+     */
+    protected final StripedMap ownerShards = new StripedMap();
+
+    /** Maps onwerId to global effective time outs (i.e. the time the lock will time out). */
+    protected final StripedMap effectiveGlobalTimeouts = new StripedMap();
+
+    /**
+     * Global time outs of owners ordered by time. Entries are not removed when a time out is
+     * reset or restarted, so they have to be checked against
+     * {@link #effectiveGlobalTimeouts}. Guarded by its own monitor.
+     */
+    protected final DeadlineQueue globalTimeoutQueue = new DeadlineQueue();
+
+    /** Guarded by the monitor of {@link #globalTimeoutQueue}. */
+    protected TimeoutReaper timeoutReaper = null;
+
+    protected LoggerFacade logger;
+
+    /**
+     * Creates a new sharded lock manager.
+     * 
+     * @param maxLockLevel
+     *            highest allowed lock level as described in {@link GenericLock}
+     *            's class intro
+     * @param logger
+     *            generic logger used for all kind of debug logging
+     * @param timeoutMSecs
+     *            specifies the maximum time to wait for a lock in milliseconds
+     * @param checkThreshholdMSecs
+     *            specifies a special wait threshhold before deadlock and
+     *            timeout detection come into play or <code>-1</code> switch
+     *            it off and check for directly
+     * @param shardCount
+     *            the number of shards, will be rounded up to the next power of two
+     * @throws IllegalArgumentException
+     *             if maxLockLevel or shardCount is less than 1
+     */
+    public ShardedLockManager(int maxLockLevel, LoggerFacade logger, long timeoutMSecs,
+            long checkThreshholdMSecs, int shardCount) throws IllegalArgumentException {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("There must be at least one shard ("
+                    + shardCount + " was specified)");
+        this.logger = logger.createLogger("Locking");
+        int size = 1;
+        while (size < shardCount) {
+            size <<= 1;
+        }
+        shards = new GenericLockManager[size];
+        for (int i = 0; i < size; i++) {
+            shards[i] = createShard(maxLockLevel, logger, timeoutMSecs, checkThreshholdMSecs);
+            // victims are chosen by the locks owners hold in all shards
+            shards[i].victimSelectorView = this;
+            if (i > 0) {
+                shareDeadlockState(shards[0], shards[i]);
+                shareTimeoutState(shards[0], shards[i]);
+            }
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Creates a new sharded lock manager with one shard per available processor.
+     */
+    public ShardedLockManager(int maxLockLevel, LoggerFacade logger, long timeoutMSecs)
+            throws IllegalArgumentException {
+        this(maxLockLevel, logger, timeoutMSecs, GenericLockManager.DEFAULT_CHECK_THRESHHOLD,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a single shard. Override this to use a subclass of {@link GenericLockManager}.
+     */
+    protected GenericLockManager createShard(int maxLockLevel, LoggerFacade logger,
+            long timeoutMSecs, long checkThreshholdMSecs) {
+        return new GenericLockManager(maxLockLevel, logger, timeoutMSecs, checkThreshholdMSecs);
+    }
+
+    /**
+     * Makes a shard use the state of another one needed to detect deadlocks and to wake up
+     * their victims, no matter which shard they are waiting in.
+     * 
+     * @param from
+     *            the shard to take the state from
+     * @param to
+     *            the shard to share it with
+     */
+    protected void shareDeadlockState(GenericLockManager from, GenericLockManager to) {
+        to.waitForGraph = from.waitForGraph;
+        to.deadlockVictims = from.deadlockVictims;
+        // stamps are only unique if they come from the same source
+        to.ownerTimestamps = from.ownerTimestamps;
+        to.timestampSource = from.timestampSource;
+    }
+
+    /**
+     * Makes a shard use the marks of timed out owners of another one. The time outs
+     * themselves are kept by this manager, so the shards never start one on their own, but
+     * they all refuse requests of an owner as soon as it is marked.
+     * 
+     * @param from
+     *            the shard to take the state from
+     * @param to
+     *            the shard to share it with
+     */
+    protected void shareTimeoutState(GenericLockManager from, GenericLockManager to) {
+        to.timedOutOwners = from.timedOutOwners;
+    }
+
+    /**
+     * Gets the shard responsible for a resource.
+     * 
+     * @param resourceId
+     *            the resource
+     * @return the shard all requests on the resource are passed on to
+     */
+    public GenericLockManager getShard(Object resourceId) {
+        return shards[getShardIndex(resourceId)];
+    }
+
+    protected int getShardIndex(Object resourceId) {
+        int h = resourceId.hashCode();
+        // spread higher bits as the shard is selected by the lower ones only
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & mask;
+    }
+
+    /**
+     * Gets the shard responsible for a resource and remembers that an owner is about to
+     * request a lock from it. This happens before the request, so an owner whose locks are
+     * released at the same time will either be refused by the shard or have its locks there
+     * released as well.
+     * 
+     * @param ownerId
+     *            the owner about to request a lock
+     * @param resourceId
+     *            the resource
+     * @return the shard all requests on the resource are passed on to
+     */
+    protected GenericLockManager touchShard(Object ownerId, Object resourceId) {
+        timeoutCheck(ownerId);
+        int index = getShardIndex(resourceId);
+        synchronized (ownerShards.getStripeMonitor(ownerId)) {
+            long[] touched = (long[]) ownerShards.get(ownerId);
+            if (touched == null) {
+                touched = new long[(shards.length + 63) >>> 6];
+                ownerShards.put(ownerId, touched);
+            }
+            touched[index >>> 6] |= 1L << (index & 63);
+        }
+        return shards[index];
+    }
+
+    /**
+     * Gets the shards an owner has requested locks from.
+     * 
+     * @param ownerId
+     *            the owner
+     * @param forget
+     *            <code>true</code> if the shards are about to release all locks of the
+     *            owner, so they no longer need to be remembered
+     * @return the shards, empty if there are none
+     */
+    protected List getTouchedShards(Object ownerId, boolean forget) {
+        long[] touched;
+        synchronized (ownerShards.getStripeMonitor(ownerId)) {
+            touched = (long[]) (forget ? ownerShards.remove(ownerId) : ownerShards.get(ownerId));
+            if (touched == null) {
+                return Collections.EMPTY_LIST;
+            }
+            if (!forget) {
+                touched = (long[]) touched.clone();
+            }
+        }
+        List result = new ArrayList();
+        for (int i = 0; i < shards.length; i++) {
+            if ((touched[i >>> 6] & (1L << (i & 63))) != 0) {
+                result.add(shards[i]);
+            }
+        }
+        return result;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Gets the number of locks currently held by all shards.
+     * 
+     * @see GenericLockManager#getLockCount()
+     */
+    public int getLockCount() {
+        int count = 0;
+        for (int i = 0; i < shards.length; i++) {
+            count += shards[i].getLockCount();
+        }
+        return count;
+    }
+
+    /**
+     * Discards the idle locks of all shards.
+     * 
+     * @see GenericLockManager#reclaimIdleLocks()
+     */
+    public void reclaimIdleLocks() {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].reclaimIdleLocks();
+        }
+    }
+
+    /**
+     * Sets the policy choosing the victim of a deadlock in all shards. It is passed this
+     * manager rather than the shard that found the deadlock, so all shards agree on the
+     * victim of a deadlock spanning several of them.
+     * 
+     * @see GenericLockManager#setDeadlockVictimSelector(DeadlockVictimSelector)
+     */
+    public void setDeadlockVictimSelector(DeadlockVictimSelector victimSelector) {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setDeadlockVictimSelector(victimSelector);
+        }
+    }
+
+    /**
+     * Switches to background deadlock detection. As the shards share their
+     * {@link WaitForGraph}, a single detector covers all of them.
+     * 
+     * @see GenericLockManager#startBackgroundDeadlockDetection(long)
+     */
+    public void startBackgroundDeadlockDetection(long intervalMSecs)
+            throws IllegalArgumentException {
+        shards[0].startBackgroundDeadlockDetection(intervalMSecs);
+    }
+
+    /**
+     * @see GenericLockManager#stopBackgroundDeadlockDetection()
+     */
+    public void stopBackgroundDeadlockDetection() {
+        shards[0].stopBackgroundDeadlockDetection();
+    }
+
+    public boolean hasLock(Object ownerId, Object resourceId, int lockLevel) {
+        return getShard(resourceId).hasLock(ownerId, resourceId, lockLevel);
+    }
+
+    public boolean checkLock(Object ownerId, Object resourceId, int targetLockLevel,
+            boolean reentrant) {
+        return getShard(resourceId).checkLock(ownerId, resourceId, targetLockLevel, reentrant);
+    }
+
+    public boolean tryLock(Object ownerId, Object resourceId, int targetLockLevel,
+            boolean reentrant) {
+        return touchShard(ownerId, resourceId).tryLock(ownerId, resourceId, targetLockLevel,
+                reentrant);
+    }
+
+    public void lock(Object ownerId, Object resourceId, int targetLockLevel, boolean reentrant)
+            throws LockException {
+        touchShard(ownerId, resourceId).lock(ownerId, resourceId, targetLockLevel, reentrant);
+    }
+
+    public void lock(Object ownerId, Object resourceId, int targetLockLevel, boolean reentrant,
+            long timeoutMSecs) throws LockException {
+        touchShard(ownerId, resourceId).lock(ownerId, resourceId, targetLockLevel, reentrant,
+                timeoutMSecs);
+    }
+
+    public void lock(Object ownerId, Object resourceId, int targetLockLevel, int compatibility,
+            boolean preferred, long timeoutMSecs) throws LockException {
+        touchShard(ownerId, resourceId).lock(ownerId, resourceId, targetLockLevel,
+                compatibility, preferred, timeoutMSecs);
+    }
+
+    /**
+     * Acquires the locks one after the other in the order defined by {@link ResourceOrder}
+     * across all shards, unless shards have lock stripes, see
+     * {@link #sortResources(Collection)}.
+     * 
+     * @see LockManager2#lockAll(Object, Collection, int, boolean, long)
+     */
+    public void lockAll(Object ownerId, Collection resourceIds, int targetLockLevel,
+            boolean reentrant, long timeoutMSecs) throws LockException {
+        long waitEnd = System.currentTimeMillis() + timeoutMSecs;
+        Object[] ordered = sortResources(resourceIds);
+        List acquired = new ArrayList(ordered.length);
+        boolean success = false;
+        try {
+            for (int i = 0; i < ordered.length; i++) {
+                Object resourceId = ordered[i];
+                GenericLockManager shard = touchShard(ownerId, resourceId);
+                boolean held = shard.getLevel(ownerId, resourceId) != 0;
+                shard.lock(ownerId, resourceId, targetLockLevel, reentrant, Math.max(0, waitEnd
+                        - System.currentTimeMillis()));
+                if (!held) {
+                    acquired.add(resourceId);
+                }
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                releaseResources(ownerId, acquired);
+            }
+        }
+    }
+
+    /**
+     * @see LockManager2#tryLockAll(Object, Collection, int, boolean)
+     */
+    public boolean tryLockAll(Object ownerId, Collection resourceIds, int targetLockLevel,
+            boolean reentrant) {
+        Object[] ordered = sortResources(resourceIds);
+        List acquired = new ArrayList(ordered.length);
+        for (int i = 0; i < ordered.length; i++) {
+            Object resourceId = ordered[i];
+            GenericLockManager shard = touchShard(ownerId, resourceId);
+            boolean held = shard.getLevel(ownerId, resourceId) != 0;
+            if (!shard.tryLock(ownerId, resourceId, targetLockLevel, reentrant)) {
+                releaseResources(ownerId, acquired);
+                return false;
+            }
+            if (!held) {
+                acquired.add(resourceId);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sorts resources in the order their locks are acquired by
+     * {@link #lockAll(Object, Collection, int, boolean, long)} and
+     * {@link #tryLockAll(Object, Collection, int, boolean)}. This is the order of
+     * {@link ResourceOrder}, unless shards map resources onto lock stripes. Then the
+     * resources are ordered by their shard and within each shard as described in
+     * {@link GenericLockManager#sortResources(Collection)}, so all resources sharing a stripe
+     * come one after the other.
+     * 
+     * @param resourceIds
+     *            the resources to sort
+     * @return a new array holding each of the resources once in the order to lock them
+     */
+    protected Object[] sortResources(Collection resourceIds) {
+        Object[] sorted = ResourceOrder.sort(resourceIds);
+        boolean striped = false;
+        for (int i = 0; i < shards.length; i++) {
+            striped |= shards[i].getLockStripeCount() != 0;
+        }
+        if (striped) {
+            Arrays.sort(sorted, new Comparator() {
+                public int compare(Object resourceId1, Object resourceId2) {
+                    int shard1 = getShardIndex(resourceId1);
+                    int shard2 = getShardIndex(resourceId2);
+                    if (shard1 != shard2) {
+                        return shard1 < shard2 ? -1 : 1;
+                    }
+                    int index1 = shards[shard1].getLockIndex(resourceId1);
+                    int index2 = shards[shard1].getLockIndex(resourceId2);
+                    return index1 < index2 ? -1 : (index1 == index2 ? 0 : 1);
+                }
+            });
+        }
+        return sorted;
+    }
+
+    protected void releaseResources(Object ownerId, Collection resourceIds) {
+        for (Iterator it = resourceIds.iterator(); it.hasNext();) {
+            Object resourceId = it.next();
+            GenericLockManager shard = getShard(resourceId);
+            GenericLock lock = shard.lookupLock(resourceId);
+            if (lock != null) {
+                shard.releaseLocks(ownerId, Collections.singleton(lock));
+            }
+        }
+    }
+
+    /**
+     * Starts a single time out for the owner, no matter how many shards it requests locks
+     * from.
+     * 
+     * @see LockManager2#startGlobalTimeout(Object, long)
+     */
+    public void startGlobalTimeout(Object ownerId, long timeoutMSecs) {
+        long timeout = System.currentTimeMillis() + timeoutMSecs;
+        effectiveGlobalTimeouts.put(ownerId, new Long(timeout));
+        synchronized (globalTimeoutQueue) {
+            boolean earliest = globalTimeoutQueue.isEmpty()
+                    || timeout < globalTimeoutQueue.peekDeadline();
+            globalTimeoutQueue.add(timeout, ownerId);
+            if (timeoutReaper == null) {
+                timeoutReaper = new TimeoutReaper();
+                timeoutReaper.start();
+            } else if (earliest) {
+                // reaper has to wake up earlier than planned
+                globalTimeoutQueue.notify();
+            }
+        }
+        // restarting the time out does not make an owner younger
+        getTimestamp(ownerId);
+    }
+
+    /**
+     * Gets the time stamp of an owner, which is shared by all shards.
+     * 
+     * @see GenericLockManager#getTimestamp(Object)
+     */
+    protected long getTimestamp(Object ownerId) {
+        return shards[0].getTimestamp(ownerId);
+    }
+
+    /**
+     * Releases the locks of all owners whose global time out has expired in all shards they
+     * have touched. This usually is done by the {@link TimeoutReaper}, but is also called
+     * for an owner requesting a lock in case the reaper is late.
+     */
+    protected void releaseTimedOutOwners() {
+        long now = System.currentTimeMillis();
+        while (true) {
+            long deadline;
+            Object ownerId;
+            synchronized (globalTimeoutQueue) {
+                if (globalTimeoutQueue.isEmpty() || globalTimeoutQueue.peekDeadline() >= now) {
+                    break;
+                }
+                deadline = globalTimeoutQueue.peekDeadline();
+                ownerId = globalTimeoutQueue.poll();
+            }
+            // skip outdated entries of owners that have been reset or restarted; marking
+            // the owner before releasing its locks makes sure it notices the time out in every
+            // shard before anyone else can get them
+            boolean expired = false;
+            synchronized (effectiveGlobalTimeouts.getStripeMonitor(ownerId)) {
+                Long timeout = (Long) effectiveGlobalTimeouts.get(ownerId);
+                if (timeout != null && timeout.longValue() == deadline) {
+                    shards[0].timedOutOwners.put(ownerId, Boolean.TRUE);
+                    expired = true;
+                }
+            }
+            if (expired) {
+                for (Iterator it = getTouchedShards(ownerId, true).iterator(); it.hasNext();) {
+                    ((GenericLockManager) it.next()).releaseAllNoTimeOutReset(ownerId);
+                }
+                // the owner timed out once, so it is counted by a single shard
+                shards[0].statistics.ownerTimedOut();
+            }
+        }
+    }
+
+    /**
+     * Makes sure an owner whose global time out has expired is refused by the shards.
+     */
+    protected void timeoutCheck(Object ownerId) {
+        Long timeout = (Long) effectiveGlobalTimeouts.get(ownerId);
+        if (timeout != null && timeout.longValue() < System.currentTimeMillis()) {
+            releaseTimedOutOwners();
+        }
+    }
+
+    public int getLevel(Object ownerId, Object resourceId) {
+        return getShard(resourceId).getLevel(ownerId, resourceId);
+    }
+
+    public boolean release(Object ownerId, Object resourceId) {
+        return getShard(resourceId).release(ownerId, resourceId);
+    }
+
+    public void releaseAll(Object ownerId) {
+        for (Iterator it = getTouchedShards(ownerId, true).iterator(); it.hasNext();) {
+            ((GenericLockManager) it.next()).releaseAll(ownerId);
+        }
+        // reset time out status for this owner, even if it has no locks
+        synchronized (effectiveGlobalTimeouts.getStripeMonitor(ownerId)) {
+            shards[0].timedOutOwners.remove(ownerId);
+            effectiveGlobalTimeouts.remove(ownerId);
+        }
+        shards[0].ownerTimestamps.remove(ownerId);
+    }
+
+    public Set getAll(Object ownerId) {
+        Set all = new HashSet();
+        for (Iterator it = getTouchedShards(ownerId, false).iterator(); it.hasNext();) {
+            Set locks = ((GenericLockManager) it.next()).getAll(ownerId);
+            synchronized (locks) {
+                all.addAll(locks);
+            }
+        }
+        return all;
+    }
+
+    public MultiLevelLock getLock(Object resourceId) {
+        return getShard(resourceId).getLock(resourceId);
+    }
+
+    public MultiLevelLock atomicGetOrCreateLock(Object resourceId) {
+        return getShard(resourceId).atomicGetOrCreateLock(resourceId);
+    }
+
+    public void removeLock(MultiLevelLock lock) {
+        if (lock instanceof GenericLock) {
+            getShard(((GenericLock) lock).getResourceId()).removeLock(lock);
+        }
+    }
+
+    /**
+     * Daemon thread releasing locks of owners as soon as their global time out expires. It
+     * terminates when there are no more pending time outs and is restarted by
+     * {@link ShardedLockManager#startGlobalTimeout(Object, long)}.
+     */
+    protected class TimeoutReaper extends Thread {
+
+        public TimeoutReaper() {
+            super("Global timeout reaper");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (globalTimeoutQueue) {
+                        if (globalTimeoutQueue.isEmpty()) {
+                            timeoutReaper = null;
+                            return;
+                        }
+                        long wait = globalTimeoutQueue.peekDeadline() - System.currentTimeMillis();
+                        if (wait >= 0) {
+                            // a deadline has expired when it is less than the current time
+                            globalTimeoutQueue.wait(wait + 1);
+                            continue;
+                        }
+                    }
+                    try {
+                        releaseTimedOutOwners();
+                    } catch (RuntimeException e) {
+                        logger.logWarning("Releasing timed out owners failed", e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                synchronized (globalTimeoutQueue) {
+                    timeoutReaper = null;
+                }
+            }
+        }
+    }
+}
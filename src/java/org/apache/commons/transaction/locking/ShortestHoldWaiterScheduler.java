@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import org.apache.commons.transaction.util.StripedMap;
+
+/**
+ * Serves waiting requests of owners expected to hold their locks for the shortest time
+ * first, which minimizes the average wait. Expected hold times are estimated by the caller,
+ * owners without an estimate are served after all others. Estimates have to be removed by
+ * {@link #removeExpectedHoldTime(Object)} when an owner is done, typically right after
+ * releasing all of its locks.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class ShortestHoldWaiterScheduler implements WaiterScheduler {
+
+    /** Maps ownerId to its expected hold time. */
+    protected StripedMap holdTimes = new StripedMap();
+
+    /**
+     * Sets how long an owner is expected to hold its locks. This applies to requests that
+     * start waiting afterwards.
+     *
+     * @param ownerId
+     *            the owner
+     * @param msecs
+     *            the expected hold time in milliseconds
+     */
+    public void setExpectedHoldTime(Object ownerId, long msecs) {
+        holdTimes.put(ownerId, new Long(msecs));
+    }
+
+    /**
+     * Gets how long an owner is expected to hold its locks.
+     *
+     * @param ownerId
+     *            the owner
+     * @return the expected hold time in milliseconds or <code>Long.MAX_VALUE</code> if
+     *         there is no estimate
+     */
+    public long getExpectedHoldTime(Object ownerId) {
+        Long msecs = (Long) holdTimes.get(ownerId);
+        return (msecs == null ? Long.MAX_VALUE : msecs.longValue());
+    }
+
+    public void removeExpectedHoldTime(Object ownerId) {
+        holdTimes.remove(ownerId);
+    }
+
+    public long getRank(GenericLock lock, Object ownerId, int lockLevel, int heldLevel) {
+        return getExpectedHoldTime(ownerId);
+    }
+
+    public boolean isOvertakingAllowed() {
+        return true;
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+
+/**
+ * Read/write lock with the semantics of {@link ReadWriteLock} that is built for many short
+ * read accesses and few writes, like the commit lock of an optimistic map.
+ * <br>
+ * <br>
+ * Readers are hashed into a number of reader slots, each guarded by its own monitor. A read
+ * lock only enters the monitor of its owner's slot to record the owner there, so readers do
+ * not block each other unless they share a slot. A writer first claims the lock under the
+ * monitor of the lock itself, which makes all new readers wait, and then waits until all slots
+ * are free of other readers. This way writes are preferred over reads just as with
+ * {@link ReadWriteLock}. Both levels are reentrant and owners are compared by
+ * <code>equals</code>.
+ * <br>
+ * <br>
+ * Other policies of serving readers and writers can be chosen when creating the lock. To
+ * prefer readers a writer only claims the lock while holding the monitors of all slots at
+ * once and only if there are no readers, otherwise it waits for them to leave and tries
+ * again. With {@link ReadWriteLock#PHASE_FAIR} the readers that had to wait for a writer
+ * are let in by the writer releasing the lock, and the next writer can not claim the lock
+ * before all of them are in.
+ *
+ * @version $Id$
+ * @see ReadWriteLock
+ * @since 1.3
+ */
+public class StripedReadWriteLock implements MultiLevelLock {
+
+    public static final int NO_LOCK = ReadWriteLock.NO_LOCK;
+
+    public static final int READ_LOCK = ReadWriteLock.READ_LOCK;
+
+    public static final int WRITE_LOCK = ReadWriteLock.WRITE_LOCK;
+
+    public static final int DEFAULT_SLOTS = 16;
+
+    protected final Object resourceId;
+
+    protected final LoggerFacade logger;
+
+    protected final ReaderSlot[] slots;
+
+    protected final int mask;
+
+    protected final int preference;
+
+    /**
+     * Owner holding or claiming the write lock, only changed holding the monitor of this lock
+     * or - when readers are preferred - the monitors of all slots.
+     */
+    protected volatile Object writer = null;
+
+    /** Owner waiting for the readers to leave when readers are preferred; guarded by this lock. */
+    protected volatile Object claimant = null;
+
+    // readers waiting for the current writer and readers that have been let in after it,
+    // but are not yet in, when phases are fair; guarded by this lock
+    protected int blockedReaders = 0;
+    protected int admittedReaders = 0;
+
+    // number of writes that have been released; guarded by this lock
+    protected long writePhase = 0;
+
+    /**
+     * Creates a new read/write lock with {@link #DEFAULT_SLOTS} reader slots.
+     *
+     * @param resourceId
+     *            identifier for the resource associated to this lock
+     * @param logger
+     *            generic logger used for all kind of debug logging
+     */
+    public StripedReadWriteLock(Object resourceId, LoggerFacade logger) {
+        this(resourceId, DEFAULT_SLOTS, logger);
+    }
+
+    /**
+     * Creates a new read/write lock.
+     *
+     * @param resourceId
+     *            identifier for the resource associated to this lock
+     * @param slotCount
+     *            number of independently guarded reader slots, will be rounded
+     *            up to the next power of two
+     * @param logger
+     *            generic logger used for all kind of debug logging
+     * @throws IllegalArgumentException
+     *             if slotCount is less than 1
+     */
+    public StripedReadWriteLock(Object resourceId, int slotCount, LoggerFacade logger)
+            throws IllegalArgumentException {
+        this(resourceId, slotCount, ReadWriteLock.PREFER_WRITERS, logger);
+    }
+
+    /**
+     * Creates a new read/write lock.
+     *
+     * @param resourceId
+     *            identifier for the resource associated to this lock
+     * @param slotCount
+     *            number of independently guarded reader slots, will be rounded
+     *            up to the next power of two
+     * @param preference
+     *            one of {@link ReadWriteLock#PREFER_WRITERS},
+     *            {@link ReadWriteLock#PREFER_READERS} and {@link ReadWriteLock#PHASE_FAIR}
+     * @param logger
+     *            generic logger used for all kind of debug logging
+     * @throws IllegalArgumentException
+     *             if slotCount is less than 1 or the policy is unknown
+     */
+    public StripedReadWriteLock(Object resourceId, int slotCount, int preference,
+            LoggerFacade logger) throws IllegalArgumentException {
+        if (slotCount < 1)
+            throw new IllegalArgumentException("There must be at least one reader slot ("
+                    + slotCount + " was specified)");
+        this.resourceId = resourceId;
+        this.preference = ReadWriteLock.checkPreference(preference);
+        this.logger = logger;
+        int size = 1;
+        while (size < slotCount) {
+            size <<= 1;
+        }
+        slots = new ReaderSlot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ReaderSlot();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Tries to acquire a blocking, reentrant read lock. A read lock is
+     * compatible with other read locks, but not with a write lock.
+     *
+     * @param ownerId
+     *            a unique id identifying the entity that wants to acquire a
+     *            certain lock level on this lock
+     * @param timeoutMSecs
+     *            specifies the maximum wait time in milliseconds
+     * @return <code>true</code> if the lock actually was acquired
+     * @throws InterruptedException
+     *             when the thread waiting on this method is interrupted
+     */
+    public boolean acquireRead(Object ownerId, long timeoutMSecs) throws InterruptedException {
+        return acquire(ownerId, READ_LOCK, true, true, timeoutMSecs);
+    }
+
+    /**
+     * Tries to acquire a blocking, reentrant write lock. A write lock is
+     * incompatible with any another read or write lock and is thus exclusive.
+     *
+     * @param ownerId
+     *            a unique id identifying the entity that wants to acquire a
+     *            certain lock level on this lock
+     * @param timeoutMSecs
+     *            specifies the maximum wait time in milliseconds
+     * @return <code>true</code> if the lock actually was acquired
+     * @throws InterruptedException
+     *             when the thread waiting on this method is interrupted
+     */
+    public boolean acquireWrite(Object ownerId, long timeoutMSecs) throws InterruptedException {
+        return acquire(ownerId, WRITE_LOCK, true, true, timeoutMSecs);
+    }
+
+    public boolean acquire(Object ownerId, int targetLockLevel, boolean wait, boolean reentrant,
+            long timeoutMSecs) throws InterruptedException {
+        if (targetLockLevel <= NO_LOCK) {
+            return true;
+        }
+        long waitEnd = System.currentTimeMillis() + timeoutMSecs;
+        if (targetLockLevel == READ_LOCK) {
+            return acquireShared(ownerId, wait, reentrant, waitEnd);
+        } else {
+            return acquireExclusive(ownerId, wait, reentrant, waitEnd);
+        }
+    }
+
+    public boolean release(Object ownerId) {
+        boolean released = false;
+        ReaderSlot slot = getSlot(ownerId);
+        synchronized (slot) {
+            if (slot.remove(ownerId)) {
+                released = true;
+                if (writer != null || claimant != null) {
+                    // a writer may wait for us to be gone
+                    slot.notifyAll();
+                }
+            }
+        }
+        if (ownerId.equals(writer)) {
+            synchronized (this) {
+                if (ownerId.equals(writer)) {
+                    writer = null;
+                    writePhase++;
+                    if (preference == ReadWriteLock.PHASE_FAIR) {
+                        // the readers that had to wait for us are next
+                        admittedReaders += blockedReaders;
+                        blockedReaders = 0;
+                    }
+                    notifyAll();
+                    released = true;
+                }
+            }
+        }
+        return released;
+    }
+
+    public int getLockLevel(Object ownerId) {
+        if (ownerId.equals(writer)) {
+            return WRITE_LOCK;
+        }
+        ReaderSlot slot = getSlot(ownerId);
+        synchronized (slot) {
+            return slot.contains(ownerId) ? READ_LOCK : NO_LOCK;
+        }
+    }
+
+    /**
+     * Gets the policy this lock has been created with.
+     */
+    public int getPreference() {
+        return preference;
+    }
+
+    /**
+     * Gets the number of owners currently holding a read lock.
+     */
+    public int getReaderCount() {
+        int count = 0;
+        for (int i = 0; i < slots.length; i++) {
+            synchronized (slots[i]) {
+                count += slots[i].size;
+            }
+        }
+        return count;
+    }
+
+    public String toString() {
+        StringBuffer buf = new StringBuffer();
+        buf.append(resourceId.toString()).append(":\n");
+        Object currentWriter = writer;
+        if (currentWriter != null) {
+            buf.append("- ").append(currentWriter.toString()).append(": level ").append(
+                    WRITE_LOCK).append("\n");
+        }
+        for (int i = 0; i < slots.length; i++) {
+            synchronized (slots[i]) {
+                for (int j = 0; j < slots[i].size; j++) {
+                    buf.append("- ").append(slots[i].owners[j].toString()).append(": level ")
+                            .append(READ_LOCK).append("\n");
+                }
+            }
+        }
+        return buf.toString();
+    }
+
+    protected boolean acquireShared(Object ownerId, boolean wait, boolean reentrant, long waitEnd)
+            throws InterruptedException {
+        ReaderSlot slot = getSlot(ownerId);
+        while (true) {
+            synchronized (slot) {
+                Object currentWriter = writer;
+                if (currentWriter == null) {
+                    slot.add(ownerId);
+                    return true;
+                }
+                if (reentrant && (currentWriter.equals(ownerId) || slot.contains(ownerId))) {
+                    // we already have it
+                    return true;
+                }
+            }
+            if (!wait) {
+                return false;
+            }
+            // a writer holds or claims the lock, so we wait until it is done
+            synchronized (this) {
+                if (preference == ReadWriteLock.PHASE_FAIR) {
+                    long phase = writePhase;
+                    blockedReaders++;
+                    try {
+                        while (writer != null && writePhase == phase) {
+                            long timeoutMSecs = waitEnd - System.currentTimeMillis();
+                            if (timeoutMSecs <= 0) {
+                                logTimeout(ownerId, READ_LOCK);
+                                return false;
+                            }
+                            wait(timeoutMSecs);
+                        }
+                        if (writePhase != phase) {
+                            // we have been let in, no writer can claim the lock before we are
+                            synchronized (slot) {
+                                slot.add(ownerId);
+                            }
+                            return true;
+                        }
+                    } finally {
+                        if (writePhase == phase) {
+                            blockedReaders--;
+                        } else if (--admittedReaders == 0) {
+                            notifyAll();
+                        }
+                    }
+                } else {
+                    while (writer != null) {
+                        long timeoutMSecs = waitEnd - System.currentTimeMillis();
+                        if (timeoutMSecs <= 0) {
+                            logTimeout(ownerId, READ_LOCK);
+                            return false;
+                        }
+                        wait(timeoutMSecs);
+                    }
+                }
+            }
+        }
+    }
+
+    protected boolean acquireExclusive(Object ownerId, boolean wait, boolean reentrant,
+            long waitEnd) throws InterruptedException {
+        synchronized (this) {
+            while (writer != null || claimant != null || admittedReaders != 0) {
+                if (reentrant && ownerId.equals(writer)) {
+                    // we already have it
+                    return true;
+                }
+                long timeoutMSecs = waitEnd - System.currentTimeMillis();
+                if (!wait || timeoutMSecs <= 0) {
+                    logTimeout(ownerId, WRITE_LOCK);
+                    return false;
+                }
+                wait(timeoutMSecs);
+            }
+            if (preference == ReadWriteLock.PREFER_READERS) {
+                claimant = ownerId;
+            } else {
+                // from now on no new reader gets in
+                writer = ownerId;
+            }
+        }
+        if (preference == ReadWriteLock.PREFER_READERS) {
+            return claimWithoutReaders(ownerId, wait, reentrant, waitEnd);
+        }
+
+        boolean acquired = false;
+        try {
+            for (int i = 0; i < slots.length; i++) {
+                ReaderSlot slot = slots[i];
+                synchronized (slot) {
+                    while (slot.hasReadersBesides(reentrant ? ownerId : null)) {
+                        long timeoutMSecs = waitEnd - System.currentTimeMillis();
+                        if (!wait || timeoutMSecs <= 0) {
+                            logTimeout(ownerId, WRITE_LOCK);
+                            return false;
+                        }
+                        slot.wait(timeoutMSecs);
+                    }
+                }
+            }
+            acquired = true;
+            return true;
+        } finally {
+            if (!acquired) {
+                // give up our claim and let in the readers
+                synchronized (this) {
+                    writer = null;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Claims the write lock as soon as there are no readers, letting in new readers while
+     * waiting for them to leave.
+     */
+    protected boolean claimWithoutReaders(Object ownerId, boolean wait, boolean reentrant,
+            long waitEnd) throws InterruptedException {
+        try {
+            while (true) {
+                int busy = claimIfNoReaders(0, ownerId, reentrant ? ownerId : null);
+                if (busy == -1) {
+                    return true;
+                }
+                ReaderSlot slot = slots[busy];
+                synchronized (slot) {
+                    while (slot.hasReadersBesides(reentrant ? ownerId : null)) {
+                        long timeoutMSecs = waitEnd - System.currentTimeMillis();
+                        if (!wait || timeoutMSecs <= 0) {
+                            logTimeout(ownerId, WRITE_LOCK);
+                            return false;
+                        }
+                        slot.wait(timeoutMSecs);
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                claimant = null;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Takes the monitors of all slots from the specified one on and claims the write lock
+     * if none of them has readers.
+     *
+     * @return <code>-1</code> if the lock has been claimed, otherwise the index of a slot
+     *         that has readers
+     */
+    private int claimIfNoReaders(int index, Object ownerId, Object reentrantOwnerId) {
+        if (index == slots.length) {
+            writer = ownerId;
+            return -1;
+        }
+        synchronized (slots[index]) {
+            if (slots[index].hasReadersBesides(reentrantOwnerId)) {
+                return index;
+            }
+            return claimIfNoReaders(index + 1, ownerId, reentrantOwnerId);
+        }
+    }
+
+    protected ReaderSlot getSlot(Object ownerId) {
+        int h = ownerId.hashCode();
+        // spread higher bits as the slot is selected by the lower ones only
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return slots[h & mask];
+    }
+
+    protected void logTimeout(Object ownerId, int targetLockLevel) {
+        if (logger.isFinerEnabled()) {
+            logger.logFiner(ownerId.toString() + " did not get lock for " + resourceId.toString()
+                    + " at level " + targetLockLevel + " at " + System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Owners holding a read lock that are hashed into the same slot. There usually are only
+     * a few of them, so they are kept in an array that is searched linearly. Guarded by the
+     * slot itself, which also is the monitor a writer waits on for the readers to leave.
+     */
+    protected static class ReaderSlot {
+        protected Object[] owners = new Object[2];
+        protected int size = 0;
+
+        protected boolean contains(Object ownerId) {
+            return indexOf(ownerId) != -1;
+        }
+
+        protected void add(Object ownerId) {
+            if (indexOf(ownerId) != -1) {
+                return;
+            }
+            if (size == owners.length) {
+                Object[] grown = new Object[size * 2];
+                System.arraycopy(owners, 0, grown, 0, size);
+                owners = grown;
+            }
+            owners[size++] = ownerId;
+        }
+
+        protected boolean remove(Object ownerId) {
+            int index = indexOf(ownerId);
+            if (index == -1) {
+                return false;
+            }
+            owners[index] = owners[--size];
+            owners[size] = null;
+            return true;
+        }
+
+        protected boolean hasReadersBesides(Object ownerId) {
+            return size > 1 || (size == 1 && (ownerId == null || !owners[0].equals(ownerId)));
+        }
+
+        private int indexOf(Object ownerId) {
+            for (int i = 0; i < size; i++) {
+                if (owners[i].equals(ownerId)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+/**
+ * Serves waiting requests of owners that already hold the lock and want to raise their
+ * level before all others. An owner waiting for an upgrade blocks everybody else with the
+ * level it holds, so serving it first shortens the wait for all of them and makes
+ * deadlocks between upgrading owners and others less likely.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class UpgradeFirstWaiterScheduler implements WaiterScheduler {
+
+    public long getRank(GenericLock lock, Object ownerId, int lockLevel, int heldLevel) {
+        return (heldLevel > lock.getLevelMinLock() ? 0 : 1);
+    }
+
+    public boolean isOvertakingAllowed() {
+        return true;
+    }
+}
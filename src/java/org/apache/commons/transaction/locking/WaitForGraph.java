@@ -0,0 +1,362 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.transaction.util.StripedMap;
+
+/**
+ * Wait-for graph used by {@link GenericLockManager} to detect deadlocks.
+ *
+ * <p>
+ * Each owner blocked on a lock is registered with the request it waits for. This
+ * is done incrementally when an owner starts and stops waiting, so there is no
+ * need to scan all owners and locks. An edge leads from a waiting owner to every
+ * owner currently holding a conflicting lock level. Edges are not stored, but
+ * resolved against the current holders of the lock when the graph is
+ * traversed. This way an edge can never be stale when a holder releases its lock
+ * before the waiter had a chance to notice.
+ * </p>
+ *
+ * <p>
+ * A deadlock check starting from a newly blocked owner is a breadth first
+ * search that visits every owner at most once. It thus is linear in the number
+ * of waiting owners and their conflicts, while the recursive traversal formerly
+ * done by {@link GenericLockManager#wouldDeadlock(Object, Set)} could be
+ * exponential.
+ * </p>
+ *
+ * <p>
+ * Searching all waiting owners for deadlocks is done by {@link #findCycles()} in a single
+ * pass finding the strongly connected components of the graph, which is linear as well,
+ * rather than by a search starting from every waiting owner.
+ * </p>
+ *
+ * @version $Id$
+ * @see GenericLockManager
+ * @since 1.3
+ */
+public class WaitForGraph {
+
+    /** Maps waiting ownerId to the request it is blocked on. */
+    protected StripedMap waiting = new StripedMap();
+
+    /**
+     * Registers an owner as waiting for a lock.
+     *
+     * @param ownerId
+     *            the owner that is blocked
+     * @param lock
+     *            the lock it waits for
+     * @param targetLockLevel
+     *            the requested lock level
+     * @param compatibility
+     *            the requested compatibility as described in
+     *            {@link MultiLevelLock2}
+     * @param preferred
+     *            <code>true</code> if the request is preferred
+     */
+    public void addWaiter(Object ownerId, GenericLock lock, int targetLockLevel,
+            int compatibility, boolean preferred) {
+        waiting.put(ownerId, new WaitFor(lock, targetLockLevel, compatibility, preferred));
+    }
+
+    /**
+     * Unregisters a waiting owner.
+     *
+     * @param ownerId
+     *            the owner no longer waiting
+     */
+    public void removeWaiter(Object ownerId) {
+        waiting.remove(ownerId);
+    }
+
+    /**
+     * Checks if an owner is waiting for a lock.
+     *
+     * @param ownerId
+     *            the owner to check
+     * @return <code>true</code> if the owner is registered as waiting
+     */
+    public boolean isWaiting(Object ownerId) {
+        return waiting.containsKey(ownerId);
+    }
+
+    /**
+     * Gets the lock a waiting owner is blocked on.
+     *
+     * @param ownerId
+     *            the waiting owner
+     * @return the lock or <code>null</code> if the owner does not wait
+     */
+    public GenericLock getWaitingFor(Object ownerId) {
+        WaitFor waitFor = (WaitFor) waiting.get(ownerId);
+        return (waitFor == null ? null : waitFor.lock);
+    }
+
+    /**
+     * Gets the time an owner has been registered as waiting.
+     *
+     * @param ownerId
+     *            the waiting owner
+     * @return the time in milliseconds as returned by
+     *         {@link System#currentTimeMillis()} or <code>-1</code> if the
+     *         owner does not wait
+     */
+    public long getWaitingSince(Object ownerId) {
+        WaitFor waitFor = (WaitFor) waiting.get(ownerId);
+        return (waitFor == null ? -1 : waitFor.since);
+    }
+
+    /**
+     * Gets all owners currently waiting for a lock. The returned set is a
+     * snapshot.
+     *
+     * @return set of waiting owner ids
+     */
+    public Set getWaiters() {
+        return waiting.keySet();
+    }
+
+    /**
+     * Gets the owners a waiting owner is blocked by.
+     *
+     * @param ownerId
+     *            the waiting owner
+     * @return the conflicting owners or <code>null</code> if there are none
+     */
+    public Set getBlockers(Object ownerId) {
+        WaitFor waitFor = (WaitFor) waiting.get(ownerId);
+        if (waitFor == null) {
+            return null;
+        }
+        return waitFor.lock.getBlockingOwners(ownerId, waitFor.targetLockLevel,
+                waitFor.compatibility, waitFor.preferred);
+    }
+
+    /**
+     * Checks if an owner is part of a cycle of waiting owners.
+     *
+     * @param ownerId
+     *            the owner to check
+     * @return <code>true</code> if the owner is deadlocked
+     */
+    public boolean isDeadlocked(Object ownerId) {
+        return findCycle(ownerId) != null;
+    }
+
+    /**
+     * Finds the shortest cycle of waiting owners containing the specified
+     * owner.
+     *
+     * @param ownerId
+     *            the owner to start from
+     * @return the owners forming the cycle starting with ownerId, each waiting
+     *         for its successor and the last one waiting for ownerId, or
+     *         <code>null</code> if there is no such cycle
+     */
+    public List findCycle(Object ownerId) {
+        return findCycle(ownerId, null, null);
+    }
+
+    /**
+     * Finds the cycles of waiting owners in a single pass over the graph. Owners waiting for
+     * each other form a strongly connected component of the graph, which is found using
+     * Tarjan's algorithm, and every component contains at least one cycle. The blockers of
+     * each owner are resolved only once, so this takes time linear in the number of waiting
+     * owners and their conflicts, however many deadlocks there are.
+     * <br>
+     * <br>
+     * Only one cycle is returned per component, even if it contains several. Resolving that
+     * cycle does not necessarily resolve the others, which will then be found by the next
+     * search.
+     *
+     * @return list of cycles, each as returned by {@link #findCycle(Object)}, of owners
+     *         that are part of no other cycle returned
+     * @since 1.3
+     */
+    public List findCycles() {
+        Map blockers = new HashMap();
+        Map visits = new HashMap();
+        List stack = new ArrayList();
+        LinkedList path = new LinkedList();
+        List cycles = new ArrayList();
+        int count = 0;
+        for (Iterator roots = getWaiters().iterator(); roots.hasNext();) {
+            Object root = roots.next();
+            if (visits.containsKey(root)) {
+                continue;
+            }
+            // depth first search without recursion, so many waiting owners can not exhaust
+            // the stack
+            Visit visit = new Visit(root, count++, getBlockers(root, blockers).iterator());
+            visits.put(root, visit);
+            stack.add(visit);
+            path.addLast(visit);
+            while (!path.isEmpty()) {
+                visit = (Visit) path.getLast();
+                if (visit.successors.hasNext()) {
+                    Object successor = visit.successors.next();
+                    Visit next = (Visit) visits.get(successor);
+                    if (next == null) {
+                        next = new Visit(successor, count++, getBlockers(successor, blockers)
+                                .iterator());
+                        visits.put(successor, next);
+                        stack.add(next);
+                        path.addLast(next);
+                    } else if (next.onStack) {
+                        visit.lowlink = Math.min(visit.lowlink, next.index);
+                    }
+                    continue;
+                }
+                path.removeLast();
+                if (!path.isEmpty()) {
+                    Visit parent = (Visit) path.getLast();
+                    parent.lowlink = Math.min(parent.lowlink, visit.lowlink);
+                }
+                if (visit.lowlink == visit.index) {
+                    // visit is the root of a component, which is on the stack above it
+                    Set component = new HashSet();
+                    Visit member;
+                    do {
+                        member = (Visit) stack.remove(stack.size() - 1);
+                        member.onStack = false;
+                        component.add(member.ownerId);
+                    } while (member != visit);
+                    if (component.size() > 1) {
+                        cycles.add(findCycle(visit.ownerId, blockers, component));
+                    }
+                }
+            }
+        }
+        return cycles;
+    }
+
+    /**
+     * Finds the shortest cycle containing an owner as {@link #findCycle(Object)} does, but
+     * optionally restricted to some owners and with blockers already resolved.
+     *
+     * @param ownerId
+     *            the owner to start from
+     * @param blockers
+     *            cache of blockers by owner as filled by the search for components or
+     *            <code>null</code> to resolve them
+     * @param within
+     *            owners the cycle may contain or <code>null</code> for all
+     */
+    protected List findCycle(Object ownerId, Map blockers, Set within) {
+        // maps every visited owner to the one waiting for it
+        Map predecessors = new HashMap();
+        LinkedList queue = new LinkedList();
+        queue.add(ownerId);
+        while (!queue.isEmpty()) {
+            Object current = queue.removeFirst();
+            Set currentBlockers = (blockers == null ? getBlockers(current) : getBlockers(
+                    current, blockers));
+            if (currentBlockers == null) {
+                continue;
+            }
+            for (Iterator it = currentBlockers.iterator(); it.hasNext();) {
+                Object blocker = it.next();
+                if (blocker.equals(ownerId)) {
+                    return buildCycle(ownerId, current, predecessors);
+                }
+                if (!predecessors.containsKey(blocker)
+                        && (within == null || within.contains(blocker))) {
+                    predecessors.put(blocker, current);
+                    queue.add(blocker);
+                }
+            }
+        }
+        return null;
+    }
+
+    private Set getBlockers(Object ownerId, Map cache) {
+        Set blockers = (Set) cache.get(ownerId);
+        if (blockers == null) {
+            blockers = getBlockers(ownerId);
+            if (blockers == null) {
+                blockers = Collections.EMPTY_SET;
+            }
+            cache.put(ownerId, blockers);
+        }
+        return blockers;
+    }
+
+    protected List buildCycle(Object ownerId, Object last, Map predecessors) {
+        LinkedList cycle = new LinkedList();
+        for (Object current = last; !current.equals(ownerId); current = predecessors.get(current)) {
+            cycle.addFirst(current);
+        }
+        cycle.addFirst(ownerId);
+        return new ArrayList(cycle);
+    }
+
+    public String toString() {
+        StringBuffer buf = new StringBuffer();
+        for (Iterator it = waiting.entrySet().iterator(); it.hasNext();) {
+            Map.Entry entry = (Map.Entry) it.next();
+            WaitFor waitFor = (WaitFor) entry.getValue();
+            buf.append(entry.getKey().toString()).append(" waits for ").append(
+                    waitFor.lock.getResourceId().toString()).append(" at level ").append(
+                    waitFor.targetLockLevel).append('\n');
+        }
+        return buf.toString();
+    }
+
+    // state of an owner during the search for strongly connected components
+    private static class Visit {
+        final Object ownerId;
+        final int index;
+        final Iterator successors;
+        int lowlink;
+        boolean onStack = true;
+
+        Visit(Object ownerId, int index, Iterator successors) {
+            this.ownerId = ownerId;
+            this.index = index;
+            this.successors = successors;
+            this.lowlink = index;
+        }
+    }
+
+    protected static class WaitFor {
+        public final GenericLock lock;
+        public final int targetLockLevel;
+        public final int compatibility;
+        public final boolean preferred;
+        public final long since;
+
+        public WaitFor(GenericLock lock, int targetLockLevel, int compatibility,
+                boolean preferred) {
+            this.lock = lock;
+            this.targetLockLevel = targetLockLevel;
+            this.compatibility = compatibility;
+            this.preferred = preferred;
+            this.since = System.currentTimeMillis();
+        }
+    }
+}
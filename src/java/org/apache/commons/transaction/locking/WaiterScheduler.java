@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+/**
+ * Decides which of the requests waiting for a {@link GenericLock} are served first when the
+ * lock is handed over.
+ *
+ * <p>
+ * Each request is ranked when it starts waiting. When the lock is handed over, waiting
+ * requests are tried in the order of their ranks, lowest first, and requests of the same
+ * rank in the order they started waiting. Preferred requests still come before all others,
+ * as they claim the lock while waiting. Requests that can be granted right away when they
+ * come in do not wait and thus are not scheduled at all.
+ * </p>
+ *
+ * @version $Id$
+ * @see GenericLock#setWaiterScheduler(WaiterScheduler)
+ * @see GenericLockManager#setWaiterScheduler(WaiterScheduler)
+ * @since 1.3
+ */
+public interface WaiterScheduler {
+
+    /**
+     * Ranks a request that starts waiting. This is called while holding the monitor of the
+     * lock, so implementations should return quickly.
+     *
+     * @param lock
+     *            the lock waited for
+     * @param ownerId
+     *            the owner of the request
+     * @param lockLevel
+     *            the level requested
+     * @param heldLevel
+     *            the level the owner already holds on the lock, which is
+     *            {@link GenericLock#getLevelMinLock()} if it holds none
+     * @return the rank, the lower the earlier the request is served
+     */
+    public long getRank(GenericLock lock, Object ownerId, int lockLevel, int heldLevel);
+
+    /**
+     * Determines if a request may be granted while requests ranked before it still have to
+     * wait. If not, requests are granted strictly in order and new requests of owners not
+     * holding the lock wait behind all waiting ones, which avoids starving requests
+     * incompatible with many others, but leaves the lock idle while they wait.
+     *
+     * @return <code>true</code> if requests may be overtaken
+     */
+    public boolean isOvertakingAllowed();
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import org.apache.commons.transaction.util.StripedMap;
+
+/**
+ * Serves waiting requests of owners with a higher weight as assigned by the caller first,
+ * e.g. to let interactive transactions overtake batch jobs. Owners without a weight have
+ * weight <code>0</code>. Weights have to be removed by {@link #removeWeight(Object)} when an
+ * owner is done, typically right after releasing all of its locks.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class WeightedWaiterScheduler implements WaiterScheduler {
+
+    /** Maps ownerId to its weight. */
+    protected StripedMap weights = new StripedMap();
+
+    /**
+     * Assigns a weight to an owner. This applies to requests that start waiting afterwards.
+     *
+     * @param ownerId
+     *            the owner
+     * @param weight
+     *            the weight, the higher the earlier requests of the owner are served
+     */
+    public void setWeight(Object ownerId, int weight) {
+        weights.put(ownerId, new Integer(weight));
+    }
+
+    public int getWeight(Object ownerId) {
+        Integer weight = (Integer) weights.get(ownerId);
+        return (weight == null ? 0 : weight.intValue());
+    }
+
+    public void removeWeight(Object ownerId) {
+        weights.remove(ownerId);
+    }
+
+    public long getRank(GenericLock lock, Object ownerId, int lockLevel, int heldLevel) {
+        return -(long) getWeight(ownerId);
+    }
+
+    public boolean isOvertakingAllowed() {
+        return true;
+    }
+}
@@ -23,7 +23,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Collections;
 
+import org.apache.commons.transaction.locking.LockException;
 import org.apache.commons.transaction.locking.ReadWriteLock;
+import org.apache.commons.transaction.locking.StripedReadWriteLock;
 import org.apache.commons.transaction.util.LoggerFacade;
 import org.apache.commons.transaction.util.PrintWriterLogger;
 
@@ -43,6 +45,10 @@ import org.apache.commons.transaction.util.PrintWriterLogger;
  * <em>Note:</em> This wrapper guarantees isolation level <code>SERIALIZABLE</code>.
  * <br>
  * <em>Caution:</em> This implementation might be slow when large amounts of data is changed in a transaction as much references will need to be copied around.
+ * <br>
+ * <em>Note:</em> Since 1.3 the commit lock is a {@link StripedReadWriteLock} instead of a {@link ReadWriteLock}.
+ * This is not source compatible for subclasses accessing the protected field {@link #commitLock}, which have to be
+ * changed to the new type. Its methods for read and write locks are the same as before.
  * 
  * @version $Id$
  * @see TransactionalMapWrapper
@@ -57,7 +63,11 @@ public class OptimisticMapWrapper extends TransactionalMapWrapper {
 
     protected LoggerFacade logger;
 
-    protected ReadWriteLock commitLock;
+    /**
+     * Read locked by every access of a transaction and write locked by commits. Up to 1.2 this
+     * was a {@link ReadWriteLock}.
+     */
+    protected StripedReadWriteLock commitLock;
 
     /**
      * Creates a new optimistic transactional map wrapper. Temporary maps and sets to store transactional
@@ -96,7 +106,9 @@ public class OptimisticMapWrapper extends TransactionalMapWrapper {
         super(wrapped, mapFactory, setFactory);
         activeTransactions = Collections.synchronizedSet(new HashSet());
         this.logger = logger;
-        commitLock = new ReadWriteLock("COMMIT", logger);
+        // phase fair, so neither a stream of commits nor of reads can hold up the other for long
+        commitLock = new StripedReadWriteLock("COMMIT", StripedReadWriteLock.DEFAULT_SLOTS,
+                ReadWriteLock.PHASE_FAIR, logger);
     }
 
     public void startTransaction() {
@@ -111,8 +123,9 @@ public class OptimisticMapWrapper extends TransactionalMapWrapper {
 
     public void rollbackTransaction() {
         TxContext txContext = getActiveTx();
-        super.rollbackTransaction();
+        // a commit must not copy its changes to the transaction once it has been disposed
         activeTransactions.remove(txContext);
+        super.rollbackTransaction();
     }
 
     public void commitTransaction() throws ConflictException {
@@ -134,7 +147,10 @@ public class OptimisticMapWrapper extends TransactionalMapWrapper {
         try {
             // in this final commit phase we need to be the only one access the map
             // to make sure no one adds an entry after we checked for conflicts
-            commitLock.acquireWrite(txContext, COMMIT_TIMEOUT);
+            if (!commitLock.acquireWrite(txContext, COMMIT_TIMEOUT)) {
+                throw new LockException("Timed out waiting for the commit lock",
+                        LockException.CODE_TIMED_OUT, "COMMIT");
+            }
 
             if (!force) {
                 Object conflictKey = checkForConflicts();
@@ -18,10 +18,13 @@
 package org.apache.commons.transaction.memory;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 
-import org.apache.commons.transaction.locking.ReadWriteLockManager;
+import org.apache.commons.transaction.locking.GenericLockManager;
+import org.apache.commons.transaction.locking.IntentionLock;
+import org.apache.commons.transaction.locking.IntentionLockManager;
 import org.apache.commons.transaction.util.LoggerFacade;
 
 /**
@@ -37,6 +40,15 @@ import org.apache.commons.transaction.util.LoggerFacade;
  * Rather clone the value or copy it in a way you see fit and store it back using {@link #put(Object, Object)}.
  * <br>
  * <em>Note:</em> This wrapper guarantees isolation level <code>SERIALIZABLE</code>.
+ * <br>
+ * Locks are taken by means of multi granularity locking (see {@link IntentionLock}): the
+ * whole map is locked by operations on all entries like {@link #size()} or {@link #clear()},
+ * while operations on single entries lock their key and announce their intention on the map.
+ * The lock manager remembers the intention of a transaction, so operations on single entries
+ * do not contend for a single shared lock. Transactions touching lots of entries can have
+ * their locks escalated to a lock on the whole map (see {@link #setEscalationThreshold(int)}).
+ * Maps with lots of entries can map them onto a fixed number of locks instead (see
+ * {@link #setLockStripes(int)}).
  * 
  * @version $Id$
  * @see TransactionalMapWrapper
@@ -49,7 +61,7 @@ public class PessimisticMapWrapper extends TransactionalMapWrapper {
 
     protected static final Object GLOBAL_LOCK = "GLOBAL";
 
-    protected ReadWriteLockManager lockManager;
+    protected IntentionLockManager lockManager;
 //    protected MultiLevelLock globalLock;
     protected long readTimeOut = 60000; /* FIXME: pass in ctor */
 
@@ -77,10 +89,37 @@ public class PessimisticMapWrapper extends TransactionalMapWrapper {
      */
     public PessimisticMapWrapper(Map wrapped, MapFactory mapFactory, SetFactory setFactory, LoggerFacade logger) {
         super(wrapped, mapFactory, setFactory);
-        lockManager = new ReadWriteLockManager(logger, readTimeOut);
+        lockManager = new IntentionLockManager(logger, readTimeOut);
 //        globalLock = new GenericLock(GLOBAL_LOCK_NAME, WRITE, logger);
     }
 
+    /**
+     * Sets the number of entries a transaction may lock before its locks are escalated to a
+     * lock on the whole map.
+     * 
+     * @param escalationThreshold
+     *            maximum number of locked entries or <code>0</code> to switch escalation off,
+     *            which is the default
+     * @see IntentionLockManager#setEscalationThreshold(int)
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        lockManager.setEscalationThreshold(escalationThreshold);
+    }
+
+    /**
+     * Maps the entries onto a fixed number of locks instead of locking each entry on its
+     * own. This bounds the memory used for locks for maps with lots of entries, at the price
+     * of transactions conflicting on different entries sharing a lock. The lock on the whole
+     * map is not affected. This must be called before the first transaction is started.
+     * 
+     * @param stripeCount
+     *            the number of locks, will be rounded up to the next power of two
+     * @see GenericLockManager#setLockStripes(int, Collection)
+     */
+    public void setLockStripes(int stripeCount) {
+        lockManager.setLockStripes(stripeCount, Collections.singleton(GLOBAL_LOCK));
+    }
+
     public void startTransaction() {
         if (getActiveTx() != null) {
             throw new IllegalStateException(
@@ -119,59 +158,87 @@ public class PessimisticMapWrapper extends TransactionalMapWrapper {
         return super.put(key, value);
     }
 
+    public void putAll(Map map) {
+        LockingTxContext txContext = (LockingTxContext) getActiveTx();
+        if (txContext != null) {
+            // all at once and in canonical order to avoid deadlocks with other bulk writers
+            txContext.lockKeys(map.keySet(), IntentionLock.EXCLUSIVE);
+        }
+        super.putAll(map);
+    }
+
     protected void assureWriteLock(Object key) {
         LockingTxContext txContext = (LockingTxContext) getActiveTx();
         if (txContext != null) {
-            lockManager.writeLock(txContext, key);
-            // XXX fake intention lock (prohibits global WRITE)
-            lockManager.readLock(txContext, GLOBAL_LOCK); 
+            txContext.lockKey(key, IntentionLock.EXCLUSIVE);
         }
     }
     
     protected void assureGlobalReadLock() {
         LockingTxContext txContext = (LockingTxContext) getActiveTx();
         if (txContext != null) {
-            // XXX fake intention lock (prohibits global WRITE)
-            lockManager.readLock(txContext, GLOBAL_LOCK); 
+            txContext.lockGlobal(IntentionLock.SHARED);
         }
     }
     
     public class LockingTxContext extends TxContext {
 
+        /**
+         * Locks the whole map.
+         * 
+         * @param mode the mode as defined in {@link IntentionLock}
+         */
+        protected void lockGlobal(int mode) {
+            lockManager.lock(this, new Object[] { GLOBAL_LOCK }, mode);
+        }
+
+        /**
+         * Locks a single entry after announcing the intention on the whole map.
+         * 
+         * @param key the key of the entry
+         * @param mode either {@link IntentionLock#SHARED} or {@link IntentionLock#EXCLUSIVE}
+         */
+        protected void lockKey(Object key, int mode) {
+            lockManager.lock(this, new Object[] { GLOBAL_LOCK, key }, mode);
+        }
+
+        /**
+         * Locks a number of entries after announcing the intention on the whole map.
+         * 
+         * @param keys the keys of the entries
+         * @param mode either {@link IntentionLock#SHARED} or {@link IntentionLock#EXCLUSIVE}
+         */
+        protected void lockKeys(Collection keys, int mode) {
+            lockManager.lockAll(this, new Object[] { GLOBAL_LOCK }, keys, mode, readTimeOut);
+        }
+
         protected Set keys() {
-            lockManager.readLock(this, GLOBAL_LOCK); 
+            lockGlobal(IntentionLock.SHARED);
             return super.keys();
         }
 
         protected Object get(Object key) {
-            lockManager.readLock(this, key);
-            // XXX fake intention lock (prohibits global WRITE)
-            lockManager.readLock(this, GLOBAL_LOCK);
+            lockKey(key, IntentionLock.SHARED);
             return super.get(key);
         }
 
         protected void put(Object key, Object value) {
-            lockManager.writeLock(this, key);
-            // XXX fake intention lock (prohibits global WRITE)
-            lockManager.readLock(this, GLOBAL_LOCK);
+            lockKey(key, IntentionLock.EXCLUSIVE);
             super.put(key, value);
         }
 
         protected void remove(Object key) {
-            lockManager.writeLock(this, key);
-            // XXX fake intention lock (prohibits global WRITE)
-            lockManager.readLock(this, GLOBAL_LOCK);
+            lockKey(key, IntentionLock.EXCLUSIVE);
             super.remove(key);
         }
 
         protected int size() {
-            // XXX this is bad luck, we need a global read lock just for the size :( :( :(
-            lockManager.readLock(this, GLOBAL_LOCK);
+            lockGlobal(IntentionLock.SHARED);
             return super.size();
         }
 
         protected void clear() {
-            lockManager.writeLock(this, GLOBAL_LOCK);
+            lockGlobal(IntentionLock.EXCLUSIVE);
             super.clear();
         }
 
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.util;
+
+/**
+ * Priority queue of items ordered by a <code>long</code> deadline, earliest
+ * first. This is a binary heap, so adding and removing take
+ * <code>O(log n)</code>, while looking at the earliest deadline is constant.
+ * <br>
+ * <br>
+ * <em>Note:</em> This class is not synchronized.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class DeadlineQueue {
+
+    protected long[] deadlines;
+
+    protected Object[] items;
+
+    protected int size = 0;
+
+    public DeadlineQueue() {
+        this(16);
+    }
+
+    public DeadlineQueue(int initialCapacity) {
+        deadlines = new long[Math.max(1, initialCapacity)];
+        items = new Object[deadlines.length];
+    }
+
+    /**
+     * Adds an item.
+     *
+     * @param deadline
+     *            the deadline of the item
+     * @param item
+     *            the item
+     */
+    public void add(long deadline, Object item) {
+        if (size == deadlines.length) {
+            long[] newDeadlines = new long[size * 2];
+            Object[] newItems = new Object[size * 2];
+            System.arraycopy(deadlines, 0, newDeadlines, 0, size);
+            System.arraycopy(items, 0, newItems, 0, size);
+            deadlines = newDeadlines;
+            items = newItems;
+        }
+        int i = size++;
+        // sift up
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (deadlines[parent] <= deadline) {
+                break;
+            }
+            deadlines[i] = deadlines[parent];
+            items[i] = items[parent];
+            i = parent;
+        }
+        deadlines[i] = deadline;
+        items[i] = item;
+    }
+
+    /**
+     * Gets the earliest deadline without removing its item.
+     *
+     * @return the earliest deadline
+     * @throws IllegalStateException
+     *             if the queue is empty
+     */
+    public long peekDeadline() throws IllegalStateException {
+        if (size == 0) {
+            throw new IllegalStateException("Queue is empty");
+        }
+        return deadlines[0];
+    }
+
+    /**
+     * Removes the item having the earliest deadline.
+     *
+     * @return the removed item
+     * @throws IllegalStateException
+     *             if the queue is empty
+     */
+    public Object poll() throws IllegalStateException {
+        if (size == 0) {
+            throw new IllegalStateException("Queue is empty");
+        }
+        Object first = items[0];
+        size--;
+        long deadline = deadlines[size];
+        Object item = items[size];
+        items[size] = null;
+        // sift down
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && deadlines[child + 1] < deadlines[child]) {
+                child++;
+            }
+            if (deadline <= deadlines[child]) {
+                break;
+            }
+            deadlines[i] = deadlines[child];
+            items[i] = items[child];
+            i = child;
+        }
+        if (size > 0) {
+            deadlines[i] = deadline;
+            items[i] = item;
+        }
+        return first;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            items[i] = null;
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.util;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Thread safe set comparing its elements by identity. Elements are kept in an open
+ * addressing table, so adding and removing them does not allocate anything unless the table
+ * has to grow. This makes it suitable for sets that change with every lock request, like the
+ * locks held by an owner. All methods synchronize on the set itself.
+ * <br>
+ * <br>
+ * <em>Caution:</em> {@link #iterator()} returns an iterator over a <em>snapshot</em> that
+ * is not backed by this set and does not support removal.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class IdentitySet extends AbstractSet {
+
+    public static final int DEFAULT_CAPACITY = 4;
+
+    protected Object[] table;
+
+    protected int size = 0;
+
+    /**
+     * Creates a new set for up to {@link #DEFAULT_CAPACITY} elements before it has to grow.
+     */
+    public IdentitySet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new set.
+     *
+     * @param capacity
+     *            number of elements the set can hold before it has to grow
+     */
+    public IdentitySet(int capacity) {
+        int length = 2;
+        while (length * 2 < capacity * 3) {
+            length <<= 1;
+        }
+        table = new Object[length];
+    }
+
+    public synchronized boolean add(Object o) {
+        if (o == null)
+            throw new NullPointerException("An identity set can not hold null");
+        int index = indexOf(o);
+        if (table[index] != null) {
+            return false;
+        }
+        table[index] = o;
+        size++;
+        // keep the load below two thirds, so probing stays short
+        if (size * 3 > table.length * 2) {
+            resize(table.length * 2);
+        }
+        return true;
+    }
+
+    public synchronized boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        int index = indexOf(o);
+        if (table[index] == null) {
+            return false;
+        }
+        table[index] = null;
+        size--;
+        // move following elements of the same cluster back, so no probe sequence breaks
+        int mask = table.length - 1;
+        int free = index;
+        for (int i = (index + 1) & mask; table[i] != null; i = (i + 1) & mask) {
+            int home = hash(table[i]) & mask;
+            boolean reachable = (free <= i) ? (free < home && home <= i)
+                    : (free < home || home <= i);
+            if (!reachable) {
+                table[free] = table[i];
+                table[i] = null;
+                free = i;
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(Object o) {
+        return o != null && table[indexOf(o)] != null;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(table, null);
+        size = 0;
+    }
+
+    public synchronized Object[] toArray() {
+        Object[] elements = new Object[size];
+        int j = 0;
+        for (int i = 0; i < table.length; i++) {
+            if (table[i] != null) {
+                elements[j++] = table[i];
+            }
+        }
+        return elements;
+    }
+
+    public Iterator iterator() {
+        return Arrays.asList(toArray()).iterator();
+    }
+
+    protected int indexOf(Object o) {
+        int mask = table.length - 1;
+        int i = hash(o) & mask;
+        while (table[i] != null && table[i] != o) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    protected void resize(int length) {
+        Object[] old = table;
+        table = new Object[length];
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] != null) {
+                table[indexOf(old[i])] = old[i];
+            }
+        }
+    }
+
+    protected static int hash(Object o) {
+        int h = System.identityHashCode(o);
+        return h ^ (h >>> 16);
+    }
+}
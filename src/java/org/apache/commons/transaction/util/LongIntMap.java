@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.util;
+
+/**
+ * Map from <code>long</code> keys to <code>int</code> values that neither boxes keys nor
+ * values. Entries are kept in an open addressing table, so putting and removing them does not
+ * allocate anything unless the table has to grow.
+ * <br>
+ * <br>
+ * <em>Caution:</em> This map is not synchronized, it has to be guarded by its user.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class LongIntMap {
+
+    public static final int DEFAULT_CAPACITY = 4;
+
+    protected long[] keys;
+
+    protected int[] values;
+
+    protected boolean[] used;
+
+    protected int size = 0;
+
+    /**
+     * Creates a new map for up to {@link #DEFAULT_CAPACITY} entries before it has to grow.
+     */
+    public LongIntMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new map.
+     *
+     * @param capacity
+     *            number of entries the map can hold before it has to grow
+     */
+    public LongIntMap(int capacity) {
+        int length = 2;
+        while (length * 2 < capacity * 3) {
+            length <<= 1;
+        }
+        keys = new long[length];
+        values = new int[length];
+        used = new boolean[length];
+    }
+
+    /**
+     * Gets the value associated with a key.
+     *
+     * @param key
+     *            the key to look up
+     * @param missing
+     *            the value to return if there is no entry for the key
+     * @return the value associated with the key or <code>missing</code>
+     */
+    public int get(long key, int missing) {
+        int index = indexOf(key);
+        return used[index] ? values[index] : missing;
+    }
+
+    public boolean containsKey(long key) {
+        return used[indexOf(key)];
+    }
+
+    /**
+     * Associates a value with a key.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value to associate with the key
+     * @param missing
+     *            the value to return if there was no entry for the key
+     * @return the value previously associated with the key or <code>missing</code>
+     */
+    public int put(long key, int value, int missing) {
+        int index = indexOf(key);
+        if (used[index]) {
+            int previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+        keys[index] = key;
+        values[index] = value;
+        used[index] = true;
+        size++;
+        // keep the load below two thirds, so probing stays short
+        if (size * 3 > keys.length * 2) {
+            resize(keys.length * 2);
+        }
+        return missing;
+    }
+
+    /**
+     * Removes the entry for a key.
+     *
+     * @param key
+     *            the key
+     * @param missing
+     *            the value to return if there was no entry for the key
+     * @return the value that was associated with the key or <code>missing</code>
+     */
+    public int remove(long key, int missing) {
+        int index = indexOf(key);
+        if (!used[index]) {
+            return missing;
+        }
+        int previous = values[index];
+        used[index] = false;
+        size--;
+        // move following entries of the same cluster back, so no probe sequence breaks
+        int mask = keys.length - 1;
+        int free = index;
+        for (int i = (index + 1) & mask; used[i]; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            boolean reachable = (free <= i) ? (free < home && home <= i)
+                    : (free < home || home <= i);
+            if (!reachable) {
+                keys[free] = keys[i];
+                values[free] = values[i];
+                used[free] = true;
+                used[i] = false;
+                free = i;
+            }
+        }
+        return previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets all keys of this map.
+     *
+     * @return a newly allocated array of all keys in no particular order
+     */
+    public long[] keys() {
+        long[] all = new long[size];
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                all[j++] = keys[i];
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Gets the length of the table. Together with {@link #isUsed(int)},
+     * {@link #keyAt(int)} and {@link #valueAt(int)} this allows to iterate over
+     * the entries without allocating anything.
+     *
+     * @return the number of slots in the table
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return used[slot];
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public int valueAt(int slot) {
+        return values[slot];
+    }
+
+    protected int indexOf(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (used[i] && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    protected void resize(int length) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new long[length];
+        values = new int[length];
+        used = new boolean[length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int index = indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+                used[index] = true;
+            }
+        }
+    }
+
+    /**
+     * Spreads all bits of a <code>long</code> key over the returned hash, so consecutive
+     * ids do not end up in the same cluster and higher as well as lower bits can be used to
+     * select a slot.
+     *
+     * @param key
+     *            the key to hash
+     * @return the hash of the key
+     */
+    public static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
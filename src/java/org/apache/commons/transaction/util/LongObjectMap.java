@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.util;
+
+/**
+ * Map from <code>long</code> keys to objects that does not box its keys. Entries are kept in
+ * an open addressing table, so putting and removing them does not allocate anything unless
+ * the table has to grow. Values must not be <code>null</code>.
+ * <br>
+ * <br>
+ * <em>Caution:</em> This map is not synchronized, it has to be guarded by its user.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class LongObjectMap {
+
+    public static final int DEFAULT_CAPACITY = 4;
+
+    protected long[] keys;
+
+    protected Object[] values;
+
+    protected int size = 0;
+
+    /**
+     * Creates a new map for up to {@link #DEFAULT_CAPACITY} entries before it has to grow.
+     */
+    public LongObjectMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new map.
+     *
+     * @param capacity
+     *            number of entries the map can hold before it has to grow
+     */
+    public LongObjectMap(int capacity) {
+        int length = 2;
+        while (length * 2 < capacity * 3) {
+            length <<= 1;
+        }
+        keys = new long[length];
+        values = new Object[length];
+    }
+
+    /**
+     * Gets the value associated with a key.
+     *
+     * @param key
+     *            the key to look up
+     * @return the value associated with the key or <code>null</code> if there is none
+     */
+    public Object get(long key) {
+        return values[indexOf(key)];
+    }
+
+    /**
+     * Associates a value with a key.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value to associate with the key, must not be <code>null</code>
+     * @return the value previously associated with the key or <code>null</code>
+     */
+    public Object put(long key, Object value) {
+        if (value == null)
+            throw new NullPointerException("A long object map can not hold null values");
+        int index = indexOf(key);
+        Object previous = values[index];
+        keys[index] = key;
+        values[index] = value;
+        if (previous == null) {
+            size++;
+            // keep the load below two thirds, so probing stays short
+            if (size * 3 > keys.length * 2) {
+                resize(keys.length * 2);
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * Removes the entry for a key.
+     *
+     * @param key
+     *            the key
+     * @return the value that was associated with the key or <code>null</code>
+     */
+    public Object remove(long key) {
+        int index = indexOf(key);
+        Object previous = values[index];
+        if (previous == null) {
+            return null;
+        }
+        values[index] = null;
+        size--;
+        // move following entries of the same cluster back, so no probe sequence breaks
+        int mask = keys.length - 1;
+        int free = index;
+        for (int i = (index + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            int home = LongIntMap.hash(keys[i]) & mask;
+            boolean reachable = (free <= i) ? (free < home && home <= i)
+                    : (free < home || home <= i);
+            if (!reachable) {
+                keys[free] = keys[i];
+                values[free] = values[i];
+                values[i] = null;
+                free = i;
+            }
+        }
+        return previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets all keys of this map.
+     *
+     * @return a newly allocated array of all keys in no particular order
+     */
+    public long[] keys() {
+        long[] all = new long[size];
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                all[j++] = keys[i];
+            }
+        }
+        return all;
+    }
+
+    protected int indexOf(long key) {
+        int mask = keys.length - 1;
+        int i = LongIntMap.hash(key) & mask;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    protected void resize(int length) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[length];
+        values = new Object[length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int index = indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
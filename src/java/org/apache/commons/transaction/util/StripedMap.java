@@ -0,0 +1,351 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Thread safe map that splits its entries into a fixed number of hash
+ * stripes, each guarded by its own monitor. Operations on keys that fall into
+ * different stripes do not block each other, which makes this map suitable for
+ * heavily shared tables like those of a lock manager.
+ * <br>
+ * <br>
+ * Single key operations are atomic. If you need to combine several operations
+ * on the same key atomically (e.g. a check followed by a put) synchronize on
+ * {@link #getStripeMonitor(Object)} for that key. This monitor is the one used
+ * internally, so no other thread can modify the key while you hold it.
+ * <br>
+ * <br>
+ * Entries that are no longer needed, but are expensive to tell apart when
+ * they become so, can be left in the map and removed in batches by
+ * {@link #sweep(Object, Sweeper)}.
+ * <br>
+ * <br>
+ * <em>Caution:</em> {@link #keySet()}, {@link #values()} and
+ * {@link #entrySet()} return <em>snapshots</em> that are not backed by this
+ * map. Stripes are copied one after the other, so the snapshot is not an
+ * atomic view of the whole map. The same holds for {@link #size()}.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class StripedMap extends AbstractMap {
+
+    public static final int DEFAULT_STRIPES = 64;
+
+    /**
+     * Number of entries a stripe must at least have before
+     * {@link #sweep(Object, Sweeper)} looks at them.
+     */
+    public static final int MIN_SWEEP_SIZE = 16;
+
+    protected final Map[] stripes;
+
+    protected final int mask;
+
+    // number of entries of each stripe after it has last been swept; guarded
+    // by the stripe
+    protected final int[] sweptSizes;
+
+    /**
+     * Creates a new striped map with {@link #DEFAULT_STRIPES} stripes.
+     */
+    public StripedMap() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates a new striped map.
+     *
+     * @param stripeCount
+     *            the number of independently guarded stripes, will be rounded
+     *            up to the next power of two
+     * @throws IllegalArgumentException
+     *             if stripeCount is less than 1
+     */
+    public StripedMap(int stripeCount) throws IllegalArgumentException {
+        if (stripeCount < 1)
+            throw new IllegalArgumentException("There must be at least one stripe ("
+                    + stripeCount + " was specified)");
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        stripes = new Map[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new HashMap();
+        }
+        sweptSizes = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Gets the monitor guarding the stripe the specified key belongs to.
+     * Synchronize on it to make compound operations on this key atomic.
+     *
+     * @param key
+     *            the key to get the monitor for
+     * @return the monitor of the key's stripe
+     */
+    public Object getStripeMonitor(Object key) {
+        return stripeFor(key);
+    }
+
+    /**
+     * Atomically associates a value with a key unless there already is one.
+     *
+     * @param key
+     *            key with which the value is to be associated
+     * @param value
+     *            value to be associated with the key
+     * @return the value already associated with the key or <code>null</code>
+     *         if the specified value has been put
+     */
+    public Object putIfAbsent(Object key, Object value) {
+        Map stripe = stripeFor(key);
+        synchronized (stripe) {
+            Object existing = stripe.get(key);
+            if (existing == null) {
+                stripe.put(key, value);
+            }
+            return existing;
+        }
+    }
+
+    /**
+     * Atomically removes the entry for a key only if it currently maps to the
+     * specified value.
+     *
+     * @param key
+     *            key whose entry is to be removed
+     * @param value
+     *            value expected to be associated with the key
+     * @return <code>true</code> if the entry has been removed
+     */
+    public boolean remove(Object key, Object value) {
+        Map stripe = stripeFor(key);
+        synchronized (stripe) {
+            Object existing = stripe.get(key);
+            if (existing != null && existing.equals(value)) {
+                stripe.remove(key);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public Object get(Object key) {
+        Map stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        Map stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.containsKey(key);
+        }
+    }
+
+    public Object put(Object key, Object value) {
+        Map stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.put(key, value);
+        }
+    }
+
+    public Object remove(Object key) {
+        Map stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.remove(key);
+        }
+    }
+
+    /**
+     * Removes stale entries from the stripe a key belongs to, but only once the
+     * stripe has grown to twice the number of entries it had after it has last
+     * been swept and to at least {@link #MIN_SWEEP_SIZE} entries. Called before
+     * adding an entry, this keeps stale entries from piling up, while the cost of
+     * looking at all entries of the stripe is spread over the entries added
+     * since the last sweep.
+     *
+     * @param key
+     *            key whose stripe is to be swept
+     * @param sweeper
+     *            decides which entries are stale, called while holding the
+     *            monitor of the stripe
+     * @return the number of entries removed
+     */
+    public int sweep(Object key, Sweeper sweeper) {
+        int index = indexFor(key);
+        Map stripe = stripes[index];
+        synchronized (stripe) {
+            int size = stripe.size();
+            if (size < MIN_SWEEP_SIZE || size < 2 * sweptSizes[index]) {
+                return 0;
+            }
+            return sweep(index, sweeper);
+        }
+    }
+
+    /**
+     * Removes stale entries from all stripes regardless of their size.
+     *
+     * @param sweeper
+     *            decides which entries are stale, called while holding the
+     *            monitor of the stripe
+     * @return the number of entries removed
+     */
+    public int sweepAll(Sweeper sweeper) {
+        int removed = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                removed += sweep(i, sweeper);
+            }
+        }
+        return removed;
+    }
+
+    protected int sweep(int index, Sweeper sweeper) {
+        Map stripe = stripes[index];
+        int removed = 0;
+        for (Iterator it = stripe.entrySet().iterator(); it.hasNext();) {
+            Map.Entry entry = (Map.Entry) it.next();
+            if (sweeper.isStale(entry.getKey(), entry.getValue())) {
+                it.remove();
+                removed++;
+            }
+        }
+        sweptSizes[index] = stripe.size();
+        return removed;
+    }
+
+    public void putAll(Map map) {
+        for (Iterator it = map.entrySet().iterator(); it.hasNext();) {
+            Map.Entry entry = (Map.Entry) it.next();
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public boolean containsValue(Object value) {
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                if (stripes[i].containsValue(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                size += stripes[i].size();
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                if (!stripes[i].isEmpty()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                stripes[i].clear();
+            }
+        }
+    }
+
+    public Set keySet() {
+        Set keys = new HashSet();
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                keys.addAll(stripes[i].keySet());
+            }
+        }
+        return keys;
+    }
+
+    public Collection values() {
+        Collection values = new ArrayList();
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                values.addAll(stripes[i].values());
+            }
+        }
+        return values;
+    }
+
+    public Set entrySet() {
+        Map copy = new HashMap();
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                copy.putAll(stripes[i]);
+            }
+        }
+        return copy.entrySet();
+    }
+
+    protected Map stripeFor(Object key) {
+        return stripes[indexFor(key)];
+    }
+
+    protected int indexFor(Object key) {
+        int h = (key == null ? 0 : key.hashCode());
+        // spread higher bits as the stripe is selected by the lower ones only
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & mask;
+    }
+
+    /**
+     * Decides which entries are removed by {@link StripedMap#sweep(Object, Sweeper)}.
+     */
+    public interface Sweeper {
+
+        /**
+         * Checks if an entry is no longer needed.
+         *
+         * @param key
+         *            the key of the entry
+         * @param value
+         *            the value of the entry
+         * @return <code>true</code> if the entry is to be removed
+         */
+        boolean isStale(Object key, Object value);
+    }
+}
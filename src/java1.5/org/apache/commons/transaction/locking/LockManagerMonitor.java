@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Publishes the {@link LockStatistics} of a {@link GenericLockManager} as a standard MBean.
+ * Attributes are read from a fresh snapshot, so collecting statistics costs nothing
+ * extra while nobody looks at them. When registered by
+ * {@link #register(GenericLockManager, String)}, all attributes read at once, as done by
+ * management consoles, come from a single snapshot, so they are consistent and the manager
+ * is looked at only once.
+ *
+ * <pre>
+ * LockManagerMonitor.register(lockManager, "org.apache.commons.transaction:type=LockManager");
+ * </pre>
+ *
+ * This class needs Java 1.5 or later.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class LockManagerMonitor implements LockManagerMonitorMBean {
+
+    /**
+     * Registers a monitor for a lock manager with the platform MBean server.
+     *
+     * @param lockManager the manager to monitor
+     * @param name the object name to register the monitor under
+     * @return the name the monitor has been registered with
+     * @throws JMException if the name is malformed or already registered
+     */
+    public static ObjectName register(GenericLockManager lockManager, String name)
+            throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        LockManagerMonitor monitor = new LockManagerMonitor(lockManager);
+        return server.registerMBean(monitor.new SnapshotMBean(), new ObjectName(name))
+                .getObjectName();
+    }
+
+    protected final GenericLockManager lockManager;
+
+    protected final int mostContended;
+
+    // snapshot all attributes currently read by this thread are taken from
+    private final ThreadLocal currentSnapshot = new ThreadLocal();
+
+    public LockManagerMonitor(GenericLockManager lockManager) {
+        this(lockManager, 10);
+    }
+
+    /**
+     * Creates a new monitor.
+     *
+     * @param lockManager the manager to monitor
+     * @param mostContended maximum number of most contended resources to publish
+     */
+    public LockManagerMonitor(GenericLockManager lockManager, int mostContended) {
+        this.lockManager = lockManager;
+        this.mostContended = mostContended;
+    }
+
+    public int getLockCount() {
+        return snapshot().getLockCount();
+    }
+
+    public long getAcquisitions() {
+        return snapshot().getAcquisitions();
+    }
+
+    public long getImmediateGrants() {
+        return snapshot().getImmediateGrants();
+    }
+
+    public long getWaitedGrants() {
+        return snapshot().getWaitedGrants();
+    }
+
+    public long getWaitTime() {
+        return snapshot().getWaitTime();
+    }
+
+    public long[] getWaitTimeHistogram() {
+        return snapshot().getWaitTimeHistogram();
+    }
+
+    public long getTimeouts() {
+        return snapshot().getTimeouts();
+    }
+
+    public long getDeadlockVictims() {
+        return snapshot().getDeadlockVictims();
+    }
+
+    public long getInterrupts() {
+        return snapshot().getInterrupts();
+    }
+
+    public long getOwnerTimeouts() {
+        return snapshot().getOwnerTimeouts();
+    }
+
+    public long getDeadlockChecks() {
+        return snapshot().getDeadlockChecks();
+    }
+
+    public long getDeadlockCheckTime() {
+        return snapshot().getDeadlockCheckTime();
+    }
+
+    public String[] getMostContended() {
+        List contended = snapshot().getMostContended();
+        String[] result = new String[contended.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = contended.get(i).toString();
+        }
+        return result;
+    }
+
+    public void resetStatistics() {
+        lockManager.resetStatistics();
+    }
+
+    protected LockStatistics.Snapshot snapshot() {
+        LockStatistics.Snapshot snapshot = (LockStatistics.Snapshot) currentSnapshot.get();
+        return snapshot != null ? snapshot : lockManager.getStatistics(mostContended);
+    }
+
+    /**
+     * Reads all attributes requested at once from a single snapshot.
+     */
+    protected class SnapshotMBean extends StandardMBean {
+
+        public SnapshotMBean() throws NotCompliantMBeanException {
+            super(LockManagerMonitor.this, LockManagerMonitorMBean.class);
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            currentSnapshot.set(lockManager.getStatistics(mostContended));
+            try {
+                return super.getAttributes(attributes);
+            } finally {
+                currentSnapshot.set(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+/**
+ * Management interface of {@link LockManagerMonitor}. All times are in milliseconds.
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public interface LockManagerMonitorMBean {
+
+    public int getLockCount();
+
+    public long getAcquisitions();
+
+    public long getImmediateGrants();
+
+    public long getWaitedGrants();
+
+    public long getWaitTime();
+
+    /**
+     * @return the number of requests per bucket as described in
+     *         {@link LockStatistics#WAIT_TIME_BUCKETS}
+     */
+    public long[] getWaitTimeHistogram();
+
+    public long getTimeouts();
+
+    public long getDeadlockVictims();
+
+    public long getInterrupts();
+
+    public long getOwnerTimeouts();
+
+    public long getDeadlockChecks();
+
+    public long getDeadlockCheckTime();
+
+    /**
+     * @return the most contended resources as <code>resource: count</code>, most contended
+     *         first
+     */
+    public String[] getMostContended();
+
+    public void resetStatistics();
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+
+/**
+ * A {@link GenericLock} that blocks waiting threads by means of
+ * <code>java.util.concurrent.locks</code> instead of <code>Object.wait</code>.
+ *
+ * <p>
+ * Lock levels, compatibilities and preferences are exactly the same as those of
+ * {@link GenericLock}. However, this lock is guarded by a {@link ReentrantLock}
+ * and every waiting request parks on a {@link Condition} of its own. This has
+ * two consequences:
+ * <ul>
+ * <li>no thread blocks while holding a monitor, so this lock can be used from
+ * virtual threads without pinning their carrier threads
+ * <li>when a lock is handed over on release only the threads of the requests
+ * that actually have been granted are woken up
+ * </ul>
+ * The monitor of this lock is still entered for short, non-blocking sections by
+ * the methods inherited from {@link GenericLock}. Thus, you must not
+ * synchronize on this lock yourself while calling one of its blocking methods.
+ * </p>
+ *
+ * <p>
+ * To have a {@link GenericLockManager} use this lock, override
+ * {@link GenericLockManager#createLock(Object)}:
+ *
+ * <pre>
+ * protected GenericLock createLock(Object resourceId) {
+ *     GenericLock lock = new QueuedLock(resourceId, maxLockLevel, logger);
+ *     globalLocks.put(resourceId, lock);
+ *     return lock;
+ * }
+ * </pre>
+ *
+ * This class needs Java 1.5 or later.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.3
+ */
+public class QueuedLock extends GenericLock {
+
+    protected final ReentrantLock guard = new ReentrantLock();
+
+    // maps every request blocked in waitForGrant to the condition it waits for; guarded by guard
+    protected final Map conditions = new IdentityHashMap();
+
+    /**
+     * Creates a new lock.
+     *
+     * @param resourceId identifier for the resource associated to this lock
+     * @param maxLockLevel highest allowed lock level as described in {@link GenericLock}
+     * @param logger generic logger used for all kind of debug logging
+     */
+    public QueuedLock(Object resourceId, int maxLockLevel, LoggerFacade logger) {
+        super(resourceId, maxLockLevel, logger);
+    }
+
+    /**
+     * @see GenericLock#test(Object, int, int)
+     */
+    public boolean test(Object ownerId, int targetLockLevel, int compatibility) {
+        guard.lock();
+        try {
+            return super.test(ownerId, targetLockLevel, compatibility);
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    /**
+     * @see GenericLock#acquire(Object, int, boolean, boolean, long)
+     */
+    public boolean acquire(Object ownerId, int targetLockLevel, boolean wait, boolean reentrant,
+            long timeoutMSecs) throws InterruptedException {
+        return acquire(ownerId, targetLockLevel, wait, reentrant ? COMPATIBILITY_REENTRANT
+                : COMPATIBILITY_NONE, timeoutMSecs);
+    }
+
+    /**
+     * @see GenericLock#acquire(Object, int, boolean, int, long)
+     */
+    public boolean acquire(Object ownerId, int targetLockLevel, boolean wait, int compatibility,
+            long timeoutMSecs) throws InterruptedException {
+        return acquire(ownerId, targetLockLevel, wait, compatibility, false, timeoutMSecs);
+    }
+
+    /**
+     * @see GenericLock#acquire(Object, int, boolean, long)
+     */
+    public boolean acquire(Object ownerId, int targetLockLevel, boolean preferred,
+            long timeoutMSecs) throws InterruptedException {
+        return acquire(ownerId, targetLockLevel, true, COMPATIBILITY_REENTRANT, preferred,
+                timeoutMSecs);
+    }
+
+    /**
+     * @see GenericLock#acquire(Object, int, boolean, int, boolean, long)
+     */
+    public boolean acquire(Object ownerId, int targetLockLevel, boolean wait, int compatibility,
+            boolean preferred, long timeoutMSecs) throws InterruptedException {
+        guard.lockInterruptibly();
+        try {
+            return doAcquire(ownerId, targetLockLevel, wait, compatibility, preferred,
+                    timeoutMSecs);
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    /**
+     * @see GenericLock#release(Object)
+     */
+    public boolean release(Object ownerId) {
+        guard.lock();
+        try {
+            return super.release(ownerId);
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    /**
+     * @see GenericLock#cancelWait(Object)
+     */
+    public boolean cancelWait(Object ownerId) {
+        guard.lock();
+        try {
+            return super.cancelWait(ownerId);
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    protected boolean acquireOrEnqueue(LockWaiter waiter) {
+        guard.lock();
+        try {
+            return super.acquireOrEnqueue(waiter);
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    protected void withdrawWaiter(LockWaiter waiter) {
+        guard.lock();
+        try {
+            super.withdrawWaiter(waiter);
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    protected List takeAsyncGrants() {
+        guard.lock();
+        try {
+            return super.takeAsyncGrants();
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    public String toString() {
+        guard.lock();
+        try {
+            return super.toString();
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    protected void waitForGrant(LockWaiter waiter, long timeoutMSecs)
+            throws InterruptedException {
+        Condition condition = guard.newCondition();
+        conditions.put(waiter, condition);
+        try {
+            condition.await(timeoutMSecs, TimeUnit.MILLISECONDS);
+        } finally {
+            conditions.remove(waiter);
+        }
+    }
+
+    protected void wakeWaiters() {
+        for (Iterator it = conditions.entrySet().iterator(); it.hasNext();) {
+            Map.Entry entry = (Map.Entry) it.next();
+            LockWaiter waiter = (LockWaiter) entry.getKey();
+            if (waiter.granted || isWaitCanceled(waiter.ownerId)) {
+                ((Condition) entry.getValue()).signal();
+            }
+        }
+    }
+}
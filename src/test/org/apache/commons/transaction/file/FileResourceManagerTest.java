@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.transaction.Status;
 
@@ -707,6 +709,41 @@ public class FileResourceManagerTest extends TestCase {
         }
     }
 
+    public void testLeastWrittenVictim() throws Throwable {
+        sLogger.logInfo("Checking deadlock victim selection by bytes written");
+        reset();
+        createInitialFiles();
+
+        FileResourceManager rm = createFRM();
+        rm.start();
+
+        rm.startTransaction("tx1");
+        rm.startTransaction("tx2");
+        OutputStream out = rm.writeResource("tx1", "/olli/Hubert10");
+        out.write(new byte[] { 1, 2, 3 });
+        out.write(4);
+        out.close();
+        assertEquals(4, rm.getBytesWritten("tx1"));
+        assertEquals(0, rm.getBytesWritten("tx2"));
+        assertEquals(0, rm.getBytesWritten("tx3"));
+
+        LeastWrittenVictimSelector selector = new LeastWrittenVictimSelector(rm);
+        List cycle = Arrays.asList(new Object[] { "tx1", "tx2" });
+        assertEquals("tx2", selector.selectVictim(null, cycle));
+
+        // copying writes as well
+        out = rm.writeResource("tx2", "/olli/Hubert20");
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        rm.copyResource("tx2", "/olli/Hubert20", "/olli/Hubert21", true);
+        assertEquals(6, rm.getBytesWritten("tx2"));
+        assertEquals("tx1", selector.selectVictim(null, cycle));
+
+        rm.rollbackTransaction("tx1");
+        rm.rollbackTransaction("tx2");
+        assertTrue(rm.stop(ResourceManager.SHUTDOWN_MODE_NORMAL, 5000));
+    }
+
     public void testCopyRec() throws Throwable {
         sLogger.logInfo("Checking file copy");
         reset();
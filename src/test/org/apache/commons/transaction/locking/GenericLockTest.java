@@ -17,6 +17,13 @@
 package org.apache.commons.transaction.locking;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -25,6 +32,7 @@ import junit.framework.TestSuite;
 import org.apache.commons.transaction.util.LoggerFacade;
 import org.apache.commons.transaction.util.PrintWriterLogger;
 import org.apache.commons.transaction.util.RendezvousBarrier;
+import org.apache.commons.transaction.util.StripedMap;
 import org.apache.commons.transaction.util.TurnBarrier;
 
 /**
@@ -143,6 +151,34 @@ public class GenericLockTest extends TestCase {
         assertTrue(canRead1);
     }
 
+    public void testManySharedOwners() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking lock with many shared owners\n\n");
+
+        GenericLock lock = new GenericLock("Test many readers", WRITE_LOCK, sLogger);
+        for (int i = 0; i < 200; i++) {
+            assertTrue(acquireNoWait(lock, "reader" + i, READ_LOCK));
+        }
+        assertFalse(acquireNoWait(lock, "writer", WRITE_LOCK));
+        // a reader may not upgrade while there are others
+        assertFalse(acquireNoWait(lock, "reader0", WRITE_LOCK));
+        assertEquals(READ_LOCK, lock.getLockLevel("reader199"));
+        for (int i = 1; i < 200; i++) {
+            lock.release("reader" + i);
+            assertEquals(0, lock.getLockLevel("reader" + i));
+            assertEquals(READ_LOCK, lock.getLockLevel("reader0"));
+        }
+        assertFalse(acquireNoWait(lock, "writer", WRITE_LOCK));
+        // but it may when it is the only one left
+        assertTrue(acquireNoWait(lock, "reader0", WRITE_LOCK));
+        assertFalse(acquireNoWait(lock, "reader1", READ_LOCK));
+        lock.release("reader0");
+        assertTrue(acquireNoWait(lock, "writer", WRITE_LOCK));
+        assertEquals(WRITE_LOCK, lock.getLockLevel("writer"));
+        lock.release("writer");
+        assertTrue(lock.isIdle());
+    }
+
     public void testTimeout() {
         
         sLogger.logInfo("\n\nChecking timeouts\n\n");
@@ -778,6 +814,1494 @@ public class GenericLockTest extends TestCase {
 
     }
 
+    public void testWaitForGraph() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking wait-for graph\n\n");
+
+        GenericLock lock1 = new GenericLock("res1", WRITE_LOCK, sLogger);
+        GenericLock lock2 = new GenericLock("res2", WRITE_LOCK, sLogger);
+        GenericLock lock3 = new GenericLock("res3", WRITE_LOCK, sLogger);
+        assertTrue(acquireNoWait(lock1, "owner1", READ_LOCK));
+        assertTrue(acquireNoWait(lock2, "owner2", READ_LOCK));
+        assertTrue(acquireNoWait(lock3, "owner3", READ_LOCK));
+
+        WaitForGraph graph = new WaitForGraph();
+        graph.addWaiter("owner1", lock2, WRITE_LOCK, GenericLock.COMPATIBILITY_REENTRANT, false);
+        graph.addWaiter("owner2", lock3, WRITE_LOCK, GenericLock.COMPATIBILITY_REENTRANT, true);
+        assertFalse(graph.isDeadlocked("owner1"));
+        assertFalse(graph.isDeadlocked("owner2"));
+
+        // closes the cycle owner1 -> owner2 -> owner3 -> owner1
+        graph.addWaiter("owner3", lock1, WRITE_LOCK, GenericLock.COMPATIBILITY_REENTRANT, false);
+        List cycle = graph.findCycle("owner3");
+        assertEquals(Arrays.asList(new Object[] { "owner3", "owner1", "owner2" }), cycle);
+        assertTrue(graph.isDeadlocked("owner1"));
+
+        // edges are resolved against the current owners, so a release breaks the cycle
+        // even though owner1 still is registered as waiting
+        lock2.release("owner2");
+        assertFalse(graph.isDeadlocked("owner3"));
+        assertTrue(graph.isWaiting("owner1"));
+        graph.removeWaiter("owner1");
+        assertFalse(graph.isWaiting("owner1"));
+    }
+
+    public void testFindCycles() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking search for all deadlocks at once\n\n");
+
+        final int owners = 1000;
+        final int[] lookups = new int[1];
+        WaitForGraph graph = new WaitForGraph() {
+            public Set getBlockers(Object ownerId) {
+                lookups[0]++;
+                return super.getBlockers(ownerId);
+            }
+        };
+
+        // a ring of all owners, each waiting for the next one
+        GenericLock[] locks = new GenericLock[owners];
+        for (int i = 0; i < owners; i++) {
+            locks[i] = new GenericLock("res" + i, WRITE_LOCK, sLogger);
+            assertTrue(acquireNoWait(locks[i], "owner" + i, WRITE_LOCK));
+        }
+        for (int i = 0; i < owners; i++) {
+            graph.addWaiter("owner" + i, locks[(i + 1) % owners], WRITE_LOCK,
+                    GenericLock.COMPATIBILITY_REENTRANT, false);
+        }
+        // as many owners waiting for the ring without being part of a deadlock
+        for (int i = 0; i < owners; i++) {
+            graph.addWaiter("waiter" + i, locks[i], WRITE_LOCK,
+                    GenericLock.COMPATIBILITY_REENTRANT, false);
+        }
+        // and a deadlock of two owners of its own
+        GenericLock lock1 = new GenericLock("other1", WRITE_LOCK, sLogger);
+        GenericLock lock2 = new GenericLock("other2", WRITE_LOCK, sLogger);
+        assertTrue(acquireNoWait(lock1, "other1", WRITE_LOCK));
+        assertTrue(acquireNoWait(lock2, "other2", WRITE_LOCK));
+        graph.addWaiter("other1", lock2, WRITE_LOCK, GenericLock.COMPATIBILITY_REENTRANT, false);
+        graph.addWaiter("other2", lock1, WRITE_LOCK, GenericLock.COMPATIBILITY_REENTRANT, false);
+
+        List cycles = graph.findCycles();
+        assertEquals(2, cycles.size());
+        List ring = (List) cycles.get(((List) cycles.get(0)).size() == 2 ? 1 : 0);
+        List pair = (List) cycles.get(((List) cycles.get(0)).size() == 2 ? 0 : 1);
+        assertEquals(owners, ring.size());
+        assertEquals(new HashSet(Arrays.asList(new Object[] { "other1", "other2" })),
+                new HashSet(pair));
+        for (int i = 0; i < owners; i++) {
+            int index = ring.indexOf("owner" + i);
+            assertEquals("owner" + (i + 1) % owners, ring.get((index + 1) % owners));
+        }
+        // the blockers of each waiting owner are looked up once only
+        assertEquals(2 * owners + 2, lookups[0]);
+
+        // a victim chosen from the ring resolves it
+        locks[0].release("owner0");
+        graph.removeWaiter("owner0");
+        assertEquals(1, graph.findCycles().size());
+    }
+
+    public void testBackgroundDeadlockDetection() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking background deadlock detection\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final String res1 = "res1";
+        final String res2 = "res2";
+
+        final GenericLockManager manager = new GenericLockManager(1, sLogger, TIMEOUT, 10);
+        manager.startBackgroundDeadlockDetection(50);
+        try {
+            for (int i = 0; i < CONCURRENT_TESTS; i++) {
+
+                System.out.print(".");
+
+                manager.lock(owner1, res1, 1, true);
+                manager.lock(owner2, res2, 1, true);
+
+                final int[] victims = new int[1];
+                Thread deadlock = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            manager.lock(owner2, res1, 1, true);
+                        } catch (LockException le) {
+                            assertEquals(LockException.CODE_DEADLOCK_VICTIM, le.getCode());
+                            synchronized (victims) {
+                                victims[0]++;
+                            }
+                        } finally {
+                            manager.releaseAll(owner2);
+                        }
+                    }
+                }, "Deadlock Thread");
+                deadlock.start();
+
+                try {
+                    manager.lock(owner1, res2, 1, true);
+                } catch (LockException le) {
+                    assertEquals(LockException.CODE_DEADLOCK_VICTIM, le.getCode());
+                    synchronized (victims) {
+                        victims[0]++;
+                    }
+                } finally {
+                    manager.releaseAll(owner1);
+                }
+                deadlock.join();
+
+                // exactly one victim is chosen for each cycle
+                assertEquals(1, victims[0]);
+            }
+        } finally {
+            manager.stopBackgroundDeadlockDetection();
+        }
+    }
+
+    public void testDeadlockVictimSelection() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking deadlock victim selection\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final GenericLockManager manager = new GenericLockManager(1, sLogger, TIMEOUT, -1);
+        manager.setDeadlockVictimSelector(new FewestLocksVictimSelector());
+
+        // the owner finding the deadlock is chosen if it holds fewer locks
+        manager.lock(owner1, "res1", 1, true);
+        manager.lock(owner1, "res3", 1, true);
+        manager.lock(owner2, "res2", 1, true);
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    manager.lock(owner1, "res2", 1, true);
+                } finally {
+                    manager.releaseAll(owner1);
+                }
+            }
+        }, "Waiting Thread");
+        waiter.start();
+        while (!manager.waitForGraph.isWaiting(owner1)) {
+            Thread.sleep(10);
+        }
+        try {
+            manager.lock(owner2, "res1", 1, true);
+            fail("Owner holding fewer locks should have been the victim");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_DEADLOCK_VICTIM, le.getCode());
+        } finally {
+            manager.releaseAll(owner2);
+        }
+        waiter.join();
+
+        // otherwise the victim is woken up, while the owner finding the deadlock waits
+        manager.lock(owner1, "res1", 1, true);
+        manager.lock(owner1, "res3", 1, true);
+        manager.lock(owner2, "res2", 1, true);
+        final LockException[] failure = new LockException[1];
+        waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    manager.lock(owner2, "res1", 1, true);
+                } catch (LockException le) {
+                    failure[0] = le;
+                } finally {
+                    manager.releaseAll(owner2);
+                }
+            }
+        }, "Waiting Thread");
+        waiter.start();
+        while (!manager.waitForGraph.isWaiting(owner2)) {
+            Thread.sleep(10);
+        }
+        manager.lock(owner1, "res2", 1, true);
+        waiter.join();
+        assertNotNull(failure[0]);
+        assertEquals(LockException.CODE_DEADLOCK_VICTIM, failure[0].getCode());
+        manager.releaseAll(owner1);
+
+        // priorities decide over the number of locks
+        PriorityVictimSelector priorities = new PriorityVictimSelector();
+        priorities.setPriority(owner2, 1);
+        List cycle = Arrays.asList(new Object[] { owner1, owner2 });
+        assertEquals(owner1, priorities.selectVictim(manager, cycle));
+        priorities.removePriority(owner2);
+        assertEquals(owner1, priorities.selectVictim(manager, cycle));
+        priorities.setPriority(owner1, 1);
+        assertEquals(owner2, priorities.selectVictim(manager, cycle));
+
+        manager.startGlobalTimeout(owner1, TIMEOUT);
+        manager.startGlobalTimeout(owner2, TIMEOUT);
+        assertEquals(owner2, new YoungestVictimSelector().selectVictim(manager, cycle));
+        manager.releaseAll(owner1);
+        manager.releaseAll(owner2);
+        manager.reclaimIdleLocks();
+        assertEquals(0, manager.getLockCount());
+    }
+
+    public void testDeadlockPrevention() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking deadlock prevention\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final String res1 = "res1";
+        final String res2 = "res2";
+
+        final GenericLockManager manager = new GenericLockManager(1, sLogger, TIMEOUT, 10);
+
+        // wait-die: the younger owner dies, the older one waits
+        manager.setDeadlockPrevention(GenericLockManager.PREVENTION_WAIT_DIE);
+        manager.startGlobalTimeout(owner1, TIMEOUT);
+        manager.startGlobalTimeout(owner2, TIMEOUT);
+        manager.lock(owner1, res1, 1, true);
+        try {
+            manager.lock(owner2, res1, 1, true);
+            fail("Younger owner should have died");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_DEADLOCK_VICTIM, le.getCode());
+        }
+        manager.lock(owner2, res2, 1, true);
+        try {
+            manager.lock(owner1, res2, 1, true, 50);
+            fail("Older owner should have waited");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+        }
+        manager.releaseAll(owner1);
+        manager.releaseAll(owner2);
+
+        // wound-wait: the younger owner is wounded and gives up its locks at its next call,
+        // the older one gets its lock then
+        manager.setDeadlockPrevention(GenericLockManager.PREVENTION_WOUND_WAIT);
+        manager.startGlobalTimeout(owner1, TIMEOUT);
+        manager.startGlobalTimeout(owner2, TIMEOUT);
+        manager.lock(owner2, res1, 1, true);
+        Thread older = new Thread(new Runnable() {
+            public void run() {
+                manager.lock(owner1, res1, 1, true);
+            }
+        }, "Older Thread");
+        older.start();
+        while (!manager.woundedOwners.containsKey(owner2)) {
+            Thread.sleep(10);
+        }
+        // the lock is not taken away from the younger owner by the older one
+        assertEquals(1, manager.lookupLock(res1).getLockLevel(owner2));
+        try {
+            manager.lock(owner2, res2, 1, true);
+            fail("Younger owner should have been wounded");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_DEADLOCK_VICTIM, le.getCode());
+        }
+        older.join();
+        assertEquals(0, manager.lookupLock(res1).getLockLevel(owner2));
+        try {
+            manager.lock(owner2, res2, 1, true);
+            fail("Wounded owner should fail until it releases all its locks");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_DEADLOCK_VICTIM, le.getCode());
+        }
+        manager.releaseAll(owner2);
+        manager.lock(owner2, res2, 1, true);
+        try {
+            manager.lock(owner2, res1, 1, true, 50);
+            fail("Younger owner should have waited");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+        }
+        assertTrue(manager.hasLock(owner1, res1, 1));
+        manager.releaseAll(owner1);
+        manager.releaseAll(owner2);
+
+        // whichever request comes first, there is exactly one victim per cycle
+        int[] policies = { GenericLockManager.PREVENTION_WAIT_DIE,
+                GenericLockManager.PREVENTION_WOUND_WAIT };
+        for (int p = 0; p < policies.length; p++) {
+            manager.setDeadlockPrevention(policies[p]);
+            for (int i = 0; i < CONCURRENT_TESTS; i++) {
+
+                System.out.print(".");
+
+                manager.startGlobalTimeout(owner1, TIMEOUT);
+                manager.startGlobalTimeout(owner2, TIMEOUT);
+                manager.lock(owner1, res1, 1, true);
+                manager.lock(owner2, res2, 1, true);
+
+                final int[] victims = new int[1];
+                Thread deadlock = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            manager.lock(owner2, res1, 1, true);
+                            // a wounded owner might get the lock before it notices
+                            manager.getLevel(owner2, res1);
+                        } catch (LockException le) {
+                            assertEquals(LockException.CODE_DEADLOCK_VICTIM, le.getCode());
+                            synchronized (victims) {
+                                victims[0]++;
+                            }
+                        } finally {
+                            manager.releaseAll(owner2);
+                        }
+                    }
+                }, "Deadlock Thread");
+                deadlock.start();
+
+                try {
+                    manager.lock(owner1, res2, 1, true);
+                } finally {
+                    manager.releaseAll(owner1);
+                }
+                deadlock.join();
+
+                assertEquals(1, victims[0]);
+            }
+        }
+        manager.reclaimIdleLocks();
+        assertEquals(0, manager.getLockCount());
+    }
+
+    public void testWoundedOwnerKeepsLocksUntilItCallsAgain() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking wounded owner that never calls lock again\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+        final String res1 = "res1";
+
+        final GenericLockManager manager = new GenericLockManager(1, sLogger, TIMEOUT, 10);
+        manager.setDeadlockPrevention(GenericLockManager.PREVENTION_WOUND_WAIT);
+        manager.startGlobalTimeout(owner1, TIMEOUT);
+        manager.startGlobalTimeout(owner2, TIMEOUT);
+
+        manager.lock(owner2, res1, 1, true);
+        final boolean[] granted = new boolean[1];
+        Thread older = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    manager.lock(owner1, res1, 1, true);
+                    synchronized (granted) {
+                        granted[0] = true;
+                    }
+                } finally {
+                    manager.releaseAll(owner1);
+                }
+            }
+        }, "Older Thread");
+        older.start();
+        while (!manager.woundedOwners.containsKey(owner2)) {
+            Thread.sleep(10);
+        }
+
+        // the wounded owner keeps working on its resource, the older one has to wait for it
+        Thread.sleep(100);
+        assertEquals(1, manager.lookupLock(res1).getLockLevel(owner2));
+        synchronized (granted) {
+            assertFalse(granted[0]);
+        }
+
+        // finishing normally without another call to lock hands the resource over
+        manager.releaseAll(owner2);
+        older.join();
+        synchronized (granted) {
+            assertTrue(granted[0]);
+        }
+        assertFalse(manager.woundedOwners.containsKey(owner2));
+        manager.reclaimIdleLocks();
+        assertEquals(0, manager.getLockCount());
+    }
+
+    public void testGlobalTimeoutReaper() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking global timeouts without blocked requests\n\n");
+
+        GenericLockManager manager = new GenericLockManager(1, sLogger, TIMEOUT, -1);
+        manager.startGlobalTimeout("owner1", 10000);
+        manager.startGlobalTimeout("owner2", 100);
+        manager.lock("owner1", "res1", 1, true);
+        manager.lock("owner2", "res2", 1, true);
+        assertFalse(manager.checkLock("owner3", "res2", 1, true));
+
+        // nobody waits for res2, still it has to be revoked after the time out
+        Thread.sleep(500);
+        assertTrue(manager.checkLock("owner3", "res2", 1, true));
+        assertFalse(manager.checkLock("owner3", "res1", 1, true));
+        manager.reclaimIdleLocks();
+        assertEquals(1, manager.getLockCount());
+
+        // a reset time out must not come into effect any more
+        manager.releaseAll("owner1");
+        manager.startGlobalTimeout("owner1", 100);
+        manager.releaseAll("owner1");
+        manager.lock("owner1", "res1", 1, true);
+        Thread.sleep(500);
+        assertTrue(manager.hasLock("owner1", "res1", 1));
+    }
+
+    public void testLockReclamation() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking reclamation of idle locks\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        ReadWriteLockManager manager = new ReadWriteLockManager(sLogger, 100);
+        for (int i = 0; i < 100; i++) {
+            manager.readLock(owner1, "res" + i);
+        }
+        manager.readLock(owner2, "res0");
+        assertEquals(100, manager.getLockCount());
+
+        // a failed request must not leave a lock behind
+        assertFalse(manager.tryWriteLock(owner2, "res1"));
+        assertTrue(manager.tryReadLock(owner2, "other"));
+        assertEquals(101, manager.getLockCount());
+
+        manager.releaseAll(owner1);
+        // res0 and other are still held by owner2
+        manager.reclaimIdleLocks();
+        assertEquals(2, manager.getLockCount());
+        manager.release(owner2, "res0");
+        manager.reclaimIdleLocks();
+        assertEquals(1, manager.getLockCount());
+        manager.releaseAll(owner2);
+        manager.reclaimIdleLocks();
+        assertEquals(0, manager.getLockCount());
+
+        manager.setReclaimIdleLocks(false);
+        manager.readLock(owner1, "res");
+        manager.releaseAll(owner1);
+        assertEquals(1, manager.getLockCount());
+
+        // idle locks and owners without locks are swept in batches, so they do not pile up
+        manager = new ReadWriteLockManager(sLogger, 100);
+        int bound = StripedMap.DEFAULT_STRIPES * StripedMap.MIN_SWEEP_SIZE;
+        for (int i = 0; i < 10 * bound; i++) {
+            manager.readLock("owner" + i, "res" + i);
+            manager.release("owner" + i, "res" + i);
+            assertTrue(manager.globalLocks.size() <= bound);
+            assertTrue(manager.globalOwners.size() <= bound);
+        }
+        // locking a resource again finds the idle lock
+        manager.readLock(owner1, "res" + (10 * bound - 1));
+        GenericLock lock = (GenericLock) manager.getLock("res" + (10 * bound - 1));
+        manager.releaseAll(owner1);
+        manager.readLock(owner1, "res" + (10 * bound - 1));
+        assertTrue(lock == manager.getLock("res" + (10 * bound - 1)));
+        manager.releaseAll(owner1);
+        // but as it has been handed out, it is never reclaimed
+        manager.reclaimIdleLocks();
+        assertEquals(1, manager.getLockCount());
+    }
+
+    public void testHandedOutLocks() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking locks handed out are not reclaimed\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        // locks used directly as in the tutorial
+        GenericLockManager manager = new GenericLockManager(2, sLogger);
+        GenericLock lock = (GenericLock) manager.atomicGetOrCreateLock("/");
+        assertTrue(lock.acquire(owner1, 2, false, true, 0));
+
+        // plenty of requests sweeping idle locks
+        int bound = StripedMap.DEFAULT_STRIPES * StripedMap.MIN_SWEEP_SIZE;
+        for (int i = 0; i < 10 * bound; i++) {
+            manager.lock("owner" + i, "res" + i, 1, true);
+            manager.releaseAll("owner" + i);
+        }
+        lock.release(owner1);
+        for (int i = 0; i < 10 * bound; i++) {
+            manager.lock("owner" + i, "res" + i, 1, true);
+            manager.releaseAll("owner" + i);
+        }
+
+        // there still is a single lock for the resource
+        assertTrue(lock == manager.atomicGetOrCreateLock("/"));
+        assertTrue(lock == manager.getLock("/"));
+        assertTrue(lock.acquire(owner1, 2, false, true, 0));
+        assertFalse(manager.tryLock(owner2, "/", 2, true));
+        assertFalse(((GenericLock) manager.atomicGetOrCreateLock("/")).acquire(owner2, 2, false,
+                true, 0));
+        lock.release(owner1);
+        assertTrue(manager.tryLock(owner2, "/", 2, true));
+        manager.releaseAll(owner2);
+
+        // locks only looked at are kept as well
+        manager.lock(owner1, "res", 1, true);
+        lock = (GenericLock) manager.getLock("res");
+        manager.releaseAll(owner1);
+        for (int i = 0; i < 10 * bound; i++) {
+            manager.lock("owner" + i, "res" + i, 1, true);
+            manager.releaseAll("owner" + i);
+        }
+        assertTrue(lock == manager.getLock("res"));
+    }
+
+    public void testHandOff() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking hand-off to waiting requests\n\n");
+
+        final String writer = "writer";
+        final String preferredWriter = "preferredWriter";
+
+        final ReadWriteLock lock = new ReadWriteLock("res1", sLogger);
+
+        final TurnBarrier cb = new TurnBarrier("cb1", TIMEOUT, sLogger, 1);
+
+        final boolean[] acquired = new boolean[2];
+
+        lock.acquireRead("reader1", TIMEOUT);
+        lock.acquireRead("reader2", TIMEOUT);
+
+        Thread t1 = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    cb.waitForTurn(1);
+                    synchronized (lock) {
+                        cb.signalTurn(2);
+                        acquired[0] = lock.acquire(writer, ReadWriteLock.WRITE_LOCK, true,
+                                GenericLock.COMPATIBILITY_REENTRANT, false, TIMEOUT);
+                    }
+                } catch (InterruptedException ie) {
+                }
+            }
+        }, "Thread #1");
+
+        Thread t2 = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    cb.waitForTurn(2);
+                    synchronized (lock) {
+                        cb.signalTurn(3);
+                        acquired[1] = lock.acquire(preferredWriter, ReadWriteLock.WRITE_LOCK,
+                                true, GenericLock.COMPATIBILITY_REENTRANT, true, TIMEOUT);
+                    }
+                } catch (InterruptedException ie) {
+                }
+            }
+        }, "Thread #2");
+
+        t1.start();
+        t2.start();
+
+        cb.waitForTurn(3);
+        synchronized (lock) {
+            // both writers are waiting now, but can not be served while there is a reader
+            lock.release("reader1");
+            assertEquals(0, lock.getLockLevel(writer));
+            // the preferred writer comes first, although it started waiting later
+            lock.release("reader2");
+            assertEquals(0, lock.getLockLevel(writer));
+        }
+        t2.join();
+        assertTrue(acquired[1]);
+
+        lock.release(preferredWriter);
+        // the lock is handed over by the release, not taken by the woken up thread
+        assertEquals(ReadWriteLock.WRITE_LOCK, lock.getLockLevel(writer));
+        t1.join();
+        assertTrue(acquired[0]);
+    }
+
+    public void testTargetedWakeUps() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking only threads that got the lock are woken up\n\n");
+
+        final int waiters = 8;
+        final int[] wakeUps = new int[1];
+        final GenericLock lock = new GenericLock("res1", WRITE_LOCK, sLogger) {
+            protected void waitForGrant(LockWaiter waiter, long timeoutMSecs)
+                    throws InterruptedException {
+                super.waitForGrant(waiter, timeoutMSecs);
+                synchronized (wakeUps) {
+                    wakeUps[0]++;
+                }
+            }
+        };
+        final boolean[] acquired = new boolean[waiters];
+
+        assertTrue(acquireNoWait(lock, "owner", WRITE_LOCK));
+
+        Thread[] threads = new Thread[waiters];
+        for (int i = 0; i < waiters; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        String ownerId = "waiter" + index;
+                        acquired[index] = lock.acquire(ownerId, WRITE_LOCK, true, true,
+                                TIMEOUT);
+                        lock.release(ownerId);
+                    } catch (InterruptedException ie) {
+                    }
+                }
+            }, "Thread #" + (i + 1));
+            threads[i].start();
+        }
+
+        long started = System.currentTimeMillis();
+        while (true) {
+            synchronized (lock) {
+                if (lock.waitQueue != null && lock.waitQueue.size() == waiters) {
+                    break;
+                }
+            }
+            assertTrue(System.currentTimeMillis() - started < TIMEOUT);
+            Thread.sleep(10);
+        }
+
+        // every release hands the lock over to a single waiter, which is all that wakes up
+        lock.release("owner");
+        for (int i = 0; i < waiters; i++) {
+            threads[i].join();
+            assertTrue(acquired[i]);
+        }
+        assertEquals(waiters, wakeUps[0]);
+    }
+
+    public void testCancelWait() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking cancelation of waiting requests\n\n");
+
+        GenericLock lock = new GenericLock("res1", WRITE_LOCK, sLogger);
+        assertTrue(acquireNoWait(lock, "owner1", WRITE_LOCK));
+
+        // nobody waits, so there is nothing to cancel
+        assertFalse(lock.cancelWait("owner2"));
+
+        // a registered waiter is canceled even before it actually blocks
+        GenericLock.LockOwner waiter = new GenericLock.LockOwner("owner2", WRITE_LOCK,
+                GenericLock.COMPATIBILITY_REENTRANT, false);
+        lock.registerWaiter(waiter);
+        assertTrue(lock.cancelWait("owner2"));
+        long started = System.currentTimeMillis();
+        assertFalse(lock.acquire("owner2", WRITE_LOCK, true, true, TIMEOUT));
+        assertTrue(System.currentTimeMillis() - started < TIMEOUT);
+
+        // the cancelation has been used up
+        assertFalse(lock.acquire("owner2", WRITE_LOCK, true, true, 100));
+
+        // and it does not outlive the registration
+        assertTrue(lock.cancelWait("owner2"));
+        lock.unregisterWaiter(waiter);
+        lock.release("owner1");
+        assertTrue(lock.acquire("owner2", WRITE_LOCK, true, true, TIMEOUT));
+    }
+
+    public void testAsyncLock() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking asynchronous lock requests\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+        final String owner3 = "owner3";
+
+        final String res1 = "res1";
+        final String res2 = "res2";
+
+        GenericLockManager manager = new GenericLockManager(WRITE_LOCK, sLogger, TIMEOUT, -1);
+
+        // free locks are granted right away
+        LockFuture f1 = manager.lockAsync(owner1, res1, WRITE_LOCK,
+                GenericLock.COMPATIBILITY_REENTRANT, false, TIMEOUT);
+        assertTrue(f1.isGranted());
+        assertTrue(manager.hasLock(owner1, res1, WRITE_LOCK));
+
+        // others are granted when the lock is released
+        final List completed = new ArrayList();
+        LockFuture f2 = manager.lockAsync(owner2, res1, WRITE_LOCK,
+                GenericLock.COMPATIBILITY_REENTRANT, false, TIMEOUT);
+        f2.addListener(new LockListener() {
+            public void lockCompleted(LockFuture future) {
+                completed.add(future);
+            }
+        });
+        assertFalse(f2.isDone());
+        try {
+            manager.lockAsync(owner2, res2, WRITE_LOCK, GenericLock.COMPATIBILITY_REENTRANT,
+                    false, TIMEOUT);
+            fail("Only one pending request per owner allowed");
+        } catch (IllegalStateException ise) {
+        }
+        manager.release(owner1, res1);
+        assertTrue(f2.isGranted());
+        assertEquals(Arrays.asList(new Object[] { f2 }), completed);
+        assertTrue(manager.hasLock(owner2, res1, WRITE_LOCK));
+
+        // requests time out without anybody waiting for them
+        LockFuture f3 = manager.lockAsync(owner3, res1, WRITE_LOCK,
+                GenericLock.COMPATIBILITY_REENTRANT, false, 100);
+        assertTrue(f3.await(TIMEOUT));
+        assertEquals(LockException.CODE_TIMED_OUT, f3.getException().getCode());
+
+        // requests closing a cycle fail
+        manager.lock(owner1, res2, WRITE_LOCK, true);
+        LockFuture f4 = manager.lockAsync(owner2, res2, WRITE_LOCK,
+                GenericLock.COMPATIBILITY_REENTRANT, false, TIMEOUT);
+        LockFuture f5 = manager.lockAsync(owner1, res1, WRITE_LOCK,
+                GenericLock.COMPATIBILITY_REENTRANT, false, TIMEOUT);
+        assertEquals(LockException.CODE_DEADLOCK_VICTIM, f5.getException().getCode());
+        assertFalse(f4.isDone());
+
+        // releasing all locks aborts a pending request
+        manager.releaseAll(owner2);
+        assertEquals(LockException.CODE_INTERRUPTED, f4.getException().getCode());
+        assertFalse(manager.hasLock(owner2, res2, WRITE_LOCK));
+        manager.releaseAll(owner1);
+        assertTrue(manager.tryLock(owner3, res2, WRITE_LOCK, true));
+    }
+
+    public void testStatistics() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking lock statistics\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final String res1 = "res1";
+
+        GenericLockManager manager = new GenericLockManager(WRITE_LOCK, sLogger, TIMEOUT, -1);
+
+        manager.lock(owner1, res1, WRITE_LOCK, true);
+        try {
+            manager.lock(owner2, res1, WRITE_LOCK, true, 50);
+            fail("Lock should have timed out");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+        }
+        LockFuture future = manager.lockAsync(owner2, res1, WRITE_LOCK,
+                GenericLock.COMPATIBILITY_REENTRANT, false, TIMEOUT);
+        manager.releaseAll(owner1);
+        assertTrue(future.isGranted());
+
+        LockStatistics.Snapshot statistics = manager.getStatistics();
+        sLogger.logInfo(statistics.toString());
+        assertEquals(2, statistics.getAcquisitions());
+        assertEquals(1, statistics.getImmediateGrants());
+        assertEquals(1, statistics.getWaitedGrants());
+        assertEquals(1, statistics.getTimeouts());
+        assertEquals(0, statistics.getDeadlockVictims());
+        assertEquals(2, statistics.getDeadlockChecks());
+        long waits = 0;
+        long[] histogram = statistics.getWaitTimeHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            waits += histogram[i];
+        }
+        assertEquals(1, waits);
+        LockStatistics.Contention contention = (LockStatistics.Contention) statistics
+                .getMostContended().get(0);
+        assertEquals(res1, contention.getResourceId());
+        assertEquals(2, contention.getCount());
+
+        manager.resetStatistics();
+        assertEquals(0, manager.getStatistics().getAcquisitions());
+        assertTrue(manager.getStatistics().getMostContended().isEmpty());
+
+        // the least contended resource makes room for new ones
+        LockStatistics contentions = new LockStatistics(2);
+        contentions.contended("res1");
+        contentions.contended("res1");
+        contentions.contended("res1");
+        contentions.contended("res2");
+        contentions.contended("res3");
+        List mostContended = contentions.snapshot(0, 1).getMostContended();
+        assertEquals(1, mostContended.size());
+        assertEquals("res1", ((LockStatistics.Contention) mostContended.get(0)).getResourceId());
+        mostContended = contentions.snapshot(0, 2).getMostContended();
+        assertEquals("res3", ((LockStatistics.Contention) mostContended.get(1)).getResourceId());
+        assertEquals(2, ((LockStatistics.Contention) mostContended.get(1)).getCount());
+    }
+
+    public void testIntentionLocks() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking intention locks\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+        final String owner3 = "owner3";
+
+        final String map = "map";
+        final String key1 = "key1";
+        final String key2 = "key2";
+        final String key3 = "key3";
+
+        IntentionLockManager manager = new IntentionLockManager(sLogger, TIMEOUT);
+
+        // writes of different entries announce compatible intentions
+        manager.lock(owner1, new Object[] { map, key1 }, IntentionLock.EXCLUSIVE);
+        manager.lock(owner2, new Object[] { map, key2 }, IntentionLock.EXCLUSIVE);
+        assertEquals(IntentionLock.INTENTION_EXCLUSIVE, manager.getLevel(owner1, map));
+        assertEquals(IntentionLock.EXCLUSIVE, manager.getLevel(owner1, key1));
+        assertFalse(manager.tryLock(owner3, map, IntentionLock.SHARED, true));
+        assertTrue(manager.tryLock(owner3, map, IntentionLock.INTENTION_SHARED, true));
+        assertFalse(manager.tryLock(owner3, key1, IntentionLock.SHARED, true));
+        manager.lock(owner3, new Object[] { map, key3 }, IntentionLock.SHARED);
+        manager.releaseAll(owner1);
+        manager.releaseAll(owner2);
+
+        // reading the whole map and writing single entries combines to SIX
+        manager.lock(owner1, new Object[] { map }, IntentionLock.SHARED);
+        manager.lock(owner1, new Object[] { map, key1 }, IntentionLock.EXCLUSIVE);
+        assertEquals(IntentionLock.SHARED_INTENTION_EXCLUSIVE, manager.getLevel(owner1, map));
+        assertTrue(manager.hasLock(owner1, new Object[] { map, key2 }, IntentionLock.SHARED));
+        assertFalse(manager.hasLock(owner1, new Object[] { map, key2 },
+                IntentionLock.EXCLUSIVE));
+        assertFalse(manager.tryLock(owner2, map, IntentionLock.INTENTION_EXCLUSIVE, true));
+        assertTrue(manager.tryLock(owner2, map, IntentionLock.INTENTION_SHARED, true));
+        manager.releaseAll(owner1);
+        manager.releaseAll(owner2);
+        manager.releaseAll(owner3);
+
+        // an exclusive lock on the map covers all entries
+        manager.lock(owner1, new Object[] { map }, IntentionLock.EXCLUSIVE);
+        manager.lock(owner1, new Object[] { map, key1 }, IntentionLock.EXCLUSIVE);
+        assertEquals(0, manager.getLevel(owner1, key1));
+        assertFalse(manager.tryLock(owner2, map, IntentionLock.INTENTION_SHARED, true));
+    }
+
+    public void testLockEscalation() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking lock escalation\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final String map1 = "map1";
+        final String map2 = "map2";
+
+        IntentionLockManager manager = new IntentionLockManager(sLogger, TIMEOUT);
+        manager.setEscalationThreshold(3);
+
+        for (int i = 1; i <= 3; i++) {
+            manager.lock(owner1, new Object[] { map1, "key" + i }, IntentionLock.SHARED);
+        }
+        assertEquals(IntentionLock.INTENTION_SHARED, manager.getLevel(owner1, map1));
+        assertEquals(4, manager.getLockCount());
+
+        // one more lock on a child escalates to the parent
+        manager.lock(owner1, new Object[] { map1, "key4" }, IntentionLock.EXCLUSIVE);
+        assertEquals(IntentionLock.EXCLUSIVE, manager.getLevel(owner1, map1));
+        assertEquals(0, manager.getLevel(owner1, "key1"));
+        manager.reclaimIdleLocks();
+        assertEquals(1, manager.getLockCount());
+        assertTrue(manager.hasLock(owner1, new Object[] { map1, "key1" },
+                IntentionLock.EXCLUSIVE));
+        manager.lock(owner1, new Object[] { map1, "key5" }, IntentionLock.EXCLUSIVE);
+        assertEquals(1, manager.getLockCount());
+        assertFalse(manager.tryLock(owner2, map1, IntentionLock.INTENTION_SHARED, true));
+
+        // others reading the parent make escalation fail, so the child locks are kept
+        manager.lock(owner2, new Object[] { map2, "entry1" }, IntentionLock.SHARED);
+        for (int i = 2; i <= 4; i++) {
+            manager.lock(owner1, new Object[] { map2, "entry" + i }, IntentionLock.EXCLUSIVE);
+        }
+        assertEquals(IntentionLock.INTENTION_EXCLUSIVE, manager.getLevel(owner1, map2));
+        assertEquals(IntentionLock.EXCLUSIVE, manager.getLevel(owner1, "entry2"));
+
+        manager.releaseAll(owner1);
+        manager.releaseAll(owner2);
+        manager.reclaimIdleLocks();
+        assertEquals(0, manager.getLockCount());
+    }
+
+    public void testLockAll() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking batch lock acquisition\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final GenericLockManager manager = new GenericLockManager(WRITE_LOCK, sLogger, TIMEOUT,
+                -1);
+
+        assertTrue(manager.tryLockAll(owner1, Arrays.asList(new String[] { "res1", "res2",
+                "res3" }), WRITE_LOCK, true));
+        assertTrue(manager.hasLock(owner1, "res2", WRITE_LOCK));
+
+        // all or nothing
+        assertFalse(manager.tryLockAll(owner2, Arrays.asList(new String[] { "res4", "res3" }),
+                WRITE_LOCK, true));
+        assertEquals(0, manager.getLevel(owner2, "res4"));
+        try {
+            manager.lockAll(owner2, Arrays.asList(new String[] { "res4", "res3" }), WRITE_LOCK,
+                    true, 50);
+            fail("Locks should have timed out");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+        }
+        assertEquals(0, manager.getLevel(owner2, "res4"));
+        manager.releaseAll(owner1);
+
+        // owners locking in opposite order do not deadlock
+        final List failures = Collections.synchronizedList(new ArrayList());
+        Thread t1 = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    try {
+                        manager.lockAll(owner1, Arrays.asList(new String[] { "res1", "res2" }),
+                                WRITE_LOCK, true, TIMEOUT);
+                    } catch (LockException le) {
+                        failures.add(le);
+                    } finally {
+                        manager.releaseAll(owner1);
+                    }
+                }
+            }
+        }, "Thread #1");
+        t1.start();
+        for (int i = 0; i < 100; i++) {
+            try {
+                manager.lockAll(owner2, Arrays.asList(new String[] { "res2", "res1" }),
+                        WRITE_LOCK, true, TIMEOUT);
+            } catch (LockException le) {
+                failures.add(le);
+            } finally {
+                manager.releaseAll(owner2);
+            }
+        }
+        t1.join();
+        assertEquals(Collections.EMPTY_LIST, failures);
+
+        Object[] ordered = ResourceOrder.sort(Arrays.asList(new Object[] { "b", new Long(2),
+                "a", new Long(1), "a" }));
+        assertEquals(Arrays.asList(new Object[] { new Long(1), new Long(2), "a", "b" }), Arrays
+                .asList(ordered));
+    }
+
+    public void testLockStripes() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking lock stripes\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        GenericLockManager manager = new GenericLockManager(2, sLogger, TIMEOUT, -1);
+        manager.setLockStripes(3, Collections.singleton("hot"));
+        assertEquals(4, manager.getLockStripeCount());
+
+        // find two resources sharing a stripe and one in another stripe
+        final String res1 = "res0";
+        int i = 1;
+        while (manager.getLock("res" + i) != manager.getLock(res1)) {
+            i++;
+        }
+        final String res2 = "res" + i;
+        i = 1;
+        while (manager.getLock("res" + i) == manager.getLock(res1)) {
+            i++;
+        }
+        final String res3 = "res" + i;
+
+        // no lock objects are created for resources
+        manager.lock(owner1, res1, 2, false);
+        manager.lock(owner1, res2, 1, false);
+        manager.lock(owner1, "hot", 1, false);
+        assertEquals(5, manager.getLockCount());
+        assertEquals(2, manager.getAll(owner1).size());
+        assertEquals(2, manager.getLevel(owner1, res1));
+        assertEquals(1, manager.getLevel(owner1, res2));
+        assertTrue(manager.hasLock(owner1, res2, 1));
+        assertFalse(manager.hasLock(owner1, res2, 2));
+        assertEquals(0, manager.getLevel(owner1, res3));
+
+        // a false conflict, while other stripes are not affected
+        assertFalse(manager.tryLock(owner2, res2, 1, false));
+        assertTrue(manager.tryLock(owner2, res3, 1, false));
+
+        // the stripe is kept until the last resource on it is released
+        assertTrue(manager.release(owner1, res1));
+        assertFalse(manager.release(owner1, res1));
+        assertEquals(0, manager.getLevel(owner1, res1));
+        assertFalse(manager.tryLock(owner2, res1, 1, false));
+        assertTrue(manager.release(owner1, res2));
+        assertTrue(manager.tryLock(owner2, res1, 1, false));
+
+        manager.lockAll(owner1, Arrays.asList(new String[] { res3, "hot" }), 1, false, TIMEOUT);
+        assertEquals(1, manager.getLevel(owner1, res3));
+        assertFalse(manager.tryLockAll(owner1, Arrays.asList(new String[] { res2, "x" }), 2,
+                false));
+        assertEquals(0, manager.getLevel(owner1, res2));
+        manager.releaseAll(owner1);
+        manager.releaseAll(owner2);
+        assertEquals(0, manager.getLevel(owner1, res3));
+        manager.reclaimIdleLocks();
+        assertEquals(4, manager.getLockCount());
+
+        // intention locks combine the levels of resources sharing a stripe
+        IntentionLockManager intentionManager = new IntentionLockManager(sLogger, TIMEOUT);
+        intentionManager.setLockStripes(1);
+        intentionManager.lock(owner1, new Object[] { "a" }, IntentionLock.SHARED);
+        intentionManager.lock(owner1, new Object[] { "b" }, IntentionLock.INTENTION_EXCLUSIVE);
+        assertEquals(IntentionLock.SHARED, intentionManager.getLevel(owner1, "a"));
+        assertEquals(IntentionLock.SHARED_INTENTION_EXCLUSIVE, ((GenericLock) intentionManager
+                .getLock("c")).getLockLevel(owner1));
+        intentionManager.releaseAll(owner1);
+    }
+
+    public void testLockAllStripes() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking batch lock acquisition on lock stripes\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final GenericLockManager manager = new GenericLockManager(WRITE_LOCK, sLogger,
+                TIMEOUT, -1);
+        manager.setLockStripes(16);
+
+        // two pairs of resources in canonical order whose stripes come in opposite order
+        int i = 0;
+        String a1 = "a" + i;
+        String a2;
+        do {
+            a2 = "b" + i++;
+        } while (manager.getLockIndex(a2) == manager.getLockIndex(a1));
+        String b1 = "c0";
+        for (i = 0; manager.getLockIndex(b1) != manager.getLockIndex(a2); i++) {
+            b1 = "c" + i;
+        }
+        String b2 = "d0";
+        for (i = 0; manager.getLockIndex(b2) != manager.getLockIndex(a1); i++) {
+            b2 = "d" + i;
+        }
+        final List resources1 = Arrays.asList(new String[] { a1, a2 });
+        final List resources2 = Arrays.asList(new String[] { b1, b2 });
+
+        final List failures = Collections.synchronizedList(new ArrayList());
+        Thread t1 = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    try {
+                        manager.lockAll(owner1, resources1, WRITE_LOCK, true, TIMEOUT);
+                    } catch (LockException le) {
+                        failures.add(le);
+                    } finally {
+                        manager.releaseAll(owner1);
+                    }
+                }
+            }
+        }, "Thread #1");
+        t1.start();
+        for (i = 0; i < 100; i++) {
+            try {
+                manager.lockAll(owner2, resources2, WRITE_LOCK, true, TIMEOUT);
+            } catch (LockException le) {
+                failures.add(le);
+            } finally {
+                manager.releaseAll(owner2);
+            }
+        }
+        t1.join();
+        assertEquals(Collections.EMPTY_LIST, failures);
+
+        // a stripe is locked once, no matter how many of the resources share it
+        assertTrue(manager.tryLockAll(owner1, Arrays.asList(new String[] { a1, b2, a2 }),
+                WRITE_LOCK, false));
+        assertEquals(2, manager.getAll(owner1).size());
+        assertEquals(WRITE_LOCK, manager.getLevel(owner1, b2));
+        assertFalse(manager.tryLock(owner2, b1, READ_LOCK, false));
+        manager.releaseAll(owner1);
+        assertTrue(manager.tryLock(owner2, b1, READ_LOCK, false));
+        manager.releaseAll(owner2);
+    }
+
+    public void testPreferencePolicies() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking reader/writer preference policies\n\n");
+
+        final boolean[] acquired = new boolean[2];
+
+        // preferred readers get in while a writer waits
+        ReadWriteLock lock = new ReadWriteLock("res1", sLogger);
+        lock.setPreference(ReadWriteLock.PREFER_READERS);
+        assertTrue(lock.acquireRead("reader1", 0));
+        Thread writer = startAcquire(lock, "writer", true, acquired, 0);
+        awaitWaiters(lock, 1);
+        assertTrue(lock.acquireRead("reader2", 0));
+        lock.release("reader1");
+        lock.release("reader2");
+        writer.join();
+        assertTrue(acquired[0]);
+        lock.release("writer");
+
+        // preferred writers keep them out
+        lock.setPreference(ReadWriteLock.PREFER_WRITERS);
+        assertTrue(lock.acquireRead("reader1", 0));
+        writer = startAcquire(lock, "writer", true, acquired, 0);
+        awaitWaiters(lock, 1);
+        assertFalse(lock.acquireRead("reader2", 10));
+        lock.release("reader1");
+        writer.join();
+        assertTrue(acquired[0]);
+        lock.release("writer");
+
+        try {
+            lock.setPreference(3);
+            fail("Unknown policy must not be accepted");
+        } catch (IllegalArgumentException e) {
+        }
+
+        // with fair phases readers that waited for a write come before the next writer
+        lock.setPreference(ReadWriteLock.PHASE_FAIR);
+        checkPhaseFairness(lock, ReadWriteLock.READ_LOCK, ReadWriteLock.WRITE_LOCK, acquired);
+        ReadWriteUpgradeLock upgradeLock = new ReadWriteUpgradeLock("res2", sLogger);
+        upgradeLock.setPreference(ReadWriteLock.PHASE_FAIR);
+        checkPhaseFairness(upgradeLock, ReadWriteUpgradeLock.READ_LOCK,
+                ReadWriteUpgradeLock.WRITE_LOCK, acquired);
+    }
+
+    protected void checkPhaseFairness(GenericLock lock, int readLevel, int writeLevel,
+            boolean[] acquired) throws Throwable {
+        assertTrue(lock.acquire("writer1", writeLevel, false, true, 0));
+        Thread reader = startAcquire(lock, "reader1", false, acquired, 0);
+        awaitWaiters(lock, 1);
+        Thread writer = startAcquire(lock, "writer2", true, acquired, 1);
+        awaitWaiters(lock, 2);
+        synchronized (lock) {
+            // the lock is handed over to the waiting reader, although the writer is preferred
+            lock.release("writer1");
+            assertEquals(readLevel, lock.getLockLevel("reader1"));
+        }
+        reader.join();
+        assertTrue(acquired[0]);
+        // new readers still have to wait for the writer
+        assertFalse(lock.acquire("reader2", readLevel, true, true, 10));
+        lock.release("reader1");
+        writer.join();
+        assertTrue(acquired[1]);
+        lock.release("writer2");
+    }
+
+    protected Thread startAcquire(final GenericLock lock, final String owner, final boolean write,
+            final boolean[] acquired, final int index) {
+        acquired[index] = false;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    if (lock instanceof ReadWriteLock) {
+                        ReadWriteLock rwLock = (ReadWriteLock) lock;
+                        acquired[index] = write ? rwLock.acquireWrite(owner, TIMEOUT) : rwLock
+                                .acquireRead(owner, TIMEOUT);
+                    } else {
+                        ReadWriteUpgradeLock rwLock = (ReadWriteUpgradeLock) lock;
+                        acquired[index] = write ? rwLock.acquireWrite(owner, TIMEOUT) : rwLock
+                                .acquireRead(owner, TIMEOUT);
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        }, owner + " Thread");
+        t.start();
+        return t;
+    }
+
+    protected void awaitWaiters(GenericLock lock, int count) throws InterruptedException {
+        while (true) {
+            synchronized (lock) {
+                if (lock.waitQueue != null && lock.waitQueue.size() >= count) {
+                    return;
+                }
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    public void testSpinning() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking spinning for locks held shortly\n\n");
+
+        final GenericLock lock = new GenericLock("res1", WRITE_LOCK, sLogger);
+        assertTrue(acquireNoWait(lock, "owner1", WRITE_LOCK));
+
+        // nothing changes while we spin, so spinning is cut down until it is given up
+        assertFalse(lock.spinAcquire("owner2", WRITE_LOCK, GenericLock.COMPATIBILITY_REENTRANT,
+                false, 100));
+        assertEquals(50, lock.spinLimit);
+        while (lock.spinLimit > 0) {
+            assertFalse(lock.spinAcquire("owner2", WRITE_LOCK,
+                    GenericLock.COMPATIBILITY_REENTRANT, false, 100));
+        }
+        // from now on only some requests probe if spinning pays again
+        for (int i = 1; i < GenericLock.SPIN_PROBE_INTERVAL; i++) {
+            assertFalse(lock.spinAcquire("owner2", WRITE_LOCK,
+                    GenericLock.COMPATIBILITY_REENTRANT, false, 100));
+        }
+        assertEquals(1 - GenericLock.SPIN_PROBE_INTERVAL, lock.spinLimit);
+        assertFalse(lock.spinAcquire("owner2", WRITE_LOCK, GenericLock.COMPATIBILITY_REENTRANT,
+                false, 100));
+        assertEquals(0, lock.spinLimit);
+        assertFalse(lock.spinAcquire("owner2", WRITE_LOCK, GenericLock.COMPATIBILITY_REENTRANT,
+                false, 0));
+
+        // a lock released while spinning is taken and lets later requests spin again
+        final GenericLock shortLock = new GenericLock("res2", WRITE_LOCK, sLogger);
+        assertTrue(acquireNoWait(shortLock, "owner1", WRITE_LOCK));
+        Thread releaser = new Thread(new Runnable() {
+            public void run() {
+                shortLock.release("owner1");
+            }
+        }, "Releaser Thread");
+        releaser.start();
+        assertTrue(shortLock.spinAcquire("owner2", WRITE_LOCK,
+                GenericLock.COMPATIBILITY_REENTRANT, false, Integer.MAX_VALUE));
+        assertEquals(WRITE_LOCK, shortLock.getLockLevel("owner2"));
+        assertTrue(shortLock.spinLimit >= GenericLock.MIN_SPINS);
+        releaser.join();
+
+        final GenericLockManager manager = new GenericLockManager(WRITE_LOCK, sLogger);
+        assertEquals(Runtime.getRuntime().availableProcessors() > 1
+                ? GenericLockManager.DEFAULT_MAX_SPINS : 0, manager.getMaxSpins());
+        try {
+            manager.setMaxSpins(-1);
+            fail("Negative spins must not be accepted");
+        } catch (IllegalArgumentException e) {
+        }
+
+        // a request of the manager spins before it blocks
+        manager.setMaxSpins(Integer.MAX_VALUE);
+        manager.lock("owner1", "res1", WRITE_LOCK, true);
+        releaser = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                }
+                manager.release("owner1", "res1");
+            }
+        }, "Releaser Thread");
+        releaser.start();
+        manager.lock("owner2", "res1", WRITE_LOCK, true);
+        releaser.join();
+        LockStatistics.Snapshot statistics = manager.getStatistics();
+        assertEquals(1, statistics.getWaitedGrants());
+        assertEquals(1, statistics.getSpunGrants());
+        manager.releaseAll("owner2");
+    }
+
+    public void testAdaptiveCheckThreshhold() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking adaptive check threshhold\n\n");
+
+        GenericLockManager manager = new GenericLockManager(WRITE_LOCK, sLogger);
+        assertEquals(GenericLockManager.DEFAULT_CHECK_THRESHHOLD, manager.getCheckThreshhold());
+        assertEquals(GenericLockManager.DEFAULT_CHECK_THRESHHOLD, manager.getStatistics()
+                .getCheckThreshhold());
+        try {
+            manager.setCheckThreshholdBounds(100, 10);
+            fail("Inverted bounds must not be accepted");
+        } catch (IllegalArgumentException e) {
+        }
+
+        // adapting starts from the current threshhold
+        manager.setCheckThreshholdBounds(10, 1000);
+        assertEquals(GenericLockManager.DEFAULT_CHECK_THRESHHOLD, manager.getCheckThreshhold());
+
+        // every deadlock halves it down to the lower bound
+        manager.deadlockChecked(true);
+        assertEquals(250, manager.getCheckThreshhold());
+        for (int i = 0; i < 10; i++) {
+            manager.deadlockChecked(true);
+        }
+        assertEquals(10, manager.getCheckThreshhold());
+        assertEquals(10, manager.getStatistics().getCheckThreshhold());
+
+        // checks that find nothing and long waits make it rise up to the upper bound
+        for (int i = 0; i < 100; i++) {
+            manager.deadlockChecked(false);
+            manager.waitedGrant(2000);
+        }
+        assertEquals(1000, manager.getCheckThreshhold());
+        // while checks after short waits let it follow them
+        for (int i = 0; i < 100; i++) {
+            manager.waitedGrant(100);
+            manager.deadlockChecked(false);
+        }
+        assertTrue(manager.getCheckThreshhold() > 190 && manager.getCheckThreshhold() < 250);
+
+        // a fixed threshhold stops adapting
+        manager.setCheckThreshhold(-1);
+        manager.waitedGrant(100);
+        assertEquals(-1, manager.getCheckThreshhold());
+        assertEquals(-1, manager.getStatistics().getCheckThreshhold());
+    }
+
+    public void testWaiterScheduling() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking scheduling of waiting requests\n\n");
+
+        // by default compatible requests overtake those that have to wait
+        GenericLock lock = new GenericLock("res1", WRITE_LOCK, sLogger);
+        assertTrue(acquireNoWait(lock, "holder", WRITE_LOCK));
+        enqueueAsync(lock, "reader1", READ_LOCK);
+        enqueueAsync(lock, "writer", WRITE_LOCK);
+        enqueueAsync(lock, "reader2", READ_LOCK);
+        lock.release("holder");
+        assertEquals(Arrays.asList(new Object[] { "reader1", "reader2" }), takeGranted(lock));
+
+        // but not when served strictly in order
+        lock = new GenericLock("res1", WRITE_LOCK, sLogger);
+        lock.setWaiterScheduler(new FifoWaiterScheduler());
+        assertTrue(acquireNoWait(lock, "holder", WRITE_LOCK));
+        enqueueAsync(lock, "reader1", READ_LOCK);
+        enqueueAsync(lock, "writer", WRITE_LOCK);
+        enqueueAsync(lock, "reader2", READ_LOCK);
+        lock.release("holder");
+        assertEquals(Arrays.asList(new Object[] { "reader1" }), takeGranted(lock));
+        lock.release("reader1");
+        assertEquals(Arrays.asList(new Object[] { "writer" }), takeGranted(lock));
+        lock.release("writer");
+        assertEquals(Arrays.asList(new Object[] { "reader2" }), takeGranted(lock));
+
+        // owners of higher weight first
+        WeightedWaiterScheduler weighted = new WeightedWaiterScheduler();
+        weighted.setWeight("interactive", 10);
+        lock = new GenericLock("res1", WRITE_LOCK, sLogger);
+        lock.setWaiterScheduler(weighted);
+        assertTrue(acquireNoWait(lock, "holder", WRITE_LOCK));
+        enqueueAsync(lock, "batch1", WRITE_LOCK);
+        enqueueAsync(lock, "interactive", WRITE_LOCK);
+        enqueueAsync(lock, "batch2", WRITE_LOCK);
+        lock.release("holder");
+        assertEquals(Arrays.asList(new Object[] { "interactive" }), takeGranted(lock));
+        lock.release("interactive");
+        assertEquals(Arrays.asList(new Object[] { "batch1" }), takeGranted(lock));
+        lock.release("batch1");
+        assertEquals(Arrays.asList(new Object[] { "batch2" }), takeGranted(lock));
+        weighted.removeWeight("interactive");
+        assertEquals(0, weighted.getWeight("interactive"));
+
+        // shortest expected hold time first, owners without an estimate last
+        ShortestHoldWaiterScheduler shortest = new ShortestHoldWaiterScheduler();
+        shortest.setExpectedHoldTime("long", 1000);
+        shortest.setExpectedHoldTime("short", 10);
+        lock = new GenericLock("res1", WRITE_LOCK, sLogger);
+        lock.setWaiterScheduler(shortest);
+        assertTrue(acquireNoWait(lock, "holder", WRITE_LOCK));
+        enqueueAsync(lock, "unknown", WRITE_LOCK);
+        enqueueAsync(lock, "long", WRITE_LOCK);
+        enqueueAsync(lock, "short", WRITE_LOCK);
+        lock.release("holder");
+        assertEquals(Arrays.asList(new Object[] { "short" }), takeGranted(lock));
+        lock.release("short");
+        assertEquals(Arrays.asList(new Object[] { "long" }), takeGranted(lock));
+        lock.release("long");
+        assertEquals(Arrays.asList(new Object[] { "unknown" }), takeGranted(lock));
+
+        // upgrades first: with levels read, upgrade and write only one of the two waiting
+        // upgrade requests can be served
+        for (int i = 0; i < 2; i++) {
+            boolean upgradeFirst = (i == 1);
+            lock = new GenericLock("res1", 3, sLogger);
+            if (upgradeFirst) {
+                lock.setWaiterScheduler(new UpgradeFirstWaiterScheduler());
+            }
+            assertTrue(acquireNoWait(lock, "upgrader", 1));
+            assertTrue(acquireNoWait(lock, "holder", 2));
+            enqueueAsync(lock, "other", 2);
+            enqueueAsync(lock, "upgrader", 2);
+            lock.release("holder");
+            assertEquals(Arrays.asList(new Object[] { upgradeFirst ? "upgrader" : "other" }),
+                    takeGranted(lock));
+        }
+
+        // the scheduler of a manager applies to its locks, whether they exist or not yet
+        GenericLockManager manager = new GenericLockManager(WRITE_LOCK, sLogger);
+        GenericLock existing = (GenericLock) manager.atomicGetOrCreateLock("res1");
+        manager.setReclaimIdleLocks(false);
+        manager.setWaiterScheduler(weighted);
+        assertTrue(manager.getWaiterScheduler() == weighted);
+        assertTrue(existing.getWaiterScheduler() == weighted);
+        assertTrue(((GenericLock) manager.atomicGetOrCreateLock("res2")).getWaiterScheduler()
+                == weighted);
+    }
+
+    public void testStrictOrderOfNewRequests() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking new requests do not overtake waiting ones\n\n");
+
+        // a reader coming in while a writer waits can not join the reader holding the lock
+        GenericLock lock = new GenericLock("res1", WRITE_LOCK, sLogger);
+        lock.setWaiterScheduler(new FifoWaiterScheduler());
+        assertTrue(acquireNoWait(lock, "reader1", READ_LOCK));
+        enqueueAsync(lock, "writer", WRITE_LOCK);
+        assertFalse(acquireNoWait(lock, "reader2", READ_LOCK));
+        // while the reader holding it is not held up
+        assertTrue(acquireNoWait(lock, "reader1", READ_LOCK));
+        enqueueAsync(lock, "reader2", READ_LOCK);
+        lock.release("reader1");
+        assertEquals(Arrays.asList(new Object[] { "writer" }), takeGranted(lock));
+        lock.release("writer");
+        assertEquals(Arrays.asList(new Object[] { "reader2" }), takeGranted(lock));
+
+        // the same for blocked requests of a manager, which wait in several rounds to check
+        // for deadlocks in between, but keep their place in line
+        final GenericLockManager manager = new GenericLockManager(WRITE_LOCK, sLogger);
+        manager.setWaiterScheduler(new FifoWaiterScheduler());
+        manager.setCheckThreshhold(20);
+        final String res = "res2";
+        final List order = Collections.synchronizedList(new ArrayList());
+        manager.lock("reader1", res, READ_LOCK, true);
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                manager.lock("writer", res, WRITE_LOCK, true, TIMEOUT);
+                order.add("writer");
+                manager.releaseAll("writer");
+            }
+        }, "Thread #1");
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                manager.lock("reader2", res, READ_LOCK, true, TIMEOUT);
+                order.add("reader2");
+                manager.releaseAll("reader2");
+            }
+        }, "Thread #2");
+
+        writer.start();
+        waitForWaiter(manager, res, "writer");
+        // let the writer go through a few rounds
+        Thread.sleep(100);
+        assertFalse(manager.tryLock("reader2", res, READ_LOCK, true));
+        reader.start();
+        waitForWaiter(manager, res, "reader2");
+        Thread.sleep(100);
+        assertTrue(order.isEmpty());
+
+        manager.releaseAll("reader1");
+        writer.join();
+        reader.join();
+        assertEquals(Arrays.asList(new Object[] { "writer", "reader2" }), order);
+    }
+
+    protected void waitForWaiter(GenericLockManager manager, Object resourceId, Object ownerId)
+            throws InterruptedException {
+        GenericLock lock = (GenericLock) manager.getLock(resourceId);
+        long started = System.currentTimeMillis();
+        while (!lock.isRegisteredWaiter(ownerId)) {
+            assertTrue(System.currentTimeMillis() - started < TIMEOUT);
+            Thread.sleep(10);
+        }
+    }
+
+    protected void enqueueAsync(GenericLock lock, String owner, int level) {
+        assertFalse(lock.acquireOrEnqueue(new GenericLock.LockWaiter(owner, level,
+                GenericLock.COMPATIBILITY_REENTRANT, false, true)));
+    }
+
+    protected List takeGranted(GenericLock lock) {
+        List owners = new ArrayList();
+        for (Iterator it = lock.takeAsyncGrants().iterator(); it.hasNext();) {
+            owners.add(((GenericLock.LockWaiter) it.next()).ownerId);
+        }
+        return owners;
+    }
+
     public void testStress() throws Throwable {
 
         sLogger.logInfo("\n\nStress checking locks\n\n");
@@ -934,6 +2458,13 @@ public class GenericLockTest extends TestCase {
                 }
             } catch (InterruptedException ie) {
             }
+
+            // make sure no thread of this round is still inside the restart barrier when the
+            // next round meets there, otherwise its reset would swallow a new party
+            t1.join();
+            t2.join();
+            t3.join();
+            t4.join();
         }
 
     }
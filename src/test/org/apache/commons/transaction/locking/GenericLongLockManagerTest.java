@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.io.PrintWriter;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.PrintWriterLogger;
+
+/**
+ * Tests for lock managers of long resource and owner ids.
+ *
+ * @version $Id$
+ */
+public class GenericLongLockManagerTest extends TestCase {
+
+    private static final LoggerFacade sLogger = new PrintWriterLogger(new PrintWriter(System.out),
+            GenericLongLockManagerTest.class.getName(), false);
+
+    protected static final int READ_LOCK = 1;
+    protected static final int WRITE_LOCK = 2;
+
+    protected static final long TIMEOUT = 1000000;
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(GenericLongLockManagerTest.class);
+        return suite;
+    }
+
+    public static void main(java.lang.String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    public GenericLongLockManagerTest(String testName) {
+        super(testName);
+    }
+
+    public void testSameDecisions() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking decisions of long lock manager against generic one\n\n");
+
+        // same decisions as a generic lock manager with the same maximum level
+        final int maxLevel = 3;
+        GenericLockManager generic = new GenericLockManager(maxLevel, sLogger, TIMEOUT);
+        GenericLongLockManager manager = new GenericLongLockManager(maxLevel, sLogger, TIMEOUT,
+                GenericLongLockManager.DEFAULT_CHECK_THRESHHOLD, 1);
+        Random random = new Random(4711);
+        for (int i = 0; i < 20000; i++) {
+            long owner = random.nextInt(4);
+            long res = random.nextInt(3);
+            Long ownerId = new Long(owner);
+            Long resourceId = new Long(res);
+            int level = 1 + random.nextInt(maxLevel);
+            switch (random.nextInt(5)) {
+            case 0:
+                boolean reentrant = random.nextBoolean();
+                assertEquals(generic.tryLock(ownerId, resourceId, level, reentrant), manager
+                        .tryLock(owner, res, level, reentrant));
+                break;
+            case 1:
+                assertEquals(generic.checkLock(ownerId, resourceId, level, true), manager
+                        .checkLock(owner, res, level, true));
+                break;
+            case 2:
+                int compatibility = random.nextInt(4);
+                boolean expected = true;
+                try {
+                    generic.lock(ownerId, resourceId, level, compatibility, false, 0);
+                } catch (LockException le) {
+                    expected = false;
+                }
+                boolean granted = true;
+                try {
+                    manager.lock(owner, res, level, compatibility, 0);
+                } catch (LockException le) {
+                    assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+                    granted = false;
+                }
+                assertEquals(expected, granted);
+                break;
+            case 3:
+                assertEquals(generic.release(ownerId, resourceId), manager.release(owner, res));
+                break;
+            default:
+                if (random.nextInt(10) == 0) {
+                    generic.releaseAll(ownerId);
+                    manager.releaseAll(owner);
+                }
+            }
+            assertEquals(generic.getLevel(ownerId, resourceId), manager.getLevel(owner, res));
+            assertEquals(generic.getAll(ownerId).size(), manager.getAll(owner).length);
+        }
+    }
+
+    public void testTables() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking growing and shrinking tables of long lock manager\n\n");
+
+        // tables grow with many resources and shrink again, shared owners are inlined again
+        GenericLongLockManager manager = new GenericLongLockManager(WRITE_LOCK, sLogger,
+                TIMEOUT, -1, 1);
+        for (long res = 0; res < 1000; res++) {
+            manager.lock(1, res, READ_LOCK, true);
+            manager.lock(2, res * 7, READ_LOCK, true);
+        }
+        assertEquals(1000, manager.getAll(1).length);
+        assertEquals(1000 + 1000 - 143, manager.getLockCount());
+        for (long res = 0; res < 1000; res++) {
+            assertTrue(manager.hasLock(1, res, READ_LOCK));
+            assertEquals(res % 7 == 0, manager.hasLock(2, res, READ_LOCK));
+            assertFalse(manager.tryLock(3, res, WRITE_LOCK, true));
+        }
+        manager.releaseAll(2);
+        assertEquals(1000, manager.getLockCount());
+        assertTrue(manager.tryLock(1, 700, WRITE_LOCK, true));
+        manager.releaseAll(1);
+        assertEquals(0, manager.getLockCount());
+        assertEquals(0, manager.getAll(1).length);
+        assertEquals(8, manager.resourceStripes[0].resourceIds.length);
+    }
+
+    public void testReadWriteLongLockManager() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking read/write long lock manager\n\n");
+
+        // read/write locks as known from the read/write lock manager
+        final ReadWriteLongLockManager rwManager = new ReadWriteLongLockManager(sLogger, TIMEOUT);
+        assertTrue(rwManager.tryReadLock(1, 1));
+        assertTrue(rwManager.tryReadLock(2, 1));
+        assertTrue(rwManager.hasReadLock(2, 1));
+        assertFalse(rwManager.checkWriteLock(2, 1));
+        try {
+            rwManager.lock(2, 1, ReadWriteLock.WRITE_LOCK, true, 50);
+            fail("Write lock should have timed out");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+        }
+        assertEquals(1, rwManager.getStatistics().getTimeouts());
+
+        // a waiting writer gets its lock once the other reader is gone
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                rwManager.writeLock(2, 1);
+            }
+        }, "Writer Thread");
+        writer.start();
+        while (rwManager.getBlockingOwners(2).length == 0) {
+            Thread.sleep(1);
+        }
+        rwManager.release(1, 1);
+        writer.join();
+        assertTrue(rwManager.hasWriteLock(2, 1));
+
+        rwManager.releaseAll(2);
+        assertEquals(0, rwManager.getLockCount());
+    }
+
+    public void testWaitersPerResource() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking waiters per resource in long lock manager\n\n");
+
+        // a single stripe, so all resources share it
+        final GenericLongLockManager manager = new GenericLongLockManager(WRITE_LOCK, sLogger,
+                TIMEOUT, TIMEOUT, 1);
+        GenericLongLockManager.ResourceStripe stripe = manager.resourceStripes[0];
+        manager.lock(1, 1, WRITE_LOCK, true);
+        manager.lock(1, 2, WRITE_LOCK, true);
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                manager.lock(2, 1, WRITE_LOCK, true);
+            }
+        }, "Waiter Thread");
+        waiter.start();
+        while (manager.getBlockingOwners(2).length == 0) {
+            Thread.sleep(1);
+        }
+        GenericLongLockManager.ResourceWaiters waiters;
+        synchronized (stripe) {
+            waiters = (GenericLongLockManager.ResourceWaiters) stripe.waiters.get(1);
+        }
+
+        // changes to other resources of the stripe do not wake up the waiter
+        manager.release(1, 2);
+        manager.lock(3, 3, WRITE_LOCK, true);
+        manager.releaseAll(3);
+        assertEquals(0, waiters.getGeneration());
+        assertTrue(waiter.isAlive());
+
+        manager.release(1, 1);
+        waiter.join();
+        assertEquals(1, waiters.getGeneration());
+        assertTrue(manager.hasLock(2, 1, WRITE_LOCK));
+        synchronized (stripe) {
+            assertTrue(stripe.waiters.isEmpty());
+        }
+        manager.releaseAll(2);
+        assertEquals(0, manager.getLockCount());
+    }
+
+    public void testDeadlock() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking deadlocks in long lock manager\n\n");
+
+        // owner 2 waits for owner 1, so owner 1 waiting for owner 2 is the deadlock victim
+        final GenericLongLockManager deadlockManager = new GenericLongLockManager(WRITE_LOCK,
+                sLogger, TIMEOUT, -1);
+        deadlockManager.lock(1, 2, WRITE_LOCK, true);
+        deadlockManager.lock(2, 1, WRITE_LOCK, true);
+        final LockException[] failure = new LockException[1];
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    deadlockManager.lock(2, 2, READ_LOCK, true);
+                } catch (LockException le) {
+                    failure[0] = le;
+                }
+            }
+        }, "Waiter Thread");
+        waiter.start();
+        while (deadlockManager.getBlockingOwners(2).length == 0) {
+            Thread.sleep(1);
+        }
+        try {
+            deadlockManager.lock(1, 1, READ_LOCK, true);
+            fail("Owner 1 should have been the deadlock victim");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_DEADLOCK_VICTIM, le.getCode());
+        }
+        deadlockManager.releaseAll(1);
+        waiter.join();
+        assertNull(failure[0]);
+        assertTrue(deadlockManager.hasLock(2, 2, READ_LOCK));
+        deadlockManager.releaseAll(2);
+        assertEquals(0, deadlockManager.getLockCount());
+    }
+}
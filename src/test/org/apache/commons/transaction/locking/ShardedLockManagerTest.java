@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.PrintWriterLogger;
+
+/**
+ * Tests for lock managers partitioned into shards.
+ *
+ * @version $Id$
+ */
+public class ShardedLockManagerTest extends TestCase {
+
+    private static final LoggerFacade sLogger = new PrintWriterLogger(new PrintWriter(System.out),
+            ShardedLockManagerTest.class.getName(), false);
+
+    protected static final long TIMEOUT = 1000000;
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(ShardedLockManagerTest.class);
+        return suite;
+    }
+
+    public static void main(java.lang.String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    public ShardedLockManagerTest(String testName) {
+        super(testName);
+    }
+
+    public void testBasic() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking sharded lock manager\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final ShardedLockManager manager = new ShardedLockManager(1, sLogger, TIMEOUT, -1, 4);
+        assertEquals(4, manager.getShardCount());
+
+        // find two resources in different shards
+        final String res1 = "res0";
+        int i = 1;
+        while (manager.getShard("res" + i) == manager.getShard(res1)) {
+            i++;
+        }
+        final String res2 = "res" + i;
+
+        manager.lock(owner1, res1, 1, true);
+        manager.lockAll(owner1, Arrays.asList(new String[] { res1, "resA", "resB" }), 1, true,
+                TIMEOUT);
+        assertEquals(3, manager.getAll(owner1).size());
+        assertTrue(manager.hasLock(owner1, "resB", 1));
+        assertFalse(manager.tryLockAll(owner2, Arrays.asList(new String[] { res2, "resB" }), 1,
+                true));
+        assertEquals(0, manager.getLevel(owner2, res2));
+        manager.releaseAll(owner1);
+        assertEquals(0, manager.getAll(owner1).size());
+        manager.reclaimIdleLocks();
+        assertEquals(0, manager.getLockCount());
+    }
+
+    public void testDeadlockAcrossShards() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking deadlocks spanning shards\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final ShardedLockManager manager = new ShardedLockManager(1, sLogger, TIMEOUT, -1, 4);
+
+        // find two resources in different shards
+        final String res1 = "res0";
+        int i = 1;
+        while (manager.getShard("res" + i) == manager.getShard(res1)) {
+            i++;
+        }
+        final String res2 = "res" + i;
+
+        manager.lock(owner1, res1, 1, true);
+        manager.lock(owner2, res2, 1, true);
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    manager.lock(owner2, res1, 1, true);
+                } finally {
+                    manager.releaseAll(owner2);
+                }
+            }
+        }, "Waiting Thread");
+        waiter.start();
+        while (!manager.getShard(res2).waitForGraph.isWaiting(owner2)) {
+            Thread.sleep(10);
+        }
+        try {
+            manager.lock(owner1, res2, 1, true);
+            fail("Deadlock should have been detected");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_DEADLOCK_VICTIM, le.getCode());
+        } finally {
+            manager.releaseAll(owner1);
+        }
+        waiter.join();
+        manager.reclaimIdleLocks();
+        assertEquals(0, manager.getLockCount());
+    }
+
+    public void testVictimSelectionAcrossShards() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking victims are chosen by the locks in all shards\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final ShardedLockManager manager = new ShardedLockManager(1, sLogger, TIMEOUT, -1, 4);
+        manager.setDeadlockVictimSelector(new FewestLocksVictimSelector());
+
+        final String res1 = "res0";
+        final GenericLockManager shard1 = manager.getShard(res1);
+        int i = 1;
+        while (manager.getShard("res" + i) == shard1) {
+            i++;
+        }
+        final String res2 = "res" + i;
+        final GenericLockManager shard2 = manager.getShard(res2);
+
+        // owner1 holds four locks, but only one of them in the shard of res1, while owner2
+        // holds three locks, two of them in the shard of res1
+        manager.lock(owner1, res1, 1, true);
+        int extra = 0;
+        for (i = 0; extra < 3; i++) {
+            if (manager.getShard("other" + i) == shard2) {
+                manager.lock(owner1, "other" + i, 1, true);
+                extra++;
+            }
+        }
+        manager.lock(owner2, res2, 1, true);
+        extra = 0;
+        for (i = 0; extra < 2; i++) {
+            if (manager.getShard("other" + i) == shard1) {
+                manager.lock(owner2, "other" + i, 1, true);
+                extra++;
+            }
+        }
+        assertEquals(4, manager.getAll(owner1).size());
+        assertEquals(3, manager.getAll(owner2).size());
+
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    manager.lock(owner1, res2, 1, true);
+                } finally {
+                    manager.releaseAll(owner1);
+                }
+            }
+        }, "Waiting Thread");
+        waiter.start();
+        while (!shard2.waitForGraph.isWaiting(owner1)) {
+            Thread.sleep(10);
+        }
+        // the deadlock is found in the shard of res1, which must not choose owner1 just
+        // because it sees only one of its locks
+        try {
+            manager.lock(owner2, res1, 1, true);
+            fail("Deadlock should have been detected");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_DEADLOCK_VICTIM, le.getCode());
+        } finally {
+            manager.releaseAll(owner2);
+        }
+        waiter.join();
+    }
+
+    public void testTimestamps() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking time stamps of owners across shards\n\n");
+
+        ShardedLockManager manager = new ShardedLockManager(1, sLogger, TIMEOUT, -1, 4);
+
+        // owners stamped by different shards within the same millisecond are still ordered
+        Set timestamps = new HashSet();
+        for (int i = 0; i < 1000; i++) {
+            GenericLockManager shard = manager.shards[i % manager.getShardCount()];
+            assertTrue(timestamps.add(new Long(shard.getTimestamp("owner" + i))));
+        }
+        // and every shard knows the stamps of all owners
+        for (int i = 0; i < manager.getShardCount(); i++) {
+            assertEquals(manager.shards[0].getTimestamp("owner1"), manager.shards[i]
+                    .getTimestamp("owner1"));
+        }
+    }
+
+    public void testTouchedShards() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking requests passed on to the shards of an owner only\n\n");
+
+        final String owner1 = "owner1";
+
+        ShardedLockManager manager = new ShardedLockManager(1, sLogger, TIMEOUT, -1, 64);
+        assertTrue(manager.getTouchedShards(owner1, false).isEmpty());
+
+        manager.lock(owner1, "res1", 1, true);
+        assertEquals(Arrays.asList(new Object[] { manager.getShard("res1") }), manager
+                .getTouchedShards(owner1, false));
+        assertEquals(1, manager.getAll(owner1).size());
+
+        // find a resource in another shard
+        int i = 2;
+        while (manager.getShard("res" + i) == manager.getShard("res1")) {
+            i++;
+        }
+        assertTrue(manager.tryLock(owner1, "res" + i, 1, true));
+        assertEquals(2, manager.getTouchedShards(owner1, false).size());
+        assertEquals(2, manager.getAll(owner1).size());
+
+        manager.releaseAll(owner1);
+        assertTrue(manager.getTouchedShards(owner1, false).isEmpty());
+        manager.reclaimIdleLocks();
+        assertEquals(0, manager.getLockCount());
+    }
+
+    public void testGlobalTimeout() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking global time outs across shards\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final ShardedLockManager manager = new ShardedLockManager(1, sLogger, TIMEOUT, -1, 4);
+
+        // find three resources in different shards
+        final String[] res = new String[3];
+        res[0] = "res0";
+        for (int i = 1, j = 1; j < res.length; i++) {
+            boolean separate = true;
+            for (int k = 0; k < j; k++) {
+                separate &= manager.getShard("res" + i) != manager.getShard(res[k]);
+            }
+            if (separate) {
+                res[j++] = "res" + i;
+            }
+        }
+
+        manager.lock(owner1, res[0], 1, true);
+        manager.lock(owner1, res[1], 1, true);
+        manager.startGlobalTimeout(owner1, 100);
+        // a single time out no matter how many shards there are
+        synchronized (manager.globalTimeoutQueue) {
+            assertEquals(1, manager.globalTimeoutQueue.size());
+        }
+        for (int i = 0; i < manager.getShardCount(); i++) {
+            synchronized (manager.shards[i].globalTimeoutQueue) {
+                assertTrue(manager.shards[i].globalTimeoutQueue.isEmpty());
+            }
+        }
+
+        // the locks of the owner are released in all shards it has touched
+        manager.lock(owner2, res[1], 1, true, TIMEOUT);
+        manager.lock(owner2, res[0], 1, true, TIMEOUT);
+        assertEquals(0, manager.getAll(owner1).size());
+        assertTrue(manager.getTouchedShards(owner1, false).isEmpty());
+
+        // and it is refused by all shards, even those it has never touched
+        try {
+            manager.lock(owner1, res[2], 1, true);
+            fail("Owner should have timed out");
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+        }
+
+        // until all of its locks are released
+        manager.releaseAll(owner1);
+        manager.lock(owner1, res[2], 1, true);
+        manager.releaseAll(owner1);
+        manager.releaseAll(owner2);
+        manager.reclaimIdleLocks();
+        assertEquals(0, manager.getLockCount());
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.io.PrintWriter;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.PrintWriterLogger;
+
+/**
+ * Tests for read/write locks with striped reader slots.
+ *
+ * @version $Id$
+ */
+public class StripedReadWriteLockTest extends TestCase {
+
+    private static final LoggerFacade sLogger = new PrintWriterLogger(new PrintWriter(System.out),
+            StripedReadWriteLockTest.class.getName(), false);
+
+    protected static final long TIMEOUT = 1000000;
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(StripedReadWriteLockTest.class);
+        return suite;
+    }
+
+    public static void main(java.lang.String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    public StripedReadWriteLockTest(String testName) {
+        super(testName);
+    }
+
+    public void testShared() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking shared and exclusive striped read/write locks\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+        final String owner3 = "owner3";
+
+        final StripedReadWriteLock lock = new StripedReadWriteLock("Test striped lock", 2,
+                sLogger);
+
+        // readers share the lock, writers are exclusive
+        assertTrue(lock.acquireRead(owner1, 0));
+        assertTrue(lock.acquireRead(owner2, 0));
+        assertTrue(lock.acquireRead(owner2, 0));
+        assertEquals(2, lock.getReaderCount());
+        assertEquals(ReadWriteLock.READ_LOCK, lock.getLockLevel(owner1));
+        assertFalse(lock.acquireWrite(owner3, 0));
+        assertFalse(lock.acquireWrite(owner1, 10));
+        assertFalse(lock.acquire(owner1, ReadWriteLock.WRITE_LOCK, false, true, TIMEOUT));
+        assertTrue(lock.release(owner2));
+        assertFalse(lock.release(owner2));
+    }
+
+    public void testUpgrade() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking upgrades of striped read/write lock\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+
+        final StripedReadWriteLock lock = new StripedReadWriteLock("Test striped lock", 2,
+                sLogger);
+        assertTrue(lock.acquireRead(owner1, 0));
+
+        // the only reader may upgrade, then reads of others have to wait
+        assertTrue(lock.acquireWrite(owner1, 0));
+        assertEquals(ReadWriteLock.WRITE_LOCK, lock.getLockLevel(owner1));
+        assertTrue(lock.acquireRead(owner1, 0));
+        assertFalse(lock.acquireRead(owner2, 10));
+        assertFalse(lock.acquire(owner1, ReadWriteLock.WRITE_LOCK, true, false, 10));
+        assertTrue(lock.release(owner1));
+        assertEquals(ReadWriteLock.NO_LOCK, lock.getLockLevel(owner1));
+    }
+
+    public void testWaitingWriter() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking waiting writers of striped read/write lock\n\n");
+
+        final String owner1 = "owner1";
+        final String owner2 = "owner2";
+        final String owner3 = "owner3";
+
+        final StripedReadWriteLock lock = new StripedReadWriteLock("Test striped lock", 2,
+                sLogger);
+
+        // a waiting writer keeps out new readers and gets the lock once the old ones are gone
+        assertTrue(lock.acquireRead(owner1, 0));
+        final boolean[] acquired = new boolean[1];
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    acquired[0] = lock.acquireWrite(owner3, TIMEOUT);
+                } catch (InterruptedException e) {
+                }
+            }
+        }, "Writer Thread");
+        writer.start();
+        while (lock.writer == null) {
+            Thread.sleep(1);
+        }
+        assertFalse(lock.acquireRead(owner2, 10));
+        assertTrue(lock.acquireRead(owner1, 0));
+        lock.release(owner1);
+        writer.join();
+        assertTrue(acquired[0]);
+        assertEquals(0, lock.getReaderCount());
+        assertTrue(lock.release(owner3));
+        assertTrue(lock.acquireRead(owner2, 0));
+        lock.release(owner2);
+    }
+
+    public void testPreferReaders() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking striped read/write lock preferring readers\n\n");
+
+        final boolean[] acquired = new boolean[1];
+
+        // readers are let in until all are gone at once
+        final StripedReadWriteLock stripedLock = new StripedReadWriteLock("res3", 2,
+                ReadWriteLock.PREFER_READERS, sLogger);
+        assertTrue(stripedLock.acquireRead("reader1", 0));
+        Thread writer = startAcquire(stripedLock, "writer", true, acquired, 0);
+        while (stripedLock.claimant == null) {
+            Thread.sleep(1);
+        }
+        assertTrue(stripedLock.acquireRead("reader2", 0));
+        stripedLock.release("reader1");
+        assertTrue(stripedLock.acquireRead("reader1", 0));
+        stripedLock.release("reader2");
+        stripedLock.release("reader1");
+        writer.join();
+        assertTrue(acquired[0]);
+        assertEquals(ReadWriteLock.WRITE_LOCK, stripedLock.getLockLevel("writer"));
+        stripedLock.release("writer");
+    }
+
+    public void testPhaseFair() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking striped read/write lock with fair phases\n\n");
+
+        final boolean[] acquired = new boolean[2];
+
+        // readers that waited for a write are admitted before the next writer
+        final StripedReadWriteLock fairLock = new StripedReadWriteLock("res4", 2,
+                ReadWriteLock.PHASE_FAIR, sLogger);
+        assertTrue(fairLock.acquireWrite("writer1", 0));
+        Thread reader = startAcquire(fairLock, "reader1", false, acquired, 0);
+        while (true) {
+            synchronized (fairLock) {
+                if (fairLock.blockedReaders == 1) {
+                    break;
+                }
+            }
+            Thread.sleep(1);
+        }
+        Thread writer = startAcquire(fairLock, "writer2", true, acquired, 1);
+        fairLock.release("writer1");
+        reader.join();
+        assertTrue(acquired[0]);
+        while (!"writer2".equals(fairLock.writer)) {
+            Thread.sleep(1);
+        }
+        // the next writer has claimed the lock, so new readers have to wait
+        assertFalse(fairLock.acquireRead("reader2", 10));
+        fairLock.release("reader1");
+        writer.join();
+        assertTrue(acquired[1]);
+        fairLock.release("writer2");
+        assertTrue(fairLock.acquireRead("reader2", 0));
+        fairLock.release("reader2");
+    }
+
+    protected Thread startAcquire(final StripedReadWriteLock lock, final String owner,
+            final boolean write, final boolean[] acquired, final int index) {
+        acquired[index] = false;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    acquired[index] = write ? lock.acquireWrite(owner, TIMEOUT) : lock
+                            .acquireRead(owner, TIMEOUT);
+                } catch (InterruptedException e) {
+                }
+            }
+        }, owner + " Thread");
+        t.start();
+        return t;
+    }
+}
@@ -25,6 +25,9 @@ import junit.framework.TestSuite;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.apache.commons.transaction.locking.LockException;
+import org.apache.commons.transaction.locking.ReadWriteLock;
+import org.apache.commons.transaction.locking.StripedReadWriteLock;
 import org.apache.commons.transaction.util.CommonsLoggingLogger;
 import org.apache.commons.transaction.util.LoggerFacade;
 import org.apache.commons.transaction.util.RendezvousBarrier;
@@ -178,6 +181,119 @@ public class OptimisticMapWrapperTest extends MapWrapperTest {
 		report("value3", (String) map1.get("key1"));
 	}
 
+    public void testCommitWhileReading() throws Throwable {
+        log.info("Checking commits while readers keep streaming in");
+
+        final Map map1 = new HashMap();
+
+        final OptimisticMapWrapper txMap1 = (OptimisticMapWrapper) getNewWrapper(map1);
+
+        txMap1.put("key1", "value1");
+
+        final int readerCount = 3;
+        final int[] reads = new int[readerCount];
+        final boolean[] stop = new boolean[1];
+        final Throwable[] failure = new Throwable[1];
+        Thread[] readers = new Thread[readerCount];
+        for (int i = 0; i < readerCount; i++) {
+            final int index = i;
+            readers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            synchronized (stop) {
+                                if (stop[0]) {
+                                    break;
+                                }
+                            }
+                            txMap1.startTransaction();
+                            txMap1.get("key1");
+                            txMap1.get("key2");
+                            txMap1.rollbackTransaction();
+                            synchronized (reads) {
+                                reads[index]++;
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            }, "Reader" + i);
+            readers[i].start();
+        }
+        // wait until all readers are busy
+        for (int i = 0; i < readerCount; i++) {
+            while (true) {
+                synchronized (reads) {
+                    if (reads[i] > 0) {
+                        break;
+                    }
+                }
+                Thread.sleep(1);
+            }
+        }
+
+        try {
+            // the commit must not be held up by the readers until its lock times out
+            for (int i = 0; i < 10; i++) {
+                txMap1.startTransaction();
+                txMap1.put("key1", "value" + i);
+                txMap1.put("key2", "value" + i);
+                txMap1.commitTransaction();
+            }
+        } finally {
+            synchronized (stop) {
+                stop[0] = true;
+            }
+            for (int i = 0; i < readerCount; i++) {
+                readers[i].join();
+            }
+        }
+        assertNull(failure[0]);
+        report("value9", (String) map1.get("key1"));
+        report("value9", (String) map1.get("key2"));
+    }
+
+    public void testCommitTimeout() throws Throwable {
+        log.info("Checking commits timing out");
+
+        final Map map1 = new HashMap();
+
+        final OptimisticMapWrapper txMap1 = (OptimisticMapWrapper) getNewWrapper(map1);
+        // do not wait for the commit lock as long as usual
+        txMap1.commitLock = new StripedReadWriteLock("COMMIT", StripedReadWriteLock.DEFAULT_SLOTS,
+                ReadWriteLock.PHASE_FAIR, sLogger) {
+            public boolean acquireWrite(Object ownerId, long timeoutMSecs)
+                    throws InterruptedException {
+                return super.acquireWrite(ownerId, 100);
+            }
+        };
+
+        txMap1.put("key1", "value1");
+
+        txMap1.startTransaction();
+        txMap1.put("key1", "value2");
+
+        // a reader that does not leave keeps the commit from getting the lock
+        txMap1.commitLock.acquireRead("reader", 0);
+        boolean timedOut = false;
+        try {
+            txMap1.commitTransaction();
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+            timedOut = true;
+        }
+        assertTrue(timedOut);
+        // nothing has been written
+        report("value1", (String) map1.get("key1"));
+        report("value2", (String) txMap1.get("key1"));
+
+        // the transaction still can commit once the reader is gone
+        txMap1.commitLock.release("reader");
+        txMap1.commitTransaction();
+        report("value2", (String) map1.get("key1"));
+    }
+
     public void testTxControl() throws Throwable {
 		super.testTxControl();
     }
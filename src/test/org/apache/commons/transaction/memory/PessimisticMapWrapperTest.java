@@ -16,8 +16,12 @@
  */
 package org.apache.commons.transaction.memory;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -25,7 +29,9 @@ import junit.framework.TestSuite;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.apache.commons.transaction.locking.IntentionLockManager;
 import org.apache.commons.transaction.locking.LockException;
+import org.apache.commons.transaction.locking.LockStatistics;
 import org.apache.commons.transaction.util.CommonsLoggingLogger;
 import org.apache.commons.transaction.util.LoggerFacade;
 import org.apache.commons.transaction.util.RendezvousBarrier;
@@ -61,6 +67,30 @@ public class PessimisticMapWrapperTest extends MapWrapperTest {
         return new PessimisticMapWrapper(map, sLogger);
     }
 
+    // short time outs tell conflicting requests without a second thread
+    protected PessimisticMapWrapper getNewWrapper(Map map, long timeoutMSecs) {
+        PessimisticMapWrapper txMap = (PessimisticMapWrapper) getNewWrapper(map);
+        txMap.readTimeOut = timeoutMSecs;
+        txMap.lockManager = new IntentionLockManager(sLogger, timeoutMSecs);
+        return txMap;
+    }
+
+    // runs an action in a transaction of its own while the current one is suspended
+    protected static boolean conflicts(TransactionalMapWrapper txMap, Runnable action) {
+        TransactionalMapWrapper.TxContext suspended = txMap.suspendTransaction();
+        txMap.startTransaction();
+        try {
+            action.run();
+            return false;
+        } catch (LockException le) {
+            assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+            return true;
+        } finally {
+            txMap.rollbackTransaction();
+            txMap.resumeTransaction(suspended);
+        }
+    }
+
     // XXX no need for this code, just to make clear those tests are run as well 
     public void testBasic() throws Throwable {
         super.testBasic();
@@ -200,4 +230,251 @@ public class PessimisticMapWrapperTest extends MapWrapperTest {
         super.testTxControl();
     }
 
+    public void testGlobalConflicts() throws Throwable {
+        sLogger.logInfo("Checking conflicts of operations on all entries and on single ones");
+
+        final Map map1 = new HashMap();
+        map1.put("key2", "value1");
+
+        final PessimisticMapWrapper txMap1 = getNewWrapper(map1, 100);
+
+        Runnable putKey1 = new Runnable() {
+            public void run() {
+                txMap1.put("key1", "value2");
+            }
+        };
+        Runnable putKey2 = new Runnable() {
+            public void run() {
+                txMap1.put("key2", "value2");
+            }
+        };
+        Runnable getKey2 = new Runnable() {
+            public void run() {
+                txMap1.get("key2");
+            }
+        };
+        Runnable size = new Runnable() {
+            public void run() {
+                txMap1.size();
+            }
+        };
+        Runnable clear = new Runnable() {
+            public void run() {
+                txMap1.clear();
+            }
+        };
+
+        // writers of single entries only conflict on the same entry...
+        txMap1.startTransaction();
+        txMap1.put("key1", "value1");
+        assertFalse(conflicts(txMap1, putKey2));
+        assertTrue(conflicts(txMap1, putKey1));
+        // ...but with every operation on all entries
+        assertTrue(conflicts(txMap1, size));
+        assertTrue(conflicts(txMap1, clear));
+        txMap1.commitTransaction();
+
+        // readers of all entries share the map with other readers only
+        txMap1.startTransaction();
+        assertEquals(2, txMap1.size());
+        assertFalse(conflicts(txMap1, getKey2));
+        assertFalse(conflicts(txMap1, size));
+        assertTrue(conflicts(txMap1, putKey2));
+        assertTrue(conflicts(txMap1, clear));
+        txMap1.commitTransaction();
+
+        // and nobody may touch a cleared map
+        txMap1.startTransaction();
+        txMap1.clear();
+        assertTrue(conflicts(txMap1, getKey2));
+        assertTrue(conflicts(txMap1, size));
+        txMap1.rollbackTransaction();
+
+        // locks are gone with the transactions
+        txMap1.startTransaction();
+        assertFalse(conflicts(txMap1, clear));
+        txMap1.commitTransaction();
+        txMap1.lockManager.reclaimIdleLocks();
+        assertEquals(0, txMap1.lockManager.getLockCount());
+        assertEquals(2, map1.size());
+    }
+
+    public void testEscalation() throws Throwable {
+        sLogger.logInfo("Checking escalation of entry locks to a lock on the whole map");
+
+        final Map map1 = new HashMap();
+
+        final PessimisticMapWrapper txMap1 = getNewWrapper(map1, 100);
+        txMap1.setEscalationThreshold(3);
+
+        Runnable putKey9 = new Runnable() {
+            public void run() {
+                txMap1.put("key9", "value2");
+            }
+        };
+
+        // up to the threshold every entry is locked on its own...
+        txMap1.startTransaction();
+        txMap1.put("key1", "value1");
+        txMap1.put("key2", "value1");
+        txMap1.put("key3", "value1");
+        assertEquals(4, txMap1.lockManager.getLockCount());
+        assertFalse(conflicts(txMap1, putKey9));
+
+        // ...one more and the whole map is locked instead
+        txMap1.put("key4", "value1");
+        txMap1.lockManager.reclaimIdleLocks();
+        assertEquals(1, txMap1.lockManager.getLockCount());
+        assertTrue(conflicts(txMap1, putKey9));
+        // entries are still covered by the lock on the map
+        txMap1.put("key1", "value2");
+        assertEquals(1, txMap1.lockManager.getLockCount());
+        txMap1.commitTransaction();
+        txMap1.lockManager.reclaimIdleLocks();
+        assertEquals(0, txMap1.lockManager.getLockCount());
+        assertEquals(4, map1.size());
+        report("value2", (String) map1.get("key1"));
+
+        // bulk writes are escalated as well
+        Map entries = new HashMap();
+        for (int i = 0; i < 10; i++) {
+            entries.put("bulk" + i, "value1");
+        }
+        txMap1.startTransaction();
+        txMap1.putAll(entries);
+        txMap1.lockManager.reclaimIdleLocks();
+        assertEquals(1, txMap1.lockManager.getLockCount());
+        assertTrue(conflicts(txMap1, putKey9));
+        txMap1.commitTransaction();
+        assertEquals(14, map1.size());
+
+        // escalation is off by default
+        final PessimisticMapWrapper txMap2 = getNewWrapper(new HashMap(), 100);
+        txMap2.startTransaction();
+        txMap2.putAll(entries);
+        assertEquals(11, txMap2.lockManager.getLockCount());
+        txMap2.commitTransaction();
+    }
+
+    public void testPutAllOrder() throws Throwable {
+        sLogger.logInfo("Checking bulk writes in different orders");
+
+        final Map map1 = new HashMap();
+
+        final PessimisticMapWrapper txMap1 = (PessimisticMapWrapper) getNewWrapper(map1);
+
+        final Map ascending = new TreeMap();
+        final Map descending = new TreeMap(Collections.reverseOrder());
+        for (int i = 0; i < 20; i++) {
+            ascending.put("key" + i, "value1");
+            descending.put("key" + i, "value2");
+        }
+
+        final LockException[] failures = new LockException[2];
+
+        // hold an entry in the middle, so both bulk writers have to wait half way through
+        txMap1.startTransaction();
+        txMap1.put("key10", "value0");
+
+        Thread thread1 = new Thread(new Runnable() {
+            public void run() {
+                txMap1.startTransaction();
+                try {
+                    txMap1.putAll(ascending);
+                    txMap1.commitTransaction();
+                } catch (LockException le) {
+                    failures[0] = le;
+                    txMap1.rollbackTransaction();
+                }
+            }
+        }, "Thread1");
+        Thread thread2 = new Thread(new Runnable() {
+            public void run() {
+                txMap1.startTransaction();
+                try {
+                    txMap1.putAll(descending);
+                    txMap1.commitTransaction();
+                } catch (LockException le) {
+                    failures[1] = le;
+                    txMap1.rollbackTransaction();
+                }
+            }
+        }, "Thread2");
+        thread1.start();
+        thread2.start();
+        while (getContentions(txMap1) < 2) {
+            Thread.sleep(1);
+        }
+
+        // entry by entry in these orders would deadlock now, but both writers lock in the
+        // same order, so the second one waits for the first before it holds anything
+        txMap1.commitTransaction();
+        thread1.join();
+        thread2.join();
+        assertNull(failures[0]);
+        assertNull(failures[1]);
+        assertEquals(20, map1.size());
+        txMap1.lockManager.reclaimIdleLocks();
+        assertEquals(0, txMap1.lockManager.getLockCount());
+    }
+
+    public void testLockStripes() throws Throwable {
+        sLogger.logInfo("Checking entries mapped onto a fixed number of locks");
+
+        final Map map1 = new HashMap();
+
+        final PessimisticMapWrapper txMap1 = getNewWrapper(map1, 100);
+        txMap1.setLockStripes(4);
+
+        Runnable size = new Runnable() {
+            public void run() {
+                txMap1.size();
+            }
+        };
+
+        // no matter how many entries there are, there is a lock per stripe and one for the map
+        txMap1.startTransaction();
+        for (int i = 0; i < 100; i++) {
+            txMap1.put("key" + i, "value1");
+        }
+        assertEquals(4, txMap1.lockManager.getLockStripeCount());
+        assertEquals(5, txMap1.lockManager.getLockCount());
+        // the lock on the whole map is not striped
+        assertTrue(conflicts(txMap1, size));
+        txMap1.commitTransaction();
+        assertEquals(100, map1.size());
+
+        // writers of different entries conflict if, and only if, the entries share a stripe
+        txMap1.startTransaction();
+        txMap1.put("key0", "value2");
+        boolean sharing = false;
+        boolean separate = false;
+        for (int i = 1; !(sharing && separate); i++) {
+            final String key = "key" + i;
+            if (conflicts(txMap1, new Runnable() {
+                public void run() {
+                    txMap1.put(key, "value2");
+                }
+            })) {
+                sharing = true;
+            } else {
+                separate = true;
+            }
+        }
+        txMap1.commitTransaction();
+        // stripes are kept, while the idle lock on the map is discarded
+        txMap1.lockManager.reclaimIdleLocks();
+        assertEquals(4, txMap1.lockManager.getLockCount());
+    }
+
+    // number of requests that had to wait so far
+    protected static long getContentions(PessimisticMapWrapper txMap) {
+        long contentions = 0;
+        List contended = txMap.lockManager.getStatistics(100).getMostContended();
+        for (Iterator it = contended.iterator(); it.hasNext();) {
+            contentions += ((LockStatistics.Contention) it.next()).getCount();
+        }
+        return contentions;
+    }
+
 }
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.io.PrintWriter;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.PrintWriterLogger;
+
+/**
+ * Tests that uncontended lock requests do not allocate, using the scenarios of
+ * {@link LockBenchmark}.
+ *
+ * @version $Id$
+ */
+public class LockAllocationTest extends TestCase {
+
+    private static final LoggerFacade sLogger = new PrintWriterLogger(new PrintWriter(System.out),
+            LockAllocationTest.class.getName(), false);
+
+    protected static final int OPERATIONS = 200000;
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(LockAllocationTest.class);
+        return suite;
+    }
+
+    public static void main(java.lang.String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    public LockAllocationTest(String testName) {
+        super(testName);
+    }
+
+    public void testUncontendedRequests() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking allocation of uncontended lock requests\n\n");
+
+        if (LockBenchmark.allocatedBytes() == -1) {
+            sLogger.logWarning("Allocation can not be measured by this JVM, skipping test");
+            return;
+        }
+        LockBenchmark.Scenario[] scenarios = LockBenchmark.getScenarios();
+        for (int i = 0; i < LockBenchmark.getAllocationFreeScenarioCount(); i++) {
+            double bytes = LockBenchmark.measure(scenarios[i], OPERATIONS)[0];
+            sLogger.logInfo(scenarios[i].name + ": " + bytes + " bytes per operation");
+            // anything allocated per request would at least take the header of an object
+            assertTrue(scenarios[i].name + " allocates " + bytes + " bytes per operation",
+                    bytes < 1);
+        }
+    }
+}
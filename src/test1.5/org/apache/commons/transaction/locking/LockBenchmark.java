@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.PrintWriterLogger;
+
+/**
+ * Measures time and heap allocation of uncontended lock requests of
+ * {@link GenericLockManager}. Run it with
+ * <code>java org.apache.commons.transaction.locking.LockBenchmark [operations]</code>
+ * to print a table of all scenarios. Allocation is read from the thread allocation counter
+ * of the JVM, which is not available everywhere, so {@link #allocatedBytes()} may return
+ * <code>-1</code>.
+ *
+ * @version $Id$
+ */
+public class LockBenchmark {
+
+    private static final LoggerFacade sLogger = new PrintWriterLogger(new PrintWriter(System.out),
+            LockBenchmark.class.getName(), false);
+
+    protected static final int READ_LOCK = 1;
+    protected static final int WRITE_LOCK = 2;
+
+    protected static final long TIMEOUT = 1000000;
+
+    public static final int DEFAULT_OPERATIONS = 1000000;
+
+    /**
+     * A sequence of requests measured as one operation.
+     */
+    public abstract static class Scenario {
+
+        public final String name;
+
+        protected GenericLockManager manager;
+
+        public Scenario(String name) {
+            this.name = name;
+        }
+
+        /** Creates the lock manager and anything held throughout the measurement. */
+        public void setUp() {
+            manager = new GenericLockManager(WRITE_LOCK, sLogger, TIMEOUT);
+        }
+
+        /** Performs a single operation. */
+        public abstract void run(int i);
+
+        public void tearDown() {
+        }
+    }
+
+    /**
+     * Gets all scenarios, the ones that must not allocate first.
+     * 
+     * @return the scenarios
+     */
+    public static Scenario[] getScenarios() {
+        return new Scenario[] {
+            new Scenario("idle locks reclaimed") {
+                public void run(int i) {
+                    manager.lock("owner", "res", WRITE_LOCK, true);
+                    manager.release("owner", "res");
+                }
+            },
+            new Scenario("idle locks kept") {
+                public void setUp() {
+                    super.setUp();
+                    manager.setReclaimIdleLocks(false);
+                }
+
+                public void run(int i) {
+                    manager.lock("owner", "res", WRITE_LOCK, true);
+                    manager.release("owner", "res");
+                }
+            },
+            new Scenario("owner holds another lock") {
+                public void setUp() {
+                    super.setUp();
+                    manager.lock("owner", "other", READ_LOCK, true);
+                }
+
+                public void run(int i) {
+                    manager.lock("owner", "res", WRITE_LOCK, true);
+                    manager.release("owner", "res");
+                }
+            },
+            new Scenario("reentrant request for held level") {
+                public void setUp() {
+                    super.setUp();
+                    manager.lock("owner", "res", WRITE_LOCK, true);
+                }
+
+                public void run(int i) {
+                    manager.lock("owner", "res", READ_LOCK, true);
+                }
+            },
+            new Scenario("try lock") {
+                public void run(int i) {
+                    manager.tryLock("owner", "res", WRITE_LOCK, true);
+                    manager.release("owner", "res");
+                }
+            },
+            // the owners of a shared lock are copied on write, so they can be read without
+            // holding the monitor of the lock
+            new Scenario("shared with another owner") {
+                public void setUp() {
+                    super.setUp();
+                    manager.lock("other", "res", READ_LOCK, true);
+                }
+
+                public void run(int i) {
+                    manager.lock("owner", "res", READ_LOCK, true);
+                    manager.release("owner", "res");
+                }
+            },
+            // the set of locks of an owner is created with its first lock
+            new Scenario("new owner released all") {
+                private final Object[] owners = new Object[1024];
+
+                public void setUp() {
+                    super.setUp();
+                    for (int i = 0; i < owners.length; i++) {
+                        owners[i] = "owner" + i;
+                    }
+                }
+
+                public void run(int i) {
+                    Object owner = owners[i & (owners.length - 1)];
+                    manager.lock(owner, "res", WRITE_LOCK, true);
+                    manager.releaseAll(owner);
+                }
+            },
+        };
+    }
+
+    /**
+     * Gets the number of scenarios returned by {@link #getScenarios()} that must not
+     * allocate anything.
+     * 
+     * @return the number of scenarios at the beginning that are allocation free
+     */
+    public static int getAllocationFreeScenarioCount() {
+        return 5;
+    }
+
+    /**
+     * Gets the number of bytes the current thread has allocated so far.
+     * 
+     * @return the number of bytes or <code>-1</code> if this is not supported by the JVM
+     */
+    public static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            // only offered by some JVMs, so it is not compiled against
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+                    "getThreadAllocatedBytes", new Class[] { long.class });
+            Long bytes = (Long) method.invoke(threads, new Object[] { new Long(Thread
+                    .currentThread().getId()) });
+            return bytes.longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Runs a scenario after warming it up.
+     * 
+     * @param scenario
+     *            the scenario to run
+     * @param operations
+     *            the number of operations to measure
+     * @return bytes allocated and nanoseconds taken per operation, the bytes are negative if
+     *         they could not be measured
+     */
+    public static double[] measure(Scenario scenario, int operations) {
+        scenario.setUp();
+        try {
+            // let the JIT compile the requests, so allocations it can eliminate are
+            for (int i = 0; i < operations; i++) {
+                scenario.run(i);
+            }
+            long bytes = allocatedBytes();
+            long started = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                scenario.run(i);
+            }
+            long nanos = System.nanoTime() - started;
+            if (bytes != -1) {
+                // measuring itself allocates, which is determined by measuring nothing
+                long overhead = allocatedBytes();
+                overhead = allocatedBytes() - overhead;
+                bytes = Math.max(0, allocatedBytes() - bytes - 2 * overhead);
+            }
+            return new double[] { bytes == -1 ? -1 : (double) bytes / operations,
+                    (double) nanos / operations };
+        } finally {
+            scenario.tearDown();
+        }
+    }
+
+    public static void main(String[] args) {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_OPERATIONS;
+        Scenario[] scenarios = getScenarios();
+        System.out.println(pad("scenario", 36) + pad("bytes/op", 12) + "ns/op");
+        for (int i = 0; i < scenarios.length; i++) {
+            double[] result = measure(scenarios[i], operations);
+            System.out.println(pad(scenarios[i].name, 36)
+                    + pad(result[0] < 0 ? "n/a" : format(result[0]), 12) + format(result[1]));
+        }
+    }
+
+    protected static String format(double value) {
+        return String.valueOf(Math.round(value * 10) / 10.0);
+    }
+
+    protected static String pad(String s, int length) {
+        StringBuffer buf = new StringBuffer(s);
+        while (buf.length() < length) {
+            buf.append(' ');
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerInvocationHandler;
+import javax.management.ObjectName;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.PrintWriterLogger;
+
+/**
+ * Tests for the JMX monitor of lock managers.
+ *
+ * @version $Id$
+ */
+public class LockManagerMonitorTest extends TestCase {
+
+    private static final LoggerFacade sLogger = new PrintWriterLogger(new PrintWriter(System.out),
+            LockManagerMonitorTest.class.getName(), false);
+
+    protected static final int WRITE_LOCK = 2;
+
+    protected static final long TIMEOUT = 1000000;
+
+    protected static final String NAME = "org.apache.commons.transaction:type=LockManager,name=test";
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(LockManagerMonitorTest.class);
+        return suite;
+    }
+
+    public static void main(java.lang.String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    public LockManagerMonitorTest(String testName) {
+        super(testName);
+    }
+
+    public void testMonitor() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking lock statistics published via JMX\n\n");
+
+        GenericLockManager manager = new GenericLockManager(WRITE_LOCK, sLogger, TIMEOUT, -1);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = LockManagerMonitor.register(manager, NAME);
+        try {
+            assertTrue(server.isRegistered(name));
+            try {
+                LockManagerMonitor.register(manager, NAME);
+                fail("Monitor must not be registered twice");
+            } catch (javax.management.InstanceAlreadyExistsException e) {
+            }
+
+            manager.lock("owner1", "res1", WRITE_LOCK, true);
+            try {
+                manager.lock("owner2", "res1", WRITE_LOCK, true, 50);
+                fail("Lock should have timed out");
+            } catch (LockException le) {
+                assertEquals(LockException.CODE_TIMED_OUT, le.getCode());
+            }
+
+            // generic access as done by management consoles
+            assertEquals(new Integer(1), server.getAttribute(name, "LockCount"));
+            assertEquals(new Long(1), server.getAttribute(name, "Acquisitions"));
+            assertEquals(new Long(1), server.getAttribute(name, "ImmediateGrants"));
+            assertEquals(new Long(1), server.getAttribute(name, "Timeouts"));
+            assertEquals(Arrays.asList(new String[] { "res1: 1" }), Arrays
+                    .asList((String[]) server.getAttribute(name, "MostContended")));
+
+            // typed access through the management interface
+            LockManagerMonitorMBean monitor = (LockManagerMonitorMBean) MBeanServerInvocationHandler
+                    .newProxyInstance(server, name, LockManagerMonitorMBean.class, false);
+            assertEquals(1, monitor.getAcquisitions());
+            assertEquals(0, monitor.getWaitedGrants());
+            assertEquals(LockStatistics.WAIT_TIME_BUCKETS, monitor.getWaitTimeHistogram().length);
+
+            server.invoke(name, "resetStatistics", null, null);
+            assertEquals(new Long(0), server.getAttribute(name, "Acquisitions"));
+            assertEquals(0, monitor.getTimeouts());
+            assertEquals(0, monitor.getMostContended().length);
+            // the locks themselves are not touched by a reset
+            assertEquals(1, monitor.getLockCount());
+            assertTrue(manager.hasLock("owner1", "res1", WRITE_LOCK));
+
+            manager.releaseAll("owner1");
+            manager.reclaimIdleLocks();
+            assertEquals(0, monitor.getLockCount());
+        } finally {
+            server.unregisterMBean(name);
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    public void testSingleSnapshot() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking attributes read at once come from a single snapshot\n\n");
+
+        final int[] snapshots = new int[1];
+        GenericLockManager manager = new GenericLockManager(WRITE_LOCK, sLogger, TIMEOUT, -1) {
+            public LockStatistics.Snapshot getStatistics(int mostContended) {
+                snapshots[0]++;
+                return super.getStatistics(mostContended);
+            }
+        };
+        manager.lock("owner1", "res1", WRITE_LOCK, true);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = LockManagerMonitor.register(manager, NAME);
+        try {
+            AttributeList attributes = server.getAttributes(name, new String[] { "LockCount",
+                    "Acquisitions", "ImmediateGrants", "Timeouts", "MostContended" });
+            assertEquals(5, attributes.size());
+            assertEquals(new Integer(1), ((Attribute) attributes.get(0)).getValue());
+            assertEquals(new Long(1), ((Attribute) attributes.get(1)).getValue());
+            assertEquals(1, snapshots[0]);
+
+            // a single attribute still takes a snapshot of its own
+            assertEquals(new Long(0), server.getAttribute(name, "Timeouts"));
+            assertEquals(2, snapshots[0]);
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.transaction.locking;
+
+import java.io.PrintWriter;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.commons.transaction.util.LoggerFacade;
+import org.apache.commons.transaction.util.PrintWriterLogger;
+
+/**
+ * Tests for locks blocking on <code>java.util.concurrent</code> locks.
+ *
+ * @version $Id$
+ */
+public class QueuedLockTest extends TestCase {
+
+    private static final LoggerFacade sLogger = new PrintWriterLogger(new PrintWriter(System.out),
+            QueuedLockTest.class.getName(), false);
+
+    protected static final int READ_LOCK = 1;
+    protected static final int WRITE_LOCK = 2;
+
+    protected static final long TIMEOUT = 1000000;
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(QueuedLockTest.class);
+        return suite;
+    }
+
+    public static void main(java.lang.String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    public QueuedLockTest(String testName) {
+        super(testName);
+    }
+
+    public void testExclusive() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking exclusive locks\n\n");
+
+        QueuedLock lock = new QueuedLock("res1", WRITE_LOCK, sLogger);
+
+        assertTrue(lock.acquire("owner1", WRITE_LOCK, false, true, -1));
+        assertEquals(WRITE_LOCK, lock.getLockLevel("owner1"));
+        // reentrant
+        assertTrue(lock.acquire("owner1", WRITE_LOCK, false, true, -1));
+        assertFalse(lock.acquire("owner2", WRITE_LOCK, false, true, -1));
+        assertFalse(lock.acquire("owner2", READ_LOCK, false, true, -1));
+
+        lock.release("owner1");
+        assertTrue(lock.isIdle());
+        assertTrue(lock.acquire("owner2", WRITE_LOCK, false, true, -1));
+        lock.release("owner2");
+    }
+
+    public void testShared() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking shared locks\n\n");
+
+        QueuedLock lock = new QueuedLock("res1", WRITE_LOCK, sLogger);
+
+        assertTrue(lock.acquire("owner1", READ_LOCK, false, true, -1));
+        assertTrue(lock.acquire("owner2", READ_LOCK, false, true, -1));
+        assertFalse(lock.acquire("owner3", WRITE_LOCK, false, true, -1));
+        // not even a reader may upgrade while another one still reads
+        assertFalse(lock.acquire("owner1", WRITE_LOCK, false, true, -1));
+
+        lock.release("owner2");
+        assertTrue(lock.acquire("owner1", WRITE_LOCK, false, true, -1));
+        assertFalse(lock.acquire("owner2", READ_LOCK, false, true, -1));
+        lock.release("owner1");
+    }
+
+    public void testHandOver() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking hand-over to blocked requests\n\n");
+
+        final QueuedLock lock = new QueuedLock("res1", WRITE_LOCK, sLogger);
+        final boolean[] acquired = new boolean[2];
+
+        assertTrue(lock.acquire("writer", WRITE_LOCK, false, true, -1));
+        Thread reader1 = startAcquire(lock, "reader1", READ_LOCK, acquired, 0, null);
+        Thread reader2 = startAcquire(lock, "reader2", READ_LOCK, acquired, 1, null);
+        awaitBlocked(lock, 2);
+
+        // both readers are granted by the release and are woken up only afterwards
+        lock.release("writer");
+        assertEquals(READ_LOCK, lock.getLockLevel("reader1"));
+        assertEquals(READ_LOCK, lock.getLockLevel("reader2"));
+        reader1.join();
+        reader2.join();
+        assertTrue(acquired[0]);
+        assertTrue(acquired[1]);
+    }
+
+    public void testTimeout() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking timeouts\n\n");
+
+        QueuedLock lock = new QueuedLock("res1", WRITE_LOCK, sLogger);
+
+        assertTrue(lock.acquire("owner1", WRITE_LOCK, false, true, -1));
+        long started = System.currentTimeMillis();
+        assertFalse(lock.acquire("owner2", WRITE_LOCK, true, true, 100));
+        assertTrue(System.currentTimeMillis() - started >= 100);
+
+        // the request that timed out is gone and does not get the lock later
+        assertTrue(lock.conditions.isEmpty());
+        lock.release("owner1");
+        assertEquals(0, lock.getLockLevel("owner2"));
+        assertTrue(lock.isIdle());
+    }
+
+    public void testInterruption() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking interruption of blocked requests\n\n");
+
+        final QueuedLock lock = new QueuedLock("res1", WRITE_LOCK, sLogger);
+        final boolean[] acquired = new boolean[1];
+        final boolean[] interrupted = new boolean[1];
+
+        assertTrue(lock.acquire("owner1", WRITE_LOCK, false, true, -1));
+        Thread waiter = startAcquire(lock, "owner2", WRITE_LOCK, acquired, 0, interrupted);
+        awaitBlocked(lock, 1);
+
+        waiter.interrupt();
+        waiter.join();
+        assertTrue(interrupted[0]);
+        assertFalse(acquired[0]);
+
+        // the interrupted request is gone and does not get the lock later
+        assertTrue(lock.conditions.isEmpty());
+        lock.release("owner1");
+        assertEquals(0, lock.getLockLevel("owner2"));
+        assertTrue(lock.acquire("owner3", WRITE_LOCK, false, true, -1));
+        lock.release("owner3");
+    }
+
+    public void testAsyncLock() throws Throwable {
+
+        sLogger.logInfo("\n\nChecking asynchronous requests on queued locks\n\n");
+
+        GenericLockManager manager = new GenericLockManager(WRITE_LOCK, sLogger, TIMEOUT, -1) {
+            protected GenericLock createLock(Object resourceId) {
+                GenericLock lock = new QueuedLock(resourceId, maxLockLevel, logger);
+                globalLocks.put(resourceId, lock);
+                return lock;
+            }
+        };
+
+        manager.lock("owner1", "res1", WRITE_LOCK, true);
+        assertTrue(manager.getLock("res1") instanceof QueuedLock);
+
+        LockFuture future = manager.lockAsync("owner2", "res1", WRITE_LOCK,
+                GenericLock.COMPATIBILITY_REENTRANT, false, TIMEOUT);
+        assertFalse(future.isDone());
+
+        // the pending request is granted by the release
+        manager.release("owner1", "res1");
+        assertTrue(future.isGranted());
+        assertTrue(manager.hasLock("owner2", "res1", WRITE_LOCK));
+
+        // and times out without anybody waiting for it
+        future = manager.lockAsync("owner3", "res1", WRITE_LOCK,
+                GenericLock.COMPATIBILITY_REENTRANT, false, 100);
+        assertTrue(future.await(TIMEOUT));
+        assertEquals(LockException.CODE_TIMED_OUT, future.getException().getCode());
+        manager.releaseAll("owner2");
+        assertTrue(manager.tryLock("owner3", "res1", WRITE_LOCK, true));
+        manager.releaseAll("owner3");
+    }
+
+    protected Thread startAcquire(final QueuedLock lock, final String owner, final int level,
+            final boolean[] acquired, final int index, final boolean[] interrupted) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    acquired[index] = lock.acquire(owner, level, true, true, TIMEOUT);
+                } catch (InterruptedException e) {
+                    if (interrupted != null) {
+                        interrupted[index] = true;
+                    }
+                }
+            }
+        }, owner + " Thread");
+        t.start();
+        return t;
+    }
+
+    // waits until the given number of requests is parked on a condition of the lock
+    protected void awaitBlocked(QueuedLock lock, int count) throws InterruptedException {
+        while (true) {
+            lock.guard.lock();
+            try {
+                if (lock.conditions.size() >= count) {
+                    return;
+                }
+            } finally {
+                lock.guard.unlock();
+            }
+            Thread.sleep(1);
+        }
+    }
+}